@@ -22,18 +22,21 @@ import com.box.sdk.BoxAPIConnection;
 import com.box.sdk.BoxAPIConnectionListener;
 import com.box.sdk.BoxAPIException;
 import com.box.sdk.BoxAPIRequest;
+import com.box.sdk.BoxAPIResponse;
 import com.box.sdk.BoxDateFormat;
 import com.box.sdk.BoxEnterprise;
 import com.box.sdk.BoxEvent;
 import com.box.sdk.BoxFile;
 import com.box.sdk.BoxFolder;
 import com.box.sdk.BoxItem;
+import com.box.sdk.BoxJSONRequest;
 import com.box.sdk.BoxJSONResponse;
 import com.box.sdk.BoxSharedLink;
 import com.box.sdk.BoxTrash;
 import com.box.sdk.BoxUser;
 import com.box.sdk.ExoBoxEvent;
 import com.box.sdk.PartialCollection;
+import com.box.sdk.RequestInterceptor;
 import com.eclipsesource.json.JsonArray;
 import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonValue;
@@ -45,14 +48,24 @@ import org.exoplatform.clouddrive.NotFoundException;
 import org.exoplatform.clouddrive.RefreshAccessException;
 import org.exoplatform.clouddrive.oauth2.UserToken;
 import org.exoplatform.clouddrive.utils.ChunkIterator;
+import org.exoplatform.clouddrive.utils.RateLimiter;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashSet;
@@ -185,10 +198,61 @@ public class BoxAPI {
       "path_collection", "created_at", "modified_at", "created_by", "modified_by", "owned_by", "shared_link", "parent",
       "item_status", "item_collection" };
 
+  /**
+   * Minimal file size for chunked upload sessions (20M), smaller files should be uploaded in single request.
+   */
+  public static final long     UPLOAD_SESSION_MIN_SIZE = 20 * 1024 * 1024;
+
+  /** Attempts to commit upload session while Box processing its parts. */
+  public static final int      UPLOAD_COMMIT_ATTEMPTS  = 10;
+
+  /** Timeout between attempts to commit upload session. */
+  public static final long     UPLOAD_COMMIT_TIMEOUT   = 2000;
+
+  /**
+   * Time to wait for changes in a single long-poll request to Box realtime server (60 seconds). Box holds
+   * the request much longer, but a shorter wait lets a stopped or unwatched drive release its connection
+   * soon. The request blocks a connection of {@link org.exoplatform.clouddrive.ChangesWatcher}, thus
+   * number of watched drives is bounded by its connections.
+   */
+  public static final int      CHANGES_WAIT_TIMEOUT    = 60000;
+
+  /** Timeout to connect Box realtime server. */
+  public static final int      CHANGES_CONNECT_TIMEOUT = 30000;
+
+  /** Realtime server message about new changes. */
+  public static final String   CHANGES_NEW_CHANGE      = "new_change";
+
+  /** Realtime server message asking to use a new changes link. */
+  public static final String   CHANGES_RECONNECT       = "reconnect";
+
   /** The Constant USER_FIELDS. */
   public static final String[] USER_FIELDS = { "type", "id", "name", "login", "created_at", "modified_at", "role",
       "language", "timezone", "status", "avatar_url", "enterprise" };
 
+  /**
+   * Chunked upload session.
+   */
+  static class UploadSession {
+
+    /** The session id. */
+    final String id;
+
+    /** The part size defined by Box for the session. */
+    final int    partSize;
+
+    /**
+     * Instantiates a new upload session.
+     *
+     * @param id the id
+     * @param partSize the part size
+     */
+    UploadSession(String id, int partSize) {
+      this.id = id;
+      this.partSize = partSize;
+    }
+  }
+
   /**
    * The Class StoredToken.
    */
@@ -511,6 +575,32 @@ public class BoxAPI {
     }
   }
 
+  /**
+   * Interceptor of Box SDK requests limiting requests rate of the user. Box SDK retries itself throttled
+   * (429) and failed on server side (5xx) requests with exponential backoff, and each attempt will pass
+   * this interceptor, thus retries also go under the user rate.
+   */
+  class LimitingInterceptor implements RequestInterceptor {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BoxAPIResponse onRequest(BoxAPIRequest request) {
+      RateLimiter limiter = BoxAPI.this.limiter;
+      if (limiter != null) {
+        try {
+          limiter.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new BoxAPIException("Interrupted while waiting for request rate");
+        }
+      }
+      // go to Box
+      return null;
+    }
+  }
+
   /** The api. */
   private final BoxAPIConnection api;
 
@@ -523,6 +613,9 @@ public class BoxAPI {
   /** The custom domain. */
   private String                 enterpriseId, enterpriseName, customDomain;
 
+  /** Requests rate limiter of the user, set when the user known. */
+  private volatile RateLimiter   limiter;
+
   /**
    * Create Box API from OAuth2 authentication code.
    *
@@ -537,6 +630,7 @@ public class BoxAPI {
       throws BoxException, CloudDriveException {
     try {
       this.api = new BoxAPIConnection(clientId, clientSecret, authCode);
+      this.api.setRequestInterceptor(new LimitingInterceptor());
 
       this.token = new StoredToken();
       // save just authorized access token in local store
@@ -568,6 +662,7 @@ public class BoxAPI {
     try {
       this.api = new BoxAPIConnection(clientId, clientSecret, accessToken, refreshToken);
       this.api.setExpires(expirationTime);
+      this.api.setRequestInterceptor(new LimitingInterceptor());
 
       this.token = new StoredToken();
       // for a case if access token was just refreshed by the Box SDK - save it in local store
@@ -603,6 +698,15 @@ public class BoxAPI {
     return token;
   }
 
+  /**
+   * Set requests rate limiter of the user.
+   *
+   * @param limiter the limiter
+   */
+  void setRateLimiter(RateLimiter limiter) {
+    this.limiter = limiter;
+  }
+
   /**
    * Currently connected Box user.
    *
@@ -847,6 +951,51 @@ public class BoxAPI {
     }
   }
 
+  /**
+   * Wait for changes in Box realtime server using given changes link. If events already happened after given
+   * stream position, Box will respond immediately.
+   *
+   * @param link the changes link
+   * @param streamPosition the stream position of latest synchronized events
+   * @param timeout the time to wait in milliseconds
+   * @return the message from the realtime server ({@link #CHANGES_NEW_CHANGE} or {@link #CHANGES_RECONNECT}),
+   *         or <code>null</code> if nothing happened during the timeout
+   * @throws BoxException if realtime server cannot be requested
+   */
+  String waitChanges(ChangesLink link, long streamPosition, int timeout) throws BoxException {
+    try {
+      StringBuilder url = new StringBuilder(link.getUrl());
+      url.append(link.getUrl().indexOf('?') >= 0 ? '&' : '?');
+      url.append("stream_position=").append(streamPosition);
+      HttpURLConnection conn = (HttpURLConnection) new URL(url.toString()).openConnection();
+      conn.setConnectTimeout(CHANGES_CONNECT_TIMEOUT);
+      conn.setReadTimeout(timeout);
+      try {
+        int status = conn.getResponseCode();
+        InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+        String body = in != null ? readString(in) : "";
+        if (status >= 400) {
+          if (body.indexOf("max_retries") >= 0) {
+            // link cannot be used anymore
+            return CHANGES_RECONNECT;
+          }
+          throw new BoxException("Realtime server error " + status + ": " + body);
+        }
+        JsonValue message = JsonObject.readFrom(body).get("message");
+        return message != null ? message.asString() : null;
+      } catch (SocketTimeoutException e) {
+        // nothing happened
+        return null;
+      } finally {
+        conn.disconnect();
+      }
+    } catch (com.eclipsesource.json.ParseException e) {
+      throw new BoxException("Error parsing realtime server response: " + e.getMessage(), e);
+    } catch (IOException e) {
+      throw new BoxException("Error requesting realtime server: " + e.getMessage(), e);
+    }
+  }
+
   /**
    * Gets the events.
    *
@@ -1283,6 +1432,187 @@ public class BoxAPI {
     }
   }
 
+  /**
+   * Start chunked upload session. If file ID given, the session will upload a new version of the file,
+   * otherwise a new file will be created in the parent folder.
+   *
+   * @param parentId the parent id
+   * @param id the id of existing file or <code>null</code> for a new file
+   * @param name the name
+   * @param length the content length
+   * @return the upload session
+   * @throws BoxException the box exception
+   * @throws NotFoundException the not found exception
+   * @throws RefreshAccessException the refresh access exception
+   * @throws ConflictException the conflict exception
+   */
+  UploadSession startUpload(String parentId, String id, String name, long length) throws BoxException,
+                                                                                  NotFoundException,
+                                                                                  RefreshAccessException,
+                                                                                  ConflictException {
+    try {
+      JsonObject body = new JsonObject();
+      StringBuilder url = new StringBuilder(api.getBaseUploadURL());
+      if (id != null) {
+        url.append("files/").append(id).append("/upload_sessions");
+      } else {
+        url.append("files/upload_sessions");
+        body.add("folder_id", parentId);
+        body.add("file_name", name);
+      }
+      body.add("file_size", length);
+
+      BoxJSONRequest request = new BoxJSONRequest(api, new URL(url.toString()), "POST");
+      request.setBody(body);
+      BoxJSONResponse response = (BoxJSONResponse) request.send();
+      JsonObject session = JsonObject.readFrom(response.getJSON());
+      return new UploadSession(session.get("id").asString(), session.get("part_size").asInt());
+    } catch (BoxAPIException e) {
+      checkTokenState(e);
+      int status = e.getResponseCode();
+      if (status == 404 || status == 412) {
+        throw new NotFoundException((id != null ? "File not found " + id : "Parent not found " + parentId)
+            + ". Cannot start file uploading " + name, e);
+      } else if (status == 403) {
+        throw new NotFoundException("The user doesn't have access to upload a file " + name, e);
+      } else if (status == 409) {
+        throw new ConflictException("File with the same name as creating already exists " + name, e);
+      }
+      throw new BoxException("Error starting upload session: " + getErrorMessage(e), e);
+    } catch (MalformedURLException e) {
+      throw new BoxException("Error constructing upload session URL: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Upload a part of the content to upload session. All parts except of the last should be of the session
+   * part size.
+   *
+   * @param sessionId the upload session id
+   * @param offset the part offset in the content
+   * @param data the part data
+   * @param size the part size in the data
+   * @param length the content length
+   * @return {@link JsonObject} uploaded part description required to commit the session
+   * @throws BoxException the box exception
+   * @throws RefreshAccessException the refresh access exception
+   */
+  JsonObject uploadPart(String sessionId, long offset, byte[] data, int size, long length) throws BoxException,
+                                                                                          RefreshAccessException {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      sha1.update(data, 0, size);
+
+      BoxAPIRequest request = new BoxAPIRequest(api, uploadSessionURL(sessionId, null), "PUT");
+      request.addHeader("Digest", "sha=" + Base64.getEncoder().encodeToString(sha1.digest()));
+      request.addHeader("Content-Type", "application/octet-stream");
+      request.addHeader("Content-Range", "bytes " + offset + "-" + (offset + size - 1) + "/" + length);
+      request.setBody(new ByteArrayInputStream(data, 0, size));
+      BoxJSONResponse response = (BoxJSONResponse) request.send();
+      return JsonObject.readFrom(response.getJSON()).get("part").asObject();
+    } catch (BoxAPIException e) {
+      checkTokenState(e);
+      throw new BoxException("Error uploading file part: " + getErrorMessage(e), e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new BoxException("Error calculating file part digest: " + e.getMessage(), e);
+    } catch (MalformedURLException e) {
+      throw new BoxException("Error constructing upload session URL: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Parts already uploaded to upload session.
+   *
+   * @param sessionId the upload session id
+   * @return {@link JsonArray} of parts or <code>null</code> if session not found or expired
+   * @throws BoxException the box exception
+   * @throws RefreshAccessException the refresh access exception
+   */
+  JsonArray uploadedParts(String sessionId) throws BoxException, RefreshAccessException {
+    try {
+      JsonArray parts = new JsonArray();
+      int offset = 0;
+      int total;
+      do {
+        BoxAPIRequest request = new BoxAPIRequest(api,
+                                                  uploadSessionURL(sessionId, "/parts?limit=1000&offset=" + offset),
+                                                  "GET");
+        BoxJSONResponse response = (BoxJSONResponse) request.send();
+        JsonObject page = JsonObject.readFrom(response.getJSON());
+        JsonArray entries = page.get("entries").asArray();
+        for (JsonValue entry : entries) {
+          parts.add(entry);
+        }
+        offset += entries.size();
+        total = page.get("total_count").asInt();
+        if (entries.isEmpty()) {
+          break;
+        }
+      } while (offset < total);
+      return parts;
+    } catch (BoxAPIException e) {
+      checkTokenState(e);
+      if (e.getResponseCode() == 404) {
+        return null;
+      }
+      throw new BoxException("Error reading upload session parts: " + getErrorMessage(e), e);
+    } catch (MalformedURLException e) {
+      throw new BoxException("Error constructing upload session URL: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Commit upload session: Box will assemble uploaded parts into the file. If Box not ready yet to commit
+   * the session, the request will be repeated after a timeout.
+   *
+   * @param sessionId the upload session id
+   * @param parts the uploaded parts
+   * @param digest the Base64 encoded SHA1 digest of whole content
+   * @param modified the modified
+   * @return the box file. info
+   * @throws BoxException the box exception
+   * @throws NotFoundException the not found exception
+   * @throws RefreshAccessException the refresh access exception
+   */
+  BoxFile.Info commitUpload(String sessionId, JsonArray parts, String digest, Calendar modified) throws BoxException,
+                                                                                                 NotFoundException,
+                                                                                                 RefreshAccessException {
+    try {
+      JsonObject attributes = new JsonObject();
+      if (modified != null) {
+        attributes.add("content_modified_at", formatDate(modified));
+      }
+      JsonObject body = new JsonObject();
+      body.add("parts", parts);
+      body.add("attributes", attributes);
+
+      for (int attempt = 1; attempt <= UPLOAD_COMMIT_ATTEMPTS; attempt++) {
+        BoxJSONRequest request = new BoxJSONRequest(api, uploadSessionURL(sessionId, "/commit"), "POST");
+        request.addHeader("Digest", "sha=" + digest);
+        request.setBody(body);
+        BoxAPIResponse response = request.send();
+        if (response.getResponseCode() == 202) {
+          // parts are still processing by Box
+          response.disconnect();
+          Thread.sleep(UPLOAD_COMMIT_TIMEOUT);
+        } else {
+          JsonObject result = JsonObject.readFrom(((BoxJSONResponse) response).getJSON());
+          String id = result.get("entries").asArray().get(0).asObject().get("id").asString();
+          return readFile(id);
+        }
+      }
+      throw new BoxException("Upload session not committed in time: " + sessionId);
+    } catch (BoxAPIException e) {
+      checkTokenState(e);
+      throw new BoxException("Error committing upload session: " + getErrorMessage(e), e);
+    } catch (MalformedURLException e) {
+      throw new BoxException("Error constructing upload session URL: " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BoxException("Interrupted while committing upload session: " + sessionId, e);
+    }
+  }
+
   /**
    * Update folder name or/and parent. If folder was actually updated (name or/and
    * parent changed) this method return updated folder object or <code>null</code> if folder already exists
@@ -1506,6 +1836,45 @@ public class BoxAPI {
 
   // ********* internal *********
 
+  /**
+   * URL of upload session endpoint.
+   *
+   * @param sessionId the session id
+   * @param suffix the suffix (path and query) or <code>null</code>
+   * @return the url
+   * @throws MalformedURLException the malformed URL exception
+   */
+  private URL uploadSessionURL(String sessionId, String suffix) throws MalformedURLException {
+    StringBuilder url = new StringBuilder(api.getBaseUploadURL());
+    url.append("files/upload_sessions/").append(sessionId);
+    if (suffix != null) {
+      url.append(suffix);
+    }
+    return new URL(url.toString());
+  }
+
+  /**
+   * Read a stream into string, the stream will be closed.
+   *
+   * @param in the stream
+   * @return the string
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private String readString(InputStream in) throws IOException {
+    Reader reader = new InputStreamReader(in, "UTF-8");
+    try {
+      StringBuilder text = new StringBuilder();
+      char[] buf = new char[1024];
+      int r;
+      while ((r = reader.read(buf)) >= 0) {
+        text.append(buf, 0, r);
+      }
+      return text.toString();
+    } finally {
+      reader.close();
+    }
+  }
+
   /**
    * Gets the error message.
    *
@@ -263,6 +263,7 @@ public class BoxConnector extends CloudDriveConnector {
     if (user instanceof BoxUser) {
       BoxUser boxUser = (BoxUser) user;
       JCRLocalBoxDrive drive = new JCRLocalBoxDrive(boxUser, driveNode, sessionProviders, jcrFinder, mimeTypes);
+      drive.setUploadChunkSize(getUploadChunkSize());
       return drive;
     } else {
       throw new CloudDriveException("Not Box user: " + user);
@@ -282,6 +283,7 @@ public class BoxConnector extends CloudDriveConnector {
                                                   sessionProviders,
                                                   jcrFinder,
                                                   mimeTypes);
+    drive.setUploadChunkSize(getUploadChunkSize());
     return drive;
   }
 
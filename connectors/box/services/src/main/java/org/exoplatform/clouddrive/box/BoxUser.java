@@ -20,6 +20,7 @@ package org.exoplatform.clouddrive.box;
 
 import org.exoplatform.clouddrive.CloudProvider;
 import org.exoplatform.clouddrive.CloudUser;
+import org.exoplatform.clouddrive.utils.RateLimiter;
 
 /**
  * Created by The eXo Platform SAS.
@@ -44,6 +45,7 @@ public class BoxUser extends CloudUser {
   public BoxUser(String id, String username, String email, CloudProvider provider, BoxAPI api) {
     super(id, username, email, provider);
     this.api = api;
+    api.setRateLimiter(RateLimiter.of(provider, id));
   }
 
   /**
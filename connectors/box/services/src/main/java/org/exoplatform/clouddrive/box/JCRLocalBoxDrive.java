@@ -24,7 +24,11 @@ import com.box.sdk.BoxFolder;
 import com.box.sdk.BoxItem;
 import com.box.sdk.BoxResource;
 import com.box.sdk.BoxSharedLink;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
 
+import org.exoplatform.clouddrive.ChangesWatcher;
 import org.exoplatform.clouddrive.CloudDriveException;
 import org.exoplatform.clouddrive.CloudFile;
 import org.exoplatform.clouddrive.CloudFileAPI;
@@ -36,6 +40,7 @@ import org.exoplatform.clouddrive.DriveRemovedException;
 import org.exoplatform.clouddrive.NotFoundException;
 import org.exoplatform.clouddrive.RefreshAccessException;
 import org.exoplatform.clouddrive.SyncNotSupportedException;
+import org.exoplatform.clouddrive.ThreadExecutor;
 import org.exoplatform.clouddrive.box.BoxAPI.ChangesLink;
 import org.exoplatform.clouddrive.box.BoxAPI.EventsIterator;
 import org.exoplatform.clouddrive.box.BoxAPI.ItemsIterator;
@@ -45,14 +50,25 @@ import org.exoplatform.clouddrive.jcr.JCRLocalCloudFile;
 import org.exoplatform.clouddrive.jcr.NodeFinder;
 import org.exoplatform.clouddrive.oauth2.UserToken;
 import org.exoplatform.clouddrive.oauth2.UserTokenRefreshListener;
+import org.exoplatform.clouddrive.utils.ChunkedUpload;
 import org.exoplatform.clouddrive.utils.ExtendedMimeTypeResolver;
+import org.exoplatform.clouddrive.utils.UploadSessions;
 import org.exoplatform.services.jcr.ext.app.SessionProviderService;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -61,6 +77,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -75,19 +94,90 @@ import javax.jcr.RepositoryException;
  * @version $Id: JCRLocalBoxDrive.java 00000 Aug 30, 2013 pnedonosko $
  * 
  */
-public class JCRLocalBoxDrive extends JCRLocalCloudDrive implements UserTokenRefreshListener {
+public class JCRLocalBoxDrive extends JCRLocalCloudDrive implements UserTokenRefreshListener,
+    ChangesWatcher.Watchable {
 
   /**
    * Period to perform {@link FullSync} as a next sync request. See implementation of
    * {@link #getSyncCommand()}.
    */
-  public static final long FULL_SYNC_PERIOD = 24 * 60 * 60 * 60 * 1000; // 24hrs
+  public static final long FULL_SYNC_PERIOD    = 24 * 60 * 60 * 60 * 1000; // 24hrs
 
   /**
-   * Connect algorithm for Box drive.
+   * Maximum number of Box folders listed concurrently by {@link Connect} command.
+   */
+  public static final int  CONNECT_CONCURRENCY = 4;
+
+  /**
+   * Connect algorithm for Box drive. Folders are listed from Box concurrently by not more than
+   * {@link #CONNECT_CONCURRENCY} workers, while local nodes are created by the command thread only (single JCR
+   * writer saving by chunks).
    */
   protected class Connect extends ConnectCommand {
 
+    /**
+     * Items of a Box folder listed by a worker. When listing done (successfully or not) the listing will be
+     * put to a queue of listed folders.
+     */
+    class FolderListing implements Runnable {
+
+      /** The folder id. */
+      final String                      folderId;
+
+      /** The folder local node. */
+      final Node                        node;
+
+      /** The queue of listed folders. */
+      final BlockingQueue<FolderListing> listed;
+
+      /** The stop flag of the fetching. */
+      final AtomicBoolean               stop;
+
+      /** The folder children. */
+      final List<BoxItem.Info>          children = new ArrayList<BoxItem.Info>();
+
+      /** The items iterator. */
+      ItemsIterator                     items;
+
+      /** The error. */
+      Throwable                         error;
+
+      /**
+       * Instantiates a new folder listing.
+       *
+       * @param folderId the folder id
+       * @param node the node
+       * @param listed the listed
+       * @param stop the stop
+       */
+      FolderListing(String folderId, Node node, BlockingQueue<FolderListing> listed, AtomicBoolean stop) {
+        this.folderId = folderId;
+        this.node = node;
+        this.listed = listed;
+        this.stop = stop;
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void run() {
+        try {
+          if (!stop.get()) {
+            items = api.getFolderItems(folderId);
+            iterators.add(items);
+            while (!stop.get() && items.hasNext()) {
+              children.add(items.next());
+            }
+          }
+        } catch (Throwable e) {
+          error = e;
+        } finally {
+          listed.add(this);
+        }
+      }
+    }
+
     /** The api. */
     protected final BoxAPI api;
 
@@ -111,6 +201,9 @@ public class JCRLocalBoxDrive extends JCRLocalCloudDrive implements UserTokenRef
       EventsIterator eventsInit = api.getEvents(BoxAPI.STREAM_POSITION_NOW);
 
       BoxFolder.Info boxRoot = fetchChilds(BoxAPI.BOX_ROOT_ID, driveNode);
+      if (boxRoot == null) {
+        return; // interrupted
+      }
       initBoxItem(driveNode, boxRoot); // init parent
 
       // actual drive URL (its root folder's id), see initDrive() also
@@ -122,33 +215,63 @@ public class JCRLocalBoxDrive extends JCRLocalCloudDrive implements UserTokenRef
     }
 
     /**
-     * Fetch childs.
+     * Fetch the folder sub-tree. Folders listed in parallel by workers, while this method creates local nodes
+     * for the listed items and submits found sub-folders for listing.
      *
-     * @param fileId the file id
-     * @param parent the parent
-     * @return the box folder. info
+     * @param fileId the folder id
+     * @param parent the folder node
+     * @return the box folder info or <code>null</code> if current thread was interrupted
      * @throws CloudDriveException the cloud drive exception
      * @throws RepositoryException the repository exception
      */
     protected BoxFolder.Info fetchChilds(String fileId, Node parent) throws CloudDriveException, RepositoryException {
-      ItemsIterator items = api.getFolderItems(fileId);
-      iterators.add(items);
-      while (items.hasNext()) {
-        BoxItem.Info item = items.next();
-        if (!isConnected(fileId, item.getID())) { // work if not already connected
-          JCRLocalCloudFile localItem = updateItem(api, item, parent, null);
-          if (localItem.isChanged()) {
-            addConnected(fileId, localItem);
-            if (localItem.isFolder()) {
-              // go recursive to the folder
-              fetchChilds(localItem.getId(), localItem.getNode());
+      BlockingQueue<FolderListing> listed = new LinkedBlockingQueue<FolderListing>();
+      AtomicBoolean stop = new AtomicBoolean(false);
+      // folders to list, as a stack to go depth-first and keep less folders in memory
+      Deque<FolderListing> folders = new ArrayDeque<FolderListing>();
+      FolderListing root = new FolderListing(fileId, parent, listed, stop);
+      folders.push(root);
+      int listing = 0;
+      try {
+        while (listing > 0 || folders.size() > 0) {
+          while (listing < CONNECT_CONCURRENCY && folders.size() > 0) {
+            workerExecutor.submit(ThreadExecutor.Lane.HELPER, JCRLocalBoxDrive.this, folders.pop());
+            listing++;
+          }
+          FolderListing folder = listed.take();
+          listing--;
+          if (folder.error != null) {
+            if (folder.error instanceof CloudDriveException) {
+              throw (CloudDriveException) folder.error;
+            } else if (folder.error instanceof RuntimeException) {
+              throw (RuntimeException) folder.error;
+            }
+            throw new BoxException("Error listing folder " + folder.folderId + ": " + folder.error.getMessage(),
+                                   folder.error);
+          }
+          for (BoxItem.Info item : folder.children) {
+            if (!isConnected(folder.folderId, item.getID())) { // work if not already connected
+              JCRLocalCloudFile localItem = updateItem(api, item, folder.node, null);
+              if (localItem.isChanged()) {
+                addConnected(folder.folderId, localItem);
+                if (localItem.isFolder()) {
+                  // list the folder in a worker
+                  folders.push(new FolderListing(localItem.getId(), localItem.getNode(), listed, stop));
+                }
+              } else {
+                throw new BoxFormatException("Fetched item was not added to local drive storage");
+              }
             }
-          } else {
-            throw new BoxFormatException("Fetched item was not added to local drive storage");
           }
         }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } finally {
+        // let running workers to finish early
+        stop.set(true);
       }
-      return items.getParent();
+      return root.items.getParent();
     }
   }
 
@@ -275,9 +398,7 @@ public class JCRLocalBoxDrive extends JCRLocalCloudDrive implements UserTokenRef
       fileHistory.clear();
       try {
         jcrListener.disable();
-        String empty = "".intern();
-        driveNode.setProperty("ecd:localHistory", empty);
-        driveNode.setProperty("ecd:localChanges", empty);
+        resetChanges(driveNode);
         driveNode.save();
       } catch (Throwable e) {
         LOG.error("Error cleaning local history in " + title(), e);
@@ -324,9 +445,14 @@ public class JCRLocalBoxDrive extends JCRLocalCloudDrive implements UserTokenRef
 
       String parentId = getParentId(fileNode);
       String title = getTitle(fileNode);
+      long length = contentLength(fileNode);
       BoxFile.Info file;
       try {
-        file = api.createFile(parentId, title, created, content);
+        if (isChunkedUpload(length)) {
+          file = uploadContent(fileNode, parentId, null, title, content, modified, length);
+        } else {
+          file = api.createFile(parentId, title, created, content);
+        }
       } catch (ConflictException e) {
         // we assume name as factor of equality here and make local file to reflect the cloud side
         BoxFile.Info existing = null;
@@ -557,7 +683,19 @@ public class JCRLocalBoxDrive extends JCRLocalCloudDrive implements UserTokenRef
                                        String mimeType,
                                        InputStream content) throws CloudDriveException, RepositoryException {
       // Update existing file content and its metadata.
-      BoxFile.Info file = api.updateFileContent(getId(fileNode), modified, content);
+      long length = contentLength(fileNode);
+      BoxFile.Info file;
+      if (isChunkedUpload(length)) {
+        file = uploadContent(fileNode,
+                             getParentId(fileNode),
+                             getId(fileNode),
+                             getTitle(fileNode),
+                             content,
+                             modified,
+                             length);
+      } else {
+        file = api.updateFileContent(getId(fileNode), modified, content);
+      }
 
       String id = file.getID();
       String name = file.getName();
@@ -851,6 +989,114 @@ public class JCRLocalBoxDrive extends JCRLocalCloudDrive implements UserTokenRef
     public CloudFile restore(String id, String path) throws NotFoundException, CloudDriveException, RepositoryException {
       throw new SyncNotSupportedException("Restore not supported");
     }
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isChunkedUpload(long length) {
+      // Box accepts upload sessions only for big enough files
+      return length >= BoxAPI.UPLOAD_SESSION_MIN_SIZE && super.isChunkedUpload(length);
+    }
+
+    /**
+     * Upload file content by parts in upload session. Part size defined by Box when the session started,
+     * configured chunk size is not used for Box. A SHA1 digest of each part and of whole content sent to Box
+     * to verify the upload.
+     *
+     * @param fileNode the file node
+     * @param parentId the parent id
+     * @param id the id of updated file or <code>null</code> for a new file
+     * @param title the title
+     * @param content the content
+     * @param modified the modified
+     * @param length the content length
+     * @return the box file. info
+     * @throws CloudDriveException the cloud drive exception
+     * @throws RepositoryException the repository exception
+     */
+    protected BoxFile.Info uploadContent(Node fileNode,
+                                         final String parentId,
+                                         final String id,
+                                         final String title,
+                                         InputStream content,
+                                         final Calendar modified,
+                                         final long length) throws CloudDriveException, RepositoryException {
+      final MessageDigest sha1;
+      try {
+        sha1 = MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+        throw new BoxException("Error calculating file digest: " + e.getMessage(), e);
+      }
+      ChunkedUpload<BoxFile.Info> upload = new ChunkedUpload<BoxFile.Info>(uploadSessions(),
+                                                                           uploadKey(fileNode, modified, length),
+                                                                           content,
+                                                                           length,
+                                                                           uploadChunkSize) {
+
+        /** Uploaded parts, all of them should be listed in the session commit. */
+        JsonArray parts = new JsonArray();
+
+        @Override
+        protected String startSession() throws CloudDriveException {
+          parts = new JsonArray();
+          BoxAPI.UploadSession started = api.startUpload(parentId, id, title, length);
+          chunkSize = started.partSize;
+          return started.id;
+        }
+
+        @Override
+        protected long resumeSession(UploadSessions.Session saved) throws CloudDriveException {
+          JsonArray uploaded = api.uploadedParts(saved.getId());
+          if (uploaded == null) {
+            return -1;
+          }
+          List<JsonObject> sorted = new ArrayList<JsonObject>();
+          for (JsonValue part : uploaded) {
+            sorted.add(part.asObject());
+          }
+          Collections.sort(sorted, new Comparator<JsonObject>() {
+            @Override
+            public int compare(JsonObject p1, JsonObject p2) {
+              long o1 = p1.get("offset").asLong();
+              long o2 = p2.get("offset").asLong();
+              return o1 < o2 ? -1 : (o1 == o2 ? 0 : 1);
+            }
+          });
+          // resume after parts uploaded continuously from the content begin
+          long offset = 0;
+          for (JsonObject part : sorted) {
+            if (part.get("offset").asLong() == offset) {
+              parts.add(part);
+              offset += part.get("size").asLong();
+            } else {
+              break;
+            }
+          }
+          return offset;
+        }
+
+        @Override
+        protected long sendChunk(long offset, byte[] data, int size, boolean last) throws CloudDriveException {
+          parts.add(api.uploadPart(session, offset, data, size, length));
+          return offset + size;
+        }
+
+        @Override
+        protected void contentRead(byte[] data, int off, int len) {
+          sha1.update(data, off, len);
+        }
+
+        @Override
+        protected BoxFile.Info finishSession() throws CloudDriveException {
+          return api.commitUpload(session, parts, Base64.getEncoder().encodeToString(sha1.digest()), modified);
+        }
+      };
+      try {
+        return upload(upload);
+      } catch (IOException e) {
+        throw new BoxException("Error uploading file " + title + ": " + e.getMessage(), e);
+      }
+    }
   }
 
   /**
@@ -1558,6 +1804,57 @@ public class JCRLocalBoxDrive extends JCRLocalCloudDrive implements UserTokenRef
     }
   }
 
+  /**
+   * Long-poll of the drive changes in Box realtime server. The poll owns its changes link and requests a new
+   * one when the link outdated, its retries exhausted or Box asked to reconnect.<br>
+   * The poll is a blocking HTTP request (the connector has no asynchronous HTTP client), it holds a
+   * {@link ChangesWatcher} connection while waits. The watcher doesn't accept more drives than its
+   * connections, drives not watched are synchronized by adaptive interval of
+   * {@link org.exoplatform.clouddrive.DriveSyncScheduler}.
+   */
+  protected class ChangesPoll implements ChangesWatcher.Poll {
+
+    /** Current changes link. */
+    protected ChangesLink link;
+
+    /** Requests done with current link. */
+    protected long        retries;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean await() throws CloudDriveException, InterruptedException {
+      BoxAPI api = getUser().api();
+      if (link == null || link.isOutdated() || (link.getMaxRetries() > 0 && retries >= link.getMaxRetries())) {
+        api.updateChangesLink();
+        link = api.getChangesLink();
+        retries = 0;
+      }
+      long streamPosition;
+      try {
+        streamPosition = getChangeId();
+      } catch (RepositoryException e) {
+        throw new CloudDriveException("Error reading drive stream position: " + e.getMessage(), e);
+      }
+      retries++;
+      String message = api.waitChanges(link, streamPosition, BoxAPI.CHANGES_WAIT_TIMEOUT);
+      if (BoxAPI.CHANGES_RECONNECT.equals(message)) {
+        link = null;
+        return false;
+      }
+      return BoxAPI.CHANGES_NEW_CHANGE.equals(message);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBackoff() {
+      return 0;
+    }
+  }
+
   /**
    * Instantiates a new JCR local box drive.
    *
@@ -1738,6 +2035,14 @@ public class JCRLocalBoxDrive extends JCRLocalCloudDrive implements UserTokenRef
     return (BoxUser) user;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ChangesWatcher.Poll createChangesPoll() {
+    return new ChangesPoll();
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -36,6 +36,7 @@ import org.apache.chemistry.opencmis.client.api.Session;
 import org.apache.chemistry.opencmis.client.api.SessionFactory;
 import org.apache.chemistry.opencmis.client.bindings.CmisBindingFactory;
 import org.apache.chemistry.opencmis.client.bindings.spi.LinkAccess;
+import org.apache.chemistry.opencmis.client.bindings.spi.StandardAuthenticationProvider;
 import org.apache.chemistry.opencmis.client.runtime.OperationContextImpl;
 import org.apache.chemistry.opencmis.client.runtime.SessionFactoryImpl;
 import org.apache.chemistry.opencmis.commons.PropertyIds;
@@ -72,7 +73,9 @@ import org.exoplatform.clouddrive.NotFoundException;
 import org.exoplatform.clouddrive.RefreshAccessException;
 import org.exoplatform.clouddrive.UnauthorizedException;
 import org.exoplatform.clouddrive.cmis.JCRLocalCMISDrive.LocalFile;
+import org.exoplatform.clouddrive.utils.Backoff;
 import org.exoplatform.clouddrive.utils.ChunkIterator;
+import org.exoplatform.clouddrive.utils.RateLimiter;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 
@@ -561,6 +564,51 @@ public class CMISAPI {
     }
   }
 
+  /**
+   * Authentication provider limiting requests rate of the user. OpenCMIS asks it for HTTP headers before each
+   * request and informs about response headers after, there we take a token from the user limiter and pause
+   * it when the server asks to retry later (429 or 503 with Retry-After).
+   */
+  protected class LimitingAuthenticationProvider extends StandardAuthenticationProvider {
+
+    /** The Constant serialVersionUID. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, List<String>> getHTTPHeaders(String url) {
+      RateLimiter limiter = CMISAPI.this.limiter;
+      if (limiter != null) {
+        try {
+          limiter.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new CmisConnectionException("Interrupted while waiting for request rate");
+        }
+      }
+      return super.getHTTPHeaders(url);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putResponseHeaders(String url, int statusCode, Map<String, List<String>> headers) {
+      super.putResponseHeaders(url, statusCode, headers);
+      RateLimiter limiter = CMISAPI.this.limiter;
+      if (limiter != null && (statusCode == 429 || statusCode == 503) && headers != null) {
+        for (Map.Entry<String, List<String>> h : headers.entrySet()) {
+          if (Backoff.RETRY_AFTER.equalsIgnoreCase(h.getKey()) && h.getValue() != null && h.getValue().size() > 0) {
+            limiter.pause(Backoff.retryAfter(h.getValue().get(0)));
+            break;
+          }
+        }
+      }
+    }
+  }
+
   /**
    * Session context for CMIS calls. Class idea wrapped from OpenCMIS Workbench.
    */
@@ -725,6 +773,11 @@ public class CMISAPI {
   /** The custom domain. */
   protected String                         enterpriseId, enterpriseName, customDomain;
 
+  /**
+   * Requests rate limiter of the user, set when the user known.
+   */
+  protected volatile RateLimiter           limiter;
+
   /**
    * OpenCMIS context for object operations.
    */
@@ -846,6 +899,15 @@ public class CMISAPI {
     }
   }
 
+  /**
+   * Set requests rate limiter of the user.
+   *
+   * @param limiter the limiter
+   */
+  protected void setRateLimiter(RateLimiter limiter) {
+    this.limiter = limiter;
+  }
+
   /**
    * Init current CMIS repository for late use.
    *
@@ -2183,7 +2245,8 @@ public class CMISAPI {
     try {
       lock.lock();
       SessionFactory sessionFactory = SessionFactoryImpl.newInstance();
-      return sessionFactory.getRepositories(parameters);
+      // sessions of the repositories will use the provider also
+      return sessionFactory.getRepositories(parameters, null, new LimitingAuthenticationProvider(), null, null);
     } catch (CmisConnectionException e) {
       // The server is unreachable
       throw new CMISException("CMIS server is unreachable", e);
@@ -59,7 +59,12 @@ import javax.jcr.RepositoryException;
 public class CMISConnector extends CloudDriveConnector {
 
   /** The Constant CONFIG_PREDEFINED. */
-  protected static final String CONFIG_PREDEFINED = "";
+  protected static final String CONFIG_PREDEFINED       = "";
+
+  /**
+   * Number of threads reading remote folders in full sync of a drive. Optional, 4 by default.
+   */
+  public static final String    CONFIG_SYNC_PARALLELISM = "sync-parallelism";
 
   /**
    * Internal API builder (logic based on OAuth2 flow used in Google Drive and Box connectors).
@@ -310,6 +315,7 @@ public class CMISConnector extends CloudDriveConnector {
     if (user instanceof CMISUser) {
       CMISUser apiUser = (CMISUser) user;
       JCRLocalCMISDrive drive = new JCRLocalCMISDrive(apiUser, driveNode, sessionProviders, jcrFinder, mimeTypes, exoURL());
+      drive.setSyncParallelism(getSyncParallelism());
       return drive;
     } else {
       throw new CloudDriveException("Not cloud user: " + user);
@@ -324,6 +330,7 @@ public class CMISConnector extends CloudDriveConnector {
     JCRLocalCloudDrive.checkNotTrashed(driveNode);
     JCRLocalCloudDrive.migrateName(driveNode);
     JCRLocalCMISDrive drive = new JCRLocalCMISDrive(new API(), driveNode, sessionProviders, jcrFinder, mimeTypes, exoURL());
+    drive.setSyncParallelism(getSyncParallelism());
     return drive;
   }
 
@@ -342,6 +349,24 @@ public class CMISConnector extends CloudDriveConnector {
     return exoURL.toString();
   }
 
+  /**
+   * Gets number of threads reading remote folders in full sync of a drive.
+   *
+   * @return the sync parallelism
+   */
+  protected int getSyncParallelism() {
+    String parallelismStr = config.get(CONFIG_SYNC_PARALLELISM);
+    if (parallelismStr != null && (parallelismStr = parallelismStr.trim()).length() > 0) {
+      try {
+        return Integer.parseInt(parallelismStr);
+      } catch (NumberFormatException e) {
+        LOG.warn("Configuration of " + CONFIG_SYNC_PARALLELISM + " is not a number: " + parallelismStr
+            + ". Default value will be used.");
+      }
+    }
+    return JCRLocalCMISDrive.DEFAULT_SYNC_PARALLELISM;
+  }
+
   /**
    * Create {@link CMISAPI} instance.<br>
    *
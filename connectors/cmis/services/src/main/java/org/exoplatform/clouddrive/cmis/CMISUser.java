@@ -26,6 +26,7 @@ import org.exoplatform.clouddrive.CloudUser;
 import org.exoplatform.clouddrive.DriveRemovedException;
 import org.exoplatform.clouddrive.RefreshAccessException;
 import org.exoplatform.clouddrive.cmis.CMISProvider.AtomPub;
+import org.exoplatform.clouddrive.utils.RateLimiter;
 
 import java.util.List;
 
@@ -52,6 +53,8 @@ public class CMISUser extends CloudUser {
   public CMISUser(String id, String username, String email, CloudProvider provider, CMISAPI api) {
     super(id, username, email, provider);
     this.api = api;
+    // the same user name can exist on different CMIS servers
+    api.setRateLimiter(RateLimiter.of(provider, api.getServiceURL() + " " + id));
   }
 
   /**
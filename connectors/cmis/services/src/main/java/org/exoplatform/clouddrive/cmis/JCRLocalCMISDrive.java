@@ -25,6 +25,7 @@ import org.apache.chemistry.opencmis.client.api.FileableCmisObject;
 import org.apache.chemistry.opencmis.client.api.Folder;
 import org.apache.chemistry.opencmis.client.api.Property;
 import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.data.PartialContentStream;
 import org.apache.chemistry.opencmis.commons.data.RepositoryInfo;
 import org.apache.chemistry.opencmis.commons.enums.CapabilityChanges;
 import org.apache.chemistry.opencmis.commons.enums.ChangeType;
@@ -50,11 +51,13 @@ import org.exoplatform.clouddrive.jcr.NodeFinder;
 import org.exoplatform.clouddrive.rest.ContentService;
 import org.exoplatform.clouddrive.utils.ExtendedMimeTypeResolver;
 import org.exoplatform.clouddrive.viewer.ContentReader;
+import org.exoplatform.clouddrive.viewer.PartialContent;
 import org.exoplatform.services.jcr.ext.app.SessionProviderService;
 import org.gatein.common.util.Base64;
 
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -66,13 +69,19 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -87,13 +96,38 @@ public class JCRLocalCMISDrive extends JCRLocalCloudDrive {
   /**
    * Period to perform {@link Sync} as a next sync request. See implementation of {@link #getSyncCommand()}.
    */
-  public static final long      FULL_SYNC_PERIOD      = 24 * 60 * 60 * 1000;         // 24hrs
+  public static final long      FULL_SYNC_PERIOD         = 24 * 60 * 60 * 1000;      // 24hrs
+
+  /**
+   * Default number of threads reading remote folders in full sync of a drive.
+   */
+  public static final int       DEFAULT_SYNC_PARALLELISM = 4;
+
+  /**
+   * Number of items read from remote folders passed to the writer at once in full sync.
+   */
+  public static final int       SYNC_ITEMS_BATCH         = 100;
+
+  /**
+   * Number of read items batches waiting for the writer per reader thread.
+   */
+  protected static final int    SYNC_BATCHES_PER_READER  = 4;
+
+  /**
+   * Time to wait for a place in the writer queue before checking if traversal stopped, in milliseconds.
+   */
+  protected static final long   SYNC_OFFER_TIMEOUT       = 1000;
+
+  /**
+   * Thread name prefix of full sync readers.
+   */
+  protected static final String TRAVERSAL_THREAD_PREFIX  = "clouddrive-cmis-traversal-";
 
   /** The Constant PREVIOUS_LOCAL_NAME. */
-  protected static final String PREVIOUS_LOCAL_NAME   = "cmiscd:previousLocalName";
+  protected static final String PREVIOUS_LOCAL_NAME      = "cmiscd:previousLocalName";
 
   /** The Constant PREVIOUS_LOCAL_PARENT. */
-  protected static final String PREVIOUS_LOCAL_PARENT = "cmiscd:previousLocalParent";
+  protected static final String PREVIOUS_LOCAL_PARENT    = "cmiscd:previousLocalParent";
 
   /**
    * Connect algorithm for Template drive.
@@ -494,9 +528,6 @@ public class JCRLocalCMISDrive extends JCRLocalCloudDrive {
         /** The parent id. */
         protected final String     parentId;
 
-        /** The postponed. */
-        private boolean            postponed;
-
         /**
          * Instantiates a new CMIS item.
          *
@@ -508,31 +539,23 @@ public class JCRLocalCMISDrive extends JCRLocalCloudDrive {
           this.object = object;
           this.parentId = parentId;
         }
-
-        /**
-         * Postpone.
-         */
-        void postpone() {
-          postponed = true;
-        }
-
-        /**
-         * Checks if is postponed.
-         *
-         * @return true, if is postponed
-         */
-        boolean isPostponed() {
-          return postponed;
-        }
       }
 
       /**
-       * The Class FolderReader.
+       * Reader of a folder children. Items read in batches and passed to the writer (the command thread)
+       * via {@link #batches} queue. Subfolders forked as new readers in the traversal pool, idle workers
+       * steal them from busy ones.
        */
-      protected class FolderReader implements Callable<Folder> {
+      protected class FolderReader extends RecursiveAction {
+
+        /** The Constant serialVersionUID. */
+        private static final long serialVersionUID = 1L;
 
         /** The folder id. */
-        protected final String folderId;
+        protected final String    folderId;
+
+        /** The folder, available when read done. */
+        protected Folder          folder;
 
         /**
          * Instantiates a new folder reader.
@@ -548,52 +571,149 @@ public class JCRLocalCMISDrive extends JCRLocalCloudDrive {
          * {@inheritDoc}
          */
         @Override
-        public Folder call() throws Exception {
-          // TODO will api return multi-filed file in each related folder?
-          ChildrenIterator items = api.getFolderItems(folderId);
-          iterators.add(items);
-          while (items.hasNext() && !Thread.currentThread().isInterrupted()) {
-            CmisObject obj = items.next();
-            if (api.isRelationship(obj)) {
-              if (LOG.isDebugEnabled()) {
-                LOG.debug("Skipped relationship object: " + obj.getId() + " " + obj.getName());
-              }
-            } else {
-              allItems.add(new CMISItem(obj, folderId));
-              if (api.isFolder(obj)) {
-                // go recursive to the folder in another thread
-                readItems(obj.getId());
+        protected void compute() {
+          List<CMISItem> batch = new ArrayList<CMISItem>();
+          try {
+            // TODO will api return multi-filed file in each related folder?
+            ChildrenIterator items = api.getFolderItems(folderId);
+            iterators.add(items);
+            while (items.hasNext() && !stopped && !Thread.currentThread().isInterrupted()) {
+              CmisObject obj = items.next();
+              if (api.isRelationship(obj)) {
+                if (LOG.isDebugEnabled()) {
+                  LOG.debug("Skipped relationship object: " + obj.getId() + " " + obj.getName());
+                }
+              } else {
+                batch.add(new CMISItem(obj, folderId));
+                if (api.isFolder(obj)) {
+                  // let the writer create the folder before its children
+                  batch = flush(batch);
+                  spawn(readItems(obj.getId()));
+                } else if (batch.size() >= SYNC_ITEMS_BATCH) {
+                  batch = flush(batch);
+                }
               }
             }
+            flush(batch);
+            this.folder = items.parent;
+          } catch (Throwable e) {
+            // also interruption: not read folder should not lead to removal of its local files
+            if (readError.compareAndSet(null, e)) {
+              stopped = true;
+            }
+            if (e instanceof InterruptedException) {
+              Thread.currentThread().interrupt();
+            }
+          } finally {
+            if (pending.decrementAndGet() == 0) {
+              // last reader done, wake up the writer if it waits (it also checks pending readers)
+              batches.offer(readDone);
+            }
+          }
+        }
+
+        /**
+         * Pass a batch of items to the writer.
+         *
+         * @param batch the batch
+         * @return new empty batch
+         * @throws InterruptedException if interrupted while waiting for the writer
+         */
+        protected List<CMISItem> flush(List<CMISItem> batch) throws InterruptedException {
+          if (batch.size() > 0) {
+            offer(batch);
+            return new ArrayList<CMISItem>();
           }
+          return batch;
+        }
 
-          return items.parent;
+        /**
+         * Put a batch to the writer queue, waiting while the queue is full. The batch will be dropped if
+         * traversal stopped.
+         *
+         * @param batch the batch
+         * @throws InterruptedException if interrupted while waiting for the writer
+         */
+        protected void offer(List<CMISItem> batch) throws InterruptedException {
+          while (!stopped && !batches.offer(batch, SYNC_OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            // wait for the writer
+          }
         }
       }
 
       /** The all local. */
-      protected final Map<String, List<Node>> allLocal = new HashMap<String, List<Node>>();
+      protected final Map<String, List<Node>>       allLocal  = new HashMap<String, List<Node>>();
+
+      /** Batches of read items for the writer. */
+      protected final BlockingQueue<List<CMISItem>> batches   =
+                                                            new LinkedBlockingQueue<List<CMISItem>>(syncParallelism
+                                                                * SYNC_BATCHES_PER_READER);
+
+      /** Marker of all readers done. */
+      protected final List<CMISItem>                readDone  = new ArrayList<CMISItem>(0);
+
+      /** Number of readers not yet done. */
+      protected final AtomicInteger                 pending   = new AtomicInteger();
 
-      /** The all items. */
-      protected final Queue<CMISItem>         allItems = new ConcurrentLinkedQueue<CMISItem>();
+      /** First error of the readers. */
+      protected final AtomicReference<Throwable>    readError = new AtomicReference<Throwable>();
 
-      /** The readers. */
-      protected final Queue<Future<Folder>>   readers  = new ConcurrentLinkedQueue<Future<Folder>>();
+      /** The stopped flag, readers should stop as soon as possible. */
+      protected volatile boolean                    stopped;
+
+      /** The traversal pool, not used in virtual threads mode. */
+      protected ForkJoinPool                        pool;
+
+      /** Virtual threads executor, <code>null</code> if platform threads used. */
+      protected ExecutorService                     virtual;
+
+      /** Running readers limit in virtual threads mode. */
+      protected Semaphore                           virtualReaders;
 
       /**
        * Read items.
        *
        * @param folderId the folder id
-       * @return the future
-       * @throws RepositoryException the repository exception
-       * @throws CloudDriveException the cloud drive exception
+       * @return the folder reader
        */
-      protected Future<Folder> readItems(String folderId) throws RepositoryException, CloudDriveException {
+      protected FolderReader readItems(String folderId) {
+        pending.incrementAndGet();
+        return new FolderReader(folderId);
+      }
 
-        // start read items in another thread
-        Future<Folder> reader = workerExecutor.submit(new FolderReader(folderId));
-        readers.add(reader);
-        return reader;
+      /**
+       * Start a reader. In virtual threads mode each reader runs in own virtual thread, not more of
+       * {@link #syncParallelism} at the same time, otherwise it is forked in the traversal pool.
+       *
+       * @param reader the reader
+       */
+      protected void spawn(final FolderReader reader) {
+        if (virtual != null) {
+          virtual.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                virtualReaders.acquire();
+              } catch (InterruptedException e) {
+                readError.compareAndSet(null, e);
+                stopped = true;
+                if (pending.decrementAndGet() == 0) {
+                  batches.offer(readDone);
+                }
+                return;
+              }
+              try {
+                reader.invoke();
+              } finally {
+                virtualReaders.release();
+              }
+            }
+          });
+        } else if (ForkJoinTask.inForkJoinPool()) {
+          reader.fork();
+        } else {
+          pool.execute(reader);
+        }
       }
 
       /**
@@ -613,7 +733,30 @@ public class JCRLocalCMISDrive extends JCRLocalCloudDrive {
         }
 
         // sync with cloud
-        Folder root = syncChilds(api.getRootFolder().getId());
+        Folder root;
+        virtual = workerExecutor.getVirtualExecutor();
+        if (virtual != null) {
+          virtualReaders = new Semaphore(syncParallelism);
+        } else {
+          pool = new ForkJoinPool(syncParallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool traversalPool) {
+              ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(traversalPool);
+              thread.setName(TRAVERSAL_THREAD_PREFIX + thread.getPoolIndex());
+              return thread;
+            }
+          }, null, false);
+        }
+        try {
+          root = syncChilds(api.getRootFolder().getId());
+        } finally {
+          stopped = true;
+          if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+          }
+          batches.clear();
+        }
 
         // remove local nodes of files not existing remotely, except of root
         nodes.remove(root.getId());
@@ -640,25 +783,6 @@ public class JCRLocalCMISDrive extends JCRLocalCloudDrive {
           rollbackAllChanges();
         }
         allLocal.clear();
-        allItems.clear();
-        readers.clear();
-      }
-
-      /**
-       * Checks if is read done.
-       *
-       * @return true, if is read done
-       */
-      protected boolean isReadDone() {
-        for (Iterator<Future<Folder>> riter = readers.iterator(); riter.hasNext();) {
-          Future<Folder> r = riter.next();
-          if (r.isDone()) {
-            riter.remove();
-          } else {
-            return false;
-          }
-        }
-        return true;
       }
 
       /**
@@ -674,83 +798,103 @@ public class JCRLocalCMISDrive extends JCRLocalCloudDrive {
                                                          CloudDriveException,
                                                          InterruptedException {
 
-        // start read items in another thread
-        Future<Folder> reader = readItems(folderId);
-
-        // work with items already red in the queue
-        CMISItem item;
-        while (((item = allItems.poll()) != null || !isReadDone()) && !Thread.currentThread().isInterrupted()) {
-          if (item != null) {
-            CmisObject obj = item.object;
-            List<Node> parentList = allLocal.get(item.parentId);
-            if (parentList != null) {
-              for (Node parent : parentList) {
-                JCRLocalCloudFile localItem = updateItem(api, obj, parent, null);
-                if (localItem.isChanged()) {
-                  addChanged(localItem);
-                  // maintain drive map with new/updated
-                  List<Node> itemList = allLocal.get(localItem.getId());
-                  if (itemList == null) {
-                    itemList = new ArrayList<Node>();
-                    allLocal.put(localItem.getId(), itemList);
-                  }
-                  itemList.add(localItem.getNode());
-                }
-                // remove this file (or folder subtree) from map of local to mark it as existing,
-                // others will be removed in syncFiles() after.
-                String fileId = obj.getId();
-                List<Node> existing = nodes.get(fileId);
-                if (existing != null) {
-                  String path = localItem.getPath();
-                  for (Iterator<Node> eiter = existing.iterator(); eiter.hasNext();) {
-                    Node enode = eiter.next();
-                    if (enode.getPath().startsWith(path)) {
-                      eiter.remove();
-                    }
-                  }
-                  if (existing.size() == 0) {
-                    nodes.remove(fileId);
-                  }
-                }
-              }
-            } else {
+        // start read items in the traversal pool
+        FolderReader reader = readItems(folderId);
+        spawn(reader);
+
+        // work with items batches in this thread as they come
+        List<CMISItem> postponed = new ArrayList<CMISItem>();
+        List<CMISItem> batch;
+        while ((batch = batches.poll(SYNC_OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) != readDone) {
+          if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException("Sync interrupted");
+          }
+          if (batch == null) {
+            if (pending.get() == 0) {
+              // all readers done and all their batches taken
+              break;
+            }
+            continue;
+          }
+          for (CMISItem item : batch) {
+            if (!syncItem(item)) {
               // need wait for parent creation
-              if (item.isPostponed()) {
-                throw new CloudDriveException("Inconsistency error: parent cannot be found for remote file "
-                    + obj.getName());
-              } else {
-                allItems.add(item);
-                item.postpone();
-              }
+              postponed.add(item);
             }
+          }
+        }
+
+        Throwable error = readError.get();
+        if (error != null) {
+          LOG.error("Sync worker error: " + error.getMessage());
+          if (error instanceof CloudDriveException) {
+            throw (CloudDriveException) error;
+          } else if (error instanceof RepositoryException) {
+            throw (RepositoryException) error;
+          } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+          } else if (error instanceof Error) {
+            throw (Error) error;
           } else {
-            Thread.yield();
-            Thread.sleep(50); // wait a bit
+            throw new CMISException("Error in sync worker thread", error);
           }
         }
 
-        // wait for the reader and return the parent (root) folder
-        try {
-          return reader.get();
-        } catch (ExecutionException e) {
-          LOG.error("Sync worker error: " + e.getMessage());
-          Throwable c = e.getCause();
-          if (c != null) {
-            if (c instanceof CloudDriveException) {
-              throw (CloudDriveException) c;
-            } else if (c instanceof RepositoryException) {
-              throw (RepositoryException) c;
-            } else if (c instanceof RuntimeException) {
-              throw (RuntimeException) c;
-            } else if (c instanceof Error) {
-              throw (Error) c;
-            } else {
-              throw new CMISException("Error in sync worker thread", c);
+        for (CMISItem item : postponed) {
+          if (!syncItem(item)) {
+            throw new CloudDriveException("Inconsistency error: parent cannot be found for remote file "
+                + item.object.getName());
+          }
+        }
+
+        // the root folder
+        return reader.folder;
+      }
+
+      /**
+       * Apply remote item to local nodes of its parent.
+       *
+       * @param item the item
+       * @return <code>true</code> if item applied, <code>false</code> if its parent not found locally
+       * @throws RepositoryException the repository exception
+       * @throws CloudDriveException the cloud drive exception
+       */
+      protected boolean syncItem(CMISItem item) throws RepositoryException, CloudDriveException {
+        CmisObject obj = item.object;
+        List<Node> parentList = allLocal.get(item.parentId);
+        if (parentList != null) {
+          for (Node parent : parentList) {
+            JCRLocalCloudFile localItem = updateItem(api, obj, parent, null);
+            if (localItem.isChanged()) {
+              addChanged(localItem);
+              // maintain drive map with new/updated
+              List<Node> itemList = allLocal.get(localItem.getId());
+              if (itemList == null) {
+                itemList = new ArrayList<Node>();
+                allLocal.put(localItem.getId(), itemList);
+              }
+              itemList.add(localItem.getNode());
+            }
+            // remove this file (or folder subtree) from map of local to mark it as existing,
+            // others will be removed in syncFiles() after.
+            String fileId = obj.getId();
+            List<Node> existing = nodes.get(fileId);
+            if (existing != null) {
+              String path = localItem.getPath();
+              for (Iterator<Node> eiter = existing.iterator(); eiter.hasNext();) {
+                Node enode = eiter.next();
+                if (enode.getPath().startsWith(path)) {
+                  eiter.remove();
+                }
+              }
+              if (existing.size() == 0) {
+                nodes.remove(fileId);
+              }
             }
-          } else {
-            throw new CMISException("Execution error in sync worker thread", e);
           }
+          return true;
         }
+        return false;
       }
     }
 
@@ -1839,8 +1983,20 @@ public class JCRLocalCMISDrive extends JCRLocalCloudDrive {
      * @param fileName the file name
      */
     protected DocumentContent(ContentStream content, String type, String fileName) {
+      this(content, type, fileName, content.getLength());
+    }
+
+    /**
+     * Instantiates a new document content of known length (e.g. of a content range).
+     *
+     * @param content the content
+     * @param type the type
+     * @param fileName the file name
+     * @param length the length
+     */
+    protected DocumentContent(ContentStream content, String type, String fileName, long length) {
       this.content = content;
-      this.length = content.getLength();
+      this.length = length;
       this.type = type != null ? type : content.getMimeType();
       this.fileName = fileName;
     }
@@ -1886,6 +2042,11 @@ public class JCRLocalCMISDrive extends JCRLocalCloudDrive {
    */
   protected final String     exoURL;
 
+  /**
+   * Number of threads reading remote folders in full sync.
+   */
+  protected int              syncParallelism   = DEFAULT_SYNC_PARALLELISM;
+
   /**
    * Instantiates a new JCR local CMIS drive.
    *
@@ -2066,6 +2227,26 @@ public class JCRLocalCMISDrive extends JCRLocalCloudDrive {
     return (CMISUser) user;
   }
 
+  /**
+   * Gets number of threads reading remote folders in full sync.
+   *
+   * @return the sync parallelism
+   */
+  public int getSyncParallelism() {
+    return syncParallelism;
+  }
+
+  /**
+   * Sets number of threads reading remote folders in full sync.
+   *
+   * @param syncParallelism the new sync parallelism, values less of one will be ignored
+   */
+  public void setSyncParallelism(int syncParallelism) {
+    if (syncParallelism > 0) {
+      this.syncParallelism = syncParallelism;
+    }
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -2555,4 +2736,39 @@ public class JCRLocalCMISDrive extends JCRLocalCloudDrive {
     }
     return null;
   }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ContentReader getFileContent(String fileId, long offset, long length) throws CloudDriveException,
+                                                                                NotFoundException,
+                                                                                CloudDriveAccessException,
+                                                                                DriveRemovedException,
+                                                                                UnauthorizedException,
+                                                                                RepositoryException {
+    CMISAPI api = getUser().api();
+    CmisObject item = api.getObject(fileId);
+    if (api.isDocument(item)) {
+      Document document = (Document) item;
+      String name = document.getName();
+      String mimeType = document.getContentStreamMimeType();
+      if (mimeType == null || mimeType.startsWith(mimeTypes.getDefaultMimeType())) {
+        // try guess the type from name/extension
+        String fileType = mimeTypes.getMimeType(name);
+        if (fileType != null) {
+          mimeType = fileType;
+        }
+      }
+      ContentStream content = document.getContentStream(BigInteger.valueOf(offset), BigInteger.valueOf(length));
+      DocumentContent documentContent = new DocumentContent(content, mimeType, name, length);
+      if (content instanceof PartialContentStream) {
+        return documentContent;
+      } else {
+        // repository may ignore the range and return whole content
+        return new PartialContent(documentContent, offset, length);
+      }
+    }
+    return null;
+  }
 }
@@ -27,6 +27,7 @@ import com.dropbox.core.DbxDelta.Entry;
 import com.dropbox.core.DbxEntry;
 import com.dropbox.core.DbxException;
 import com.dropbox.core.DbxHost;
+import com.dropbox.core.DbxLongpollDeltaResult;
 import com.dropbox.core.DbxPath;
 import com.dropbox.core.DbxRequestConfig;
 import com.dropbox.core.DbxRequestUtil;
@@ -35,6 +36,7 @@ import com.dropbox.core.DbxThumbnailSize;
 import com.dropbox.core.DbxUrlWithExpiration;
 import com.dropbox.core.DbxWriteMode;
 import com.dropbox.core.http.HttpRequestor;
+import com.dropbox.core.json.JsonReadException;
 import com.dropbox.core.util.Maybe;
 
 import org.exoplatform.clouddrive.CloudDriveException;
@@ -42,16 +44,24 @@ import org.exoplatform.clouddrive.ConflictException;
 import org.exoplatform.clouddrive.NotFoundException;
 import org.exoplatform.clouddrive.RefreshAccessException;
 import org.exoplatform.clouddrive.oauth2.UserToken;
+import org.exoplatform.clouddrive.utils.Backoff;
 import org.exoplatform.clouddrive.utils.ChunkIterator;
+import org.exoplatform.clouddrive.utils.RateLimiter;
 import org.exoplatform.clouddrive.utils.Web;
+import org.exoplatform.clouddrive.viewer.PartialContent.RangeInputStream;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * All calls to Dropbox Cloud API here.
@@ -71,6 +81,9 @@ public class DropboxAPI {
   /** The Constant DELTA_LONGPOLL_URL. */
   public static final String DELTA_LONGPOLL_URL     = "https://api-notify.dropbox.com/1/longpoll_delta";
 
+  /** Max size of request body kept to replay the request on retry (64K). */
+  public static final int    REPLAY_LIMIT           = 64 * 1024;
+
   /** The Constant CONTENT_BASE_URL. */
   public static final String CONTENT_BASE_URL       = "https://api-content.dropbox.com/1/";
 
@@ -368,6 +381,308 @@ public class DropboxAPI {
     }
   }
 
+  /**
+   * HTTP requestor limiting requests rate of the user and retrying throttled (429 and 503 used by Dropbox)
+   * or failed on server side requests with jittered exponential backoff honoring Retry-After header. Body of
+   * POST and PUT requests kept in memory to replay them, but only if it is not bigger of
+   * {@link #REPLAY_LIMIT}, large uploads will not be retried here. POST and PUT requests replayed only when
+   * throttled: other server errors may come after a file operation already applied, they are left to retry
+   * of the drive command.
+   */
+  class LimitedRequestor extends HttpRequestor {
+
+    /** The requestor doing actual requests. */
+    final HttpRequestor requestor;
+
+    /**
+     * Request body written to actual requestor and kept for replay.
+     */
+    class ReplayBody extends OutputStream {
+
+      /** The target. */
+      OutputStream          target;
+
+      /** The copy, <code>null</code> if body too large. */
+      ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+      /**
+       * Instantiates a new replay body.
+       *
+       * @param target the target
+       */
+      ReplayBody(OutputStream target) {
+        this.target = target;
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void write(int b) throws IOException {
+        target.write(b);
+        if (copy != null) {
+          if (copy.size() < REPLAY_LIMIT) {
+            copy.write(b);
+          } else {
+            copy = null;
+          }
+        }
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        target.write(b, off, len);
+        if (copy != null) {
+          if (copy.size() + len <= REPLAY_LIMIT) {
+            copy.write(b, off, len);
+          } else {
+            copy = null;
+          }
+        }
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void flush() throws IOException {
+        target.flush();
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void close() throws IOException {
+        target.close();
+      }
+    }
+
+    /**
+     * Uploader replaying the body if request should be retried.
+     */
+    class ReplayUploader extends Uploader {
+
+      /** The method. */
+      final String           method;
+
+      /** The url. */
+      final String           url;
+
+      /** The headers. */
+      final Iterable<Header> headers;
+
+      /** The replay body. */
+      final ReplayBody       replay;
+
+      /** Current actual uploader. */
+      Uploader               uploader;
+
+      /**
+       * Instantiates a new replay uploader.
+       *
+       * @param method the method
+       * @param url the url
+       * @param headers the headers
+       * @param uploader the uploader
+       */
+      ReplayUploader(String method, String url, Iterable<Header> headers, Uploader uploader) {
+        this(method, url, headers, uploader, new ReplayBody(uploader.body));
+      }
+
+      /**
+       * Instantiates a new replay uploader.
+       *
+       * @param method the method
+       * @param url the url
+       * @param headers the headers
+       * @param uploader the uploader
+       * @param replay the replay
+       */
+      private ReplayUploader(String method,
+                             String url,
+                             Iterable<Header> headers,
+                             Uploader uploader,
+                             ReplayBody replay) {
+        super(replay);
+        this.method = method;
+        this.url = url;
+        this.headers = headers;
+        this.uploader = uploader;
+        this.replay = replay;
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void close() {
+        uploader.close();
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void abort() {
+        uploader.abort();
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public Response finish() throws IOException {
+        Response response = uploader.finish();
+        Backoff backoff = new Backoff();
+        while (replay.copy != null && retry(method, url, response, backoff)) {
+          uploader.close();
+          acquire();
+          uploader = start(method, url, headers);
+          replay.copy.writeTo(uploader.body);
+          response = uploader.finish();
+        }
+        return response;
+      }
+    }
+
+    /**
+     * Instantiates a new limited requestor.
+     *
+     * @param requestor the requestor
+     */
+    LimitedRequestor(HttpRequestor requestor) {
+      this.requestor = requestor;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Response doGet(String url, Iterable<Header> headers) throws IOException {
+      Backoff backoff = new Backoff();
+      Response response;
+      do {
+        acquire();
+        response = requestor.doGet(url, headers);
+      } while (retry("GET", url, response, backoff));
+      return response;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Uploader startPost(String url, Iterable<Header> headers) throws IOException {
+      acquire();
+      return new ReplayUploader("POST", url, headers, requestor.startPost(url, headers));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Uploader startPut(String url, Iterable<Header> headers) throws IOException {
+      acquire();
+      return new ReplayUploader("PUT", url, headers, requestor.startPut(url, headers));
+    }
+
+    /**
+     * Start actual request.
+     *
+     * @param method the method
+     * @param url the url
+     * @param headers the headers
+     * @return the uploader
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    Uploader start(String method, String url, Iterable<Header> headers) throws IOException {
+      return "PUT".equals(method) ? requestor.startPut(url, headers) : requestor.startPost(url, headers);
+    }
+
+    /**
+     * Take a token from the user rate limiter, if it is set.
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    void acquire() throws InterruptedIOException {
+      RateLimiter limiter = DropboxAPI.this.limiter;
+      if (limiter != null) {
+        try {
+          limiter.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for request rate");
+        }
+      }
+    }
+
+    /**
+     * Wait for retry of the request if its response status allows this: GET requests retried on throttling
+     * and temporal server errors, others only on throttling. The response body will be closed before the
+     * retry.
+     *
+     * @param method the method
+     * @param url the url
+     * @param response the response
+     * @param backoff the backoff
+     * @return true, if request should be retried
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    boolean retry(String method, String url, Response response, Backoff backoff) throws InterruptedIOException {
+      int status = response.statusCode;
+      if ("GET".equals(method) ? Backoff.isRetryable(status) : Backoff.isThrottled(status)) {
+        long retryAfter = Backoff.retryAfter(header(response, Backoff.RETRY_AFTER));
+        RateLimiter limiter = DropboxAPI.this.limiter;
+        if (limiter != null && Backoff.isThrottled(status)) {
+          // slow down other requests of the user also
+          limiter.pause(retryAfter);
+        }
+        long delay = backoff.next(retryAfter);
+        if (delay >= 0) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Retrying " + method + " " + url + " after " + status + " response in " + delay + "ms (attempt "
+                + backoff.getAttempt() + ")");
+          }
+          try {
+            response.body.close();
+          } catch (IOException e) {
+            // ignore, will do new request
+          }
+          try {
+            Thread.sleep(delay);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for request retry");
+          }
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Find response header value, names are case insensitive.
+     *
+     * @param response the response
+     * @param name the name
+     * @return the value or <code>null</code> if not found
+     */
+    String header(Response response, String name) {
+      if (response.headers != null) {
+        for (Map.Entry<String, ? extends List<String>> h : response.headers.entrySet()) {
+          if (name.equalsIgnoreCase(h.getKey()) && h.getValue() != null && h.getValue().size() > 0) {
+            return h.getValue().get(0);
+          }
+        }
+      }
+      return null;
+    }
+  }
+
   /** The client. */
   private DbxClient   client;
 
@@ -377,6 +692,9 @@ public class DropboxAPI {
   /** The path encoder. */
   private PathEncoder pathEncoder = new PathEncoder();
 
+  /** Requests rate limiter of the user, set when the user known. */
+  private volatile RateLimiter limiter;
+
   /**
    * Create Dropbox API from OAuth2 authentication code.
    * 
@@ -388,7 +706,7 @@ public class DropboxAPI {
   DropboxAPI(DbxRequestConfig config, DbxAuthFinish authData) throws DropboxException, CloudDriveException {
 
     // create Cloud API client using authorization data.
-    this.client = new DbxClient(config, authData.accessToken);
+    this.client = new DbxClient(limited(config), authData.accessToken);
 
     this.token = new StoredToken();
     this.token.store(authData.accessToken);
@@ -407,7 +725,7 @@ public class DropboxAPI {
   DropboxAPI(DbxRequestConfig config, String accessToken) throws CloudDriveException {
 
     // create Cloud API client and authenticate it using stored token.
-    this.client = new DbxClient(config, accessToken);
+    this.client = new DbxClient(limited(config), accessToken);
 
     this.token = new StoredToken();
     this.token.load(accessToken, null /* refreshToken */, -1 /* expirationTime */);
@@ -435,6 +753,15 @@ public class DropboxAPI {
     return token;
   }
 
+  /**
+   * Set requests rate limiter of the user.
+   *
+   * @param limiter the limiter
+   */
+  void setRateLimiter(RateLimiter limiter) {
+    this.limiter = limiter;
+  }
+
   /**
    * Currently connected cloud user.
    *
@@ -556,6 +883,88 @@ public class DropboxAPI {
     }
   }
 
+  /**
+   * Gets a range of the file content. Range requested from Dropbox in HTTP header, if Dropbox returns whole
+   * content it will be cut to the range locally.
+   *
+   * @param idPath the id path
+   * @param offset the offset of the range
+   * @param length the length of the range
+   * @return the content range or <code>null</code> if file not found
+   * @throws DropboxException the dropbox exception
+   * @throws RefreshAccessException the refresh access exception
+   */
+  Downloader getContent(String idPath, long offset, long length) throws DropboxException, RefreshAccessException {
+    try {
+      // XXX Custom API call here: SDK doesn't let to set headers of file download
+      DbxPath.checkArgNonRoot("path", idPath);
+      String apiPath = "1/files/auto" + idPath;
+      ArrayList<HttpRequestor.Header> headers = new ArrayList<HttpRequestor.Header>();
+      headers.add(new HttpRequestor.Header("Range", "bytes=" + offset + "-" + (offset + length - 1)));
+      HttpRequestor.Response response = DbxRequestUtil.startGet(client.getRequestConfig(),
+                                                                client.getAccessToken(),
+                                                                DbxHost.Default.content,
+                                                                apiPath,
+                                                                null,
+                                                                headers);
+      boolean consumed = false;
+      try {
+        if (response.statusCode == 404) {
+          return null;
+        }
+        if (response.statusCode != 200 && response.statusCode != 206) {
+          throw DbxRequestUtil.unexpectedStatus(response);
+        }
+        DbxEntry.File metadata;
+        try {
+          metadata = DbxEntry.File.Reader.readFully(DbxRequestUtil.getFirstHeader(response, "x-dropbox-metadata"));
+        } catch (JsonReadException e) {
+          String msg = "Error reading file metadata";
+          if (LOG.isDebugEnabled()) {
+            LOG.debug(msg + ": " + e.getMessage(), e);
+          }
+          throw new DropboxException(msg);
+        }
+        InputStream body = response.statusCode == 206 ? response.body
+                                                      : new RangeInputStream(response.body, offset, length);
+        consumed = true;
+        return new Downloader(metadata, body);
+      } finally {
+        if (!consumed) {
+          try {
+            response.body.close();
+          } catch (IOException e) {
+            // ignore
+          }
+        }
+      }
+    } catch (DbxException.InvalidAccessToken e) {
+      String msg = "Invalid access credentials";
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(msg + " (access token) : " + e.getMessage(), e);
+      }
+      throw new RefreshAccessException(msg + ". Please authorize to Dropbox.");
+    } catch (DbxException.RetryLater e) {
+      String msg = "Dropbox overloaded or hit rate exceeded";
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(msg + ": " + e.getMessage(), e);
+      }
+      throw new DropboxException(msg + ". Please try again later.");
+    } catch (DbxException.BadResponseCode e) {
+      String msg = "Error requesting file content";
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(msg + ": " + e.getMessage(), e);
+      }
+      throw new DropboxException(msg);
+    } catch (DbxException e) {
+      String msg = "Error requesting file content";
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(msg + ": " + e.getMessage(), e);
+      }
+      throw new DropboxException(msg);
+    }
+  }
+
   /**
    * Link (URL) to a file for opening by its owner on Dropbox site.
    *
@@ -766,6 +1175,24 @@ public class DropboxAPI {
     return new DeltaChanges(cursor);
   }
 
+  /**
+   * Wait for changes after given cursor (longpoll_delta). This call blocks up to given timeout plus a
+   * random jitter added by Dropbox (up to 90 seconds).
+   *
+   * @param cursor the cursor of latest delta
+   * @param timeout the timeout in seconds (30..480)
+   * @return the longpoll result with flag of changes and backoff in seconds asked by Dropbox
+   * @throws DropboxException the dropbox exception
+   * @throws RefreshAccessException the refresh access exception
+   */
+  DbxLongpollDeltaResult longpollDelta(String cursor, int timeout) throws DropboxException, RefreshAccessException {
+    try {
+      return client.getLongpollDelta(cursor, timeout);
+    } catch (DbxException e) {
+      throw uploadError("Error waiting for changes", e);
+    }
+  }
+
   /**
    * Upload file.
    *
@@ -830,6 +1257,104 @@ public class DropboxAPI {
     }
   }
 
+  /**
+   * Start chunked upload session with first chunk of a content.
+   *
+   * @param data the chunk data
+   * @param size the chunk size in the data
+   * @return the upload session id
+   * @throws DropboxException the dropbox exception
+   * @throws RefreshAccessException the refresh access exception
+   */
+  String startUpload(byte[] data, int size) throws DropboxException, RefreshAccessException {
+    try {
+      return client.chunkedUploadFirst(data, 0, size);
+    } catch (DbxException e) {
+      throw uploadError("Error starting upload session", e);
+    }
+  }
+
+  /**
+   * Append a chunk of a content to upload session. If given offset doesn't match the offset expected by
+   * Dropbox, the chunk will not be accepted and the expected offset returned.
+   *
+   * @param uploadId the upload session id
+   * @param offset the chunk offset in the content
+   * @param data the chunk data
+   * @param size the chunk size in the data
+   * @return the offset acknowledged by Dropbox after this call
+   * @throws DropboxException the dropbox exception
+   * @throws RefreshAccessException the refresh access exception
+   */
+  long appendUpload(String uploadId, long offset, byte[] data, int size) throws DropboxException, RefreshAccessException {
+    try {
+      long expected = client.chunkedUploadAppend(uploadId, offset, data, 0, size);
+      return expected < 0 ? offset + size : expected;
+    } catch (DbxException e) {
+      throw uploadError("Error uploading content chunk", e);
+    }
+  }
+
+  /**
+   * Offset acknowledged by Dropbox for upload session. An empty chunk will be appended at zero offset, Dropbox
+   * responds with actual offset in such case.
+   *
+   * @param uploadId the upload session id
+   * @return the acknowledged offset or <code>-1</code> if session not found or expired
+   * @throws DropboxException the dropbox exception
+   * @throws RefreshAccessException the refresh access exception
+   */
+  long uploadOffset(String uploadId) throws DropboxException, RefreshAccessException {
+    try {
+      long expected = client.chunkedUploadAppend(uploadId, 0, new byte[0], 0, 0);
+      return expected < 0 ? 0 : expected;
+    } catch (DbxException.BadRequest e) {
+      // session expired or unknown
+      return -1;
+    } catch (DbxException.BadResponseCode e) {
+      if (e.statusCode == 404) {
+        return -1;
+      }
+      throw uploadError("Error requesting upload session", e);
+    } catch (DbxException e) {
+      throw uploadError("Error requesting upload session", e);
+    }
+  }
+
+  /**
+   * Finish upload session and save uploaded content as a file.
+   *
+   * @param parentId the parent id
+   * @param name the name
+   * @param uploadId the upload session id
+   * @param updateRev the update rev
+   * @return the dbx entry. file
+   * @throws DropboxException the dropbox exception
+   * @throws RefreshAccessException the refresh access exception
+   * @throws ConflictException the conflict exception
+   */
+  DbxEntry.File finishUpload(String parentId, String name, String uploadId, String updateRev) throws DropboxException,
+                                                                                               RefreshAccessException,
+                                                                                               ConflictException {
+    String path = filePath(parentId, name);
+    try {
+      DbxWriteMode mode = updateRev != null ? DbxWriteMode.update(updateRev) : DbxWriteMode.add();
+      return client.chunkedUploadFinish(path, mode, uploadId);
+    } catch (DbxException.BadResponseCode e) {
+      if (e.statusCode == 409) {
+        String msg = "File " + path + " already exists";
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(msg + ": " + e.getMessage(), e);
+        }
+        throw new ConflictException(msg);
+      } else {
+        throw uploadError("Error creating file " + name, e);
+      }
+    } catch (DbxException e) {
+      throw uploadError("Error creating file " + name, e);
+    }
+  }
+
   /**
    * Creates the folder.
    *
@@ -1205,6 +1730,44 @@ public class DropboxAPI {
     // this.userDisplayName = user.displayName;
   }
 
+  /**
+   * Request config using rate limited and retrying requestor.
+   *
+   * @param config the config
+   * @return the dbx request config
+   */
+  private DbxRequestConfig limited(DbxRequestConfig config) {
+    return new DbxRequestConfig(config.clientIdentifier, config.userLocale, new LimitedRequestor(config.httpRequestor));
+  }
+
+  /**
+   * Exception for an error of chunked upload or long-poll.
+   *
+   * @param msg the message
+   * @param e the Dropbox error
+   * @return the dropbox exception
+   * @throws RefreshAccessException if access token is invalid
+   */
+  private DropboxException uploadError(String msg, DbxException e) throws RefreshAccessException {
+    if (e instanceof DbxException.InvalidAccessToken) {
+      String tmsg = "Invalid access credentials";
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(tmsg + " (access token) : " + e.getMessage(), e);
+      }
+      throw new RefreshAccessException(tmsg + ". Please authorize to Dropbox.");
+    } else if (e instanceof DbxException.RetryLater) {
+      String rmsg = "Dropbox overloaded or hit rate exceeded";
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(rmsg + ": " + e.getMessage(), e);
+      }
+      return new DropboxException(rmsg + ". Please try again later.");
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(msg + ": " + e.getMessage(), e);
+    }
+    return new DropboxException(msg + ". " + e.getMessage());
+  }
+
   /**
    * File path.
    *
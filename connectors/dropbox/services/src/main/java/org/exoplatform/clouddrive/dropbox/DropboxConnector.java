@@ -344,6 +344,7 @@ public class DropboxConnector extends CloudDriveConnector {
     if (user instanceof DropboxUser) {
       DropboxUser apiUser = (DropboxUser) user;
       JCRLocalDropboxDrive drive = new JCRLocalDropboxDrive(apiUser, driveNode, sessionProviders, jcrFinder, mimeTypes);
+      drive.setUploadChunkSize(getUploadChunkSize());
       return drive;
     } else {
       throw new CloudDriveException("Not cloud user: " + user);
@@ -363,6 +364,7 @@ public class DropboxConnector extends CloudDriveConnector {
                                                           sessionProviders,
                                                           jcrFinder,
                                                           mimeTypes);
+    drive.setUploadChunkSize(getUploadChunkSize());
     return drive;
   }
 
@@ -22,6 +22,7 @@ import org.exoplatform.clouddrive.CloudDriveException;
 import org.exoplatform.clouddrive.CloudProvider;
 import org.exoplatform.clouddrive.CloudUser;
 import org.exoplatform.clouddrive.DriveRemovedException;
+import org.exoplatform.clouddrive.utils.RateLimiter;
 
 import javax.jcr.RepositoryException;
 
@@ -46,6 +47,7 @@ public class DropboxUser extends CloudUser {
   public DropboxUser(String id, String username, String email, CloudProvider provider, DropboxAPI api) {
     super(id, username, email, provider);
     this.api = api;
+    api.setRateLimiter(RateLimiter.of(provider, id));
   }
 
   /**
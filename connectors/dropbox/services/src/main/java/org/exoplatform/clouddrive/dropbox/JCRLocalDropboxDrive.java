@@ -21,12 +21,15 @@ package org.exoplatform.clouddrive.dropbox;
 import com.dropbox.core.DbxClient.Downloader;
 import com.dropbox.core.DbxDelta;
 import com.dropbox.core.DbxEntry;
+import com.dropbox.core.DbxLongpollDeltaResult;
+import com.dropbox.core.DbxThumbnailSize;
 import com.dropbox.core.DbxUrlWithExpiration;
 
 import org.exoplatform.clouddrive.CloudDriveException;
 import org.exoplatform.clouddrive.CloudFile;
 import org.exoplatform.clouddrive.CloudFileAPI;
 import org.exoplatform.clouddrive.CloudProviderException;
+import org.exoplatform.clouddrive.ChangesWatcher;
 import org.exoplatform.clouddrive.CloudUser;
 import org.exoplatform.clouddrive.ConflictException;
 import org.exoplatform.clouddrive.DriveRemovedException;
@@ -44,11 +47,14 @@ import org.exoplatform.clouddrive.oauth2.UserToken;
 import org.exoplatform.clouddrive.oauth2.UserTokenRefreshListener;
 import org.exoplatform.clouddrive.rest.ContentService;
 import org.exoplatform.clouddrive.utils.ChunkIterator;
+import org.exoplatform.clouddrive.utils.ChunkedUpload;
 import org.exoplatform.clouddrive.utils.ExtendedMimeTypeResolver;
+import org.exoplatform.clouddrive.utils.UploadSessions;
 import org.exoplatform.clouddrive.viewer.CloudFileContent;
 import org.exoplatform.clouddrive.viewer.ContentReader;
 import org.exoplatform.services.jcr.ext.app.SessionProviderService;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -69,7 +75,8 @@ import javax.jcr.RepositoryException;
  * Local drive for Dropbox provider.<br>
  * 
  */
-public class JCRLocalDropboxDrive extends JCRLocalCloudDrive implements UserTokenRefreshListener {
+public class JCRLocalDropboxDrive extends JCRLocalCloudDrive implements UserTokenRefreshListener,
+    ChangesWatcher.Watchable {
 
   /**
    * Time to expire for file links obtained from Dropbox without explicitly set expiration time.
@@ -297,9 +304,7 @@ public class JCRLocalDropboxDrive extends JCRLocalCloudDrive implements UserToke
       fileHistory.clear();
       try {
         jcrListener.disable();
-        String empty = "".intern();
-        driveNode.setProperty("ecd:localHistory", empty);
-        driveNode.setProperty("ecd:localChanges", empty);
+        resetChanges(driveNode);
         driveNode.save();
       } catch (Throwable e) {
         LOG.error("Error cleaning local history in " + title(), e);
@@ -984,9 +989,14 @@ public class JCRLocalDropboxDrive extends JCRLocalCloudDrive implements UserToke
       String parentId = getParentId(fileNode);
       String title = getTitle(fileNode);
       String rev = update ? getRev(fileNode) : null;
+      long length = contentLength(fileNode);
       DbxEntry.File file;
       try {
-        file = api.uploadFile(parentId, title, content, rev);
+        if (isChunkedUpload(length)) {
+          file = uploadContent(fileNode, parentId, title, content, modified, length, rev);
+        } else {
+          file = api.uploadFile(parentId, title, content, rev);
+        }
       } catch (ConflictException e) {
         String idPath = getId(fileNode);
         DbxEntry item = api.get(idPath);
@@ -1049,6 +1059,65 @@ public class JCRLocalDropboxDrive extends JCRLocalCloudDrive implements UserToke
                                    true);
     }
 
+    /**
+     * Upload file content by chunks in upload session. Dropbox creates the session with first chunk and saves
+     * the file when the session finished.
+     *
+     * @param fileNode the file node
+     * @param parentId the parent id
+     * @param title the title
+     * @param content the content
+     * @param modified the modified
+     * @param length the content length
+     * @param rev the rev of updated file or <code>null</code> for a new file
+     * @return the uploaded file
+     * @throws CloudDriveException the cloud drive exception
+     * @throws RepositoryException the repository exception
+     */
+    protected DbxEntry.File uploadContent(Node fileNode,
+                                          final String parentId,
+                                          final String title,
+                                          InputStream content,
+                                          Calendar modified,
+                                          long length,
+                                          final String rev) throws CloudDriveException, RepositoryException {
+      ChunkedUpload<DbxEntry.File> upload = new ChunkedUpload<DbxEntry.File>(uploadSessions(),
+                                                                             uploadKey(fileNode, modified, length),
+                                                                             content,
+                                                                             length,
+                                                                             uploadChunkSize) {
+        @Override
+        protected String startSession() {
+          // session will be created by first chunk
+          return null;
+        }
+
+        @Override
+        protected long resumeSession(UploadSessions.Session saved) throws CloudDriveException {
+          return api.uploadOffset(saved.getId());
+        }
+
+        @Override
+        protected long sendChunk(long offset, byte[] data, int size, boolean last) throws CloudDriveException {
+          if (session == null) {
+            session = api.startUpload(data, size);
+            return size;
+          }
+          return api.appendUpload(session, offset, data, size);
+        }
+
+        @Override
+        protected DbxEntry.File finishSession() throws CloudDriveException {
+          return api.finishUpload(parentId, title, session, rev);
+        }
+      };
+      try {
+        return upload(upload);
+      } catch (IOException e) {
+        throw new DropboxException("Error uploading file " + title + ". " + e.getMessage(), e);
+      }
+    }
+
     /**
      * Removes the.
      *
@@ -1560,6 +1629,40 @@ public class JCRLocalDropboxDrive extends JCRLocalCloudDrive implements UserToke
     }
   }
 
+  /**
+   * Long-poll of the drive changes by Dropbox longpoll_delta. Each wait uses the cursor of latest
+   * synchronization.
+   */
+  protected class ChangesPoll implements ChangesWatcher.Poll {
+
+    /** Backoff asked by Dropbox in last response, in milliseconds. */
+    protected long backoff;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean await() throws CloudDriveException, InterruptedException {
+      DropboxState current = state;
+      if (current == null) {
+        // not connected yet
+        backoff = DropboxAPI.DELTA_LONGPOLL_TIMEOUT * 1000;
+        return false;
+      }
+      DbxLongpollDeltaResult res = getUser().api().longpollDelta(current.getCursor(), current.getTimeout());
+      backoff = res.backoff > 0 ? res.backoff * 1000 : 0;
+      return res.mightHaveChanges;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBackoff() {
+      return backoff;
+    }
+  }
+
   /**
    * Dropbox file info (path as ID, name and parent path) extracted from its original path in Dropbox.
    */
@@ -1674,7 +1777,7 @@ public class JCRLocalDropboxDrive extends JCRLocalCloudDrive implements UserToke
   /**
    * Dropbox drive state. See {@link #getState()}.
    */
-  protected DropboxState           state;
+  protected volatile DropboxState  state;
 
   /**
    * Moved files with expiration on each sync run.
@@ -1816,6 +1919,49 @@ public class JCRLocalDropboxDrive extends JCRLocalCloudDrive implements UserToke
     return null;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ContentReader getFileContent(String idPath, long offset, long length) throws RepositoryException,
+                                                                               CloudDriveException {
+    DropboxAPI api = getUser().api();
+    Downloader downloader = api.getContent(idPath, offset, length);
+    if (downloader != null && downloader.metadata.isFile()) {
+      DbxEntry.File file = downloader.metadata.asFile();
+
+      String type = findMimetype(file.name);
+      String typeMode = mimeTypes.getMimeTypeMode(type, file.name);
+      return new CloudFileContent(file.name, downloader.body, type, typeMode, length);
+    }
+    return null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ContentReader getFileThumbnail(String idPath) throws RepositoryException, CloudDriveException {
+    DropboxAPI api = getUser().api();
+    Downloader downloader = api.getThumbnail(idPath, DbxThumbnailSize.w640h480);
+    if (downloader != null && downloader.metadata.isFile()) {
+      DbxEntry.File file = downloader.metadata.asFile();
+      String type = findMimetype(file.name);
+      // Dropbox returns PNG thumbnails for PNG and GIF images, JPEG for others
+      type = "image/png".equals(type) || "image/gif".equals(type) ? "image/png" : "image/jpeg";
+      return new CloudFileContent(file.name, downloader.body, type, null, -1);
+    }
+    return null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ChangesWatcher.Poll createChangesPoll() {
+    return new ChangesPoll();
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -27,20 +27,32 @@ import com.google.api.client.auth.oauth2.TokenErrorResponse;
 import com.google.api.client.auth.oauth2.TokenResponse;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonError.ErrorInfo;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
 import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.http.json.JsonHttpContent;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.Key;
 import com.google.api.client.util.store.DataStore;
 import com.google.api.client.util.store.DataStoreFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.Drive.Changes;
-import com.google.api.services.drive.Drive.Children;
+import com.google.api.services.drive.Drive.Files;
 import com.google.api.services.drive.Drive.Files.Delete;
 import com.google.api.services.drive.Drive.Realtime.Get;
 import com.google.api.services.drive.DriveRequest;
@@ -48,9 +60,8 @@ import com.google.api.services.drive.DriveScopes;
 import com.google.api.services.drive.model.About;
 import com.google.api.services.drive.model.Change;
 import com.google.api.services.drive.model.ChangeList;
-import com.google.api.services.drive.model.ChildList;
-import com.google.api.services.drive.model.ChildReference;
 import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
 import com.google.api.services.oauth2.Oauth2;
 import com.google.api.services.oauth2.Oauth2Scopes;
 import com.google.api.services.oauth2.model.Userinfoplus;
@@ -59,20 +70,25 @@ import org.exoplatform.clouddrive.CloudDriveAccessException;
 import org.exoplatform.clouddrive.CloudDriveException;
 import org.exoplatform.clouddrive.NotFoundException;
 import org.exoplatform.clouddrive.oauth2.UserToken;
+import org.exoplatform.clouddrive.utils.Backoff;
 import org.exoplatform.clouddrive.utils.ChunkIterator;
+import org.exoplatform.clouddrive.utils.RateLimiter;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -130,6 +146,22 @@ class GoogleDriveAPI implements DataStoreFactory {
   /** The Constant FILE_ERROR_WAIT. */
   protected static final Long      FILE_ERROR_WAIT    = 2000l;
 
+  /** Page size of folder children listing (maximum allowed by Files.List service). */
+  protected static final int       CHILDREN_PAGE_SIZE = 1000;
+
+  /** Fields of child files required to connect them locally. */
+  protected static final String    CHILD_FILE_FIELDS  = "id,title,mimeType,createdDate,modifiedDate,parents(id,isRoot),"
+      + "labels/trashed,alternateLink,embedLink,thumbnailLink,fileSize,quotaBytesUsed,ownerNames,lastModifyingUserName";
+
+  /** URL of Files service for resumable media upload. */
+  protected static final String    UPLOAD_URL         = "upload/drive/v2/files";
+
+  /** Batch endpoint of Drive API v2. */
+  protected static final String    BATCH_URL          = "https://www.googleapis.com/batch/drive/v2";
+
+  /** Max number of requests in a batch (limit recommended by Google for Drive API). */
+  protected static final int       BATCH_SIZE         = 100;
+
   /** The Constant LOG. */
   protected static final Log       LOG                = ExoLogger.getLogger(GoogleDriveAPI.class);
 
@@ -329,12 +361,14 @@ class GoogleDriveAPI implements DataStoreFactory {
   }
 
   /**
-   * The Class ChildIterator.
+   * Iterator over child files of a folder. Children listed with their metadata by Files.List service (limited
+   * by {@link #CHILD_FILE_FIELDS}) in pages of {@link #CHILDREN_PAGE_SIZE} files, thus a folder costs a
+   * request per page instead of a request per file.
    */
-  class ChildIterator extends ChunkIterator<ChildReference> {
+  class ChildIterator extends ChunkIterator<File> {
     
     /** The request. */
-    final Children.List request;
+    final Files.List request;
 
     /**
      * Instantiates a new child iterator.
@@ -344,9 +378,12 @@ class GoogleDriveAPI implements DataStoreFactory {
      */
     ChildIterator(String fileId) throws GoogleDriveException {
       try {
-        this.request = drive.children().list(fileId);
+        this.request = drive.files().list();
+        this.request.setQ("'" + fileId + "' in parents and trashed = false");
+        this.request.setMaxResults(CHILDREN_PAGE_SIZE);
+        this.request.setFields("nextPageToken,items(" + CHILD_FILE_FIELDS + ")");
       } catch (IOException e) {
-        throw new GoogleDriveException("Error creating request to Children.List service: " + e.getMessage(), e);
+        throw new GoogleDriveException("Error creating request to Files.List service: " + e.getMessage(), e);
       }
 
       // fetch first page
@@ -357,17 +394,17 @@ class GoogleDriveAPI implements DataStoreFactory {
      * {@inheritDoc}
      */
     @Override
-    protected Iterator<ChildReference> nextChunk() throws GoogleDriveException {
+    protected Iterator<File> nextChunk() throws GoogleDriveException {
       try {
-        ChildList children = request.execute();
+        FileList children = request.execute();
         request.setPageToken(children.getNextPageToken());
-        List<ChildReference> items = children.getItems();
+        List<File> items = children.getItems();
 
         available(items.size());
 
         return items.iterator();
       } catch (IOException e) {
-        throw new GoogleDriveException("Error requesting Children.List service: " + e.getMessage(), e);
+        throw new GoogleDriveException("Error requesting Files.List service: " + e.getMessage(), e);
       }
     }
 
@@ -391,6 +428,9 @@ class GoogleDriveAPI implements DataStoreFactory {
     /** The largest change id. */
     long               largestChangeId;
 
+    /** Changes of current page. */
+    List<Change>       page;
+
     /**
      * Instantiates a new changes iterator.
      *
@@ -421,6 +461,7 @@ class GoogleDriveAPI implements DataStoreFactory {
         largestChangeId = children.getLargestChangeId();
         request.setPageToken(children.getNextPageToken());
         List<Change> items = children.getItems();
+        page = items;
 
         available(items.size());
 
@@ -446,6 +487,15 @@ class GoogleDriveAPI implements DataStoreFactory {
     long getLargestChangeId() {
       return largestChangeId;
     }
+
+    /**
+     * Changes of current page. After {@link #next()} it is the page of returned change.
+     *
+     * @return the list of changes
+     */
+    List<Change> getPage() {
+      return page;
+    }
   }
 
   /**
@@ -703,6 +753,177 @@ class GoogleDriveAPI implements DataStoreFactory {
     }
   }
 
+  /**
+   * Results of a batch request: results of succeeded items and errors of failed ones by file id. Errors
+   * mapped to the same exceptions as single requests throw.
+   *
+   * @param <T> the result type
+   */
+  static class BatchResult<T> {
+
+    /** The results. */
+    final Map<String, T>                   results = new HashMap<String, T>();
+
+    /** The errors. */
+    final Map<String, CloudDriveException> errors  = new HashMap<String, CloudDriveException>();
+
+    /**
+     * Checks if the file was requested in the batch.
+     *
+     * @param fileId the file id
+     * @return true, if there is result or error for the file
+     */
+    boolean contains(String fileId) {
+      return results.containsKey(fileId) || errors.containsKey(fileId);
+    }
+
+    /**
+     * Result of the file request or its error.
+     *
+     * @param fileId the file id
+     * @return the result or <code>null</code> if the file was not requested in the batch
+     * @throws CloudDriveException if request of the file failed
+     */
+    T get(String fileId) throws CloudDriveException {
+      CloudDriveException error = errors.get(fileId);
+      if (error != null) {
+        throw error;
+      }
+      return results.get(fileId);
+    }
+
+    /**
+     * Take result of the file request or its error, the file will be removed from this batch result.
+     *
+     * @param fileId the file id
+     * @return the result or <code>null</code> if the file was not requested in the batch
+     * @throws CloudDriveException if request of the file failed
+     */
+    T take(String fileId) throws CloudDriveException {
+      CloudDriveException error = errors.remove(fileId);
+      if (error != null) {
+        throw error;
+      }
+      return results.remove(fileId);
+    }
+  }
+
+  /**
+   * Request of a file in a batch.
+   *
+   * @param <T> the result type
+   */
+  interface BatchItem<T> {
+
+    /**
+     * Build request for the file.
+     *
+     * @param fileId the file id
+     * @return the drive request
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    DriveRequest<T> request(String fileId) throws IOException;
+  }
+
+  /**
+   * Initializer of Drive requests: authenticates them by the credential (it also handles 401 responses),
+   * then limits the requests rate of the user and retries throttled (429) or failed on server side (5xx)
+   * requests with jittered exponential backoff honoring Retry-After header. Only idempotent requests (GET,
+   * HEAD, DELETE) retried after a server failure, others (insert, copy, upload etc.) could be already done by
+   * the server and retried only when throttled (429 or 503), thus not creating duplicates.
+   */
+  class RequestInitializer implements HttpRequestInitializer {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void initialize(HttpRequest request) throws IOException {
+      credential.initialize(request);
+
+      final HttpExecuteInterceptor authInterceptor = request.getInterceptor();
+      request.setInterceptor(new HttpExecuteInterceptor() {
+        @Override
+        public void intercept(HttpRequest request) throws IOException {
+          RateLimiter limiter = GoogleDriveAPI.this.limiter;
+          if (limiter != null) {
+            try {
+              limiter.acquire();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new InterruptedIOException("Interrupted while waiting for request rate");
+            }
+          }
+          if (authInterceptor != null) {
+            authInterceptor.intercept(request);
+          }
+        }
+      });
+
+      final HttpUnsuccessfulResponseHandler authHandler = request.getUnsuccessfulResponseHandler();
+      final Backoff backoff = new Backoff();
+      request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+        @Override
+        public boolean handleResponse(HttpRequest request,
+                                      HttpResponse response,
+                                      boolean supportsRetry) throws IOException {
+          if (authHandler != null && authHandler.handleResponse(request, response, supportsRetry)) {
+            return true;
+          }
+          int status = response.getStatusCode();
+          String method = request.getRequestMethod();
+          boolean idempotent = "GET".equals(method) || "HEAD".equals(method) || "DELETE".equals(method);
+          if (supportsRetry && (idempotent ? Backoff.isRetryable(status) : Backoff.isThrottled(status))) {
+            String retryHeader = response.getHeaders().getFirstHeaderStringValue(Backoff.RETRY_AFTER);
+            long retryAfter = Backoff.retryAfter(retryHeader);
+            RateLimiter limiter = GoogleDriveAPI.this.limiter;
+            if (limiter != null && status == 429) {
+              // slow down other requests of the user also
+              limiter.pause(retryAfter);
+            }
+            try {
+              if (backoff.await(retryAfter)) {
+                if (LOG.isDebugEnabled()) {
+                  LOG.debug("Retrying " + request.getRequestMethod() + " " + request.getUrl() + " after " + status
+                      + " response (attempt " + backoff.getAttempt() + ")");
+                }
+                return true;
+              }
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new InterruptedIOException("Interrupted while waiting for request retry");
+            }
+          }
+          return false;
+        }
+      });
+    }
+  }
+
+  /**
+   * State of resumable upload session: offset acknowledged by Google and uploaded file when all the content
+   * received.
+   */
+  static class UploadState {
+
+    /** The acknowledged offset. */
+    final long offset;
+
+    /** The uploaded file, <code>null</code> if upload not completed. */
+    final File file;
+
+    /**
+     * Instantiates a new upload state.
+     *
+     * @param offset the offset
+     * @param file the file
+     */
+    UploadState(long offset, File file) {
+      this.offset = offset;
+      this.file = file;
+    }
+  }
+
   static {
     // hack to force ProGuard to consider GeneratedIds used, since otherwise it would be stripped out
     // see http://code.google.com/p/google-api-java-client/issues/detail?id=528
@@ -743,6 +964,11 @@ class GoogleDriveAPI implements DataStoreFactory {
    */
   final AtomicReference<GeneratedIds> generatedIds    = new AtomicReference<GeneratedIds>(new GeneratedIds());
 
+  /**
+   * Requests rate limiter of the user, set when the user known.
+   */
+  volatile RateLimiter                limiter;
+
   /**
    * Create Google Drive API from OAuth2 authentication code.
    *
@@ -780,9 +1006,10 @@ class GoogleDriveAPI implements DataStoreFactory {
     }
 
     // XXX .setHttpRequestInitializer(new RequestInitializer() this causes OAuth2 401 Unauthorized
-    this.drive = new Drive.Builder(new NetHttpTransport(), new JacksonFactory(), this.credential)
-                                                                                                 .setApplicationName(APP_NAME)
-                                                                                                 .build();
+    // thus our initializer delegates to the credential first
+    this.drive = new Drive.Builder(new NetHttpTransport(),
+                                   new JacksonFactory(),
+                                   new RequestInitializer()).setApplicationName(APP_NAME).build();
     this.oauth2 = new Oauth2.Builder(new NetHttpTransport(), new JacksonFactory(), this.credential)
                                                                                                    .setApplicationName(APP_NAME)
                                                                                                    .build();
@@ -817,8 +1044,10 @@ class GoogleDriveAPI implements DataStoreFactory {
     }
 
     // XXX .setHttpRequestInitializer(new RequestInitializer() this causes OAuth2 401 Unauthorized
-    this.drive = new Drive.Builder(new NetHttpTransport(), new JacksonFactory(), credential).setApplicationName(APP_NAME)
-                                                                                            .build();
+    // thus our initializer delegates to the credential first
+    this.drive = new Drive.Builder(new NetHttpTransport(),
+                                   new JacksonFactory(),
+                                   new RequestInitializer()).setApplicationName(APP_NAME).build();
     this.oauth2 = new Oauth2.Builder(new NetHttpTransport(), new JacksonFactory(), credential).setApplicationName(APP_NAME)
                                                                                               .build();
   }
@@ -1086,6 +1315,135 @@ class GoogleDriveAPI implements DataStoreFactory {
     }
   }
 
+  /**
+   * Start resumable upload session of a file content. If the file has an ID it will be updated, otherwise a
+   * new file will be inserted.
+   *
+   * @param file {@link File} file metadata
+   * @param mimeType {@link String} content type
+   * @param length the content length
+   * @return {@link String} session URI
+   * @throws GoogleDriveException the google drive exception
+   * @throws NotFoundException the not found exception
+   * @throws CloudDriveAccessException the cloud drive access exception
+   */
+  String startUpload(File file, String mimeType, long length) throws GoogleDriveException,
+                                                             NotFoundException,
+                                                             CloudDriveAccessException {
+    String fileId = file.getId();
+    boolean update = fileId != null;
+    if (!update) {
+      // generate file ID by Google as for simple insert
+      fileId = generateFileId();
+      file.setId(fileId);
+    }
+    StringBuilder url = new StringBuilder(drive.getRootUrl()).append(UPLOAD_URL);
+    if (update) {
+      url.append('/').append(fileId);
+    }
+    url.append("?uploadType=resumable");
+    try {
+      JsonHttpContent metadata = new JsonHttpContent(drive.getJsonFactory(), file);
+      HttpRequest request = update ? drive.getRequestFactory().buildPutRequest(new GenericUrl(url.toString()), metadata)
+                                   : drive.getRequestFactory().buildPostRequest(new GenericUrl(url.toString()), metadata);
+      request.getHeaders().set("X-Upload-Content-Type", mimeType);
+      request.getHeaders().set("X-Upload-Content-Length", length);
+      HttpResponse response = request.execute();
+      try {
+        String location = response.getHeaders().getLocation();
+        if (location == null) {
+          throw new GoogleDriveException("Upload session location not returned for " + file.getTitle());
+        }
+        return location;
+      } finally {
+        response.disconnect();
+      }
+    } catch (HttpResponseException e) {
+      if (e.getStatusCode() == 403) {
+        throw new CloudDriveAccessException("Insufficient permissions to upload file to Files service. "
+            + e.getStatusMessage() + " (" + e.getStatusCode() + ")");
+      } else if (update && e.getStatusCode() == 404) {
+        throw new NotFoundException("Cloud file not found for uploading: " + fileId, e);
+      } else {
+        throw new GoogleDriveException("Error starting upload session in Files service: " + e.getMessage(), e);
+      }
+    } catch (IOException e) {
+      throw new GoogleDriveException("Error starting upload session in Files service: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Upload a chunk of the content to resumable upload session. Chunk size should be a multiple of 256K except
+   * of the last chunk.
+   *
+   * @param sessionUri {@link String} upload session URI
+   * @param offset the chunk offset in the content
+   * @param data the chunk data
+   * @param size the chunk size in the data
+   * @param length the content length
+   * @return {@link UploadState} after the chunk
+   * @throws GoogleDriveException the google drive exception
+   */
+  UploadState uploadChunk(String sessionUri, long offset, byte[] data, int size, long length) throws GoogleDriveException {
+    try {
+      HttpRequest request = drive.getRequestFactory()
+                                 .buildPutRequest(new GenericUrl(sessionUri), new ByteArrayContent(null, data, 0, size));
+      request.getHeaders().setContentRange("bytes " + offset + "-" + (offset + size - 1) + "/" + length);
+      UploadState state = uploadState(request);
+      if (state == null) {
+        throw new GoogleDriveException("Upload session expired");
+      }
+      return state;
+    } catch (IOException e) {
+      throw new GoogleDriveException("Error uploading content to Files service: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Read a file thumbnail image by its link ({@link File#getThumbnailLink()}). The request goes with the user
+   * credentials, as other requests of this API.
+   *
+   * @param thumbnailLink {@link String} the thumbnail link
+   * @return {@link HttpResponse} with the image or <code>null</code> if thumbnail not found
+   * @throws GoogleDriveException the google drive exception
+   */
+  HttpResponse thumbnail(String thumbnailLink) throws GoogleDriveException {
+    try {
+      HttpRequest request = drive.getRequestFactory().buildGetRequest(new GenericUrl(thumbnailLink));
+      request.setThrowExceptionOnExecuteError(false);
+      HttpResponse response = request.execute();
+      if (response.isSuccessStatusCode()) {
+        return response;
+      }
+      response.disconnect();
+      if (response.getStatusCode() == 404) {
+        return null;
+      }
+      throw new GoogleDriveException("Error requesting file thumbnail: " + response.getStatusMessage() + " ("
+          + response.getStatusCode() + ")");
+    } catch (IOException e) {
+      throw new GoogleDriveException("Error requesting file thumbnail: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Query state of resumable upload session.
+   *
+   * @param sessionUri {@link String} upload session URI
+   * @param length the content length
+   * @return {@link UploadState} or <code>null</code> if session not found or expired
+   * @throws GoogleDriveException the google drive exception
+   */
+  UploadState uploadState(String sessionUri, long length) throws GoogleDriveException {
+    try {
+      HttpRequest request = drive.getRequestFactory().buildPutRequest(new GenericUrl(sessionUri), new EmptyContent());
+      request.getHeaders().setContentRange("bytes */" + length);
+      return uploadState(request);
+    } catch (IOException e) {
+      throw new GoogleDriveException("Error requesting upload state in Files service: " + e.getMessage(), e);
+    }
+  }
+
   /**
    * Update a file metadata in Files service.
    *
@@ -1221,6 +1579,22 @@ class GoogleDriveAPI implements DataStoreFactory {
     }
   }
 
+  /**
+   * Read files from Files service in batches.
+   *
+   * @param fileIds the file ids
+   * @return {@link BatchResult} with files or their errors
+   * @throws GoogleDriveException if batch request failed
+   */
+  BatchResult<File> files(Collection<String> fileIds) throws GoogleDriveException {
+    return batch(fileIds, "getting", new BatchItem<File>() {
+      @Override
+      public DriveRequest<File> request(String fileId) throws IOException {
+        return drive.files().get(fileId);
+      }
+    });
+  }
+
   /**
    * Generate file ID using Files service.
    *
@@ -1302,6 +1676,15 @@ class GoogleDriveAPI implements DataStoreFactory {
     return token;
   }
 
+  /**
+   * Set requests rate limiter of the user.
+   *
+   * @param limiter the limiter
+   */
+  void setRateLimiter(RateLimiter limiter) {
+    this.limiter = limiter;
+  }
+
   // ********** helpers ***********
 
   /**
@@ -1366,6 +1749,119 @@ class GoogleDriveAPI implements DataStoreFactory {
 
   // **** internals *****
 
+  /**
+   * Execute request to resumable upload session and read its state from the response. Incomplete upload
+   * answered with 308 status and acknowledged range in <code>Range</code> header, completed one with the
+   * uploaded file.
+   *
+   * @param request {@link HttpRequest}
+   * @return {@link UploadState} or <code>null</code> if session not found or expired
+   * @throws IOException Signals that an I/O exception has occurred.
+   * @throws GoogleDriveException if Google responded with an error
+   */
+  private UploadState uploadState(HttpRequest request) throws IOException, GoogleDriveException {
+    request.setThrowExceptionOnExecuteError(false);
+    request.setParser(drive.getObjectParser());
+    HttpResponse response = request.execute();
+    try {
+      int status = response.getStatusCode();
+      if (status == 200 || status == 201) {
+        File file = response.parseAs(File.class);
+        return new UploadState(file.getFileSize() != null ? file.getFileSize() : 0, file);
+      } else if (status == 308) {
+        // range in form bytes=0-N, absent if nothing received
+        String range = response.getHeaders().getRange();
+        long offset = 0;
+        if (range != null) {
+          int dash = range.lastIndexOf('-');
+          if (dash > 0) {
+            try {
+              offset = Long.parseLong(range.substring(dash + 1).trim()) + 1;
+            } catch (NumberFormatException e) {
+              throw new GoogleDriveException("Unexpected range of upload session: " + range);
+            }
+          }
+        }
+        return new UploadState(offset, null);
+      } else if (status == 404 || status == 410) {
+        return null;
+      } else {
+        throw new GoogleDriveException("Error uploading content to Files service: " + response.getStatusMessage()
+            + " (" + status + ")");
+      }
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  /**
+   * Run requests of given files in batches of {@link #BATCH_SIZE} items.
+   *
+   * @param <T> the result type
+   * @param fileIds the file ids
+   * @param operation the operation name for error messages
+   * @param item the item request builder
+   * @return the batch result
+   * @throws GoogleDriveException if batch request failed
+   */
+  private <T> BatchResult<T> batch(Collection<String> fileIds,
+                                   final String operation,
+                                   BatchItem<T> item) throws GoogleDriveException {
+    final BatchResult<T> result = new BatchResult<T>();
+    Iterator<String> ids = fileIds.iterator();
+    try {
+      while (ids.hasNext()) {
+        BatchRequest batch = drive.batch();
+        batch.setBatchUrl(new GenericUrl(BATCH_URL));
+        do {
+          final String fileId = ids.next();
+          if (!result.contains(fileId)) {
+            item.request(fileId).queue(batch, new JsonBatchCallback<T>() {
+              @Override
+              public void onSuccess(T t, HttpHeaders responseHeaders) throws IOException {
+                result.results.put(fileId, t);
+              }
+
+              @Override
+              public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) throws IOException {
+                result.errors.put(fileId, batchError(fileId, operation, e));
+              }
+            });
+          }
+        } while (ids.hasNext() && batch.size() < BATCH_SIZE);
+        if (batch.size() > 0) {
+          batch.execute();
+        }
+      }
+    } catch (IOException e) {
+      throw new GoogleDriveException("Error " + operation + " files in batch of Files service: " + e.getMessage(), e);
+    }
+    return result;
+  }
+
+  /**
+   * Error of a file request in a batch, mapped in the same way as for single requests.
+   *
+   * @param fileId the file id
+   * @param operation the operation
+   * @param error the error
+   * @return the cloud drive exception
+   */
+  private CloudDriveException batchError(String fileId, String operation, GoogleJsonError error) {
+    if (error.getCode() == 403 && error.getErrors() != null) {
+      for (ErrorInfo ei : error.getErrors()) {
+        if ("insufficientPermissions".equals(ei.getReason())) {
+          return new CloudDriveAccessException("Insufficient permissions for " + operation + " file in Files service. "
+              + error.getMessage() + " (" + error.getCode() + ")");
+        }
+      }
+    } else if (error.getCode() == 404) {
+      return new NotFoundException("Cloud file not found for " + operation + ": " + fileId);
+    }
+    return new GoogleDriveException("Error " + operation + " file in Files service: " + error.getMessage() + " ("
+        + error.getCode() + ")");
+  }
+
   /**
    * Checks if is insufficient permissions.
    *
@@ -203,7 +203,13 @@ public class GoogleDriveConnector extends CloudDriveConnector {
   @Override
   protected JCRLocalGoogleDrive createDrive(CloudUser user, Node driveNode) throws CloudDriveException, RepositoryException {
     if (user instanceof GoogleUser) {
-      return new JCRLocalGoogleDrive((GoogleUser) user, driveNode, sessionProviders, jcrFinder, mimeTypes);
+      JCRLocalGoogleDrive drive = new JCRLocalGoogleDrive((GoogleUser) user,
+                                                          driveNode,
+                                                          sessionProviders,
+                                                          jcrFinder,
+                                                          mimeTypes);
+      drive.setUploadChunkSize(getUploadChunkSize());
+      return drive;
     } else {
       throw new CloudDriveException("Not Google user: " + user);
     }
@@ -216,7 +222,14 @@ public class GoogleDriveConnector extends CloudDriveConnector {
   protected CloudDrive loadDrive(Node driveNode) throws CloudDriveException, RepositoryException {
     JCRLocalCloudDrive.checkNotTrashed(driveNode);
     JCRLocalCloudDrive.migrateName(driveNode);
-    return new JCRLocalGoogleDrive(new API(), getProvider(), driveNode, sessionProviders, jcrFinder, mimeTypes);
+    JCRLocalGoogleDrive drive = new JCRLocalGoogleDrive(new API(),
+                                                        getProvider(),
+                                                        driveNode,
+                                                        sessionProviders,
+                                                        jcrFinder,
+                                                        mimeTypes);
+    drive.setUploadChunkSize(getUploadChunkSize());
+    return drive;
   }
 
 }
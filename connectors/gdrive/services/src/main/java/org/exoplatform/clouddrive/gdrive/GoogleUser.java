@@ -20,6 +20,7 @@ package org.exoplatform.clouddrive.gdrive;
 
 import org.exoplatform.clouddrive.CloudProvider;
 import org.exoplatform.clouddrive.CloudUser;
+import org.exoplatform.clouddrive.utils.RateLimiter;
 
 /**
  * User class for Google. Created by The eXo Platform SAS.
@@ -44,6 +45,7 @@ public class GoogleUser extends CloudUser {
   public GoogleUser(String id, String username, String email, CloudProvider provider, GoogleDriveAPI api) {
     super(id, username, email, provider);
     this.api = api;
+    api.setRateLimiter(RateLimiter.of(provider, id));
   }
 
   /**
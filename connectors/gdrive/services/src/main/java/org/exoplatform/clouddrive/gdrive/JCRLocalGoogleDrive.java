@@ -18,10 +18,11 @@
  */
 package org.exoplatform.clouddrive.gdrive;
 
+import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.util.DateTime;
 import com.google.api.services.drive.model.About;
-import com.google.api.services.drive.model.ChildReference;
+import com.google.api.services.drive.model.Change;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.ParentReference;
 import com.google.api.services.drive.model.User;
@@ -35,15 +36,21 @@ import org.exoplatform.clouddrive.DriveRemovedException;
 import org.exoplatform.clouddrive.NotFoundException;
 import org.exoplatform.clouddrive.RefreshAccessException;
 import org.exoplatform.clouddrive.SyncNotSupportedException;
+import org.exoplatform.clouddrive.gdrive.GoogleDriveAPI.BatchResult;
 import org.exoplatform.clouddrive.gdrive.GoogleDriveAPI.ChangesIterator;
 import org.exoplatform.clouddrive.gdrive.GoogleDriveAPI.ChildIterator;
+import org.exoplatform.clouddrive.gdrive.GoogleDriveAPI.UploadState;
 import org.exoplatform.clouddrive.gdrive.GoogleDriveConnector.API;
 import org.exoplatform.clouddrive.jcr.JCRLocalCloudDrive;
 import org.exoplatform.clouddrive.jcr.JCRLocalCloudFile;
 import org.exoplatform.clouddrive.jcr.NodeFinder;
 import org.exoplatform.clouddrive.oauth2.UserToken;
 import org.exoplatform.clouddrive.oauth2.UserTokenRefreshListener;
+import org.exoplatform.clouddrive.utils.ChunkedUpload;
 import org.exoplatform.clouddrive.utils.ExtendedMimeTypeResolver;
+import org.exoplatform.clouddrive.utils.UploadSessions;
+import org.exoplatform.clouddrive.viewer.CloudFileContent;
+import org.exoplatform.clouddrive.viewer.ContentReader;
 import org.exoplatform.services.jcr.ext.app.SessionProviderService;
 
 import java.io.IOException;
@@ -52,11 +59,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import javax.jcr.InvalidItemStateException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
@@ -118,8 +130,7 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
       ChildIterator children = api.children(fileId);
       iterators.add(children);
       while (children.hasNext() && !Thread.currentThread().isInterrupted()) {
-        ChildReference child = children.next();
-        File gf = api.file(child.getId());
+        File gf = children.next();
         if (!gf.getLabels().getTrashed()) { // skip files in Trash
           if (!isConnected(fileId, gf.getId())) { // if not already connected
             boolean isFolder = api.isFolder(gf);
@@ -231,6 +242,28 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
      */
     protected Long                 lastChangeId;
 
+    /**
+     * Remote files (parents of changed files) read during this sync, <code>null</code> value for not found
+     * files.
+     */
+    protected final Map<String, File> remoteFiles = new HashMap<String, File>();
+
+    /**
+     * Changes page which files already read to local {@link #nodes}.
+     */
+    protected List<Change>            page;
+
+    /**
+     * Ids of files already searched locally, found or not.
+     */
+    protected final Set<String>       resolved    = new HashSet<String>();
+
+    /**
+     * Depth of {@link #syncNext()} calls: it will be called recursively for a file which parent comes in next
+     * changes.
+     */
+    protected int                     depth;
+
     /**
      * Create command for Google Drive synchronization.
      *
@@ -276,8 +309,7 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
       iterators.add(changes);
 
       if (changes.hasNext()) {
-        readLocalNodes(); // read all local nodes to nodes list
-        syncNext(); // process changes
+        syncNext(); // process changes, local nodes will be read for each page of changes
       }
 
       // update sync metadata, use actual change id from the last iterator
@@ -291,8 +323,26 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
      * @throws CloudDriveException the cloud drive exception
      */
     protected void syncNext() throws RepositoryException, CloudDriveException {
+      depth++;
+      try {
+        syncChanges();
+      } finally {
+        depth--;
+      }
+    }
+
+    /**
+     * Apply changes one by one, on each next page read local nodes of its files.
+     *
+     * @throws RepositoryException the repository exception
+     * @throws CloudDriveException the cloud drive exception
+     */
+    protected void syncChanges() throws RepositoryException, CloudDriveException {
       while (changes.hasNext() && !Thread.currentThread().isInterrupted()) {
-        com.google.api.services.drive.model.Change ch = changes.next();
+        Change ch = changes.next();
+        if (changes.getPage() != page) {
+          readPage(changes.getPage());
+        }
         File gf = ch.getFile(); // gf will be null for deleted
 
         String[] parents;
@@ -347,6 +397,67 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
       }
     }
 
+    /**
+     * Read local nodes of files changed in given page and their parents. Nodes of previous pages already
+     * saved in JCR will be forgotten (they can be found again if will be needed), thus memory is bounded by
+     * the page size but not by the drive size.
+     *
+     * @param changesPage the changes page
+     * @throws RepositoryException the repository exception
+     * @throws CloudDriveException the cloud drive exception
+     */
+    protected void readPage(List<Change> changesPage) throws RepositoryException, CloudDriveException {
+      if (nodes != null && depth == 1) {
+        // nodes not used by the caller methods (not recursive sync), forget saved ones
+        String rootId = fileAPI.getId(driveNode);
+        next: for (Iterator<Map.Entry<String, List<Node>>> niter = nodes.entrySet().iterator(); niter.hasNext();) {
+          Map.Entry<String, List<Node>> ne = niter.next();
+          if (!rootId.equals(ne.getKey())) {
+            for (Node n : ne.getValue()) {
+              try {
+                if (n.isNew()) {
+                  continue next;
+                }
+              } catch (InvalidItemStateException e) {
+                // node removed, can forget it
+              }
+            }
+            niter.remove();
+            resolved.remove(ne.getKey());
+          }
+        }
+      }
+      page = changesPage;
+      Set<String> ids = new LinkedHashSet<String>();
+      for (Change ch : changesPage) {
+        ids.add(ch.getFileId());
+        if (!ch.getDeleted()) {
+          for (String parentId : getParents(ch.getFile())) {
+            ids.add(parentId);
+          }
+        }
+      }
+      readLocalNodes(ids);
+      resolved.addAll(ids);
+    }
+
+    /**
+     * Local nodes of the file, nodes not yet read will be searched in the drive.
+     *
+     * @param fileId the file id
+     * @return the list of nodes or <code>null</code> if file not found locally
+     * @throws RepositoryException the repository exception
+     * @throws CloudDriveException the cloud drive exception
+     */
+    protected List<Node> localNodes(String fileId) throws RepositoryException, CloudDriveException {
+      List<Node> existing = nodes.get(fileId);
+      if (existing == null && resolved.add(fileId)) {
+        readLocalNodes(Collections.singleton(fileId));
+        existing = nodes.get(fileId);
+      }
+      return existing;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -365,7 +476,7 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
      * @throws CloudDriveException the cloud drive exception
      */
     protected void deleteFile(String fileId) throws RepositoryException, CloudDriveException {
-      List<Node> existing = nodes.get(fileId);
+      List<Node> existing = localNodes(fileId);
       if (existing != null) {
         // remove existing file,
         // also clean the nodes map from the descendants (they can be recorded in delta)
@@ -402,7 +513,7 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
      * @throws RepositoryException the repository exception
      */
     protected void updateFile(File gf, String[] parentIds) throws CloudDriveException, RepositoryException {
-      List<Node> existing = nodes.get(gf.getId());
+      List<Node> existing = localNodes(gf.getId());
 
       // Existing files being synchronized with cloud.
       Set<Node> synced = new HashSet<Node>();
@@ -410,17 +521,15 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
       boolean isFolder = api.isFolder(gf);
 
       nextParent: for (String parentFileId : parentIds) {
-        List<Node> fileParent = nodes.get(parentFileId);
+        List<Node> fileParent = localNodes(parentFileId);
         if (fileParent == null) {
           // no yet existing locally parent... wait for it
           syncNext();
 
-          fileParent = nodes.get(parentFileId);
+          fileParent = localNodes(parentFileId);
           if (fileParent == null) {
-            File gparent;
-            try {
-              gparent = api.file(parentFileId);
-            } catch (NotFoundException e) {
+            File gparent = remoteFile(parentFileId);
+            if (gparent == null) {
               continue nextParent;
             }
 
@@ -608,10 +717,11 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
         } else {
           List<ParentReference> parents = gfile.getParents();
           if (parents.size() > 0) {
+            readRemoteFiles(parents);
             for (ParentReference p : parents) {
               if (!p.getIsRoot()) {
-                File gparent = api.file(p.getId());
-                if (isRemoved(gparent)) {
+                File gparent = remoteFile(p.getId());
+                if (gparent == null || isRemoved(gparent)) {
                   return true;
                 }
               } // else, we reached the root - this file nor its ancestor is not removed
@@ -626,6 +736,66 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
       }
       return false;
     }
+
+    /**
+     * Get remote file read in this sync or read it from Google Drive.
+     *
+     * @param fileId the file id
+     * @return the file or <code>null</code> if not found
+     * @throws GoogleDriveException the google drive exception
+     */
+    protected File remoteFile(String fileId) throws GoogleDriveException {
+      if (remoteFiles.containsKey(fileId)) {
+        return remoteFiles.get(fileId);
+      }
+      File gfile;
+      try {
+        gfile = api.file(fileId);
+      } catch (NotFoundException e) {
+        gfile = null;
+      }
+      remoteFiles.put(fileId, gfile);
+      return gfile;
+    }
+
+    /**
+     * Read not yet known parents in a single batch request. Files failed in the batch will be requested
+     * one by one by {@link #remoteFile(String)}.
+     *
+     * @param parents the parents
+     * @throws GoogleDriveException the google drive exception
+     */
+    protected void readRemoteFiles(List<ParentReference> parents) throws GoogleDriveException {
+      Set<String> unknown = new LinkedHashSet<String>();
+      for (ParentReference p : parents) {
+        if (!p.getIsRoot() && !remoteFiles.containsKey(p.getId())) {
+          unknown.add(p.getId());
+        }
+      }
+      if (unknown.size() > 1) {
+        BatchResult<File> batch = api.files(unknown);
+        for (String id : unknown) {
+          if (batch.contains(id)) {
+            try {
+              remoteFiles.put(id, batch.get(id));
+            } catch (NotFoundException e) {
+              remoteFiles.put(id, null);
+            } catch (CloudDriveException e) {
+              // will be requested alone
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Results of batch requests prepared by {@link FileAPI} for changes applied in a thread.
+   */
+  protected static class Prepared {
+
+    /** Metadata of updated files. */
+    BatchResult<File> files;
   }
 
   /**
@@ -638,6 +808,11 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
      */
     protected final GoogleDriveAPI api;
 
+    /**
+     * Results of batch requests prepared for changes applied in current thread.
+     */
+    protected final ThreadLocal<Prepared> prepared = new ThreadLocal<Prepared>();
+
     /**
      * Instantiates a new file API.
      */
@@ -645,6 +820,56 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
       this.api = getUser().api();
     }
 
+    /**
+     * Read metadata of files updated by given changes in batches. Only read-only requests prepared here:
+     * trash, untrash and delete will be requested by their changes one by one, when the change holds its
+     * path lock and its result can be rolled back with the change. Files having several changes will be
+     * requested alone by their operations as metadata of a next change depends on a previous one.
+     *
+     * @param changes the changes
+     * @throws CloudDriveException the cloud drive exception
+     * @throws RepositoryException the repository exception
+     */
+    @Override
+    protected void prepare(Collection<FileChange> changes) throws CloudDriveException, RepositoryException {
+      Set<String> updated = new LinkedHashSet<String>();
+      Set<String> changed = new HashSet<String>();
+      for (FileChange change : changes) {
+        String id = change.getFileId();
+        if (id != null) {
+          if (changed.add(id)) {
+            String type = change.getChangeType();
+            Node node = change.getNode();
+            if ((FileChange.CREATE.equals(type) && (node == null || !node.hasProperty("ecd:trashed")))
+                || FileChange.UPDATE.equals(type) || FileChange.UPDATE_CONTENT.equals(type)) {
+              updated.add(id);
+            }
+          } else {
+            // several changes of the file
+            updated.remove(id);
+          }
+        }
+      }
+      if (updated.size() > 1) {
+        Prepared batches = new Prepared();
+        prepared.set(batches);
+        try {
+          batches.files = api.files(updated);
+        } catch (GoogleDriveException e) {
+          // not prepared files will be requested one by one
+          LOG.warn("Batch request failed, changes will be applied by single requests: " + e.getMessage());
+        }
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void release() {
+      prepared.remove();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -663,10 +888,13 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
       gf.setCreatedDate(new DateTime(created.getTime()));
       gf.setModifiedDate(new DateTime(modified.getTime()));
 
-      InputStreamContent fileContent = new InputStreamContent(mimeType, content);
-
+      long length = contentLength(fileNode);
       try {
-        gf = api.insert(gf, fileContent);
+        if (isChunkedUpload(length)) {
+          gf = uploadContent(fileNode, gf, mimeType, content, modified, length);
+        } else {
+          gf = api.insert(gf, new InputStreamContent(mimeType, content));
+        }
       } catch (CloudDriveAccessException e) {
         checkAccessScope(e);
         throw e;
@@ -763,7 +991,7 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
     public CloudFile updateFile(Node fileNode, Calendar modified) throws CloudDriveException, RepositoryException {
       // Update existing file metadata and parent (location).
       String id = getId(fileNode);
-      File gf = api.file(id);
+      File gf = file(id);
       gf.setTitle(getTitle(fileNode));
       gf.setModifiedDate(new DateTime(modified.getTime()));
 
@@ -823,7 +1051,7 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
     public CloudFile updateFolder(Node folderNode, Calendar modified) throws CloudDriveException, RepositoryException {
       // Update existing folder metadata and parent (location).
       String id = getId(folderNode);
-      File gf = api.file(id);
+      File gf = file(id);
       gf.setTitle(getTitle(folderNode));
       gf.setModifiedDate(new DateTime(modified.getTime()));
 
@@ -874,14 +1102,17 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
                                        String mimeType,
                                        InputStream content) throws CloudDriveException, RepositoryException {
       // Update existing file content and related metadata.
-      File gf = api.file(getId(fileNode));
+      File gf = file(getId(fileNode));
       gf.setMimeType(mimeType);
       gf.setModifiedDate(new DateTime(modified.getTime()));
 
-      InputStreamContent fileContent = new InputStreamContent(mimeType, content);
-
+      long length = contentLength(fileNode);
       try {
-        api.update(gf, fileContent);
+        if (isChunkedUpload(length)) {
+          gf = uploadContent(fileNode, gf, mimeType, content, modified, length);
+        } else {
+          api.update(gf, new InputStreamContent(mimeType, content));
+        }
 
         Calendar created = api.parseDate(gf.getCreatedDate().toStringRfc3339());
         modified = api.parseDate(gf.getModifiedDate().toStringRfc3339());
@@ -1275,6 +1506,91 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
     public CloudFile restore(String id, String path) throws NotFoundException, CloudDriveException, RepositoryException {
       throw new SyncNotSupportedException("Restore not supported");
     }
+
+    /**
+     * Get file metadata prepared in current thread or read it from Google Drive.
+     *
+     * @param id the file id
+     * @return the file
+     * @throws CloudDriveException the cloud drive exception
+     */
+    protected File file(String id) throws CloudDriveException {
+      Prepared batches = prepared.get();
+      if (batches != null && batches.files != null && batches.files.contains(id)) {
+        return batches.files.take(id);
+      }
+      return api.file(id);
+    }
+
+    /**
+     * Upload file content by chunks in resumable upload session. If the file has an ID, its content will be
+     * updated, otherwise a new file will be inserted.
+     *
+     * @param fileNode {@link Node} local file
+     * @param gf {@link File} file metadata
+     * @param mimeType {@link String} content type
+     * @param content {@link InputStream} content
+     * @param modified {@link Calendar} local modification date
+     * @param length the content length
+     * @return {@link File} uploaded file
+     * @throws CloudDriveException the cloud drive exception
+     * @throws RepositoryException the repository exception
+     */
+    protected File uploadContent(Node fileNode,
+                                 final File gf,
+                                 final String mimeType,
+                                 InputStream content,
+                                 Calendar modified,
+                                 final long length) throws CloudDriveException, RepositoryException {
+      ChunkedUpload<File> upload = new ChunkedUpload<File>(uploadSessions(),
+                                                           uploadKey(fileNode, modified, length),
+                                                           content,
+                                                           length,
+                                                           uploadChunkSize) {
+
+        /** The file returned by Google when the upload completed. */
+        File uploaded;
+
+        @Override
+        protected String startSession() throws CloudDriveException {
+          return api.startUpload(gf, mimeType, length);
+        }
+
+        @Override
+        protected long resumeSession(UploadSessions.Session saved) throws CloudDriveException {
+          UploadState state = api.uploadState(saved.getId(), length);
+          if (state != null) {
+            uploaded = state.file;
+            return uploaded != null ? length : state.offset;
+          }
+          return -1;
+        }
+
+        @Override
+        protected long sendChunk(long offset, byte[] data, int size, boolean last) throws CloudDriveException {
+          UploadState state = api.uploadChunk(session, offset, data, size, length);
+          uploaded = state.file;
+          return uploaded != null ? length : state.offset;
+        }
+
+        @Override
+        protected File finishSession() throws CloudDriveException {
+          if (uploaded == null) {
+            UploadState state = api.uploadState(session, length);
+            if (state == null || state.file == null) {
+              throw new GoogleDriveException("Upload not completed for " + gf.getTitle());
+            }
+            uploaded = state.file;
+          }
+          return uploaded;
+        }
+      };
+      try {
+        return upload(upload);
+      } catch (IOException e) {
+        throw new GoogleDriveException("Error uploading file " + gf.getTitle() + ": " + e.getMessage(), e);
+      }
+    }
   }
 
   /**
@@ -1504,6 +1820,31 @@ public class JCRLocalGoogleDrive extends JCRLocalCloudDrive implements UserToken
     driveNode.setProperty("gdrive:scopes", GoogleDriveAPI.SCOPES_STRING);
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ContentReader getFileThumbnail(String fileId) throws RepositoryException, CloudDriveException {
+    GoogleDriveAPI api = getUser().api();
+    String link = api.file(fileId).getThumbnailLink();
+    if (link != null) {
+      HttpResponse response = api.thumbnail(link);
+      if (response != null) {
+        try {
+          Long length = response.getHeaders().getContentLength();
+          return new CloudFileContent(fileId,
+                                      response.getContent(),
+                                      response.getContentType(),
+                                      null,
+                                      length != null ? length : -1);
+        } catch (IOException e) {
+          throw new GoogleDriveException("Error reading file thumbnail: " + e.getMessage(), e);
+        }
+      }
+    }
+    return null;
+  }
+
   /**
    * {@inheritDoc}
    */
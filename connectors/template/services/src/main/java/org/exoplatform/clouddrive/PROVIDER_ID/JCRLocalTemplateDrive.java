@@ -252,9 +252,7 @@ public class JCRLocalTemplateDrive extends JCRLocalCloudDrive implements UserTok
       fileHistory.clear();
       try {
         jcrListener.disable();
-        String empty = "".intern();
-        driveNode.setProperty("ecd:localHistory", empty);
-        driveNode.setProperty("ecd:localChanges", empty);
+        resetChanges(driveNode);
         driveNode.save();
       } catch (Throwable e) {
         LOG.error("Error cleaning local history in " + title(), e);
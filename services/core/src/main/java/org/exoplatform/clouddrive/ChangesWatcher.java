@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-side watcher of remote changes in drives which provider offers a long-poll notification (e.g.
+ * Dropbox longpoll_delta or Box realtime URL). Long-polls run on a fixed number of connections: each
+ * connection thread takes next due drive, waits for its changes not longer of the provider timeout and
+ * returns the drive to the queue. A poll blocks its connection, thus number of watched drives is bounded by
+ * the connections number: every watched drive is polled again right after its previous poll (or a backoff).
+ * Drives above the bound are not watched, {@link #watch(CloudDrive)} returns <code>false</code> for them and
+ * {@link DriveSyncScheduler} keeps synchronizing them by adaptive interval. When provider reports changes, the drive synchronization nudged in
+ * {@link DriveSyncScheduler} and the drive parked till the synchronization will complete: until then the
+ * drive cursor is the same and the provider will report the same changes again. A parked drive returns to
+ * polling by {@link #resume(CloudDrive)} or after {@link #PARK_TIMEOUT}.<br>
+ * A backoff asked by the provider is honored before next poll of the drive, errors back off exponentially
+ * up to {@link #MAX_ERROR_BACKOFF}.<br>
+ * Created by The eXo Platform SAS.
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: ChangesWatcher.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class ChangesWatcher {
+
+  /**
+   * Default number of long-poll connections.
+   */
+  public static final int    CONNECTIONS       = 8;
+
+  /**
+   * Initial backoff after a poll error in milliseconds.
+   */
+  public static final long   ERROR_BACKOFF     = 5000;
+
+  /**
+   * Maximal backoff after poll errors in milliseconds (5min).
+   */
+  public static final long   MAX_ERROR_BACKOFF = 5 * 60000;
+
+  /**
+   * Maximal time a drive with reported changes waits for its synchronization before next poll in
+   * milliseconds (2min).
+   */
+  public static final long   PARK_TIMEOUT      = 2 * 60000;
+
+  /**
+   * Thread name prefix of the connections.
+   */
+  public static final String THREAD_PREFIX     = "clouddrive-changes-";
+
+  /** The Constant LOG. */
+  protected static final Log LOG               = ExoLogger.getLogger(ChangesWatcher.class);
+
+  /**
+   * Long-poll of a drive remote changes.
+   */
+  public interface Poll {
+
+    /**
+     * Wait for remote changes in the drive. This method blocks not longer of the provider long-poll
+     * timeout.
+     *
+     * @return <code>true</code> if drive has changes, <code>false</code> if timeout reached without changes
+     * @throws CloudDriveException if provider or communication error happened
+     * @throws InterruptedException if current thread was interrupted
+     */
+    boolean await() throws CloudDriveException, InterruptedException;
+
+    /**
+     * Time in milliseconds the provider asked to wait before next poll.
+     *
+     * @return the backoff, zero if not asked
+     */
+    long getBackoff();
+  }
+
+  /**
+   * A drive which remote changes can be watched by long-poll.
+   */
+  public interface Watchable {
+
+    /**
+     * Create long-poll of the drive changes.
+     *
+     * @return {@link Poll} or <code>null</code> if changes cannot be watched currently
+     */
+    Poll createChangesPoll();
+  }
+
+  /**
+   * Watched drive.
+   */
+  class Entry implements Delayed {
+
+    /** The drive. */
+    final CloudDrive drive;
+
+    /** The poll. */
+    final Poll       poll;
+
+    /** Next poll time. */
+    long             time;
+
+    /** Current error backoff. */
+    long             errorBackoff;
+
+    /** Time before which the provider asked to do not poll. */
+    long             backoffTime;
+
+    /** The parked flag, set while the drive waits for its synchronization. */
+    boolean          parked;
+
+    /** The removed flag. */
+    volatile boolean removed;
+
+    /**
+     * Instantiates a new entry.
+     *
+     * @param drive the drive
+     * @param poll the poll
+     */
+    Entry(CloudDrive drive, Poll poll) {
+      this.drive = drive;
+      this.poll = poll;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int compareTo(Delayed o) {
+      long other = ((Entry) o).time;
+      return time < other ? -1 : (time > other ? 1 : 0);
+    }
+  }
+
+  /**
+   * Long-poll connection: polls due drives one by one.
+   */
+  class Connection implements Runnable {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+      try {
+        while (!Thread.currentThread().isInterrupted()) {
+          Entry entry = queue.take();
+          if (entry.removed) {
+            continue;
+          }
+          synchronized (entries) {
+            // park timeout reached: poll again
+            entry.parked = false;
+          }
+          long backoff = 0;
+          try {
+            if (entry.poll.await() && !entry.removed) {
+              synchronized (entries) {
+                // park before the nudge: the synchronization may complete before we requeue the drive
+                entry.parked = true;
+              }
+              scheduler.nudge(entry.drive);
+            }
+            backoff = entry.poll.getBackoff();
+            entry.errorBackoff = 0;
+          } catch (CloudDriveException e) {
+            entry.errorBackoff = entry.errorBackoff > 0 ? Math.min(entry.errorBackoff * 2, MAX_ERROR_BACKOFF)
+                                                        : ERROR_BACKOFF;
+            backoff = entry.errorBackoff;
+            LOG.warn("Error watching changes of drive " + entry.drive + ". Next attempt in " + backoff + "ms. "
+                + e.getMessage());
+          } catch (RuntimeException e) {
+            entry.errorBackoff = MAX_ERROR_BACKOFF;
+            backoff = entry.errorBackoff;
+            LOG.error("Error watching changes of drive " + entry.drive, e);
+          }
+          synchronized (entries) {
+            if (!entry.removed) {
+              long now = System.currentTimeMillis();
+              entry.backoffTime = now + backoff;
+              entry.time = entry.parked ? now + Math.max(backoff, PARK_TIMEOUT) : entry.backoffTime;
+              queue.add(entry);
+            }
+          }
+        }
+      } catch (InterruptedException e) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Drives changes connection interrupted");
+        }
+      }
+    }
+  }
+
+  /** The scheduler to nudge drives with changes. */
+  protected final DriveSyncScheduler     scheduler;
+
+  /** Number of connections. */
+  protected final int                    connections;
+
+  /** Watched drives. */
+  protected final Map<CloudDrive, Entry> entries = new HashMap<CloudDrive, Entry>();
+
+  /** Drives queue ordered by next poll time. */
+  protected final DelayQueue<Entry>      queue   = new DelayQueue<Entry>();
+
+  /** The connection threads. */
+  protected final List<Thread>           threads = new ArrayList<Thread>();
+
+  /**
+   * Instantiates a new changes watcher.
+   *
+   * @param scheduler {@link DriveSyncScheduler} to nudge drives with changes
+   * @param connections number of long-poll connections
+   */
+  public ChangesWatcher(DriveSyncScheduler scheduler, int connections) {
+    this.scheduler = scheduler;
+    this.connections = connections > 0 ? connections : 1;
+  }
+
+  /**
+   * Watch changes of a drive if it is {@link Watchable}. Does nothing if drive already watched. If all
+   * connections already busy with watched drives, the drive will not be watched.
+   *
+   * @param drive {@link CloudDrive}
+   * @return <code>true</code> if drive watched, <code>false</code> otherwise
+   */
+  public boolean watch(CloudDrive drive) {
+    if (drive instanceof Watchable) {
+      synchronized (entries) {
+        if (entries.containsKey(drive)) {
+          return true;
+        }
+        if (entries.size() >= connections) {
+          // a drive over the connections would wait for polls of others
+          return false;
+        }
+        Poll poll = ((Watchable) drive).createChangesPoll();
+        if (poll != null) {
+          Entry entry = new Entry(drive, poll);
+          entry.time = System.currentTimeMillis();
+          entries.put(drive, entry);
+          queue.add(entry);
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stop watching a drive. A poll of the drive already waiting will be completed but ignored.
+   *
+   * @param drive {@link CloudDrive}
+   */
+  public void unwatch(CloudDrive drive) {
+    synchronized (entries) {
+      Entry entry = entries.remove(drive);
+      if (entry != null) {
+        entry.removed = true;
+        queue.remove(entry);
+      }
+    }
+  }
+
+  /**
+   * Resume polling of a drive parked after reported changes. This should be called when the drive
+   * synchronization completed. Does nothing if drive not watched or not parked.
+   *
+   * @param drive {@link CloudDrive}
+   */
+  public void resume(CloudDrive drive) {
+    synchronized (entries) {
+      Entry entry = entries.get(drive);
+      if (entry != null && entry.parked) {
+        entry.parked = false;
+        if (queue.remove(entry)) {
+          entry.time = Math.max(System.currentTimeMillis(), entry.backoffTime);
+          queue.add(entry);
+        } // otherwise it is polling now and will be queued by its connection
+      }
+    }
+  }
+
+  /**
+   * Start the connections.
+   */
+  public void start() {
+    synchronized (entries) {
+      if (threads.isEmpty()) {
+        for (int i = 1; i <= connections; i++) {
+          Thread thread = new Thread(new Connection(), THREAD_PREFIX + i);
+          thread.setDaemon(true);
+          thread.start();
+          threads.add(thread);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stop the connections and forget all drives.
+   */
+  public void stop() {
+    synchronized (entries) {
+      for (Thread thread : threads) {
+        thread.interrupt();
+      }
+      threads.clear();
+      for (Entry entry : entries.values()) {
+        entry.removed = true;
+      }
+      entries.clear();
+      queue.clear();
+    }
+  }
+}
@@ -357,6 +357,27 @@ public abstract class CloudDrive {
                                         CloudProviderException,
                                         RepositoryException;
 
+  /**
+   * Version of the drive state. It grows on each change of the state: when files start or finish updating,
+   * on synchronization, connect, disconnect or an error of the drive. Clients can use it as a cursor to wait
+   * for the state changes, see {@link #awaitStateChange(long, long)}.
+   *
+   * @return long the state version
+   */
+  public abstract long getStateVersion();
+
+  /**
+   * Wait for the drive state change: return when the state version differs from given one or the timeout
+   * elapsed. This method doesn't read the drive storage and doesn't consume CPU while waiting.
+   *
+   * @param version long a state version known to the caller
+   * @param timeout long time to wait in milliseconds
+   * @return long actual state version, it is the same as given if the state not changed during the timeout
+   * @throws InterruptedException if current thread was interrupted while waiting
+   * @see #getStateVersion()
+   */
+  public abstract long awaitStateChange(long version, long timeout) throws InterruptedException;
+
   /**
    * Local user related to this Cloud Drive.
    * 
@@ -19,6 +19,7 @@
 package org.exoplatform.clouddrive;
 
 import org.exoplatform.clouddrive.jcr.NodeFinder;
+import org.exoplatform.clouddrive.utils.ChunkedUpload;
 import org.exoplatform.clouddrive.utils.ExtendedMimeTypeResolver;
 import org.exoplatform.container.PortalContainer;
 import org.exoplatform.container.component.BaseComponentPlugin;
@@ -121,6 +122,12 @@ public abstract class CloudDriveConnector extends BaseComponentPlugin {
   /** The Constant CONFIG_PREDEFINED_SERVICES. */
   public static final String               CONFIG_PREDEFINED_SERVICES       = "predefined-services";
 
+  /**
+   * Chunk size in bytes for uploads of large files. Files bigger of this size will be uploaded by chunks in
+   * a resumable session. Optional, 8M by default.
+   */
+  public static final String               CONFIG_UPLOAD_CHUNK_SIZE         = "upload-chunk-size";
+
   /** The Constant OAUTH2_CODE. */
   public static final String               OAUTH2_CODE                      = "code";
 
@@ -327,6 +334,24 @@ public abstract class CloudDriveConnector extends BaseComponentPlugin {
     return config.get(CONFIG_PROVIDER_CLIENT_SECRET);
   }
 
+  /**
+   * Gets chunk size for uploads of large files.
+   *
+   * @return the upload chunk size in bytes
+   */
+  protected int getUploadChunkSize() {
+    String chunkSizeStr = config.get(CONFIG_UPLOAD_CHUNK_SIZE);
+    if (chunkSizeStr != null && (chunkSizeStr = chunkSizeStr.trim()).length() > 0) {
+      try {
+        return Integer.parseInt(chunkSizeStr);
+      } catch (NumberFormatException e) {
+        LOG.warn("Configuration of " + CONFIG_UPLOAD_CHUNK_SIZE + " is not a number: " + chunkSizeStr
+            + ". Default value will be used.");
+      }
+    }
+    return ChunkedUpload.DEFAULT_CHUNK_SIZE;
+  }
+
   /**
    * Checks if is disabled.
    *
@@ -21,6 +21,7 @@ package org.exoplatform.clouddrive;
 import org.exoplatform.clouddrive.features.CloudDriveFeatures;
 import org.exoplatform.clouddrive.features.PermissiveFeatures;
 import org.exoplatform.clouddrive.jcr.JCRLocalCloudDrive;
+import org.exoplatform.clouddrive.jcr.NodeFinder;
 import org.exoplatform.clouddrive.jcr.NtFileSynchronizer;
 import org.exoplatform.container.component.ComponentPlugin;
 import org.exoplatform.services.jcr.RepositoryService;
@@ -36,7 +37,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
@@ -44,8 +44,11 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.jcr.AccessDeniedException;
+import javax.jcr.Item;
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.query.Query;
@@ -79,11 +82,49 @@ public class CloudDriveServiceImpl implements CloudDriveService, Startable {
       }
     }
 
+    /**
+     * Find registered drive of the user.
+     *
+     * @param user the user
+     * @return the cloud drive or <code>null</code>
+     */
+    CloudDrive userDrive(CloudUser user) {
+      Map<CloudUser, CloudDrive> drives = userDrives.get(user);
+      if (drives != null) {
+        return drives.get(user);
+      }
+      return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onConnect(CloudDriveEvent event) {
+      CloudDrive local = userDrive(event.getUser());
+      if (local != null) {
+        try {
+          String repoName = jcrService.getCurrentRepository().getConfiguration().getName();
+          driveIndex.add(repoName, event.getWorkspace(), event.getNodePath(), local);
+          unknownDrives.clear();
+        } catch (RepositoryException e) {
+          LOG.warn("Cannot index connected drive " + event.getWorkspace() + ":" + event.getNodePath() + ": "
+              + e.getMessage());
+        }
+        autosync.add(local);
+      }
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void onRemove(CloudDriveEvent event) {
+      CloudDrive local = userDrive(event.getUser());
+      if (local != null) {
+        driveIndex.remove(local);
+        autosync.remove(local);
+      }
       cleanUserCaches(event.getUser());
     }
 
@@ -93,6 +134,12 @@ public class CloudDriveServiceImpl implements CloudDriveService, Startable {
     @Override
     public void onDisconnect(CloudDriveEvent event) {
       // XXX don't do this on disconnect // cleanUserCaches(event.getUser());
+      // but remove from the index and auto-sync, the drive will be added again on its connect
+      CloudDrive local = userDrive(event.getUser());
+      if (local != null) {
+        driveIndex.remove(local);
+        autosync.remove(local);
+      }
     }
 
     /**
@@ -136,6 +183,17 @@ public class CloudDriveServiceImpl implements CloudDriveService, Startable {
    */
   protected final Map<CloudUser, Map<CloudUser, CloudDrive>> userDrives        = new ConcurrentHashMap<CloudUser, Map<CloudUser, CloudDrive>>();
 
+  /**
+   * Index of connected drives root paths per repository and workspace.
+   */
+  protected final DrivePathIndex                             driveIndex        = new DrivePathIndex();
+
+  /**
+   * UUIDs of drive nodes not found among connected drives by lookups of linked nodes. Cleaned on each drive
+   * registration.
+   */
+  protected final Set<String>                                unknownDrives     = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
   /** The drives listeners. */
   protected final Set<CloudDriveListener>                    drivesListeners   = new LinkedHashSet<CloudDriveListener>();
 
@@ -147,33 +205,60 @@ public class CloudDriveServiceImpl implements CloudDriveService, Startable {
    */
   protected final CloudDriveFeatures                         features;
 
+  /**
+   * Node finder facade on actual storage implementation, can be <code>null</code>.
+   */
+  protected final NodeFinder                                 finder;
+
+  /**
+   * Server-side auto-synchronization of connected drives.
+   */
+  protected final DriveSyncScheduler                         autosync;
+
   /**
    * Environment for commands execution.
    */
   protected CloudDriveEnvironment                            commandEnv;
 
   /**
-   * Cloud Drive service with storage in JCR and with managed features.
+   * Cloud Drive service with storage in JCR, with managed features and given node finder.
    * 
    * @param jcrService {@link RepositoryService}
    * @param sessionProviders {@link SessionProviderService}
+   * @param finder {@link NodeFinder}
    * @param features {@link CloudDriveFeatures}
    */
   public CloudDriveServiceImpl(RepositoryService jcrService,
                                SessionProviderService sessionProviders,
+                               NodeFinder finder,
                                CloudDriveFeatures features) {
     this.jcrService = jcrService;
     this.sessionProviders = sessionProviders;
+    this.finder = finder;
 
     // Add internal listener for handling consistency in users-per-repository map (on drive disconnect or
     // removal)
     this.drivesListeners.add(new LocalDrivesListener());
 
     this.features = features;
+    this.autosync = new DriveSyncScheduler(sessionProviders, features);
 
     this.fileSynchronizers.add(new NtFileSynchronizer()); // default one for nt:file + nt:folder
   }
 
+  /**
+   * Cloud Drive service with storage in JCR and with managed features.
+   * 
+   * @param jcrService {@link RepositoryService}
+   * @param sessionProviders {@link SessionProviderService}
+   * @param features {@link CloudDriveFeatures}
+   */
+  public CloudDriveServiceImpl(RepositoryService jcrService,
+                               SessionProviderService sessionProviders,
+                               CloudDriveFeatures features) {
+    this(jcrService, sessionProviders, null, features);
+  }
+
   /**
    * Cloud Drive service with storage in JCR and all features permitted.
    * 
@@ -181,7 +266,7 @@ public class CloudDriveServiceImpl implements CloudDriveService, Startable {
    * @param sessionProviders {@link SessionProviderService}
    */
   public CloudDriveServiceImpl(RepositoryService jcrService, SessionProviderService sessionProviders) {
-    this(jcrService, sessionProviders, new PermissiveFeatures());
+    this(jcrService, sessionProviders, null, new PermissiveFeatures());
   }
 
   /**
@@ -265,26 +350,46 @@ public class CloudDriveServiceImpl implements CloudDriveService, Startable {
   @Override
   public CloudDrive findDrive(Node node) throws RepositoryException {
     String repoName = ((ManageableRepository) node.getSession().getRepository()).getConfiguration().getName();
-    Map<CloudUser, CloudDrive> drives = repositoryDrives.get(repoName);
-    if (drives != null) {
-      for (Iterator<CloudDrive> cditer = drives.values().iterator(); cditer.hasNext();) {
-        CloudDrive local = cditer.next();
+    if (repositoryDrives.containsKey(repoName)) {
+      Session session = node.getSession();
+      String workspace = session.getWorkspace().getName();
+      String path = node.getPath();
+      CloudDrive local = driveIndex.find(repoName, workspace, path);
+      if (local != null) {
         try {
           if (local.isInDrive(node)) {
             return local; // we found it
           }
         } catch (AccessDeniedException e) {
-          // skip other users nodes, can be thrown on isConnected() - try next
+          // skip other users nodes, can be thrown on isConnected()
           if (LOG.isDebugEnabled()) {
-            LOG.debug(">> findDrive(" + node.getPath() + ") access denied to " + local + ": " + e.getMessage(), e);
+            LOG.debug(">> findDrive(" + path + ") access denied to " + local + ": " + e.getMessage(), e);
           }
         } catch (DriveRemovedException e) {
           // ignore removed (should not happen here)
           if (LOG.isDebugEnabled()) {
-            LOG.debug(">> findDrive(" + node.getPath() + ") drive removed " + local + ": " + e.getMessage(), e);
+            LOG.debug(">> findDrive(" + path + ") drive removed " + local + ": " + e.getMessage(), e);
           }
           // XXX Aug 18 2015, indeed sometime it happens - thus clean it here
-          cditer.remove();
+          unregisterDrive(local, repoName);
+        }
+      }
+      // node can be a symlink to a drive file or the drive moved since indexed
+      local = findLinkedDrive(repoName, session, path);
+      if (local != null) {
+        try {
+          if (local.isInDrive(node)) {
+            return local;
+          }
+        } catch (AccessDeniedException e) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug(">> findDrive(" + path + ") access denied to linked " + local + ": " + e.getMessage(), e);
+          }
+        } catch (DriveRemovedException e) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug(">> findDrive(" + path + ") linked drive removed " + local + ": " + e.getMessage(), e);
+          }
+          unregisterDrive(local, repoName);
         }
       }
     }
@@ -296,17 +401,17 @@ public class CloudDriveServiceImpl implements CloudDriveService, Startable {
    */
   @Override
   public CloudDrive findDrive(String workspace, String path) throws RepositoryException {
-    String repoName = jcrService.getCurrentRepository().getConfiguration().getName();
-    Map<CloudUser, CloudDrive> drives = repositoryDrives.get(repoName);
-    if (drives != null) {
-      for (Iterator<CloudDrive> cditer = drives.values().iterator(); cditer.hasNext();) {
-        CloudDrive local = cditer.next();
+    ManageableRepository repository = jcrService.getCurrentRepository();
+    String repoName = repository.getConfiguration().getName();
+    if (repositoryDrives.containsKey(repoName)) {
+      CloudDrive local = driveIndex.find(repoName, workspace, path);
+      if (local != null) {
         try {
           if (local.isDrive(workspace, path, true)) {
             return local; // we found it
           }
         } catch (AccessDeniedException e) {
-          // skip other users nodes, can be thrown on isConnected() - try next
+          // skip other users nodes, can be thrown on isConnected()
           if (LOG.isDebugEnabled()) {
             LOG.debug(">> findDrive(" + workspace + ":" + path + ") access denied to " + local + ": " + e.getMessage(), e);
           }
@@ -316,7 +421,30 @@ public class CloudDriveServiceImpl implements CloudDriveService, Startable {
             LOG.debug(">> findDrive(" + workspace + ":" + path + ") drive removed " + local + ": " + e.getMessage(), e);
           }
           // XXX Aug 18 2015, indeed sometime it happens - thus clean it here
-          cditer.remove();
+          unregisterDrive(local, repoName);
+        }
+      }
+      // path can point to a symlink to a drive file or the drive moved since indexed
+      SessionProvider ssp = sessionProviders.getSystemSessionProvider(null);
+      if (ssp != null) {
+        local = findLinkedDrive(repoName, ssp.getSession(workspace, repository), path);
+        if (local != null) {
+          try {
+            if (local.isDrive(workspace, path, true)) {
+              return local;
+            }
+          } catch (AccessDeniedException e) {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug(">> findDrive(" + workspace + ":" + path + ") access denied to linked " + local + ": "
+                  + e.getMessage(), e);
+            }
+          } catch (DriveRemovedException e) {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug(">> findDrive(" + workspace + ":" + path + ") linked drive removed " + local + ": "
+                  + e.getMessage(), e);
+            }
+            unregisterDrive(local, repoName);
+          }
         }
       }
     }
@@ -440,6 +568,7 @@ public class CloudDriveServiceImpl implements CloudDriveService, Startable {
       LOG.error("Error reading current repository: " + e.getMessage());
       throw new RuntimeException("Error loading connected drives: cannot read current repository", e);
     }
+    autosync.start();
     LOG.info("Cloud Drive service successfuly started");
   }
 
@@ -448,7 +577,10 @@ public class CloudDriveServiceImpl implements CloudDriveService, Startable {
    */
   @Override
   public void stop() {
+    autosync.stop();
     // cleanup of local caches
+    driveIndex.clear();
+    unknownDrives.clear();
     repositoryDrives.clear();
     userDrives.clear();
     LOG.info("Cloud Drive service successfuly stopped");
@@ -465,6 +597,15 @@ public class CloudDriveServiceImpl implements CloudDriveService, Startable {
     return Collections.unmodifiableCollection(connectors.values());
   }
 
+  /**
+   * Scheduler of connected drives auto-synchronization.
+   * 
+   * @return {@link DriveSyncScheduler} instance
+   */
+  public DriveSyncScheduler getSyncScheduler() {
+    return autosync;
+  }
+
   // *********************** internal stuff *********************
 
   /**
@@ -484,10 +625,124 @@ public class CloudDriveServiceImpl implements CloudDriveService, Startable {
     }
     drives.put(user, drive);
 
+    // index the drive path, not connected drive will be indexed on its connect
+    try {
+      if (drive.isConnected()) {
+        driveIndex.add(repoName, drive.getWorkspace(), drive.getPath(), drive);
+        unknownDrives.clear();
+      }
+    } catch (RepositoryException e) {
+      // it still can be found via its files' drive UUID
+      LOG.warn("Cannot index drive " + drive + ": " + e.getMessage());
+    } catch (DriveRemovedException e) {
+      LOG.warn("Cannot index removed drive " + drive + ": " + e.getMessage());
+    }
+
     // add listeners
     for (CloudDriveListener listner : drivesListeners) {
       drive.addListener(listner);
     }
+
+    // schedule auto-sync, not connected drive will be paused until its connect
+    autosync.add(drive);
+  }
+
+  /**
+   * Remove drive from the repository caches and the index.
+   *
+   * @param drive the drive
+   * @param repoName the repo name
+   */
+  protected void unregisterDrive(CloudDrive drive, String repoName) {
+    driveIndex.remove(drive);
+    autosync.remove(drive);
+    Map<CloudUser, CloudDrive> drives = repositoryDrives.get(repoName);
+    if (drives != null) {
+      drives.values().remove(drive);
+    }
+  }
+
+  /**
+   * Find a drive of a node at given path following symlinks (via {@link NodeFinder}) and drive UUID of cloud
+   * files. It also reindexes the drives if found drive node not at its indexed path (the drive was moved).
+   * Drive nodes not found among connected drives will be remembered to avoid repeated reindexing.
+   *
+   * @param repoName {@link String} repository name
+   * @param session {@link Session} for reading the node
+   * @param path {@link String} node path
+   * @return {@link CloudDrive} or <code>null</code> if nothing found
+   * @throws RepositoryException if storage error happen
+   */
+  protected CloudDrive findLinkedDrive(String repoName, Session session, String path) throws RepositoryException {
+    Item item;
+    try {
+      item = finder != null ? finder.findItem(session, path) : session.getItem(path); // take symlinks in account
+    } catch (PathNotFoundException | ItemNotFoundException e) {
+      // PathNotFoundException: node not found at the given path - it is not a drive
+      // ItemNotFoundException: symlink points to not existing node - it is not a drive
+      return null;
+    }
+    if (item.isNode()) {
+      Node target = (Node) item;
+      String driveUUID;
+      if (target.isNodeType(JCRLocalCloudDrive.ECD_CLOUDFILE)) {
+        driveUUID = target.getProperty("ecd:driveUUID").getString();
+      } else if (target.isNodeType(JCRLocalCloudDrive.ECD_CLOUDDRIVE)) {
+        driveUUID = target.getUUID();
+      } else {
+        return null;
+      }
+      if (!unknownDrives.contains(driveUUID)) {
+        Session targetSession = target.getSession();
+        String workspace = targetSession.getWorkspace().getName();
+        String drivePath;
+        try {
+          drivePath = targetSession.getNodeByUUID(driveUUID).getPath();
+        } catch (ItemNotFoundException e) {
+          unknownDrives.add(driveUUID);
+          return null;
+        }
+        CloudDrive local = driveIndex.find(repoName, workspace, drivePath);
+        if (local == null || !drivePath.equals(driveIndex.getPath(local))) {
+          // drive not indexed at its current path, it's possible if it was moved
+          reindexDrives(repoName);
+          local = driveIndex.find(repoName, workspace, drivePath);
+          if (local == null || !drivePath.equals(driveIndex.getPath(local))) {
+            unknownDrives.add(driveUUID);
+            return null;
+          }
+        }
+        return local;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Update the index with actual paths of connected drives in given repository. Not connected drives will be
+   * removed from the index.
+   *
+   * @param repoName {@link String} repository name
+   */
+  protected void reindexDrives(String repoName) {
+    Map<CloudUser, CloudDrive> drives = repositoryDrives.get(repoName);
+    if (drives != null) {
+      for (CloudDrive local : drives.values()) {
+        try {
+          if (local.isConnected()) {
+            driveIndex.add(repoName, local.getWorkspace(), local.getPath(), local);
+          } else {
+            driveIndex.remove(local);
+          }
+        } catch (DriveRemovedException e) {
+          unregisterDrive(local, repoName);
+        } catch (RepositoryException e) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Cannot reindex drive " + local + ": " + e.getMessage());
+          }
+        }
+      }
+    }
   }
 
   /**
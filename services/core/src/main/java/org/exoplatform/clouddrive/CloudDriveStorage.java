@@ -189,6 +189,21 @@ public interface CloudDriveStorage {
    */
   ContentReader getFileContent(String fileId) throws RepositoryException, CloudDriveException;
 
+  /**
+   * A range of actual file content from provider side. Returned reader's stream starts at given offset and
+   * its length is the range length. Drives which provider supports ranged downloads read only the range from
+   * the provider, others cut it locally from the whole content.
+   *
+   * @param fileId {@link String}
+   * @param offset position of the range first byte in the content
+   * @param length length of the range in bytes
+   * @return {@link ContentReader} or <code>null</code> if content cannot be obtained
+   * @throws RepositoryException the repository exception
+   * @throws CloudDriveException the cloud drive exception
+   */
+  ContentReader getFileContent(String fileId, long offset, long length) throws RepositoryException,
+                                                                         CloudDriveException;
+
   /**
    * File preview content from provider side or generated by the drive implementation.
    *
@@ -198,14 +213,14 @@ public interface CloudDriveStorage {
    * @throws CloudDriveException the cloud drive exception
    */
   ContentReader getFilePreview(String fileId) throws RepositoryException, CloudDriveException;
-  
-  //
-  // /**
-  // * File thumbnail content from provider side or generated by the drive implementation.
-  // *
-  // * @return {@link ContentReader} or <code>null</code> if thumbnail not available
-  // * @throws RepositoryException
-  // * @throws CloudDriveException
-  // */
-  // ContentReader getFileThumbnail() throws RepositoryException, CloudDriveException;
+
+  /**
+   * File thumbnail image from provider side.
+   *
+   * @param fileId {@link String}
+   * @return {@link ContentReader} or <code>null</code> if thumbnail not available
+   * @throws RepositoryException the repository exception
+   * @throws CloudDriveException the cloud drive exception
+   */
+  ContentReader getFileThumbnail(String fileId) throws RepositoryException, CloudDriveException;
 }
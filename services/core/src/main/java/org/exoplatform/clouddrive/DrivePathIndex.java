@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index of drive root paths per repository and workspace. Paths are kept in a tree of their segments, a
+ * lookup walks the tree by a given path and returns a drive with the longest root path matching it, thus it
+ * costs O(path depth) and doesn't touch JCR. The index itself doesn't check if a drive connected or still
+ * exists at its path: {@link CloudDriveServiceImpl} adds only connected drives and removes them on
+ * disconnect, but a caller should verify found drive.<br>
+ * Created by The eXo Platform SAS.
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: DrivePathIndex.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class DrivePathIndex {
+
+  /**
+   * Tree entry of a path segment.
+   */
+  static class Entry {
+
+    /** The child entries. */
+    final Map<String, Entry> children = new HashMap<String, Entry>();
+
+    /** The drive rooted at the entry path. */
+    CloudDrive               drive;
+  }
+
+  /**
+   * Indexed location of a drive.
+   */
+  static class Location {
+
+    /** The tree key. */
+    final String key;
+
+    /** The path. */
+    final String path;
+
+    /**
+     * Instantiates a new location.
+     *
+     * @param key the key
+     * @param path the path
+     */
+    Location(String key, String path) {
+      this.key = key;
+      this.path = path;
+    }
+  }
+
+  /** Trees of paths per repository and workspace. */
+  protected final Map<String, Entry>          trees     = new HashMap<String, Entry>();
+
+  /** Drives locations. */
+  protected final Map<CloudDrive, Location>   locations = new HashMap<CloudDrive, Location>();
+
+  /** The lock. */
+  protected final ReadWriteLock               lock      = new ReentrantReadWriteLock();
+
+  /**
+   * Add a drive to the index. If the drive already indexed at other location it will be moved.
+   *
+   * @param repository {@link String} repository name
+   * @param workspace {@link String} workspace name
+   * @param path {@link String} drive root path
+   * @param drive {@link CloudDrive}
+   */
+  public void add(String repository, String workspace, String path, CloudDrive drive) {
+    lock.writeLock().lock();
+    try {
+      removeLocation(drive);
+      String key = key(repository, workspace);
+      Entry entry = trees.get(key);
+      if (entry == null) {
+        entry = new Entry();
+        trees.put(key, entry);
+      }
+      for (String name : path.split("/")) {
+        if (name.length() > 0) {
+          Entry child = entry.children.get(name);
+          if (child == null) {
+            child = new Entry();
+            entry.children.put(name, child);
+          }
+          entry = child;
+        }
+      }
+      entry.drive = drive;
+      locations.put(drive, new Location(key, path));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove a drive from the index.
+   *
+   * @param drive {@link CloudDrive}
+   * @return <code>true</code> if drive was indexed, <code>false</code> otherwise
+   */
+  public boolean remove(CloudDrive drive) {
+    lock.writeLock().lock();
+    try {
+      return removeLocation(drive);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Find a drive which root path is the longest one matching given path (the path of the drive itself or
+   * its sub-path).
+   *
+   * @param repository {@link String} repository name
+   * @param workspace {@link String} workspace name
+   * @param path {@link String} path of a node
+   * @return {@link CloudDrive} or <code>null</code> if no drive found
+   */
+  public CloudDrive find(String repository, String workspace, String path) {
+    lock.readLock().lock();
+    try {
+      Entry entry = trees.get(key(repository, workspace));
+      CloudDrive found = null;
+      if (entry != null) {
+        for (String name : path.split("/")) {
+          if (name.length() > 0) {
+            entry = entry.children.get(name);
+            if (entry == null) {
+              break;
+            } else if (entry.drive != null) {
+              found = entry.drive;
+            }
+          }
+        }
+      }
+      return found;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Path of the drive root in the index.
+   *
+   * @param drive {@link CloudDrive}
+   * @return {@link String} path or <code>null</code> if drive not indexed
+   */
+  public String getPath(CloudDrive drive) {
+    lock.readLock().lock();
+    try {
+      Location location = locations.get(drive);
+      return location != null ? location.path : null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Clear the index.
+   */
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      trees.clear();
+      locations.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // ******* internals *******
+
+  /**
+   * Remove drive location and its empty tree entries. Should be called under write lock.
+   *
+   * @param drive {@link CloudDrive}
+   * @return <code>true</code> if drive was indexed, <code>false</code> otherwise
+   */
+  private boolean removeLocation(CloudDrive drive) {
+    Location location = locations.remove(drive);
+    if (location != null) {
+      Entry root = trees.get(location.key);
+      if (root != null) {
+        removeEntry(root, location.path.split("/"), 0, drive);
+        if (root.children.isEmpty() && root.drive == null) {
+          trees.remove(location.key);
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Remove the drive from an entry found by path segments starting from given index, remove entries left
+   * empty.
+   *
+   * @param entry {@link Entry}
+   * @param names path segments
+   * @param index current segment index
+   * @param drive {@link CloudDrive}
+   * @return <code>true</code> if given entry is empty after the removal
+   */
+  private boolean removeEntry(Entry entry, String[] names, int index, CloudDrive drive) {
+    while (index < names.length && names[index].length() == 0) {
+      index++;
+    }
+    if (index < names.length) {
+      Entry child = entry.children.get(names[index]);
+      if (child != null && removeEntry(child, names, index + 1, drive)) {
+        entry.children.remove(names[index]);
+      }
+    } else if (entry.drive == drive) {
+      entry.drive = null;
+    }
+    return entry.children.isEmpty() && entry.drive == null;
+  }
+
+  /**
+   * Tree key of repository and workspace.
+   *
+   * @param repository {@link String}
+   * @param workspace {@link String}
+   * @return {@link String}
+   */
+  private String key(String repository, String workspace) {
+    return new StringBuilder(repository).append('@').append(workspace).toString();
+  }
+}
@@ -0,0 +1,685 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive;
+
+import org.exoplatform.clouddrive.CloudDrive.Command;
+import org.exoplatform.clouddrive.features.CloudDriveFeatures;
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.services.jcr.ext.app.SessionProviderService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.security.Authenticator;
+import org.exoplatform.services.security.ConversationState;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * Server-side auto-synchronization of connected drives. Each drive has own synchronization interval: it
+ * starts from {@link #BASE_INTERVAL}, doubles after each synchronization without changes (or with an error)
+ * up to {@link #MAX_INTERVAL} and returns to the base when the drive has changes or someone nudges it. Next
+ * run time has a random jitter to spread drives in time. Due drives are taken by a single dispatcher thread
+ * and synchronized in {@link ThreadExecutor} by not more than a configured number of concurrent
+ * synchronizations.<br>
+ * A {@link #nudge(CloudDrive)} moves the drive to run as soon as possible, but not earlier than
+ * {@link #MIN_INTERVAL} after its previous run, thus frequent nudges from many clients will be coalesced
+ * into a single synchronization. A nudge during running synchronization marks the drive dirty: changes made
+ * after the synchronization started may be missed by it, thus a follow-up one runs right after it (again not
+ * earlier than {@link #MIN_INTERVAL} after the previous run).<br>
+ * Synchronization runs on behalf of the drive owner (user who connected the drive), drives for which
+ * auto-sync not enabled by {@link CloudDriveFeatures#isAutosyncEnabled(CloudDrive)} are checked again
+ * with maximal interval.<br>
+ * Drives which provider notifies about remote changes ({@link ChangesWatcher.Watchable}) are watched by
+ * {@link ChangesWatcher}, it nudges such drive when changes reported, and periodic synchronization of
+ * watched drive runs with maximal interval only as a safety net. The watcher covers a bounded number of
+ * drives, others keep the adaptive interval and attempt to be watched after each synchronization.<br>
+ * Created by The eXo Platform SAS.
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: DriveSyncScheduler.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class DriveSyncScheduler implements Runnable {
+
+  /**
+   * Minimal interval between synchronizations of a drive in milliseconds.
+   */
+  public static final long   MIN_INTERVAL    = ThreadExecutor.SYNC_PERIOD;
+
+  /**
+   * Base interval of drive synchronization in milliseconds.
+   */
+  public static final long   BASE_INTERVAL   = 2 * MIN_INTERVAL;
+
+  /**
+   * Maximal interval of idle drive synchronization in milliseconds (30min).
+   */
+  public static final long   MAX_INTERVAL    = 30 * 60000;
+
+  /**
+   * Jitter of next synchronization time as a fraction of the drive interval.
+   */
+  public static final double JITTER          = 0.2;
+
+  /**
+   * Default maximum of concurrent synchronizations per CPU.
+   */
+  public static final int    CONCURRENT_SYNC = 2;
+
+  /**
+   * Thread name of the dispatcher.
+   */
+  public static final String THREAD_NAME     = "clouddrive-autosync";
+
+  /** The Constant LOG. */
+  protected static final Log LOG             = ExoLogger.getLogger(DriveSyncScheduler.class);
+
+  /**
+   * Result of a drive synchronization awaited by nudges.
+   */
+  static class Round implements Future<Command> {
+
+    /** The done latch. */
+    final CountDownLatch done = new CountDownLatch(1);
+
+    /** The command. */
+    volatile Command     command;
+
+    /** The error. */
+    volatile Throwable   error;
+
+    /** The cancelled flag. */
+    volatile boolean     cancelled;
+
+    /**
+     * Complete the round with a command result.
+     *
+     * @param command the command
+     */
+    void complete(Command command) {
+      this.command = command;
+      done.countDown();
+    }
+
+    /**
+     * Complete the round with an error.
+     *
+     * @param error the error
+     */
+    void fail(Throwable error) {
+      this.error = error;
+      done.countDown();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (done.getCount() > 0) {
+        cancelled = true;
+        done.countDown();
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Command get() throws InterruptedException, ExecutionException {
+      done.await();
+      return result();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Command get(long timeout, TimeUnit unit) throws InterruptedException,
+                                                    ExecutionException,
+                                                    TimeoutException {
+      if (done.await(timeout, unit)) {
+        return result();
+      }
+      throw new TimeoutException("Drive synchronization not completed in " + unit.toMillis(timeout) + "ms");
+    }
+
+    /**
+     * Result of completed round.
+     *
+     * @return the command
+     * @throws ExecutionException if synchronization failed
+     */
+    private Command result() throws ExecutionException {
+      if (cancelled) {
+        throw new CancellationException("Drive synchronization canceled");
+      } else if (error != null) {
+        throw new ExecutionException(error);
+      }
+      return command;
+    }
+  }
+
+  /**
+   * Scheduled drive.
+   */
+  class Entry implements Delayed {
+
+    /** The drive. */
+    final CloudDrive drive;
+
+    /** The drive owner, read on first run. */
+    String           owner;
+
+    /** Current interval. */
+    long             interval = BASE_INTERVAL;
+
+    /** Next run time. */
+    long             time;
+
+    /** Last run time. */
+    long             lastRun;
+
+    /** Round of currently running synchronization. */
+    Round            current;
+
+    /** Round of next synchronization awaited by nudges. */
+    Round            next;
+
+    /** The nudged flag, reset the interval after current run. */
+    boolean          nudged;
+
+    /** The dirty flag, nudged during current run: run again right after it. */
+    boolean          dirty;
+
+    /** The watched flag, drive changes reported by {@link ChangesWatcher}. */
+    boolean          watched;
+
+    /** The paused flag, drive will not run until added again. */
+    boolean          paused;
+
+    /** The removed flag. */
+    boolean          removed;
+
+    /**
+     * Instantiates a new entry.
+     *
+     * @param drive the drive
+     */
+    Entry(CloudDrive drive) {
+      this.drive = drive;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int compareTo(Delayed o) {
+      long other = ((Entry) o).time;
+      return time < other ? -1 : (time > other ? 1 : 0);
+    }
+  }
+
+  /**
+   * Synchronization of a drive running in {@link ThreadExecutor}.
+   */
+  class SyncTask implements Runnable {
+
+    /** The entry. */
+    final Entry entry;
+
+    /** The round. */
+    final Round round;
+
+    /**
+     * Instantiates a new sync task.
+     *
+     * @param entry the entry
+     * @param round the round
+     */
+    SyncTask(Entry entry, Round round) {
+      this.entry = entry;
+      this.round = round;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+      Boolean changed = null;
+      boolean pause = false;
+      ExoContainer prevContainer = ExoContainerContext.getCurrentContainerIfPresent();
+      ConversationState prevConversation = ConversationState.getCurrent();
+      SessionProvider prevSessions = sessionProviders.getSessionProvider(null);
+      SessionProvider sessions = null;
+      try {
+        ExoContainerContext.setCurrentContainer(container);
+        if (entry.owner == null) {
+          SessionProvider system = SessionProvider.createSystemProvider();
+          sessionProviders.setSessionProvider(null, system);
+          try {
+            entry.owner = entry.drive.getLocalUser();
+          } finally {
+            system.close();
+          }
+        }
+        ConversationState conversation = new ConversationState(authenticator().createIdentity(entry.owner));
+        ConversationState.setCurrent(conversation);
+        sessions = new SessionProvider(conversation);
+        sessionProviders.setSessionProvider(null, sessions);
+
+        if (!entry.drive.isConnected()) {
+          pause = true;
+          round.cancel(false);
+        } else if (features.isAutosyncEnabled(entry.drive)) {
+          Command sync = entry.drive.synchronize();
+          sync.await();
+          changed = sync.hasChanges();
+          round.complete(sync);
+        } else {
+          // check again later, nudges will synchronize by themselves
+          changed = false;
+          round.cancel(false);
+        }
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        pause = cause instanceof RefreshAccessException || cause instanceof NotConnectedException;
+        logError(cause);
+        round.fail(cause);
+      } catch (InterruptedException e) {
+        round.cancel(false);
+        Thread.currentThread().interrupt();
+      } catch (DriveRemovedException e) {
+        pause = true;
+        round.fail(e);
+      } catch (RefreshAccessException e) {
+        pause = true;
+        logError(e);
+        round.fail(e);
+      } catch (Throwable e) {
+        logError(e);
+        round.fail(e);
+      } finally {
+        ConversationState.setCurrent(prevConversation);
+        sessionProviders.setSessionProvider(null, prevSessions);
+        if (sessions != null) {
+          sessions.close();
+        }
+        ExoContainerContext.setCurrentContainer(prevContainer);
+        permits.release();
+        completed(entry, changed, pause);
+      }
+    }
+
+    /**
+     * Log an error of the synchronization.
+     *
+     * @param error the error
+     */
+    void logError(Throwable error) {
+      if (error instanceof RefreshAccessException || error instanceof NotConnectedException) {
+        LOG.warn("Auto-sync paused for drive " + entry.drive + ": " + error.getMessage());
+      } else if (error instanceof CloudDriveException || error instanceof RepositoryException) {
+        LOG.warn("Auto-sync error for drive " + entry.drive + ": " + error.getMessage());
+      } else {
+        LOG.error("Auto-sync error for drive " + entry.drive, error);
+      }
+    }
+  }
+
+  /** The session providers. */
+  protected final SessionProviderService sessionProviders;
+
+  /** The features. */
+  protected final CloudDriveFeatures     features;
+
+  /** Scheduled drives. */
+  protected final Map<CloudDrive, Entry> entries = new HashMap<CloudDrive, Entry>();
+
+  /** Drives queue ordered by next run time. */
+  protected final DelayQueue<Entry>      queue   = new DelayQueue<Entry>();
+
+  /** Permits of concurrent synchronizations. */
+  protected final Semaphore              permits;
+
+  /** The container where synchronization will run. */
+  protected ExoContainer                 container;
+
+  /** The authenticator. */
+  protected Authenticator                authenticator;
+
+  /** The dispatcher thread. */
+  protected Thread                       dispatcher;
+
+  /** The watcher of drives remote changes. */
+  protected final ChangesWatcher         watcher;
+
+  /**
+   * Instantiates a new drive sync scheduler.
+   *
+   * @param sessionProviders {@link SessionProviderService}
+   * @param features {@link CloudDriveFeatures}
+   * @param maxConcurrent maximum of concurrent synchronizations
+   */
+  public DriveSyncScheduler(SessionProviderService sessionProviders, CloudDriveFeatures features, int maxConcurrent) {
+    this.sessionProviders = sessionProviders;
+    this.features = features;
+    this.permits = new Semaphore(maxConcurrent > 0 ? maxConcurrent : 1);
+    this.watcher = new ChangesWatcher(this, ChangesWatcher.CONNECTIONS);
+  }
+
+  /**
+   * Instantiates a new drive sync scheduler with default maximum of concurrent synchronizations.
+   *
+   * @param sessionProviders {@link SessionProviderService}
+   * @param features {@link CloudDriveFeatures}
+   */
+  public DriveSyncScheduler(SessionProviderService sessionProviders, CloudDriveFeatures features) {
+    this(sessionProviders, features, Runtime.getRuntime().availableProcessors() * CONCURRENT_SYNC);
+  }
+
+  /**
+   * Add a drive to the scheduler. If the drive already added and was paused it will be resumed.
+   *
+   * @param drive {@link CloudDrive}
+   */
+  public void add(CloudDrive drive) {
+    synchronized (entries) {
+      Entry entry = entries.get(drive);
+      if (entry == null) {
+        entry = new Entry(drive);
+        entries.put(drive, entry);
+        entry.watched = watcher.watch(drive);
+        schedule(entry, System.currentTimeMillis());
+      } else if (entry.paused) {
+        entry.paused = false;
+        entry.interval = BASE_INTERVAL;
+        entry.watched = watcher.watch(drive);
+        schedule(entry, System.currentTimeMillis());
+      }
+    }
+  }
+
+  /**
+   * Remove a drive from the scheduler. Nudges awaiting the drive synchronization will be cancelled.
+   *
+   * @param drive {@link CloudDrive}
+   */
+  public void remove(CloudDrive drive) {
+    synchronized (entries) {
+      Entry entry = entries.remove(drive);
+      if (entry != null) {
+        entry.removed = true;
+        queue.remove(entry);
+        watcher.unwatch(drive);
+        if (entry.next != null) {
+          entry.next.cancel(false);
+          entry.next = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Nudge the drive synchronization: run it as soon as possible but not earlier of {@link #MIN_INTERVAL}
+   * after its previous run. If the drive is synchronizing now, returned future will be of that
+   * synchronization and a follow-up synchronization will run as soon as it completes.
+   *
+   * @param drive {@link CloudDrive}
+   * @return {@link Future} of the drive synchronization command or <code>null</code> if the drive not
+   *         scheduled or paused, then caller may synchronize the drive by itself
+   */
+  public Future<Command> nudge(CloudDrive drive) {
+    synchronized (entries) {
+      Entry entry = entries.get(drive);
+      if (entry != null && !entry.paused && dispatcher != null) {
+        entry.nudged = true;
+        if (entry.current != null) {
+          entry.dirty = true;
+          return entry.current;
+        }
+        if (entry.next == null) {
+          entry.next = new Round();
+        }
+        long time = Math.max(System.currentTimeMillis(), entry.lastRun + MIN_INTERVAL);
+        if (time < entry.time) {
+          queue.remove(entry);
+          entry.time = time;
+          queue.add(entry);
+        }
+        return entry.next;
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Start the scheduler in current container.
+   */
+  public void start() {
+    synchronized (entries) {
+      if (dispatcher == null) {
+        container = ExoContainerContext.getCurrentContainer();
+        dispatcher = new Thread(this, THREAD_NAME);
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        watcher.start();
+        LOG.info("Drives auto-sync started for " + entries.size() + " drive(s), max concurrent synchronizations "
+            + permits.availablePermits());
+      }
+    }
+  }
+
+  /**
+   * Stop the scheduler and forget all drives.
+   */
+  public void stop() {
+    synchronized (entries) {
+      if (dispatcher != null) {
+        dispatcher.interrupt();
+        dispatcher = null;
+      }
+      watcher.stop();
+      for (Entry entry : entries.values()) {
+        entry.removed = true;
+        if (entry.next != null) {
+          entry.next.cancel(false);
+        }
+      }
+      entries.clear();
+      queue.clear();
+    }
+  }
+
+  /**
+   * Dispatch due drives to synchronization.
+   */
+  @Override
+  public void run() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        Entry entry = queue.take();
+        permits.acquire();
+        Round round;
+        synchronized (entries) {
+          if (entry.removed || entry.paused) {
+            permits.release();
+            continue;
+          }
+          round = entry.next != null ? entry.next : new Round();
+          entry.next = null;
+          entry.dirty = false;
+          entry.current = round;
+          entry.lastRun = System.currentTimeMillis();
+        }
+        try {
+          ThreadExecutor.getInstance().submit(ThreadExecutor.Lane.HELPER, entry.drive, new SyncTask(entry, round));
+        } catch (ExecutorSaturatedException e) {
+          LOG.warn("Cannot start auto-sync of drive " + entry.drive + ", will try later: " + e.getMessage());
+          permits.release();
+          round.fail(e);
+          completed(entry, null, false);
+        } catch (RuntimeException e) {
+          LOG.error("Cannot start auto-sync of drive " + entry.drive, e);
+          permits.release();
+          round.fail(e);
+          completed(entry, null, false);
+        }
+      }
+    } catch (InterruptedException e) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Drives auto-sync dispatcher interrupted");
+      }
+    }
+    LOG.info("Drives auto-sync stopped");
+  }
+
+  /**
+   * Watcher of drives remote changes used by this scheduler.
+   *
+   * @return {@link ChangesWatcher}
+   */
+  public ChangesWatcher getChangesWatcher() {
+    return watcher;
+  }
+
+  // ******* internals *******
+
+  /**
+   * Reschedule a drive after its synchronization.
+   *
+   * @param entry the entry
+   * @param changed <code>true</code> if the drive had changes, <code>false</code> if not and
+   *          <code>null</code> if synchronization failed
+   * @param pause if <code>true</code> the drive should not run until resumed
+   */
+  protected void completed(Entry entry, Boolean changed, boolean pause) {
+    synchronized (entries) {
+      entry.current = null;
+      if (!entry.removed) {
+        if (pause) {
+          entry.paused = true;
+          if (entry.watched) {
+            watcher.unwatch(entry.drive);
+            entry.watched = false;
+          }
+          if (entry.next != null) {
+            entry.next.cancel(false);
+            entry.next = null;
+          }
+          entry.dirty = false;
+        } else {
+          long now = System.currentTimeMillis();
+          if (!entry.watched) {
+            // the watcher may have a free connection now
+            entry.watched = watcher.watch(entry.drive);
+          }
+          if (entry.watched) {
+            // changes will be reported by the watcher, it waits for this synchronization to poll again
+            entry.interval = MAX_INTERVAL;
+            watcher.resume(entry.drive);
+          } else if (entry.nudged || (changed != null && changed)) {
+            entry.interval = BASE_INTERVAL;
+          } else {
+            // idle or failed drive: back off
+            entry.interval = Math.min(entry.interval * 2, MAX_INTERVAL);
+          }
+          entry.nudged = false;
+          if (entry.next != null || entry.dirty) {
+            // nudged while running
+            schedule(entry, entry.lastRun + MIN_INTERVAL);
+          } else {
+            schedule(entry, now);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Add the drive to the queue at its interval with jitter after given time, or at that time if the drive
+   * awaited by nudges or dirty. Should be called under the entries lock.
+   *
+   * @param entry the entry
+   * @param from time in milliseconds
+   */
+  protected void schedule(Entry entry, long from) {
+    long delay;
+    if (entry.next != null || entry.dirty) {
+      delay = 0;
+    } else {
+      long jitter = Math.round(entry.interval * JITTER);
+      delay = entry.interval + ThreadLocalRandom.current().nextLong(-jitter, jitter + 1);
+    }
+    entry.time = Math.max(from + delay, entry.lastRun + MIN_INTERVAL);
+    queue.add(entry);
+  }
+
+  /**
+   * Authenticator from the container.
+   *
+   * @return the authenticator
+   */
+  protected Authenticator authenticator() {
+    if (authenticator == null) {
+      authenticator = (Authenticator) container.getComponentInstanceOfType(Authenticator.class);
+    }
+    return authenticator;
+  }
+}
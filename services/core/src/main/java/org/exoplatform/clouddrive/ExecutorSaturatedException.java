@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive;
+
+/**
+ * A task cannot be accepted by {@link ThreadExecutor} as its lane queue is full. The task can be submitted
+ * again later.<br>
+ * Created by The eXo Platform SAS.
+ * 
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: ExecutorSaturatedException.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class ExecutorSaturatedException extends CloudDriveException {
+
+  /** The Constant serialVersionUID. */
+  private static final long serialVersionUID = 3862510748161397315L;
+
+  /**
+   * Executor saturated.
+   *
+   * @param message the message
+   */
+  public ExecutorSaturatedException(String message) {
+    super(message);
+  }
+
+}
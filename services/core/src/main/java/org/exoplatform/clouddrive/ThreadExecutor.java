@@ -21,12 +21,25 @@ package org.exoplatform.clouddrive;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -34,6 +47,11 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages fixed pool of threads for Cloud Drive tasks.<br>
+ * Tasks submitted to a {@link Lane} run in a part of the pool threads reserved for the lane and wait in the
+ * lane queue fairly by users and drives. When a lane queue is full the task is rejected with
+ * {@link ExecutorSaturatedException}.<br>
+ * Optionally, if enabled by {@link #VIRTUAL_THREADS} system property and the runtime supports it, lane tasks
+ * run in virtual threads, then drive commands limited per cloud provider instead of the pool size.<br>
  * 
  * Created by The eXo Platform SAS.
  * 
@@ -78,12 +96,51 @@ public class ThreadExecutor {
    */
   public static final String      SINGLETON_THREAD_PREFIX = "clouddrive-thread-";
 
+  /**
+   * System property to run lane tasks in virtual threads when the runtime supports them (Java 21 and
+   * higher). Platform threads pool used by default.
+   */
+  public static final String      VIRTUAL_THREADS         = "clouddrive.executor.virtual";
+
+  /**
+   * System property of maximum running drive commands per cloud provider in virtual threads mode.
+   */
+  public static final String      VIRTUAL_PROVIDER_LIMIT  = "clouddrive.executor.virtual.providerLimit";
+
+  /**
+   * Default maximum running drive commands per cloud provider in virtual threads mode.
+   */
+  public static final int         DEFAULT_PROVIDER_LIMIT  = 256;
+
+  /**
+   * Maximum running tasks of a lane per quarter of its share in virtual threads mode.
+   */
+  public static final int         VIRTUAL_LANE_QUARTER    = 1024;
+
   /** The Constant LOG. */
   protected static final Log      LOG                     = ExoLogger.getLogger(ThreadExecutor.class);
 
   /** The singleton. */
   protected static ThreadExecutor singleton;
 
+  /**
+   * Rejection policy of the pool: tasks submitted directly run in the caller thread, but lane tasks are
+   * rejected to let their {@link LaneQueue} run them outside its lock.
+   */
+  static class RejectionPolicy extends ThreadPoolExecutor.CallerRunsPolicy {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+      if (r instanceof LaneTask) {
+        throw new RejectedExecutionException("Executor saturated");
+      }
+      super.rejectedExecution(r, executor);
+    }
+  }
+
   /**
    * Command thread factory adapted from {@link Executors#DefaultThreadFactory}.
    */
@@ -130,6 +187,263 @@ public class ThreadExecutor {
     }
   }
 
+  /**
+   * Lanes of tasks. Each lane runs its tasks in limited number of threads and has own queue, thus long
+   * background work cannot delay interactive tasks.
+   */
+  public enum Lane {
+
+    /** Short tasks a user waits for: synchronization of changed files, links removal. */
+    INTERACTIVE(2),
+
+    /** Long drive commands: connect and synchronization. */
+    BACKGROUND(1),
+
+    /** Helpers of other tasks: folders traversal, auto-sync waiters. */
+    HELPER(1);
+
+    /** Share of maximum threads in quarters. */
+    final int quarters;
+
+    /**
+     * Instantiates a new lane.
+     *
+     * @param quarters the share of threads in quarters
+     */
+    private Lane(int quarters) {
+      this.quarters = quarters;
+    }
+  }
+
+  /**
+   * Task of a lane, it lets the lane run next task when done.
+   *
+   * @param <V> the value type
+   */
+  static class LaneTask<V> extends FutureTask<V> {
+
+    /** The lane. */
+    final LaneQueue lane;
+
+    /** Permits of the task provider, <code>null</code> if not limited. */
+    Semaphore       permits;
+
+    /**
+     * Instantiates a new lane task.
+     *
+     * @param lane the lane
+     * @param callable the callable
+     */
+    LaneTask(LaneQueue lane, Callable<V> callable) {
+      super(callable);
+      this.lane = lane;
+    }
+
+    /**
+     * Instantiates a new lane task.
+     *
+     * @param lane the lane
+     * @param runnable the runnable
+     */
+    LaneTask(LaneQueue lane, Runnable runnable) {
+      super(runnable, null);
+      this.lane = lane;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+      try {
+        if (permits != null) {
+          try {
+            permits.acquire();
+          } catch (InterruptedException e) {
+            cancel(false);
+            Thread.currentThread().interrupt();
+            return;
+          }
+          try {
+            super.run();
+          } finally {
+            permits.release();
+          }
+        } else {
+          super.run();
+        }
+      } finally {
+        lane.done();
+      }
+    }
+  }
+
+  /**
+   * Queue of a lane. Tasks queued per user and per drive, and taken round-robin: first by users, then by
+   * drives of an user. Thus a user with many drives or a drive with many tasks will not delay others.<br>
+   * Tasks are handed to the executor under the queue lock, but a task rejected by saturated executor runs
+   * in the caller thread only after the lock released, thus it doesn't block other submitters of the lane.
+   */
+  class LaneQueue {
+
+    /** The lane. */
+    final Lane                                                   lane;
+
+    /** Maximum running tasks. */
+    final int                                                    maxRunning;
+
+    /** Maximum queued tasks. */
+    final int                                                    capacity;
+
+    /** Queued tasks by user and drive. */
+    final Map<String, LinkedHashMap<Object, Deque<LaneTask<?>>>> users =
+        new LinkedHashMap<String, LinkedHashMap<Object, Deque<LaneTask<?>>>>();
+
+    /** Running tasks. */
+    int                                                          running;
+
+    /** Queued tasks. */
+    int                                                          queued;
+
+    /**
+     * Instantiates a new lane queue.
+     *
+     * @param lane the lane
+     * @param maxRunning the max running
+     * @param capacity the capacity
+     */
+    LaneQueue(Lane lane, int maxRunning, int capacity) {
+      this.lane = lane;
+      this.maxRunning = maxRunning;
+      this.capacity = capacity;
+    }
+
+    /**
+     * Queue a task and run it if lane has free threads.
+     *
+     * @param drive the drive or <code>null</code>
+     * @param task the task
+     * @throws ExecutorSaturatedException if the lane queue is full
+     */
+    void add(CloudDrive drive, LaneTask<?> task) throws ExecutorSaturatedException {
+      List<LaneTask<?>> rejected;
+      synchronized (this) {
+        enqueue(drive, task);
+        rejected = dispatch();
+      }
+      runRejected(rejected);
+    }
+
+    /**
+     * A task of the lane done, run next one.
+     */
+    void done() {
+      List<LaneTask<?>> rejected;
+      synchronized (this) {
+        running--;
+        rejected = dispatch();
+      }
+      runRejected(rejected);
+    }
+
+    /**
+     * Add a task to the queue. Should be called under the queue lock.
+     *
+     * @param drive the drive or <code>null</code>
+     * @param task the task
+     * @throws ExecutorSaturatedException if the lane queue is full
+     */
+    void enqueue(CloudDrive drive, LaneTask<?> task) throws ExecutorSaturatedException {
+      if (queued >= capacity) {
+        throw new ExecutorSaturatedException("Too many tasks waiting in " + lane.name().toLowerCase()
+            + " lane (" + queued + "). Please try again later.");
+      }
+      String userId = drive != null ? drive.getUser().getId() : "";
+      Object driveKey = drive != null ? drive : "";
+      LinkedHashMap<Object, Deque<LaneTask<?>>> drives = users.get(userId);
+      if (drives == null) {
+        drives = new LinkedHashMap<Object, Deque<LaneTask<?>>>();
+        users.put(userId, drives);
+      }
+      Deque<LaneTask<?>> tasks = drives.get(driveKey);
+      if (tasks == null) {
+        tasks = new ArrayDeque<LaneTask<?>>();
+        drives.put(driveKey, tasks);
+      }
+      if (virtual != null && lane != Lane.HELPER && drive != null) {
+        // helpers not limited: they work for already running commands and could not get a permit
+        task.permits = providerPermits(drive.getUser().getProvider().getId());
+      }
+      tasks.add(task);
+      queued++;
+    }
+
+    /**
+     * Run queued tasks while lane has free threads. Should be called under the queue lock.
+     *
+     * @return tasks rejected by saturated executor, they should be run by the caller after releasing the
+     *         lock
+     */
+    List<LaneTask<?>> dispatch() {
+      List<LaneTask<?>> rejected = null;
+      while (running < maxRunning && queued > 0) {
+        // take next user and move him to the end
+        Iterator<Map.Entry<String, LinkedHashMap<Object, Deque<LaneTask<?>>>>> uiter = users.entrySet().iterator();
+        Map.Entry<String, LinkedHashMap<Object, Deque<LaneTask<?>>>> user = uiter.next();
+        uiter.remove();
+        LinkedHashMap<Object, Deque<LaneTask<?>>> drives = user.getValue();
+        // take next drive of the user and move it to the end
+        Iterator<Map.Entry<Object, Deque<LaneTask<?>>>> diter = drives.entrySet().iterator();
+        Map.Entry<Object, Deque<LaneTask<?>>> drive = diter.next();
+        diter.remove();
+        Deque<LaneTask<?>> tasks = drive.getValue();
+        LaneTask<?> task = tasks.poll();
+        if (tasks.size() > 0) {
+          drives.put(drive.getKey(), tasks);
+        }
+        if (drives.size() > 0) {
+          users.put(user.getKey(), drives);
+        }
+        queued--;
+        running++;
+        try {
+          if (virtual != null) {
+            virtual.execute(task);
+          } else {
+            executor.execute(task);
+          }
+        } catch (RejectedExecutionException e) {
+          if (virtual == null && !executor.isShutdown()) {
+            // pool saturated: caller runs the task, it stays counted as running
+            if (rejected == null) {
+              rejected = new ArrayList<LaneTask<?>>();
+            }
+            rejected.add(task);
+          } else {
+            // executor stopped
+            running--;
+            task.cancel(false);
+          }
+        }
+      }
+      if (rejected != null) {
+        return rejected;
+      }
+      return Collections.emptyList();
+    }
+
+    /**
+     * Run tasks rejected by the executor in the caller thread. Should be called outside the queue lock.
+     *
+     * @param rejected the rejected tasks
+     */
+    void runRejected(List<LaneTask<?>> rejected) {
+      for (LaneTask<?> task : rejected) {
+        task.run();
+      }
+    }
+  }
+
   /** The drives. */
   private final ConcurrentHashMap<CloudDrive, Object> drives = new ConcurrentHashMap<CloudDrive, Object>();
 
@@ -143,7 +457,19 @@ public class ThreadExecutor {
   private final String                                threadNamePrefix;
 
   /** The executor. */
-  private final ExecutorService                       executor;
+  private final ThreadPoolExecutor                    executor;
+
+  /** The lanes. */
+  private final Map<Lane, LaneQueue>                  lanes  = new EnumMap<Lane, LaneQueue>(Lane.class);
+
+  /** Virtual threads executor, <code>null</code> if platform threads used. */
+  private final ExecutorService                       virtual;
+
+  /** Running commands permits per provider in virtual threads mode. */
+  private final ConcurrentHashMap<String, Semaphore>  providers = new ConcurrentHashMap<String, Semaphore>();
+
+  /** Maximum running commands per provider in virtual threads mode. */
+  private final int                                   providerLimit;
 
   /**
    * Singleton of {@link ThreadExecutor}.
@@ -191,7 +517,6 @@ public class ThreadExecutor {
     // Executor will queue all commands and run them in maximum ten threads. Two threads will be maintained
     // online even idle, other inactive will be stopped in two minutes.
     int cpus = Runtime.getRuntime().availableProcessors();
-    int poolThreads = cpus; // Math.round(cpus * 1f * MIN_FACTOR);
     // use scale factor 25... we know our threads will not create high CPU load, as they are HTTP callers
     // mainly and we want good parallelization
     int maxThreads = Math.round(cpus * 1f * maxFactor);
@@ -200,13 +525,28 @@ public class ThreadExecutor {
     int queueSize = cpus * queueFactor;
     queueSize = queueSize < queueFactor ? queueFactor : queueSize;
     LOG.info("Initializing command executor for max " + maxThreads + " threads, queue size " + queueSize);
-    executor = new ThreadPoolExecutor(poolThreads,
+    // lanes limit their running tasks, thus pool should start threads up to the maximum without queuing,
+    // idle threads will be stopped in two minutes
+    executor = new ThreadPoolExecutor(maxThreads,
                                       maxThreads,
                                       120,
                                       TimeUnit.SECONDS,
                                       new LinkedBlockingQueue<Runnable>(queueSize),
                                       new CommandThreadFactory(threadNamePrefix),
-                                      new ThreadPoolExecutor.CallerRunsPolicy());
+                                      new RejectionPolicy());
+    executor.allowCoreThreadTimeOut(true);
+
+    this.virtual = Boolean.getBoolean(VIRTUAL_THREADS) ? createVirtualExecutor() : null;
+    this.providerLimit = Integer.getInteger(VIRTUAL_PROVIDER_LIMIT, DEFAULT_PROVIDER_LIMIT);
+    if (virtual != null) {
+      LOG.info("Command executor will run tasks in virtual threads, max " + providerLimit
+          + " commands per provider");
+    }
+    for (Lane lane : Lane.values()) {
+      int laneThreads = virtual != null ? VIRTUAL_LANE_QUARTER * lane.quarters
+                                        : Math.max(maxThreads * lane.quarters / 4, 1);
+      lanes.put(lane, new LaneQueue(lane, laneThreads, queueSize));
+    }
   }
 
   /**
@@ -230,6 +570,76 @@ public class ThreadExecutor {
     return executor.submit(worker);
   }
 
+  /**
+   * Submit a task to a lane. Tasks of the lane run in order of their submission, but fairly by users and
+   * drives: round-robin by users first, then by drives of a user.
+   *
+   * @param <P> the generic type
+   * @param lane the lane
+   * @param drive the drive the task works for, can be <code>null</code> for tasks not related to a drive
+   * @param task the task
+   * @return the future
+   * @throws ExecutorSaturatedException if the lane queue is full
+   */
+  public <P> Future<P> submit(Lane lane, CloudDrive drive, Callable<P> task) throws ExecutorSaturatedException {
+    LaneQueue queue = lanes.get(lane);
+    LaneTask<P> future = new LaneTask<P>(queue, task);
+    queue.add(drive, future);
+    return future;
+  }
+
+  /**
+   * Submit a task to a lane. See {@link #submit(Lane, CloudDrive, Callable)} for details.
+   *
+   * @param lane the lane
+   * @param drive the drive the task works for, can be <code>null</code> for tasks not related to a drive
+   * @param task the task
+   * @return the future
+   * @throws ExecutorSaturatedException if the lane queue is full
+   */
+  public Future<?> submit(Lane lane, CloudDrive drive, Runnable task) throws ExecutorSaturatedException {
+    LaneQueue queue = lanes.get(lane);
+    LaneTask<Object> future = new LaneTask<Object>(queue, task);
+    queue.add(drive, future);
+    return future;
+  }
+
+  /**
+   * Number of tasks waiting in a lane.
+   *
+   * @param lane the lane
+   * @return the queue depth
+   */
+  public int getQueueDepth(Lane lane) {
+    LaneQueue queue = lanes.get(lane);
+    synchronized (queue) {
+      return queue.queued;
+    }
+  }
+
+  /**
+   * Number of tasks running in a lane.
+   *
+   * @param lane the lane
+   * @return the running tasks
+   */
+  public int getRunning(Lane lane) {
+    LaneQueue queue = lanes.get(lane);
+    synchronized (queue) {
+      return queue.running;
+    }
+  }
+
+  /**
+   * Executor of virtual threads if this executor runs in virtual threads mode. A task will start a new
+   * virtual thread immediately, it's up to the caller to limit the concurrency.
+   *
+   * @return the executor service or <code>null</code> if platform threads used
+   */
+  public ExecutorService getVirtualExecutor() {
+    return virtual;
+  }
+
   /**
    * Stop.
    */
@@ -246,6 +656,46 @@ public class ThreadExecutor {
     if (executor != null) {
       executor.shutdownNow();
     }
+    if (virtual != null) {
+      virtual.shutdownNow();
+    }
+  }
+
+  /**
+   * Permits of running commands for given provider.
+   *
+   * @param providerId the provider id
+   * @return the semaphore
+   */
+  private Semaphore providerPermits(String providerId) {
+    Semaphore permits = providers.get(providerId);
+    if (permits == null) {
+      Semaphore newPermits = new Semaphore(providerLimit);
+      permits = providers.putIfAbsent(providerId, newPermits);
+      if (permits == null) {
+        permits = newPermits;
+      }
+    }
+    return permits;
+  }
+
+  /**
+   * Create executor of virtual threads. Virtual threads available since Java 21, the executor created by
+   * reflection to run also on older runtimes.
+   *
+   * @return the executor service or <code>null</code> if virtual threads not supported
+   */
+  private static ExecutorService createVirtualExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (NoSuchMethodException e) {
+      LOG.warn("Virtual threads not supported by Java " + System.getProperty("java.version")
+          + ". Platform threads will be used.");
+    } catch (Exception e) {
+      LOG.warn("Cannot create virtual threads executor. Platform threads will be used.", e);
+    }
+    return null;
   }
 
 }
@@ -0,0 +1,568 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive.jcr;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+
+/**
+ * Append-only journal of local file changes of a cloud drive. Saved but not yet applied changes and
+ * the history of already applied ones are stored in segments: each segment is a string property of the drive
+ * node holding not more than {@link #SEGMENT_SIZE} records separated by new line. Segment properties are named
+ * by a prefix (<code>ecd:localChanges</code> or <code>ecd:localHistory</code>) with a sequence number suffix,
+ * properties without the suffix are segments of the format used before and they are read in the same way.<br>
+ * An append touches only the last segment, a commit by change ID touches only segments of the given
+ * changes, thus a cost of these operations doesn't depend on the journal size. Segments emptied by commits are
+ * removed, oldest history segments are rotated by {@link JCRLocalCloudDrive#HISTORY_MAX_LENGTH} and
+ * {@link JCRLocalCloudDrive#HISTORY_EXPIRATION}.<br>
+ * The journal keeps an index of its segments in memory, it will be (re)loaded from the drive node on first
+ * use or after a storage error. Methods of the journal are synchronized on its instance, not on the drive.
+ * <br>
+ * Created by The eXo Platform SAS.
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: ChangesJournal.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class ChangesJournal {
+
+  /**
+   * Maximum number of records in single segment.
+   */
+  public static final int     SEGMENT_SIZE    = 100;
+
+  /**
+   * Prefix of saved (not yet applied) changes segments.
+   */
+  public static final String  CHANGES_PREFIX  = "ecd:localChanges";
+
+  /**
+   * Prefix of history (already applied changes) segments.
+   */
+  public static final String  HISTORY_PREFIX  = "ecd:localHistory";
+
+  /** The Constant SEQ_SEPARATOR. */
+  protected static final char SEQ_SEPARATOR   = '-';
+
+  /** The Constant LOG. */
+  protected static final Log  LOG             = ExoLogger.getLogger(ChangesJournal.class);
+
+  /**
+   * Segment of the journal.
+   */
+  static class Segment {
+
+    /** The property name. */
+    final String                    name;
+
+    /** The sequence number. */
+    final long                      seq;
+
+    /**
+     * Records of changes segment mapped by change ID. Not used for history segments.
+     */
+    final Map<String, String>       records = new LinkedHashMap<String, String>();
+
+    /** The number of records in the segment. */
+    int                             size;
+
+    /**
+     * Timestamp of the last record in history segment. Not used for changes segments.
+     */
+    long                            lastTimestamp;
+
+    /**
+     * Instantiates a new segment.
+     *
+     * @param name the name
+     * @param seq the seq
+     */
+    Segment(String name, long seq) {
+      this.name = name;
+      this.seq = seq;
+    }
+  }
+
+  /**
+   * Segments of saved changes, ordered by sequence.
+   */
+  protected final TreeMap<Long, Segment> changes     = new TreeMap<Long, Segment>();
+
+  /**
+   * Segments of history, ordered by sequence.
+   */
+  protected final TreeMap<Long, Segment> history     = new TreeMap<Long, Segment>();
+
+  /**
+   * Index of saved changes to their segments.
+   */
+  protected final Map<String, Segment>   changeIndex = new HashMap<String, Segment>();
+
+  /** Total number of records in the history. */
+  protected int                          historySize;
+
+  /** Next segment sequence number. */
+  protected long                         nextSeq;
+
+  /** The loaded flag. */
+  protected boolean                      loaded;
+
+  /**
+   * Append records of given changes to the journal. Records will be written to the last changes segment
+   * while it has a room, new segments will be created for others.
+   *
+   * @param driveNode {@link Node} drive node
+   * @param records {@link Map} of change ID to its record, in natural order of the changes
+   * @throws RepositoryException if storage error happen
+   */
+  public synchronized void append(Node driveNode, Map<String, String> records) throws RepositoryException {
+    load(driveNode);
+    Set<Segment> touched = new LinkedHashSet<Segment>();
+    for (Map.Entry<String, String> re : records.entrySet()) {
+      Segment segment = changes.isEmpty() ? null : changes.lastEntry().getValue();
+      if (segment == null || segment.records.size() >= SEGMENT_SIZE) {
+        segment = newSegment(changes, CHANGES_PREFIX);
+      }
+      segment.records.put(re.getKey(), re.getValue());
+      changeIndex.put(re.getKey(), segment);
+      touched.add(segment);
+    }
+    try {
+      writeChanges(driveNode, touched);
+    } catch (RepositoryException e) {
+      unload();
+      throw e;
+    } catch (RuntimeException e) {
+      unload();
+      throw e;
+    }
+  }
+
+  /**
+   * Commit given changes to the history and remove skipped. Only segments of given changes will be rewritten,
+   * records in the history will be prefixed by given timestamp.
+   *
+   * @param driveNode {@link Node} drive node
+   * @param applied {@link Collection} of change IDs to move to the history
+   * @param skipped {@link Collection} of change IDs to remove without adding to the history
+   * @param timestamp long time of the commit
+   * @return {@link List} of committed to the history records (without timestamp prefix)
+   * @throws RepositoryException if storage error happen
+   */
+  public synchronized List<String> commit(Node driveNode,
+                                          Collection<String> applied,
+                                          Collection<String> skipped,
+                                          long timestamp) throws RepositoryException {
+    load(driveNode);
+    Set<Segment> touched = new LinkedHashSet<Segment>();
+    List<String> committed = new ArrayList<String>();
+    for (String changeId : applied) {
+      Segment segment = changeIndex.remove(changeId);
+      if (segment != null) {
+        committed.add(segment.records.remove(changeId));
+        touched.add(segment);
+      }
+    }
+    for (String changeId : skipped) {
+      Segment segment = changeIndex.remove(changeId);
+      if (segment != null) {
+        segment.records.remove(changeId);
+        touched.add(segment);
+      }
+    }
+    try {
+      writeChanges(driveNode, touched);
+      if (committed.size() > 0) {
+        writeHistory(driveNode, committed, timestamp);
+      }
+    } catch (RepositoryException e) {
+      unload();
+      throw e;
+    } catch (RuntimeException e) {
+      unload();
+      throw e;
+    }
+    return committed;
+  }
+
+  /**
+   * Check if a change with given ID saved in the journal and not yet committed.
+   *
+   * @param driveNode {@link Node} drive node
+   * @param changeId {@link String}
+   * @return <code>true</code> if change saved and not yet committed, <code>false</code> otherwise
+   * @throws RepositoryException if storage error happen
+   */
+  public synchronized boolean contains(Node driveNode, String changeId) throws RepositoryException {
+    load(driveNode);
+    return changeIndex.containsKey(changeId);
+  }
+
+  /**
+   * Records of saved and not yet committed changes in order of their appending.
+   *
+   * @param driveNode {@link Node} drive node
+   * @return {@link List} of change records
+   * @throws RepositoryException if storage error happen
+   */
+  public synchronized List<String> changes(Node driveNode) throws RepositoryException {
+    load(driveNode);
+    List<String> records = new ArrayList<String>();
+    for (Segment segment : changes.values()) {
+      records.addAll(segment.records.values());
+    }
+    return records;
+  }
+
+  /**
+   * Read records of the history in order of their commit. Each record prefixed by its commit timestamp and
+   * colon. This method reads all history segments from the storage.
+   *
+   * @param driveNode {@link Node} drive node
+   * @return {@link List} of history records
+   * @throws RepositoryException if storage error happen
+   */
+  public synchronized List<String> history(Node driveNode) throws RepositoryException {
+    load(driveNode);
+    List<String> records = new ArrayList<String>();
+    for (Segment segment : history.values()) {
+      for (String ch : readRecords(driveNode, segment.name)) {
+        records.add(ch);
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Remove all saved and not yet committed changes. The history will not be affected.
+   *
+   * @param driveNode {@link Node} drive node
+   * @throws RepositoryException if storage error happen
+   */
+  public synchronized void rollback(Node driveNode) throws RepositoryException {
+    load(driveNode);
+    try {
+      for (Iterator<Segment> siter = changes.values().iterator(); siter.hasNext();) {
+        Segment segment = siter.next();
+        removeSegment(driveNode, segment.name, true);
+        siter.remove();
+      }
+      changeIndex.clear();
+    } catch (RepositoryException e) {
+      unload();
+      throw e;
+    } catch (RuntimeException e) {
+      unload();
+      throw e;
+    }
+  }
+
+  /**
+   * Remove all changes and history segments from given drive node. This method doesn't save the node, it's
+   * a caller responsibility. The journal will be reloaded on next use.
+   *
+   * @param driveNode {@link Node} drive node
+   * @throws RepositoryException if storage error happen
+   */
+  public synchronized void reset(Node driveNode) throws RepositoryException {
+    try {
+      for (PropertyIterator piter = driveNode.getProperties(CHANGES_PREFIX + "*|" + HISTORY_PREFIX + "*"); piter.hasNext();) {
+        piter.nextProperty().remove();
+      }
+    } finally {
+      unload();
+    }
+  }
+
+  // ******* internals *******
+
+  /**
+   * Load segments index from the drive node if not already loaded.
+   *
+   * @param driveNode {@link Node}
+   * @throws RepositoryException if storage error happen
+   */
+  protected void load(Node driveNode) throws RepositoryException {
+    if (!loaded) {
+      long maxSeq = 0;
+      for (PropertyIterator piter = driveNode.getProperties(CHANGES_PREFIX + "*|" + HISTORY_PREFIX + "*"); piter.hasNext();) {
+        Property p = piter.nextProperty();
+        String name = p.getName();
+        boolean isChanges = name.startsWith(CHANGES_PREFIX);
+        Long seq = parseSeq(name, isChanges ? CHANGES_PREFIX : HISTORY_PREFIX);
+        if (seq != null) {
+          maxSeq = Math.max(maxSeq, seq);
+          Segment segment = new Segment(name, seq);
+          String[] records = splitRecords(p.getString());
+          if (isChanges) {
+            for (String ch : records) {
+              int cindex = ch.indexOf('=');
+              if (cindex > 0) {
+                String changeId = ch.substring(0, cindex);
+                segment.records.put(changeId, ch);
+                changeIndex.put(changeId, segment);
+              } else {
+                LOG.warn("Ignoring malformed local change record: " + ch);
+              }
+            }
+            segment.size = segment.records.size();
+            if (segment.size > 0) {
+              changes.put(seq, segment);
+            }
+          } else {
+            segment.size = records.length;
+            if (segment.size > 0) {
+              segment.lastTimestamp = parseTimestamp(records[records.length - 1]);
+              history.put(seq, segment);
+              historySize += segment.size;
+            }
+          }
+        }
+      }
+      nextSeq = maxSeq + 1;
+      loaded = true;
+    }
+  }
+
+  /**
+   * Unload the segments index, it will be loaded on next use.
+   */
+  protected void unload() {
+    changes.clear();
+    history.clear();
+    changeIndex.clear();
+    historySize = 0;
+    loaded = false;
+  }
+
+  /**
+   * Create a new segment and add it to given segments.
+   *
+   * @param segments {@link TreeMap} segments
+   * @param prefix {@link String} segment name prefix
+   * @return {@link Segment}
+   */
+  protected Segment newSegment(TreeMap<Long, Segment> segments, String prefix) {
+    long seq = nextSeq++;
+    Segment segment = new Segment(prefix + SEQ_SEPARATOR + seq, seq);
+    segments.put(seq, segment);
+    return segment;
+  }
+
+  /**
+   * Write given changes segments to the drive node. Empty segments will be removed.
+   *
+   * @param driveNode {@link Node}
+   * @param touched {@link Collection} of segments
+   * @throws RepositoryException if storage error happen
+   */
+  protected void writeChanges(Node driveNode, Collection<Segment> touched) throws RepositoryException {
+    for (Segment segment : touched) {
+      if (segment.records.isEmpty()) {
+        changes.remove(segment.seq);
+        removeSegment(driveNode, segment.name, true);
+      } else {
+        StringBuilder store = new StringBuilder();
+        for (String ch : segment.records.values()) {
+          store.append(ch);
+          store.append('\n'); // store always ends with separator
+        }
+        segment.size = segment.records.size();
+        writeSegment(driveNode, segment.name, store.toString());
+      }
+    }
+  }
+
+  /**
+   * Append given records to the history and rotate its oldest segments.
+   *
+   * @param driveNode {@link Node}
+   * @param records {@link List} of records
+   * @param timestamp long
+   * @throws RepositoryException if storage error happen
+   */
+  protected void writeHistory(Node driveNode, List<String> records, long timestamp) throws RepositoryException {
+    String prefix = String.valueOf(timestamp) + ':';
+    Iterator<String> riter = records.iterator();
+    while (riter.hasNext()) {
+      Segment segment = history.isEmpty() ? null : history.lastEntry().getValue();
+      StringBuilder store = new StringBuilder();
+      if (segment == null || segment.size >= SEGMENT_SIZE) {
+        segment = newSegment(history, HISTORY_PREFIX);
+      } else {
+        // the last segment has a room, its content is bounded by the segment size
+        for (String ch : readRecords(driveNode, segment.name)) {
+          store.append(ch);
+          store.append('\n');
+        }
+      }
+      while (riter.hasNext() && segment.size < SEGMENT_SIZE) {
+        store.append(prefix);
+        store.append(riter.next()); // reuse already formatted change record
+        store.append('\n');
+        segment.size++;
+        historySize++;
+      }
+      segment.lastTimestamp = timestamp;
+      writeSegment(driveNode, segment.name, store.toString());
+    }
+
+    // rotate: remove oldest segments exceeding max length or expired
+    while (history.size() > 1) {
+      Segment oldest = history.firstEntry().getValue();
+      if (historySize - oldest.size >= JCRLocalCloudDrive.HISTORY_MAX_LENGTH
+          || timestamp - oldest.lastTimestamp >= JCRLocalCloudDrive.HISTORY_EXPIRATION) {
+        history.remove(oldest.seq);
+        historySize -= oldest.size;
+        removeSegment(driveNode, oldest.name, true);
+      } else {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Write segment property to the drive node.
+   *
+   * @param driveNode {@link Node}
+   * @param name {@link String}
+   * @param value {@link String}
+   * @throws RepositoryException if storage error happen
+   */
+  protected void writeSegment(Node driveNode, String name, String value) throws RepositoryException {
+    try {
+      Property segment = driveNode.getProperty(name);
+      segment.setValue(value);
+      segment.save();
+    } catch (PathNotFoundException e) {
+      // new segment
+      driveNode.setProperty(name, value);
+      driveNode.save();
+    }
+  }
+
+  /**
+   * Remove segment property from the drive node.
+   *
+   * @param driveNode {@link Node}
+   * @param name {@link String}
+   * @param save if <code>true</code> then the removal will be saved
+   * @throws RepositoryException if storage error happen
+   */
+  protected void removeSegment(Node driveNode, String name, boolean save) throws RepositoryException {
+    try {
+      driveNode.getProperty(name).remove();
+      if (save) {
+        driveNode.save();
+      }
+    } catch (PathNotFoundException e) {
+      // already removed
+    }
+  }
+
+  /**
+   * Read records of a segment.
+   *
+   * @param driveNode {@link Node}
+   * @param name {@link String}
+   * @return array of records
+   * @throws RepositoryException if storage error happen
+   */
+  protected String[] readRecords(Node driveNode, String name) throws RepositoryException {
+    try {
+      return splitRecords(driveNode.getProperty(name).getString());
+    } catch (PathNotFoundException e) {
+      return new String[0];
+    }
+  }
+
+  /**
+   * Split segment content on records, empty lines will be omitted.
+   *
+   * @param value {@link String}
+   * @return array of records
+   */
+  protected String[] splitRecords(String value) {
+    if (value.length() > 0) {
+      List<String> records = new ArrayList<String>();
+      for (String ch : value.split("\n")) {
+        if (ch.length() > 0) {
+          records.add(ch);
+        }
+      }
+      return records.toArray(new String[records.size()]);
+    }
+    return new String[0];
+  }
+
+  /**
+   * Parse segment sequence from its property name. Name without a sequence (format used before) has zero
+   * sequence.
+   *
+   * @param name {@link String}
+   * @param prefix {@link String}
+   * @return {@link Long} sequence or <code>null</code> if not a segment name
+   */
+  protected Long parseSeq(String name, String prefix) {
+    if (name.length() == prefix.length()) {
+      return 0l;
+    } else if (name.charAt(prefix.length()) == SEQ_SEPARATOR) {
+      try {
+        return Long.parseLong(name.substring(prefix.length() + 1));
+      } catch (NumberFormatException e) {
+        LOG.warn("Cannot parse sequence of changes segment: " + name);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Parse timestamp of history record.
+   *
+   * @param record {@link String}
+   * @return long timestamp or zero if cannot be parsed (such segment will be rotated first)
+   */
+  protected long parseTimestamp(String record) {
+    int cindex = record.indexOf(':');
+    if (cindex > 0) {
+      try {
+        return Long.parseLong(record.substring(0, cindex));
+      } catch (NumberFormatException e) {
+        LOG.warn("Error parsing change timestamp: " + record);
+      }
+    }
+    return 0;
+  }
+}
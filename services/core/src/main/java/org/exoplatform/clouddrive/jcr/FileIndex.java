@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive.jcr;
+
+import org.exoplatform.services.jcr.core.ExtendedNode;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * Index of a drive files: cloud file id to identifiers of its local nodes. A file can have several nodes
+ * in the drive (e.g. a file in several folders on Google Drive). Node identifiers don't change when the
+ * node moved or renamed, thus the index needs updates only for added and removed nodes.<br>
+ * The index is filled lazily: nodes added by the drive code and nodes found by a query for a file not yet
+ * known (or known partially) to the index. It is bounded by {@link #MAX_FILES} least recently used files,
+ * thus it doesn't walk the drive tree and doesn't keep whole drive in memory. A file is
+ * {@link #isComplete(String)} when its nodes were read from the storage, only such file can be resolved
+ * without a query. As nodes can be removed outside the drive code (by an user), an entry can point to not
+ * existing node: such entries will be removed when found stale.<br>
+ * Identifiers of not yet saved nodes are pending: they are removed from the index on
+ * {@link #rollback()}, or when not found after {@link #PENDING_TIMEOUT}.<br>
+ * This class is thread safe.<br>
+ *
+ * Created by The eXo Platform SAS
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: FileIndex.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class FileIndex {
+
+  /** Maximum number of files in the index, least recently used files will be evicted. */
+  public static final int    MAX_FILES       = 10000;
+
+  /** Time after which a pending node not found in the storage counts as stale, in milliseconds. */
+  public static final long   PENDING_TIMEOUT = 10 * 60000;
+
+  /**
+   * Nodes of a file.
+   */
+  protected static class Entry {
+
+    /** The node identifiers. */
+    final Set<String> nodes = new LinkedHashSet<String>();
+
+    /** If nodes read from the storage. */
+    boolean           complete;
+  }
+
+  /**
+   * Not yet saved node.
+   */
+  protected static class Pending {
+
+    /** The file id. */
+    final String fileId;
+
+    /** Time when the node added. */
+    final long   time;
+
+    /**
+     * Instantiates a new pending node.
+     *
+     * @param fileId the file id
+     */
+    Pending(String fileId) {
+      this.fileId = fileId;
+      this.time = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Map bounded by {@link FileIndex#MAX_FILES} entries, eldest entry evicted first.
+   *
+   * @param <V> the value type
+   */
+  protected static class BoundedMap<V> extends LinkedHashMap<String, V> {
+
+    /** The Constant serialVersionUID. */
+    private static final long serialVersionUID = 2975166203537624516L;
+
+    /**
+     * Instantiates a new bounded map.
+     *
+     * @param accessOrder if <code>true</code> least recently accessed entry is eldest, otherwise least
+     *          recently inserted
+     */
+    BoundedMap(boolean accessOrder) {
+      super(256, 0.75f, accessOrder);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+      return size() > MAX_FILES;
+    }
+  }
+
+  /** Nodes by file id, least recently used file evicted first. Guarded by this index. */
+  protected final Map<String, Entry>   files   = new BoundedMap<Entry>(true);
+
+  /**
+   * Not yet saved nodes by identifier, eldest node evicted first (it will count as saved). Guarded by this
+   * index.
+   */
+  protected final Map<String, Pending> pending = new BoundedMap<Pending>(false);
+
+  /**
+   * Clean the index.
+   */
+  public synchronized void reset() {
+    files.clear();
+    pending.clear();
+  }
+
+  /**
+   * Add the node of given file.
+   *
+   * @param fileId the file id
+   * @param node the node
+   * @throws RepositoryException the repository exception
+   */
+  public void add(String fileId, Node node) throws RepositoryException {
+    String identifier = identifier(node);
+    boolean isNew = node.isNew();
+    synchronized (this) {
+      entry(fileId).nodes.add(identifier);
+      if (isNew) {
+        pending.put(identifier, new Pending(fileId));
+      }
+    }
+  }
+
+  /**
+   * Add nodes of given file read from the storage, the file becomes complete.
+   *
+   * @param fileId the file id
+   * @param identifiers the node identifiers
+   */
+  public synchronized void load(String fileId, Collection<String> identifiers) {
+    Entry entry = entry(fileId);
+    entry.nodes.addAll(identifiers);
+    entry.complete = true;
+  }
+
+  /**
+   * Remove node of given file.
+   *
+   * @param fileId the file id
+   * @param identifier the node identifier
+   */
+  public synchronized void remove(String fileId, String identifier) {
+    Entry entry = files.get(fileId);
+    if (entry != null) {
+      entry.nodes.remove(identifier);
+      if (entry.nodes.isEmpty()) {
+        files.remove(fileId);
+      }
+    }
+  }
+
+  /**
+   * Tell the index that its node found in a session.
+   *
+   * @param node the node
+   * @throws RepositoryException the repository exception
+   */
+  public void found(Node node) throws RepositoryException {
+    if (!node.isNew()) {
+      String identifier = identifier(node);
+      synchronized (this) {
+        pending.remove(identifier);
+      }
+    }
+  }
+
+  /**
+   * Tell the index that its node of given file not found in a session. Not yet saved node can be not found
+   * by other sessions during {@link #PENDING_TIMEOUT}, otherwise the node counts as stale and will be
+   * removed.
+   *
+   * @param fileId the file id
+   * @param identifier the node identifier
+   */
+  public synchronized void notFound(String fileId, String identifier) {
+    Pending p = pending.get(identifier);
+    if (p == null || System.currentTimeMillis() - p.time > PENDING_TIMEOUT) {
+      stale(fileId, identifier);
+    }
+  }
+
+  /**
+   * Remove stale node of given file.
+   *
+   * @param fileId the file id
+   * @param identifier the node identifier
+   */
+  public synchronized void stale(String fileId, String identifier) {
+    remove(fileId, identifier);
+    pending.remove(identifier);
+  }
+
+  /**
+   * Remove not yet saved nodes from the index. Call it when the drive session changes were rolled back.
+   */
+  public synchronized void rollback() {
+    for (Iterator<Map.Entry<String, Pending>> piter = pending.entrySet().iterator(); piter.hasNext();) {
+      Map.Entry<String, Pending> p = piter.next();
+      remove(p.getValue().fileId, p.getKey());
+      piter.remove();
+    }
+  }
+
+  /**
+   * Checks if all nodes of given file known to the index.
+   *
+   * @param fileId the file id
+   * @return true, if file nodes were read from the storage
+   */
+  public synchronized boolean isComplete(String fileId) {
+    Entry entry = files.get(fileId);
+    return entry != null && entry.complete;
+  }
+
+  /**
+   * Identifiers of nodes of given file known to the index.
+   *
+   * @param fileId the file id
+   * @return the collection of node identifiers, empty if file not found
+   */
+  public synchronized Collection<String> get(String fileId) {
+    Entry entry = files.get(fileId);
+    if (entry != null) {
+      return new ArrayList<String>(entry.nodes);
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * Node identifier used by the index.
+   *
+   * @param node the node
+   * @return the identifier
+   * @throws RepositoryException the repository exception
+   */
+  public static String identifier(Node node) throws RepositoryException {
+    return ((ExtendedNode) node).getIdentifier();
+  }
+
+  // ******* internals *******
+
+  /**
+   * Get or create entry of given file. Should be called under this index lock.
+   *
+   * @param fileId the file id
+   * @return the entry
+   */
+  private Entry entry(String fileId) {
+    Entry entry = files.get(fileId);
+    if (entry == null) {
+      entry = new Entry();
+      files.put(fileId, entry);
+    }
+    return entry;
+  }
+}
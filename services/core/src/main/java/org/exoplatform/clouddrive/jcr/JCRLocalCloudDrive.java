@@ -40,6 +40,7 @@ import org.exoplatform.clouddrive.ConflictException;
 import org.exoplatform.clouddrive.ConstraintException;
 import org.exoplatform.clouddrive.DriveRemovedException;
 import org.exoplatform.clouddrive.DriveTrashedException;
+import org.exoplatform.clouddrive.ExecutorSaturatedException;
 import org.exoplatform.clouddrive.FileTrashRemovedException;
 import org.exoplatform.clouddrive.NotCloudDriveException;
 import org.exoplatform.clouddrive.NotCloudFileException;
@@ -53,17 +54,23 @@ import org.exoplatform.clouddrive.SyncNotSupportedException;
 import org.exoplatform.clouddrive.ThreadExecutor;
 import org.exoplatform.clouddrive.jcr.JCRLocalCloudDrive.JCRListener.AddTrashListener;
 import org.exoplatform.clouddrive.jcr.JCRLocalCloudDrive.JCRListener.DriveChangesListener;
+import org.exoplatform.clouddrive.utils.Backoff;
 import org.exoplatform.clouddrive.utils.ChunkIterator;
+import org.exoplatform.clouddrive.utils.ChunkedUpload;
 import org.exoplatform.clouddrive.utils.ExtendedMimeTypeResolver;
 import org.exoplatform.clouddrive.utils.IdentityHelper;
+import org.exoplatform.clouddrive.utils.UploadSessions;
 import org.exoplatform.clouddrive.viewer.ContentReader;
+import org.exoplatform.clouddrive.viewer.PartialContent;
 import org.exoplatform.container.ExoContainer;
 import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.services.jcr.core.ExtendedSession;
 import org.exoplatform.services.jcr.core.ManageableRepository;
 import org.exoplatform.services.jcr.ext.app.SessionProviderService;
 import org.exoplatform.services.jcr.ext.common.SessionProvider;
 import org.exoplatform.services.security.ConversationState;
 
+import java.io.IOException;
 import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -751,53 +758,57 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
             finishTrashed(driveRoot.getSession(), driveRoot.getPath());
 
             // disconnect and remove with a delay in another thread
-            workerExecutor.submit(new Runnable() {
-              /**
-               * {@inheritDoc}
-               */
-              @Override
-              public void run() {
-                boolean interrupted = false;
-                try {
-                  final Session session = systemSession();
-                  final Node driveRoot = session.getNodeByUUID(rootUUID);
-
+            try {
+              workerExecutor.submit(ThreadExecutor.Lane.BACKGROUND, JCRLocalCloudDrive.this, new Runnable() {
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void run() {
+                  boolean interrupted = false;
                   try {
-                    Thread.sleep(1000 * 2); // wait a bit for ECMS actions
-                  } catch (InterruptedException e) {
-                    LOG.warn("Cloud Drive remover interrupted " + e.getMessage());
-                    interrupted = true;
-                  }
+                    final Session session = systemSession();
+                    final Node driveRoot = session.getNodeByUUID(rootUUID);
 
-                  startAction(JCRLocalCloudDrive.this);
+                    try {
+                      Thread.sleep(1000 * 2); // wait a bit for ECMS actions
+                    } catch (InterruptedException e) {
+                      LOG.warn("Cloud Drive remover interrupted " + e.getMessage());
+                      interrupted = true;
+                    }
 
-                  try {
-                    disconnect(driveRoot); // disconnect under system session!
-                  } catch (Throwable e) {
-                    // error of disconnect - don't care much here
-                    LOG.error("Error disconnecting Cloud Drive " + title() + " before its removal. " + e.getMessage(), e);
-                  }
+                    startAction(JCRLocalCloudDrive.this);
 
-                  try {
-                    driveRoot.remove();
-                    session.save();
-                    LOG.info("Cloud Drive " + title() + " successfully removed from the Trash.");
-                  } catch (ItemNotFoundException e) {
-                    // node already deleted
-                    LOG.warn("Cloud Drive " + title() + " node already removed directly from JCR: " + e.getMessage());
-                  }
+                    try {
+                      disconnect(driveRoot); // disconnect under system session!
+                    } catch (Throwable e) {
+                      // error of disconnect - don't care much here
+                      LOG.error("Error disconnecting Cloud Drive " + title() + " before its removal. " + e.getMessage(), e);
+                    }
 
-                } catch (Throwable e) {
-                  LOG.error("Error removing node of Cloud Drive " + title() + ". " + e.getMessage(), e);
-                } finally {
-                  doneAction(); // done in this thread
+                    try {
+                      driveRoot.remove();
+                      session.save();
+                      LOG.info("Cloud Drive " + title() + " successfully removed from the Trash.");
+                    } catch (ItemNotFoundException e) {
+                      // node already deleted
+                      LOG.warn("Cloud Drive " + title() + " node already removed directly from JCR: " + e.getMessage());
+                    }
+
+                  } catch (Throwable e) {
+                    LOG.error("Error removing node of Cloud Drive " + title() + ". " + e.getMessage(), e);
+                  } finally {
+                    doneAction(); // done in this thread
 
-                  if (interrupted) {
-                    Thread.currentThread().interrupt();
+                    if (interrupted) {
+                      Thread.currentThread().interrupt();
+                    }
                   }
                 }
-              }
-            });
+              });
+            } catch (ExecutorSaturatedException e) {
+              LOG.warn("Cannot remove trashed Cloud Drive " + title() + " now: " + e.getMessage());
+            }
           }
         } catch (ItemNotFoundException e) {
           // drive is in root of the workspace
@@ -1003,9 +1014,11 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
     protected final AtomicLong               finishTime       = new AtomicLong();
 
     /**
-     * Actually open item iterators. Used for progress indicator.
+     * Actually open item iterators. Used for progress indicator. Iterators can be added concurrently by
+     * command workers.
      */
-    protected final List<ChunkIterator<?>>   iterators        = new ArrayList<ChunkIterator<?>>();
+    protected final List<ChunkIterator<?>>   iterators        =
+                                                       Collections.synchronizedList(new ArrayList<ChunkIterator<?>>());
 
     /**
      * Local files changed by the command (not accessible by overriding commands - use related methods
@@ -1230,6 +1243,8 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
 
       startTime.set(System.currentTimeMillis());
       driveCommands.add(this);
+      AbstractCommand prevCommand = currentCommand.get();
+      currentCommand.set(this);
       try {
         commandEnv.prepare(this); // prepare environment
         jcrListener.disable();
@@ -1251,10 +1266,13 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
                 // driveNode = rootNode(); // re-init for a case of InvalidItemStateException? use
                 // multi-catch?
                 reset();
+                // requests already retried by connector APIs, thus wait longer with growing jittered delay
+                long timeout = Backoff.delay(attemptNumb - 1,
+                                             CloudDriveConnector.PROVIDER_REQUEST_ATTEMPT_TIMEOUT,
+                                             Backoff.MAX_DELAY);
                 LOG.warn("Error running " + getName() + " command of " + title() + ". " + e.getMessage()
-                    + ". Rolled back and will run next attempt in " + CloudDriveConnector.PROVIDER_REQUEST_ATTEMPT_TIMEOUT
-                    + "ms.", e);
-                Thread.sleep(CloudDriveConnector.PROVIDER_REQUEST_ATTEMPT_TIMEOUT);
+                    + ". Rolled back and will run next attempt in " + timeout + "ms.", e);
+                Thread.sleep(timeout);
               }
             } else {
               throw e;
@@ -1292,6 +1310,7 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
         jcrListener.enable();
         commandEnv.cleanup(this); // cleanup environment
         driveCommands.remove(this);
+        currentCommand.set(prevCommand);
         finishTime.set(System.currentTimeMillis());
 
         if (LOG.isDebugEnabled()) {
@@ -1310,7 +1329,24 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
      */
     Future<Command> start() throws CloudDriveException {
       commandEnv.configure(this);
-      return async = workerExecutor.submit(new CommandCallable(this));
+      try {
+        return async = workerExecutor.submit(lane(), JCRLocalCloudDrive.this, new CommandCallable(this));
+      } catch (ExecutorSaturatedException e) {
+        // command will not run, let others start it again
+        always();
+        finishTime.set(System.currentTimeMillis());
+        throw e;
+      }
+    }
+
+    /**
+     * Lane of {@link ThreadExecutor} where the command will run. Drive commands are long and run in
+     * background lane by default.
+     *
+     * @return the lane
+     */
+    protected ThreadExecutor.Lane lane() {
+      return ThreadExecutor.Lane.BACKGROUND;
     }
 
     /**
@@ -1318,9 +1354,11 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
      */
     @Override
     public long getComplete() {
-      int complete = 0;
-      for (ChunkIterator<?> child : iterators) {
-        complete += child.getFetched();
+      long complete = 0;
+      synchronized (iterators) {
+        for (ChunkIterator<?> child : iterators) {
+          complete += child.getFetched();
+        }
       }
       return complete;
     }
@@ -1330,9 +1368,11 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
      */
     @Override
     public long getAvailable() {
-      int available = 0;
-      for (ChunkIterator<?> child : iterators) {
-        available += child.getAvailable();
+      long available = 0;
+      synchronized (iterators) {
+        for (ChunkIterator<?> child : iterators) {
+          available += child.getAvailable();
+        }
       }
       // return always +7,5% more, average time for JCR save on mid-to-big drive
       return Math.round(available * 1.075f);
@@ -1539,8 +1579,7 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
     @Override
     protected void process() throws CloudDriveException, RepositoryException, InterruptedException {
       // reset all possible previous attempts metadata
-      driveNode.setProperty("ecd:localChanges", DUMMY_DATA);
-      driveNode.setProperty("ecd:localHistory", DUMMY_DATA);
+      resetChanges(driveNode);
       driveNode.setProperty("ecd:connected", false);
       save();
 
@@ -1732,6 +1771,50 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
       this.nodes = nodes;
     }
 
+    /**
+     * Read local nodes of given files to {@link #nodes}, only files not yet read will be searched in the
+     * drive. Unlike {@link #readLocalNodes()} this method doesn't traverse the drive subtree, it finds the
+     * nodes by their ids and should be used by incremental algorithms that know the changed files. Files
+     * not found locally will not be added to the nodes map, as well as nodes already removed in this
+     * command but not yet saved.
+     *
+     * @param fileIds {@link Collection} of file ids
+     * @throws RepositoryException the repository exception
+     * @throws DriveRemovedException the drive removed exception
+     */
+    protected void readLocalNodes(Collection<String> fileIds) throws RepositoryException, DriveRemovedException {
+      if (nodes == null) {
+        nodes = new LinkedHashMap<String, List<Node>>();
+        List<Node> rootList = new ArrayList<Node>();
+        rootList.add(driveNode);
+        nodes.put(fileAPI.getId(driveNode), rootList);
+      }
+      Set<String> unknown = new LinkedHashSet<String>();
+      for (String id : fileIds) {
+        if (!nodes.containsKey(id)) {
+          unknown.add(id);
+        }
+      }
+      String drivePath = driveNode.getPath();
+      if (unknown.size() > 0) {
+        next: for (Node node : findNodes(unknown)) {
+          String path = node.getPath();
+          for (String p = path; p.length() > drivePath.length(); p = p.substring(0, p.lastIndexOf('/'))) {
+            if (isRemoved(p)) {
+              continue next;
+            }
+          }
+          String fileId = fileAPI.getId(node);
+          List<Node> nodeList = nodes.get(fileId);
+          if (nodeList == null) {
+            nodeList = new ArrayList<Node>();
+            nodes.put(fileId, nodeList);
+          }
+          nodeList.add(node);
+        }
+      }
+    }
+
     /**
      * Track the file links referenced its node in current JCR workspace (e.g. ECMS symlinks). This method
      * should be used when synchronizing file removed remotely. Call this method before the node removal and
@@ -1844,6 +1927,16 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
       this.driveNode = driveNode;
     }
 
+    /**
+     * Files synchronization is a short task a user waits for, it runs in interactive lane.
+     *
+     * @return the lane
+     */
+    @Override
+    protected ThreadExecutor.Lane lane() {
+      return ThreadExecutor.Lane.INTERACTIVE;
+    }
+
     /**
      * Mark the change's file as updating in the drive. Note {@link FileChange} should be accepted before
      * calling this method for actual file path, otherwise it will be <code>null</code>.
@@ -2078,6 +2171,11 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
           }
         }
 
+        // let the connector to prepare the changes in a group (e.g. by batch requests)
+        if (fileAPI instanceof AbstractFileAPI) {
+          ((AbstractFileAPI) fileAPI).prepare(accepted.values());
+        }
+
         Set<String> ignoredPaths = new HashSet<String>(); // for not supported by sync
 
         next: for (Iterator<FileChange> chiter = accepted.values().iterator(); chiter.hasNext()
@@ -2169,6 +2267,10 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
         accepted.clear();
         ignoredPaths.clear();
       } finally {
+        if (fileAPI instanceof AbstractFileAPI) {
+          ((AbstractFileAPI) fileAPI).release();
+        }
+
         // complete and clean updating after drive node save
         for (String key : updating) {
           removeUpdating(key);
@@ -2282,6 +2384,7 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
      */
     protected void setId(Node fileNode, String id) throws RepositoryException {
       fileNode.setProperty("ecd:id", id);
+      fileIndex.add(id, fileNode);
     }
 
     /**
@@ -2353,6 +2456,110 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
       }
       return Collections.unmodifiableCollection(parents);
     }
+
+    /**
+     * Length of the file content stored locally in its <code>jcr:content/jcr:data</code>.
+     *
+     * @param fileNode the file node
+     * @return the content length or <code>-1</code> if it is not known
+     * @throws RepositoryException the repository exception
+     */
+    protected long contentLength(Node fileNode) throws RepositoryException {
+      if (fileNode.hasNode("jcr:content")) {
+        Node content = fileNode.getNode("jcr:content");
+        if (content.hasProperty("jcr:data")) {
+          return content.getProperty("jcr:data").getLength();
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Check if content of given length should be uploaded by chunks.
+     *
+     * @param length the content length, <code>-1</code> if unknown
+     * @return <code>true</code> if chunked upload required, <code>false</code> otherwise
+     */
+    protected boolean isChunkedUpload(long length) {
+      return length > uploadChunkSize;
+    }
+
+    /**
+     * Key of a chunked upload of the file content. The key consists of the provider, the drive, the file
+     * path, modification date and the length, thus a new version of the content will not resume an upload
+     * of a previous one.
+     *
+     * @param fileNode the file node
+     * @param modified the modified
+     * @param length the content length
+     * @return the upload key
+     * @throws RepositoryException the repository exception
+     */
+    protected String uploadKey(Node fileNode, Calendar modified, long length) throws RepositoryException {
+      StringBuilder key = new StringBuilder();
+      key.append(getUser().getProvider().getId());
+      key.append(':');
+      key.append(rootUUID);
+      key.append(':');
+      key.append(fileNode.getPath());
+      key.append(':');
+      key.append(modified != null ? modified.getTimeInMillis() : 0);
+      key.append(':');
+      key.append(length);
+      return key.toString();
+    }
+
+    /**
+     * Upload sessions storage for chunked uploads.
+     *
+     * @return the upload sessions
+     */
+    protected UploadSessions uploadSessions() {
+      return UploadSessions.getDefault();
+    }
+
+    /**
+     * Run chunked upload. If called from a drive command, the upload will be added to the command progress.
+     *
+     * @param <R> the type of uploaded file
+     * @param upload the upload
+     * @return the uploaded file
+     * @throws CloudDriveException the cloud drive exception
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    protected <R> R upload(ChunkedUpload<R> upload) throws CloudDriveException, IOException {
+      AbstractCommand command = currentCommand.get();
+      if (command != null) {
+        command.iterators.add(upload);
+      }
+      return upload.upload();
+    }
+
+    /**
+     * Prepare to apply given local changes in current thread. The changes will be applied one by one after
+     * this call, an implementation may request the cloud for all of them in a group (e.g. in a batch
+     * request) and then answer single file operations of these changes from the prepared results. Only
+     * read-only requests can be prepared: changes aren't locked yet and some of them may be skipped or
+     * rolled back, thus modifications in the cloud should be done by the changes operations. Errors of a
+     * group request should not be thrown here but by an operation of the failed file. Does nothing by
+     * default.
+     *
+     * @param changes the changes in order of applying
+     * @throws CloudDriveException the cloud drive exception
+     * @throws RepositoryException the repository exception
+     * @see #release()
+     */
+    protected void prepare(Collection<FileChange> changes) throws CloudDriveException, RepositoryException {
+      // nothing by default
+    }
+
+    /**
+     * Release results of {@link #prepare(Collection)} not used by the changes in current thread. Called
+     * after applying the changes, successful or not. Does nothing by default.
+     */
+    protected void release() {
+      // nothing by default
+    }
   }
 
   /**
@@ -2395,6 +2602,11 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
     /** The file path. */
     protected String                      filePath;
 
+    /**
+     * The path locked in {@link #begin()}, the file path can change during the change (e.g. on rename).
+     */
+    private String                        lockedPath;
+
     /** The file id. */
     protected String                      fileId;
 
@@ -2777,21 +2989,6 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
 
     // ******* internal *********
 
-    /**
-     * Wait for the change completion.
-     * 
-     * @throws InterruptedException if this change thread was interrupted
-     * 
-     */
-    private void await() throws InterruptedException {
-      while (applied.getCount() > 0) {
-        if (LOG.isDebugEnabled()) {
-          LOG.debug(">>>> Await " + filePath);
-        }
-        applied.await();
-      }
-    }
-
     /**
      * Wait for this file and its sub-tree changes in other threads, wait exclusively to let the existing to
      * finish and then set the lock do not let a new to apply before or during this change.
@@ -2799,40 +2996,30 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
      * @throws InterruptedException if other tasks working with this file were interrupted
      */
     private void begin() throws InterruptedException {
-      synchronized (fileChanges) {
-        final String lockedPath = filePath;
-        FileChange other = fileChanges.putIfAbsent(lockedPath, this);
-        if (other != this) {
-          other = fileChanges.put(lockedPath, this);
-          if (other != this) {
-            if (LOG.isDebugEnabled()) {
-              LOG.debug(">>> Waiting for " + other.filePath);
-            }
-            other.await();
-            if (LOG.isDebugEnabled()) {
-              LOG.debug("<<< Done for " + other.filePath);
-            }
-          }
-        }
-        for (FileChange c : fileChanges.values()) {
-          if (c != this && c.filePath.startsWith(lockedPath)) {
-            LOG.info(">>> Waiting for child " + c.filePath);
-            c.await();
-            LOG.info("<<< Done for child " + c.filePath);
-          }
-        }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(">>> Locking " + filePath);
+      }
+      String path = filePath;
+      fileLocks.lock(path, this);
+      lockedPath = path;
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("<<< Locked " + path);
       }
     }
 
     /**
-     * Remove the lock set in {@link #begin()} method by removing this changed file from fileChanges map.
+     * Remove the lock set in {@link #begin()} method. The locked path will be unlocked even if the file
+     * path changed since then.
      *
      * @throws PathNotFoundException the path not found exception
      * @throws RepositoryException the repository exception
      * @throws CloudDriveException the cloud drive exception
      */
     private void complete() throws PathNotFoundException, RepositoryException, CloudDriveException {
-      fileChanges.remove(filePath, this);
+      if (lockedPath != null) {
+        fileLocks.unlock(lockedPath, this);
+        lockedPath = null;
+      }
     }
 
     /**
@@ -3205,6 +3392,52 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
     }
   }
 
+  /**
+   * Listener of the drive events changing its state version. See {@link #awaitStateChange(long, long)}.
+   */
+  protected class StateListener extends BaseCloudDriveListener {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onConnect(CloudDriveEvent event) {
+      stateChanged();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onDisconnect(CloudDriveEvent event) {
+      stateChanged();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onRemove(CloudDriveEvent event) {
+      stateChanged();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onSynchronized(CloudDriveEvent event) {
+      stateChanged();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onError(CloudDriveEvent event, Throwable error, String operationName) {
+      stateChanged();
+    }
+  }
+
   // *********** variables ***********
 
   /**
@@ -3260,9 +3493,9 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
   protected final ReadWriteLock                           syncLock            = new ReentrantReadWriteLock(true);
 
   /**
-   * File changes currently processing by the drive. Used for locking purpose to maintain consistency.
+   * Locks of file paths currently processing by the drive file changes. Used to maintain consistency.
    */
-  protected final ConcurrentHashMap<String, FileChange>   fileChanges         = new ConcurrentHashMap<String, FileChange>();
+  protected final PathLocks                               fileLocks           = new PathLocks();
 
   /**
    * Maintain file removal requests (direct removal in JCR).
@@ -3274,6 +3507,17 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
    */
   protected final ConcurrentHashMap<String, String>       fileCopies          = new ConcurrentHashMap<String, String>();
 
+  /**
+   * Command running in current thread. Used by file API to report progress of long operations (e.g. chunked
+   * uploads).
+   */
+  protected final ThreadLocal<AbstractCommand>            currentCommand      = new ThreadLocal<AbstractCommand>();
+
+  /**
+   * Chunk size for uploads of large files. Content not bigger of this size uploaded in single request.
+   */
+  protected volatile int                                  uploadChunkSize     = ChunkedUpload.DEFAULT_CHUNK_SIZE;
+
   /**
    * Maintain file trashing requests (move to Trash folder).
    */
@@ -3286,6 +3530,11 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
    */
   protected final ConcurrentHashMap<String, Set<String>>  fileHistory         = new ConcurrentHashMap<String, Set<String>>();
 
+  /**
+   * Persistent journal of local changes and their history.
+   */
+  protected final ChangesJournal                          changesJournal      = new ChangesJournal();
+
   /**
    * Path or/and Ids of currently synchronizing files with counter of how many times it proceeds to sync. When
    * counter become zero it should be removed. Used for informational purpose (for UI etc).
@@ -3327,6 +3576,11 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
    */
   protected final NodeFinder                              finder;
 
+  /**
+   * Index of local nodes by file id, built on first lookup.
+   */
+  protected final FileIndex                               fileIndex           = new FileIndex();
+
   /**
    * Mime type resolver.
    */
@@ -3357,6 +3611,16 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
    */
   protected DriveState                                    state               = new DriveState();
 
+  /**
+   * Monitor of the drive state version, waiters of the state change wait on it.
+   */
+  protected final Object                                  stateMonitor        = new Object();
+
+  /**
+   * Version of the drive state. Guarded by {@link #stateMonitor}.
+   */
+  protected long                                          stateVersion        = 1;
+
   /**
    * Title has special care. It used in error logs and an attempt to read <code>exo:title</code> property can
    * cause another {@link RepositoryException}. Thus need it pre-cached in the variable and try to read the
@@ -3426,6 +3690,7 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
     // add drive trash listener
     this.jcrListener = addJCRListener(driveNode);
     this.addListener(jcrListener.changesListener); // listen for errors here
+    this.addListener(new StateListener()); // count state versions
 
     if (existing) {
       // load history of local changes
@@ -3800,6 +4065,16 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
     return null;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  public ContentReader getFileContent(String fileId, long offset, long length) throws RepositoryException,
+                                                                                CloudDriveException {
+    // by default we read the range from whole content
+    ContentReader content = getFileContent(fileId);
+    return content != null ? new PartialContent(content, offset, length) : null;
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -3808,6 +4083,14 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
     return null;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  public ContentReader getFileThumbnail(String fileId) throws RepositoryException, CloudDriveException {
+    // by default we don't support file thumbnails
+    return null;
+  }
+
   // ****** CloudDriveSecurity ******
 
   /**
@@ -3960,6 +4243,7 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
     if (isConnected()) {
       Node driveRoot = rootNode();
       disconnect(driveRoot);
+      fileIndex.reset();
 
       // finally fire listeners
       listeners.fireOnDisconnect(new CloudDriveEvent(getUser(), rootWorkspace, driveRoot.getPath()));
@@ -4044,6 +4328,52 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
     return state;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getStateVersion() {
+    synchronized (stateMonitor) {
+      return stateVersion;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long awaitStateChange(long version, long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (stateMonitor) {
+      long wait = timeout;
+      while (stateVersion == version && wait > 0) {
+        stateMonitor.wait(wait);
+        wait = deadline - System.currentTimeMillis();
+      }
+      return stateVersion;
+    }
+  }
+
+  /**
+   * Set chunk size for uploads of large files. Size will be rounded down to a multiple of
+   * {@link ChunkedUpload#MIN_CHUNK_SIZE} but not less of it.
+   *
+   * @param chunkSize the chunk size in bytes
+   */
+  public void setUploadChunkSize(int chunkSize) {
+    this.uploadChunkSize = Math.max(ChunkedUpload.MIN_CHUNK_SIZE,
+                                    chunkSize - chunkSize % ChunkedUpload.MIN_CHUNK_SIZE);
+  }
+
+  /**
+   * Chunk size for uploads of large files.
+   *
+   * @return the chunk size in bytes
+   */
+  public int getUploadChunkSize() {
+    return uploadChunkSize;
+  }
+
   // ============== JCR impl specific methods ==============
 
   /**
@@ -4267,18 +4597,20 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
   }
 
   /**
-   * Save given file changes to the drive store of not yet applied local changes.
+   * Save given file changes to the drive store of not yet applied local changes. Changes will be appended to
+   * the drive {@link ChangesJournal}.
    *
    * @param changes {@link List} of {@link FileChange}
    * @throws RepositoryException the repository exception
    * @throws CloudDriveException the cloud drive exception
    */
-  protected synchronized void saveChanges(List<FileChange> changes) throws RepositoryException, CloudDriveException {
+  protected void saveChanges(List<FileChange> changes) throws RepositoryException, CloudDriveException {
     // <CID>=<T><F><PATH_LEN><PATH><I<ID>><S<SYNC_CLASS>>\n...
     // where I<ID> and S<SYNC_CLASS> can be empty
 
-    StringBuilder store = new StringBuilder();
+    Map<String, String> records = new LinkedHashMap<String, String>();
     for (FileChange ch : changes) {
+      StringBuilder store = new StringBuilder();
       store.append(ch.changeId);
       store.append('=');
       store.append(ch.changeType);
@@ -4297,27 +4629,15 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
         store.append('S');
         store.append(ch.synchronizer.getClass().getName());
       }
-      store.append('\n'); // store always ends with separator
-    }
-    Node driveNode = rootNode();
-    try {
-      Property localChanges = driveNode.getProperty("ecd:localChanges");
-      String current = localChanges.getString();
-      if (current.length() > 0) {
-        store.insert(0, current);
-      }
-      localChanges.setValue(store.toString());
-      localChanges.save();
-    } catch (PathNotFoundException e) {
-      // no local changes saved yet
-      driveNode.setProperty("ecd:localChanges", store.toString());
-      driveNode.save();
+      records.put(ch.changeId, store.toString());
     }
+    changesJournal.append(rootNode(), records);
   }
 
   /**
    * Commit given changes to the drive local history but omit skipped. These changes also will be removed from
-   * the local changes (from previously saved and not yet applied).
+   * the local changes (from previously saved and not yet applied). Only journal segments of given changes
+   * will be rewritten.
    *
    * @param changes {@link Collection} of {@link FileChange} changes to move from changes store to the history
    * @param skipped {@link Collection} of {@link FileChange} changes that should be removed from changes store
@@ -4327,81 +4647,17 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
    * @see #saveChanges(List)
    * @see #rollbackAllChanges()
    */
-  protected synchronized void commitChanges(Collection<FileChange> changes,
-                                            Collection<FileChange> skipped) throws RepositoryException, CloudDriveException {
-    Node driveNode = rootNode();
-    Long timestamp = System.currentTimeMillis();
-    StringBuilder store = new StringBuilder();
-    StringBuilder history = new StringBuilder();
-
-    // remove already applied local changes and collect applied as history
-    try {
-      Property localChanges = driveNode.getProperty("ecd:localChanges");
-      String current = localChanges.getString();
-      if (current.length() > 0) { // actually it should be greater of about 15 chars
-        next: for (String ch : current.split("\n")) {
-          if (ch.length() > 0) {
-            for (FileChange fch : changes) {
-              if (ch.startsWith(fch.changeId)) {
-                // history changes prefixed with timestamp of commit for rotation
-                history.append(timestamp.toString());
-                history.append(':');
-                history.append(ch); // reuse already formatted change record
-                history.append('\n');
-                continue next; // omit this change as it is already applied
-              }
-            }
-            for (FileChange sch : skipped) {
-              if (ch.startsWith(sch.changeId)) {
-                continue next; // omit this change as it was skipped
-              }
-            }
-            store.append(ch); // still keep this changes in local changes
-            store.append('\n'); // store always ends with separator
-          }
-        }
-      }
-      localChanges.setValue(store.toString());
-      localChanges.save();
-    } catch (PathNotFoundException e) {
-      // no local changes saved yet
-      driveNode.setProperty("ecd:localChanges", store.toString());
-      driveNode.save();
+  protected void commitChanges(Collection<FileChange> changes,
+                               Collection<FileChange> skipped) throws RepositoryException, CloudDriveException {
+    List<String> appliedIds = new ArrayList<String>(changes.size());
+    for (FileChange ch : changes) {
+      appliedIds.add(ch.changeId);
     }
-
-    // save the local history of already applied changes
-    try {
-      StringBuilder currentHistory = new StringBuilder();
-      Property localHistory = driveNode.getProperty("ecd:localHistory");
-      String current = localHistory.getString();
-      if (current.length() > 0) {
-        String[] fchs = current.split("\n");
-        for (int i = fchs.length > HISTORY_MAX_LENGTH ? fchs.length - HISTORY_MAX_LENGTH : 0; i > fchs.length; i++) {
-          String ch = fchs[i];
-          if (ch.length() > 0) {
-            int cindex = ch.indexOf(':');
-            try {
-              long chTimestamp = Long.parseLong(ch.substring(0, cindex));
-              if (timestamp - chTimestamp < HISTORY_EXPIRATION) {
-                currentHistory.append(ch);
-                currentHistory.append('\n');
-              }
-            } catch (NumberFormatException e) {
-              throw new CloudDriveException("Error parsing change timestamp: " + ch, e);
-            }
-          }
-        }
-      }
-      if (currentHistory.length() > 0) {
-        history.insert(0, currentHistory.toString());
-      }
-      localHistory.setValue(history.toString());
-      localHistory.save();
-    } catch (PathNotFoundException e) {
-      // no local history saved yet
-      driveNode.setProperty("ecd:localHistory", history.toString());
-      driveNode.save();
+    List<String> skippedIds = new ArrayList<String>(skipped.size());
+    for (FileChange ch : skipped) {
+      skippedIds.add(ch.changeId);
     }
+    changesJournal.commit(rootNode(), appliedIds, skippedIds, System.currentTimeMillis());
 
     // store applied changes in runtime cache
     for (FileChange ch : changes) {
@@ -4427,15 +4683,19 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
    * @see #commitChanges(Collection, Collection)
    * @see #rollbackAllChanges()
    */
-  protected synchronized void rollbackAllChanges() throws RepositoryException, CloudDriveException {
-    Node driveNode = rootNode();
-    try {
-      Property localChanges = driveNode.getProperty("ecd:localChanges");
-      localChanges.setValue(DUMMY_DATA); // empty string
-      localChanges.save();
-    } catch (PathNotFoundException e) {
-      // no local changes saved yet
-    }
+  protected void rollbackAllChanges() throws RepositoryException, CloudDriveException {
+    changesJournal.rollback(rootNode());
+  }
+
+  /**
+   * Remove all local changes and history from given drive node. This method doesn't save the node and
+   * doesn't clean the runtime history cache, it's a caller responsibility.
+   *
+   * @param driveNode {@link Node} drive node
+   * @throws RepositoryException the repository exception
+   */
+  protected void resetChanges(Node driveNode) throws RepositoryException {
+    changesJournal.reset(driveNode);
   }
 
   /**
@@ -4449,19 +4709,8 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
     // TODO read and return only those changes that aren't currently processing by current SyncFilesCommand(s)
 
     List<FileChange> changes = new ArrayList<FileChange>();
-    Node driveNode = rootNode();
-    try {
-      Property localChanges = driveNode.getProperty("ecd:localChanges");
-      String current = localChanges.getString();
-      if (current.length() > 0) { // actually it should be longer of about 15
-        for (String ch : current.split("\n")) {
-          if (ch.length() > 0) {
-            changes.add(parseChange(ch));
-          }
-        }
-      }
-    } catch (PathNotFoundException e) {
-      // no local changes saved - do nothing
+    for (String ch : changesJournal.changes(rootNode())) {
+      changes.add(parseChange(ch));
     }
     return changes;
   }
@@ -4476,19 +4725,7 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
    * @throws CloudDriveException the cloud drive exception
    */
   protected boolean hasChange(FileChange change) throws RepositoryException, CloudDriveException {
-    // <CID>=<T><F><PATH_LEN><PATH><I<ID>><S<SYNC_CLASS>>\n...
-    // where I<ID> and S<SYNC_CLASS> can be empty
-    Node driveNode = rootNode();
-    try {
-      Property localChanges = driveNode.getProperty("ecd:localChanges");
-      String current = localChanges.getString();
-      if (current.length() > 0) { // actually it should be longer of about 15
-        return current.indexOf(change.changeId + "=") >= 0;
-      }
-    } catch (PathNotFoundException e) {
-      // no local changes saved - no change
-    }
-    return false;
+    return changesJournal.contains(rootNode(), change.changeId);
   }
 
   /**
@@ -4498,20 +4735,12 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
    * @throws CloudDriveException the cloud drive exception
    */
   protected void loadHistory() throws RepositoryException, CloudDriveException {
-    Node driveNode = rootNode();
-    try {
-      Property localChanges = driveNode.getProperty("ecd:localHistory");
-      String current = localChanges.getString();
-      if (current.length() > 0) {
-        LOG.info("Loading local history of " + title());
-        for (String ch : current.split("\n")) {
-          if (ch.length() > 0) {
-            loadChanged(ch);
-          }
-        }
+    List<String> history = changesJournal.history(rootNode());
+    if (history.size() > 0) {
+      LOG.info("Loading local history of " + title());
+      for (String ch : history) {
+        loadChanged(ch);
       }
-    } catch (PathNotFoundException e) {
-      // no local changes saved - do nothing
     }
   }
 
@@ -4823,6 +5052,7 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
     try {
       // cleanup if smth goes wrong
       rootNode.refresh(false);
+      fileIndex.rollback();
     } catch (RepositoryException e) {
       LOG.warn("Error rolling back the changes on drive '" + title() + "': " + e.getMessage());
     }
@@ -5073,6 +5303,9 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
         copyNode(ecn, nodeCopy);
       }
     }
+    if (nodeCopy.isNodeType(ECD_CLOUDFILE)) {
+      fileIndex.add(fileAPI.getId(nodeCopy), nodeCopy);
+    }
     return nodeCopy;
   }
 
@@ -5163,8 +5396,8 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
   }
 
   /**
-   * Find local node using JCR SQL query by file id. Note, it will search only persisted nodes - not saved
-   * files cannot be found in JCR.
+   * Find local node by file id. Note, it will find only nodes visible to the drive session: not saved files
+   * created in other sessions cannot be found.
    *
    * @param id {@link String}
    * @return {@link Node}
@@ -5172,27 +5405,17 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
    * @throws DriveRemovedException the drive removed exception
    */
   protected Node findNode(String id) throws RepositoryException, DriveRemovedException {
-
-    Node rootNode = rootNode();
-    if (fileAPI.getId(rootNode).equals(id)) {
-      return rootNode;
-    } else {
-      QueryManager qm = rootNode.getSession().getWorkspace().getQueryManager();
-      Query q = qm.createQuery("SELECT * FROM " + ECD_CLOUDFILE + " WHERE ecd:id='" + id + "' AND jcr:path LIKE '"
-          + rootNode.getPath() + "/%'", Query.SQL);
-      QueryResult qr = q.execute();
-      NodeIterator nodes = qr.getNodes();
-      if (nodes.hasNext()) {
-        return ensureOwned(nodes.nextNode());
-      }
+    Iterator<Node> nodes = findNodes(Collections.singleton(id)).iterator();
+    if (nodes.hasNext()) {
+      return ensureOwned(nodes.next());
     }
     return null;
   }
 
   /**
-   * Find local nodes using JCR SQL query by array of file ids. Note, it will search only persisted nodes -
-   * not saved
-   * files cannot be found in JCR.
+   * Find local nodes by file ids using the drive {@link FileIndex}. Files not complete in the index will be
+   * searched by a query and then added to the index. Note, it will find only nodes visible to the drive
+   * session: not saved files created in other sessions cannot be found.
    *
    * @param ids {@link Collection} of {@link String}
    * @return {@link Collection} of nodes
@@ -5204,32 +5427,89 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
     Set<Node> res = new LinkedHashSet<Node>();
 
     Node rootNode = rootNode();
-    if (ids.contains(fileAPI.getId(rootNode))) {
-      res.add(rootNode);
+    String rootId = fileAPI.getId(rootNode);
+    String rootPath = rootNode.getPath() + "/";
+    ExtendedSession session = (ExtendedSession) rootNode.getSession();
+    ExtendedSession systemSession = null;
+
+    indexNodes(rootNode, ids);
+
+    for (String id : ids) {
+      if (rootId.equals(id)) {
+        res.add(rootNode);
+      } else {
+        for (String identifier : fileIndex.get(id)) {
+          try {
+            Node node = session.getNodeByIdentifier(identifier);
+            if (node.getPath().startsWith(rootPath) && node.isNodeType(ECD_CLOUDFILE)
+                && id.equals(fileAPI.getId(node))) {
+              fileIndex.found(node);
+              res.add(node);
+            } else {
+              // moved outside the drive or it is not a file anymore
+              fileIndex.stale(id, identifier);
+            }
+          } catch (ItemNotFoundException e) {
+            // the node can be removed in this session but not yet saved, check it in a system session
+            if (systemSession == null) {
+              systemSession = (ExtendedSession) rootNode(true).getSession();
+            }
+            try {
+              systemSession.getNodeByIdentifier(identifier);
+            } catch (ItemNotFoundException se) {
+              fileIndex.notFound(id, identifier);
+            }
+          }
+        }
+      }
     }
 
-    QueryManager qm = rootNode.getSession().getWorkspace().getQueryManager();
+    return res;
+  }
 
+  /**
+   * Query nodes of given files not complete in the drive {@link FileIndex} and load them to the index. Files
+   * not found in the storage will not be added to the index.
+   *
+   * @param rootNode the drive root node
+   * @param ids {@link Collection} of file ids
+   * @throws RepositoryException the repository exception
+   */
+  protected void indexNodes(Node rootNode, Collection<String> ids) throws RepositoryException {
+    String rootId = fileAPI.getId(rootNode);
     StringBuilder idstmt = new StringBuilder();
-    for (Iterator<String> ii = ids.iterator(); ii.hasNext();) {
-      String id = ii.next();
-      idstmt.append("ecd:id='");
-      idstmt.append(id);
-      idstmt.append('\'');
-      if (ii.hasNext()) {
-        idstmt.append(" OR ");
+    for (String id : ids) {
+      if (!rootId.equals(id) && !fileIndex.isComplete(id)) {
+        if (idstmt.length() > 0) {
+          idstmt.append(" OR ");
+        }
+        idstmt.append("ecd:id='");
+        idstmt.append(id);
+        idstmt.append('\'');
       }
     }
 
-    Query q = qm.createQuery("SELECT * FROM " + ECD_CLOUDFILE + " WHERE " + idstmt + " AND jcr:path LIKE '"
-        + rootNode.getPath() + "/%'", Query.SQL);
-    QueryResult qr = q.execute();
+    if (idstmt.length() > 0) {
+      QueryManager qm = rootNode.getSession().getWorkspace().getQueryManager();
+      Query q = qm.createQuery("SELECT * FROM " + ECD_CLOUDFILE + " WHERE (" + idstmt + ") AND jcr:path LIKE '"
+          + rootNode.getPath() + "/%'", Query.SQL);
+      QueryResult qr = q.execute();
 
-    for (NodeIterator niter = qr.getNodes(); niter.hasNext();) {
-      res.add(niter.nextNode());
+      Map<String, List<String>> found = new LinkedHashMap<String, List<String>>();
+      for (NodeIterator niter = qr.getNodes(); niter.hasNext();) {
+        Node node = niter.nextNode();
+        String id = fileAPI.getId(node);
+        List<String> identifiers = found.get(id);
+        if (identifiers == null) {
+          identifiers = new ArrayList<String>();
+          found.put(id, identifiers);
+        }
+        identifiers.add(FileIndex.identifier(node));
+      }
+      for (Map.Entry<String, List<String>> fe : found.entrySet()) {
+        fileIndex.load(fe.getKey(), fe.getValue());
+      }
     }
-
-    return res;
   }
 
   /**
@@ -5390,6 +5670,7 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
     }
     node.setProperty("ecd:id", id);
     node.setProperty("ecd:driveUUID", rootUUID);
+    fileIndex.add(id, node);
     // we do tolerantly: set when value available, this also avoid removing existing by a null value
     if (type != null) {
       node.setProperty("ecd:type", type);
@@ -5762,6 +6043,10 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
     } else {
       counter = newCounter.longValue();
     }
+    if (counter == 1) {
+      // file appears in the updating state
+      stateChanged();
+    }
     if (LOG.isDebugEnabled()) {
       LOG.debug(">> addUpdating " + key + " " + counter);
     }
@@ -5781,6 +6066,9 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
       if (counter.decrementAndGet() <= 0) {
         // FYI AtomicLong has no special equals() method, thus value will not be checked the removal
         res = updating.remove(key, counter);
+        if (res) {
+          stateChanged();
+        }
       }
     }
     if (LOG.isDebugEnabled()) {
@@ -5789,6 +6077,16 @@ public abstract class JCRLocalCloudDrive extends CloudDrive implements CloudDriv
     return res;
   }
 
+  /**
+   * Increment the drive state version and notify its waiters.
+   */
+  protected void stateChanged() {
+    synchronized (stateMonitor) {
+      stateVersion++;
+      stateMonitor.notifyAll();
+    }
+  }
+
   /**
    * Check if given drive node is belong to this user already. This method assumes that given node already of
    * cloud drive nodetype (ecd:cloudDrive).
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive.jcr;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hierarchical table of locks on JCR paths. A path is locked exclusively by an owner, a lock waits for a
+ * previous owner of the same path and then for all locks held in the path sub-tree. Locks on disjoint
+ * sub-trees don't wait each other.<br>
+ * Paths are kept in a tree of their segments, each tree entry counts locks held in its sub-tree, thus a
+ * conflict with descendants found in O(depth) of the path. The table lock guards only this bookkeeping,
+ * waiting is done on a condition of the path entry and doesn't hold the table lock. Entries without locks
+ * and waiters are removed from the tree.<br>
+ * Created by The eXo Platform SAS.
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: PathLocks.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class PathLocks {
+
+  /**
+   * Entry of a path segment in the tree.
+   */
+  class Entry {
+
+    /** The segment name. */
+    final String             name;
+
+    /** The parent entry. */
+    final Entry              parent;
+
+    /** The child entries. */
+    final Map<String, Entry> children = new HashMap<String, Entry>();
+
+    /** Released lock condition of this entry or its sub-tree. */
+    final Condition          released = lock.newCondition();
+
+    /** Current owner of the entry path lock. */
+    Object                   owner;
+
+    /** Number of locks held in the sub-tree including this entry. */
+    int                      locked;
+
+    /** Number of locks held or awaited in the sub-tree including this entry. */
+    int                      refs;
+
+    /**
+     * Instantiates a new entry.
+     *
+     * @param name the name
+     * @param parent the parent
+     */
+    Entry(String name, Entry parent) {
+      this.name = name;
+      this.parent = parent;
+    }
+  }
+
+  /** The table lock. */
+  protected final ReentrantLock lock = new ReentrantLock();
+
+  /** The root entry. */
+  protected final Entry         root = new Entry("", null);
+
+  /**
+   * Lock given path by the owner. This method waits for a previous owner of the same path and then for locks
+   * held in the path sub-tree.
+   *
+   * @param path {@link String} JCR path
+   * @param owner {@link Object} lock owner
+   * @throws InterruptedException if current thread was interrupted while waiting
+   */
+  public void lock(String path, Object owner) throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      Entry entry = entry(path);
+      for (Entry e = entry; e != null; e = e.parent) {
+        e.refs++;
+      }
+      boolean owned = false;
+      try {
+        while (entry.owner != null) {
+          entry.released.await();
+        }
+        entry.owner = owner;
+        owned = true;
+        for (Entry e = entry; e != null; e = e.parent) {
+          e.locked++;
+        }
+        // wait for locks held in the sub-tree
+        while (entry.locked > 1) {
+          entry.released.await();
+        }
+      } catch (InterruptedException e) {
+        if (owned) {
+          release(entry);
+        } else {
+          unref(entry);
+          // let next waiter on this path to try
+          entry.released.signalAll();
+        }
+        throw e;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Unlock given path if it is locked by the owner. Does nothing if the path not locked by this owner.
+   *
+   * @param path {@link String} JCR path
+   * @param owner {@link Object} lock owner
+   * @return <code>true</code> if lock was released, <code>false</code> otherwise
+   */
+  public boolean unlock(String path, Object owner) {
+    lock.lock();
+    try {
+      Entry entry = find(path);
+      if (entry != null && entry.owner == owner) {
+        release(entry);
+        return true;
+      }
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Check if given path locked.
+   *
+   * @param path {@link String} JCR path
+   * @return <code>true</code> if path locked, <code>false</code> otherwise
+   */
+  public boolean isLocked(String path) {
+    lock.lock();
+    try {
+      Entry entry = find(path);
+      return entry != null && entry.owner != null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // ******* internals *******
+
+  /**
+   * Release the lock of an entry and signal waiters on it and its ancestors. Should be called under the table
+   * lock.
+   *
+   * @param entry {@link Entry}
+   */
+  private void release(Entry entry) {
+    entry.owner = null;
+    for (Entry e = entry; e != null; e = e.parent) {
+      e.locked--;
+      e.released.signalAll();
+    }
+    unref(entry);
+  }
+
+  /**
+   * Decrement references of an entry and its ancestors, remove entries not referenced anymore. Should be
+   * called under the table lock.
+   *
+   * @param entry {@link Entry}
+   */
+  private void unref(Entry entry) {
+    for (Entry e = entry; e != null; e = e.parent) {
+      e.refs--;
+      if (e.refs == 0 && e.parent != null) {
+        e.parent.children.remove(e.name);
+      }
+    }
+  }
+
+  /**
+   * Get or create tree entry of given path. Should be called under the table lock.
+   *
+   * @param path {@link String}
+   * @return {@link Entry}
+   */
+  private Entry entry(String path) {
+    Entry entry = root;
+    for (String name : path.split("/")) {
+      if (name.length() > 0) {
+        Entry child = entry.children.get(name);
+        if (child == null) {
+          child = new Entry(name, entry);
+          entry.children.put(name, child);
+        }
+        entry = child;
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Find tree entry of given path. Should be called under the table lock.
+   *
+   * @param path {@link String}
+   * @return {@link Entry} or <code>null</code> if not found
+   */
+  private Entry find(String path) {
+    Entry entry = root;
+    for (String name : path.split("/")) {
+      if (name.length() > 0) {
+        entry = entry.children.get(name);
+        if (entry == null) {
+          break;
+        }
+      }
+    }
+    return entry;
+  }
+}
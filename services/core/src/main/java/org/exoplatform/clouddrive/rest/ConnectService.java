@@ -49,6 +49,7 @@ import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -126,6 +127,28 @@ public class ConnectService implements ResourceContainer {
    */
   public static final int       CONNECT_PROCESS_EXPIRE = 60 * 60 * 1000;                           // 1hr
 
+  /**
+   * Time to wait for the connect progress change in state request, in milliseconds.
+   */
+  public static final long      CONNECT_WAIT_TIMEOUT   = 20000;                                    // 20sec
+
+  /**
+   * Period of the connect progress check while waiting for its change, in milliseconds.
+   */
+  public static final long      CONNECT_WAIT_PERIOD    = 1000;                                     // 1sec
+
+  /**
+   * Maximum number of state requests waiting for the connect progress at the same time. Each waiting request
+   * holds a container thread, requests above this number answered immediately.
+   */
+  public static final int       CONNECT_WAITERS_MAX    = 20;
+
+  /**
+   * Seconds after which a client should request the connect state again if its request was not waiting
+   * (Retry-After header).
+   */
+  public static final String    CONNECT_RETRY_AFTER    = "3";
+
   /** The Constant random. */
   protected static final Random random                 = new Random();
 
@@ -394,6 +417,10 @@ public class ConnectService implements ResourceContainer {
         lock.unlock();
         // log error here as the connect was executed asynchronously
         LOG.error(title + " connect failed.", error);
+        // let state waiters know about the error
+        synchronized (this) {
+          notifyAll();
+        }
       }
     }
 
@@ -408,6 +435,28 @@ public class ConnectService implements ResourceContainer {
       drive.removeListener(this);
 
       LOG.info(title + " successfully connected.");
+
+      // let state waiters know about the connect
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+
+    /**
+     * Wait for the connect progress change, its completion or an error. Progress read from the command
+     * counters periodically, the completion and error notify waiters immediately.
+     *
+     * @param progress the progress known to the caller
+     * @param timeout the time to wait in milliseconds
+     * @throws InterruptedException if current thread was interrupted while waiting
+     */
+    synchronized void awaitProgress(int progress, long timeout) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeout;
+      long wait = timeout;
+      while (error == null && !process.isDone() && process.getProgress() == progress && wait > 0) {
+        wait(Math.min(wait, CONNECT_WAIT_PERIOD));
+        wait = deadline - System.currentTimeMillis();
+      }
     }
   }
 
@@ -482,6 +531,9 @@ public class ConnectService implements ResourceContainer {
   /** The connects cleaner. */
   protected final ScheduledExecutorService    connectsCleaner;
 
+  /** Permits of state requests waiting for the connect progress. */
+  protected final Semaphore                   connectWaiters = new Semaphore(CONNECT_WAITERS_MAX);
+
   /**
    * REST cloudDrives uses {@link CloudDriveService} for actual job.
    *
@@ -697,26 +749,49 @@ public class ConnectService implements ResourceContainer {
   }
 
   /**
-   * Return drive connect status.
+   * Return drive connect status. If progress known to the client given, the request will wait for its change
+   * (or the connect completion) up to {@link #CONNECT_WAIT_TIMEOUT} before answering (long-polling). If
+   * already {@link #CONNECT_WAITERS_MAX} requests wait, the request will be answered immediately with
+   * Retry-After header.
    *
    * @param uriInfo the uri info
    * @param workspace the workspace
    * @param path the path
+   * @param progressParam the progress known to the client, optional
    * @return {@link Response}
    */
   @GET
   @RolesAllowed("users")
   public Response connectState(@Context UriInfo uriInfo,
                                @QueryParam("workspace") String workspace,
-                               @QueryParam("path") String path) {
+                               @QueryParam("path") String path,
+                               @QueryParam("progress") String progressParam) {
 
     ConnectResponse resp = new ConnectResponse();
-    resp.serviceUrl(uriInfo.getRequestUri().toASCIIString());
+    // client adds the progress itself
+    resp.serviceUrl(uriInfo.getRequestUriBuilder().replaceQueryParam("progress").build().toASCIIString());
 
     String processId = processId(workspace, path);
     try {
       ConnectProcess connect = active.get(processId);
       if (connect != null) {
+        if (progressParam != null) {
+          try {
+            int knownProgress = Integer.parseInt(progressParam);
+            if (connectWaiters.tryAcquire()) {
+              try {
+                connect.awaitProgress(knownProgress, CONNECT_WAIT_TIMEOUT);
+              } finally {
+                connectWaiters.release();
+              }
+            } else {
+              // too many waiting requests, don't hold this thread
+              resp.addHeader("Retry-After", CONNECT_RETRY_AFTER);
+            }
+          } catch (NumberFormatException e) {
+            // answer immediately
+          }
+        }
         // connect in progress or recently finished
         int progress = connect.process.getProgress();
         resp.progress(progress);
@@ -780,6 +855,10 @@ public class ConnectService implements ResourceContainer {
           resp.error("Error reading connected drive: storage error.").status(Status.INTERNAL_SERVER_ERROR);
         }
       }
+    } catch (InterruptedException e) {
+      LOG.warn("Interrupted waiting for state of drive '" + processId + "'");
+      Thread.currentThread().interrupt();
+      resp.error("Request interrupted.").status(Status.SERVICE_UNAVAILABLE);
     } catch (Throwable e) {
       LOG.error("Error getting state of drive '" + processId + "'. ", e);
       resp.error("Error getting state of drive.").status(Status.INTERNAL_SERVER_ERROR);
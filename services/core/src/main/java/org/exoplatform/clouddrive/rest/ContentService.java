@@ -22,7 +22,10 @@ import org.exoplatform.clouddrive.CloudDrive;
 import org.exoplatform.clouddrive.CloudDriveException;
 import org.exoplatform.clouddrive.CloudDriveService;
 import org.exoplatform.clouddrive.CloudDriveStorage;
+import org.exoplatform.clouddrive.CloudFile;
 import org.exoplatform.clouddrive.DriveRemovedException;
+import org.exoplatform.clouddrive.NotCloudDriveException;
+import org.exoplatform.clouddrive.NotCloudFileException;
 import org.exoplatform.clouddrive.NotFoundException;
 import org.exoplatform.clouddrive.features.CloudDriveFeatures;
 import org.exoplatform.clouddrive.utils.ExtendedMimeTypeResolver;
@@ -32,6 +35,7 @@ import org.exoplatform.clouddrive.viewer.ViewerStorage;
 import org.exoplatform.clouddrive.viewer.ViewerStorage.ContentFile;
 import org.exoplatform.clouddrive.viewer.ViewerStorage.PDFFile;
 import org.exoplatform.clouddrive.viewer.ViewerStorage.PDFFile.ImageFile;
+import org.exoplatform.clouddrive.viewer.ViewerStorage.Priority;
 import org.exoplatform.container.PortalContainer;
 import org.exoplatform.services.jcr.RepositoryService;
 import org.exoplatform.services.jcr.ext.app.SessionProviderService;
@@ -39,20 +43,35 @@ import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.services.rest.resource.ResourceContainer;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.annotation.security.RolesAllowed;
 import javax.jcr.LoginException;
+import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
 
 /**
  * RESTful service to access file content in Cloud Drive operations.<br>
@@ -74,6 +93,21 @@ public class ContentService implements ResourceContainer {
     SERVICE_PATH = restPath.value();
   }
 
+  /** HTTP status 206 Partial Content. */
+  protected static final int    STATUS_PARTIAL_CONTENT       = 206;
+
+  /** HTTP status 416 Requested Range Not Satisfiable. */
+  protected static final int    STATUS_RANGE_NOT_SATISFIABLE = 416;
+
+  /** Date format of HTTP headers (RFC 1123). */
+  protected static final String HTTP_DATE_FORMAT             = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+  /** Seconds after which a client should request again a PDF being created (Retry-After header). */
+  protected static final String PDF_RETRY_AFTER              = "2";
+
+  /** Marker of a range outside the content. */
+  protected static final long[] UNSATISFIABLE_RANGE          = new long[0];
+
   /** The features. */
   protected final CloudDriveFeatures     features;
 
@@ -119,7 +153,7 @@ public class ContentService implements ResourceContainer {
    * @param path {@link String}
    * @param fileId {@link String}
    * @return {@link String}
-   * @see #get(String, String, String)
+   * @see #get(Request, String, String, String, String, String)
    */
   public static String contentLink(String workspace, String path, String fileId) {
     StringBuilder linkPath = new StringBuilder();
@@ -157,7 +191,7 @@ public class ContentService implements ResourceContainer {
    *
    * @param contentLink {@link String}
    * @return {@link String}
-   * @see #get(String, String, String)
+   * @see #get(Request, String, String, String, String, String)
    */
   public static String pdfLink(String contentLink) {
     return contentLink.replace(ContentService.SERVICE_PATH, ContentService.SERVICE_PATH + "/pdf");
@@ -169,27 +203,35 @@ public class ContentService implements ResourceContainer {
    *
    * @param contentLink {@link String}
    * @return {@link String}
-   * @see #get(String, String, String)
+   * @see #get(Request, String, String, String, String, String)
    */
   public static String pdfPageLink(String contentLink) {
     return contentLink.replace(ContentService.SERVICE_PATH, ContentService.SERVICE_PATH + "/pdf/page");
   }
 
   /**
-   * Return file content reading it from cloud side.<br>
+   * Return file content reading it from cloud side. Requests of a byte range (single range in HTTP
+   * <code>Range</code> header) will be answered with 206 Partial Content, conditional requests (
+   * <code>If-None-Match</code>, <code>If-Modified-Since</code>, <code>If-Match</code> etc.) evaluated against
+   * the file ID and its modified date in the drive, without requesting the cloud provider.<br>
    *
+   * @param request the request
    * @param workspace the workspace
    * @param path the path
    * @param contentId the content id
+   * @param rangeHeader the range header
+   * @param ifRange the if-range header
    * @return the response
    */
   @GET
   @Path("/{workspace}/{path:.*}")
   @RolesAllowed("users")
-  public Response get(@PathParam("workspace") String workspace,
+  public Response get(@Context Request request,
+                      @PathParam("workspace") String workspace,
                       @PathParam("path") String path,
-                      @QueryParam("contentId") String contentId) {
-    // TODO support for range and if-modified, if-match... in WebDAV fashion, for browser players etc.
+                      @QueryParam("contentId") String contentId,
+                      @HeaderParam("Range") String rangeHeader,
+                      @HeaderParam("If-Range") String ifRange) {
     if (workspace != null) {
       if (path != null) {
         path = normalizePath(path);
@@ -197,13 +239,65 @@ public class ContentService implements ResourceContainer {
           try {
             CloudDrive drive = cloudDrives.findDrive(workspace, path);
             if (drive != null) {
-              ContentReader content = ((CloudDriveStorage) drive).getFileContent(contentId);
+              // validators from the file in the drive, if it is the file of the content
+              CloudFile file = contentFile(drive, path, contentId);
+              EntityTag etag;
+              Date lastModified;
+              long size;
+              if (file != null) {
+                // HTTP dates have precision of seconds
+                lastModified = new Date(file.getModifiedDate().getTimeInMillis() / 1000 * 1000);
+                etag = new EntityTag(contentTag(contentId, lastModified));
+                ResponseBuilder preconditions = request.evaluatePreconditions(lastModified, etag);
+                if (preconditions != null) {
+                  // 304 Not Modified or 412 Precondition Failed
+                  return preconditions.tag(etag).lastModified(lastModified).build();
+                }
+                size = file.getSize();
+              } else {
+                etag = null;
+                lastModified = null;
+                size = -1;
+              }
+
+              long[] range;
+              if (rangeHeader != null && size > 0 && isRangeActual(ifRange, etag, lastModified)) {
+                range = parseRange(rangeHeader, size);
+                if (range == UNSATISFIABLE_RANGE) {
+                  return Response.status(STATUS_RANGE_NOT_SATISFIABLE)
+                                 .header("Content-Range", "bytes */" + size)
+                                 .build();
+                }
+              } else {
+                range = null;
+              }
+
+              CloudDriveStorage storage = (CloudDriveStorage) drive;
+              ContentReader content;
+              if (range != null) {
+                content = storage.getFileContent(contentId, range[0], range[1] - range[0] + 1);
+              } else {
+                content = storage.getFileContent(contentId);
+              }
               if (content != null) {
-                ResponseBuilder resp = Response.ok().entity(content.getStream());
+                ResponseBuilder resp;
+                if (range != null) {
+                  resp = Response.status(STATUS_PARTIAL_CONTENT).entity(content.getStream());
+                  resp.header("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+                } else {
+                  resp = Response.ok().entity(content.getStream());
+                }
                 long len = content.getLength();
                 if (len >= 0) {
                   resp.header("Content-Length", len);
                 }
+                if (size > 0) {
+                  resp.header("Accept-Ranges", "bytes");
+                }
+                if (etag != null) {
+                  resp.tag(etag);
+                  resp.lastModified(lastModified);
+                }
                 resp.type(content.getMimeType());
                 String typeMode = content.getTypeMode();
                 if (typeMode != null && typeMode.length() > 0) {
@@ -307,9 +401,17 @@ public class ContentService implements ResourceContainer {
                   page = 1;
                 }
 
-                ImageFile image = pdfFile.getPageImage(page, rotation, scale);
+                final ImageFile image = pdfFile.getPageImage(page, rotation, scale);
+                // next pages will be ready for page turns
+                pdfFile.prefetchPages(page, rotation, scale);
 
-                return Response.ok(image.getStream(), image.getType())
+                StreamingOutput output = new StreamingOutput() {
+                  @Override
+                  public void write(OutputStream out) throws IOException {
+                    image.writeTo(out);
+                  }
+                };
+                return Response.ok(output, image.getType())
                                .header("Last-Modified", pdfFile.getLastModified())
                                .header("Content-Length", image.getLength())
                                .header("Content-Disposition", "inline; filename=\"" + image.getName() + "\"")
@@ -355,21 +457,30 @@ public class ContentService implements ResourceContainer {
   }
 
   /**
-   * Return cloud file representation reading it from local PDF storage. File
-   * should be previously created in the storage to be successfully returned by this method, an empty response
-   * (204 No Content) will be returned otherwise.<br>
+   * Return cloud file representation reading it from local PDF storage. If the file not yet in the storage,
+   * it will be created (with conversion to PDF if required) and returned in the response. If the file
+   * requested in advance (<code>prefetch</code> parameter), its creation will be started in background and
+   * 202 Accepted response returned at once: the client may request the same URL (see Location header) again
+   * after a delay (see Retry-After header). If too many files wait for creation, 503 Service Unavailable
+   * will be returned. If the file cannot be found in the drive, an empty response (204 No Content) will be
+   * returned.<br>
    *
+   * @param uriInfo the uri info
    * @param workspace the workspace
    * @param path the path
    * @param contentId the content id
+   * @param prefetch if <code>true</code> the file requested in advance, it will be created in background
+   *          after ones requested for viewing
    * @return the pdf
    */
   @GET
   @Path("/pdf/{workspace}/{path:.*}")
   @RolesAllowed("users")
-  public Response getPDF(@PathParam("workspace") String workspace,
+  public Response getPDF(@Context UriInfo uriInfo,
+                         @PathParam("workspace") String workspace,
                          @PathParam("path") String path,
-                         @QueryParam("contentId") String contentId) {
+                         @QueryParam("contentId") String contentId,
+                         @DefaultValue("false") @QueryParam("prefetch") boolean prefetch) {
     if (workspace != null) {
       if (path != null) {
         path = normalizePath(path);
@@ -378,9 +489,34 @@ public class ContentService implements ResourceContainer {
             CloudDrive drive = cloudDrives.findDrive(workspace, path);
             if (drive != null) {
               String repository = jcrService.getCurrentRepository().getConfiguration().getName();
-              ContentFile viewFile = viewerStorage.getFile(repository, workspace, drive, contentId);
+              ContentFile viewFile;
+              CloudFile file = contentFile(drive, path, contentId);
+              if (file != null) {
+                if (prefetch) {
+                  viewFile = viewerStorage.startFile(repository, workspace, drive, file, Priority.PREFETCH);
+                  if (viewFile == null) {
+                    // being created in background, the client may poll for it
+                    return Response.status(Status.ACCEPTED)
+                                   .header("Retry-After", PDF_RETRY_AFTER)
+                                   .header("Location", uriInfo.getRequestUri().toString())
+                                   .entity("Cloud file PDF representation is being created.")
+                                   .build();
+                  }
+                } else {
+                  viewFile = viewerStorage.createFile(repository, workspace, drive, file);
+                }
+              } else {
+                viewFile = viewerStorage.getFile(repository, workspace, drive, contentId);
+              }
               if (viewFile != null && viewFile.isPDF()) {
-                ResponseBuilder resp = Response.ok(viewFile.getStream(), viewFile.getMimeType())
+                final ContentFile pdfFile = viewFile;
+                StreamingOutput output = new StreamingOutput() {
+                  @Override
+                  public void write(OutputStream out) throws IOException {
+                    pdfFile.writeTo(out);
+                  }
+                };
+                ResponseBuilder resp = Response.ok(output, viewFile.getMimeType())
                                                .header("Last-Modified", viewFile.getLastModified())
                                                .header("Content-Length", viewFile.getLength());
                 resp.header("Content-Disposition", "attachment; filename=\"" + viewFile.getName() + "\"");
@@ -392,6 +528,13 @@ public class ContentService implements ResourceContainer {
               }
             }
             return Response.status(Status.BAD_REQUEST).entity("No cloud file or content not available.").build();
+          } catch (RejectedExecutionException e) {
+            LOG.warn("Cannot start creation of cloud file PDF representation " + workspace + ":" + path + ": "
+                + e.getMessage());
+            return Response.status(Status.SERVICE_UNAVAILABLE)
+                           .header("Retry-After", PDF_RETRY_AFTER)
+                           .entity("Too many cloud files PDF representations being created.")
+                           .build();
           } catch (DocumentNotFoundException e) {
             LOG.error("Error reading cloud file PDF representation " + workspace + ":" + path + ": " + e.getMessage());
             return Response.status(Status.NOT_FOUND).entity("Cloud file PDF representation not found.").build();
@@ -425,6 +568,125 @@ public class ContentService implements ResourceContainer {
     }
   }
 
+  /**
+   * Cloud file of given content in the drive.
+   *
+   * @param drive {@link CloudDrive}
+   * @param path {@link String} file path
+   * @param contentId {@link String} content (file) ID
+   * @return {@link CloudFile} or <code>null</code> if no such file found at the path
+   * @throws DriveRemovedException the drive removed exception
+   * @throws RepositoryException the repository exception
+   */
+  protected CloudFile contentFile(CloudDrive drive, String path, String contentId) throws DriveRemovedException,
+                                                                                   RepositoryException {
+    try {
+      CloudFile file = drive.getFile(path);
+      if (contentId.equals(file.getId()) && file.getModifiedDate() != null) {
+        return file;
+      }
+    } catch (NotCloudDriveException e) {
+      // not a file of this drive
+    } catch (NotCloudFileException e) {
+      // not a cloud file or it is being created
+    } catch (PathNotFoundException e) {
+      // path isn't a node (e.g. a virtual path)
+    }
+    return null;
+  }
+
+  /**
+   * Entity tag of file content: it changes with the file ID or modification date.
+   *
+   * @param contentId {@link String}
+   * @param lastModified {@link Date}
+   * @return {@link String}
+   */
+  protected String contentTag(String contentId, Date lastModified) {
+    StringBuilder tag = new StringBuilder();
+    tag.append(Integer.toHexString(contentId.hashCode()));
+    tag.append('-');
+    tag.append(Long.toHexString(lastModified.getTime()));
+    return tag.toString();
+  }
+
+  /**
+   * Check if a range requested with <code>If-Range</code> header can be returned: the header should be
+   * absent or match current entity tag or last modified date of the file.
+   *
+   * @param ifRange {@link String} header value, can be <code>null</code>
+   * @param etag {@link EntityTag} current tag, can be <code>null</code>
+   * @param lastModified {@link Date} current last modified date, can be <code>null</code>
+   * @return <code>true</code> if range can be returned, <code>false</code> if whole content should be
+   */
+  protected boolean isRangeActual(String ifRange, EntityTag etag, Date lastModified) {
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      // only strong tags valid for ranges
+      return etag != null && ifRange.equals(etag.toString());
+    }
+    if (lastModified != null) {
+      SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      try {
+        return format.parse(ifRange).getTime() == lastModified.getTime();
+      } catch (ParseException e) {
+        // wrong date: return whole content
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parse HTTP <code>Range</code> header of a single byte range. Multiple ranges not supported, a whole
+   * content should be returned for them as for wrong header.
+   *
+   * @param rangeHeader {@link String} header value
+   * @param size content size in bytes
+   * @return array of first and last byte positions (inclusive), {@link #UNSATISFIABLE_RANGE} if range
+   *         outside the content or <code>null</code> if header cannot be used
+   */
+  protected long[] parseRange(String rangeHeader, long size) {
+    rangeHeader = rangeHeader.trim();
+    if (rangeHeader.startsWith("bytes=") && rangeHeader.indexOf(',') < 0) {
+      String spec = rangeHeader.substring(6).trim();
+      int dash = spec.indexOf('-');
+      if (dash >= 0) {
+        try {
+          long first, last;
+          if (dash == 0) {
+            // suffix range: last N bytes
+            long suffix = Long.parseLong(spec.substring(1).trim());
+            if (suffix <= 0) {
+              return UNSATISFIABLE_RANGE;
+            }
+            first = Math.max(size - suffix, 0);
+            last = size - 1;
+          } else {
+            first = Long.parseLong(spec.substring(0, dash).trim());
+            String lastSpec = spec.substring(dash + 1).trim();
+            last = lastSpec.length() > 0 ? Long.parseLong(lastSpec) : size - 1;
+            if (lastSpec.length() > 0 && last < first) {
+              // syntactically invalid range: ignore it
+              return null;
+            }
+          }
+          if (first >= size) {
+            return UNSATISFIABLE_RANGE;
+          }
+          // last position can be beyond the content, it means till its end
+          return new long[] { first, Math.min(last, size - 1) };
+        } catch (NumberFormatException e) {
+          // wrong range: return whole content
+        }
+      }
+    }
+    return null;
+  }
+
   /**
    * Normalize JCR path (as eXo WebDAV does).
    * 
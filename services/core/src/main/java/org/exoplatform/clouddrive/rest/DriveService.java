@@ -23,6 +23,7 @@ import org.exoplatform.clouddrive.CloudDrive.Command;
 import org.exoplatform.clouddrive.CloudDriveException;
 import org.exoplatform.clouddrive.CloudDriveMessage;
 import org.exoplatform.clouddrive.CloudDriveService;
+import org.exoplatform.clouddrive.CloudDriveServiceImpl;
 import org.exoplatform.clouddrive.CloudFile;
 import org.exoplatform.clouddrive.CloudProvider;
 import org.exoplatform.clouddrive.DriveRemovedException;
@@ -41,7 +42,12 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.security.RolesAllowed;
 import javax.jcr.AccessDeniedException;
@@ -80,6 +86,34 @@ public class DriveService implements ResourceContainer {
   /** The Constant CONTENT_SUFIX. */
   protected static final String          CONTENT_SUFIX = "/jcr:content";
 
+  /**
+   * Default time to wait for the drive state change in milliseconds.
+   */
+  public static final long               STATE_WAIT_TIMEOUT     = 30000;                             // 30sec
+
+  /**
+   * Maximum time to wait for the drive state change in milliseconds.
+   */
+  public static final long               STATE_WAIT_MAX_TIMEOUT = 60000;                             // 1min
+
+  /**
+   * Time to wait for nudged scheduled synchronization in milliseconds, if it will not complete in this time
+   * the current state of the drive will be returned.
+   */
+  public static final long               SYNC_WAIT_TIMEOUT      = 5000;                              // 5sec
+
+  /**
+   * Maximum number of requests waiting for drives state change at the same time. Each waiting request holds
+   * a container thread, requests above this number answered immediately.
+   */
+  public static final int                STATE_WAITERS_MAX      = 50;
+
+  /**
+   * Seconds after which a client should request the state changes again if its request was not waiting
+   * (Retry-After header).
+   */
+  public static final String             STATE_RETRY_AFTER      = "10";
+
   /** The cloud drives. */
   protected final CloudDriveService      cloudDrives;
 
@@ -89,6 +123,9 @@ public class DriveService implements ResourceContainer {
   /** The session providers. */
   protected final SessionProviderService sessionProviders;
 
+  /** Permits of requests waiting for drives state change. */
+  protected final Semaphore              stateWaiters = new Semaphore(STATE_WAITERS_MAX);
+
   /**
    * REST cloudDrives uses {@link CloudDriveService} for actual job.
    * 
@@ -130,7 +167,9 @@ public class DriveService implements ResourceContainer {
   }
 
   /**
-   * Synchronized cloud drive or its file/folder and return result for client refresh.
+   * Synchronized cloud drive or its file/folder and return result for client refresh. If the drive is
+   * auto-synchronized on the server, this only nudges its scheduled synchronization and returns its result
+   * if it completes shortly, otherwise current state of the drive will be returned.
    *
    * @param uriInfo {@link UriInfo}
    * @param workspace {@link String} Drive Node workspace
@@ -169,16 +208,17 @@ public class DriveService implements ResourceContainer {
     try {
       CloudDrive local = cloudDrives.findDrive(workspace, path);
       if (local != null) {
-        Collection<CloudFile> files;
-        Collection<String> removed;
-        Collection<CloudDriveMessage> messages;
+        Collection<CloudFile> files = null;
+        Collection<String> removed = null;
+        Collection<CloudDriveMessage> messages = null;
         if (synchronize) {
           try {
-            Command sync = local.synchronize();
-            sync.await(); // wait for sync process
-            files = sync.getFiles();
-            removed = sync.getRemoved();
-            messages = sync.getMessages();
+            Command sync = awaitSynchronization(local);
+            if (sync != null) {
+              files = sync.getFiles();
+              removed = sync.getRemoved();
+              messages = sync.getMessages();
+            }
           } catch (InterruptedException e) {
             LOG.warn("Caller of synchronization command interrupted.", e);
             Thread.currentThread().interrupt();
@@ -232,7 +272,9 @@ public class DriveService implements ResourceContainer {
                            .entity(ErrorEntiry.message("Error synchronizing drive. " + e.getMessage()))
                            .build();
           }
-        } else {
+        }
+        if (files == null) {
+          // not asked to synchronize or scheduled synchronization still running: read current state
           files = new ArrayList<CloudFile>();
           removed = Collections.emptyList();
           messages = Collections.emptyList();
@@ -292,6 +334,41 @@ public class DriveService implements ResourceContainer {
     }
   }
 
+  /**
+   * Nudge scheduled synchronization of the drive and wait for it not longer of {@link #SYNC_WAIT_TIMEOUT}.
+   * If the drive isn't auto-synchronized (or its synchronization was canceled) it will be synchronized
+   * directly.
+   *
+   * @param local {@link CloudDrive}
+   * @return {@link Command} of completed synchronization or <code>null</code> if scheduled synchronization
+   *         not completed in {@link #SYNC_WAIT_TIMEOUT}
+   * @throws CloudDriveException if cannot start synchronization
+   * @throws RepositoryException if storage error happen
+   * @throws ExecutionException if synchronization failed
+   * @throws InterruptedException if the caller thread interrupted
+   */
+  protected Command awaitSynchronization(CloudDrive local) throws CloudDriveException,
+                                                          RepositoryException,
+                                                          ExecutionException,
+                                                          InterruptedException {
+    if (cloudDrives instanceof CloudDriveServiceImpl) {
+      Future<Command> scheduled = ((CloudDriveServiceImpl) cloudDrives).getSyncScheduler().nudge(local);
+      if (scheduled != null) {
+        try {
+          return scheduled.get(SYNC_WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          // it is queued or running, the client will get its result on next drive read
+          return null;
+        } catch (CancellationException e) {
+          // synchronize directly
+        }
+      }
+    }
+    Command sync = local.synchronize();
+    sync.await(); // wait for sync process
+    return sync;
+  }
+
   /**
    * Return file information. Returned file may be not yet created in cloud (accepted for
    * creation), then this service response will be with status ACCEPTED, otherwise it's OK response.
@@ -524,4 +601,120 @@ public class DriveService implements ResourceContainer {
     }
   }
 
+  /**
+   * Wait for the drive state change and return its new state (long-polling). Request returns when the drive
+   * state version differs from given one, or with 204 No Content when the timeout elapsed without changes.
+   * Waiting request doesn't read the drive storage and doesn't consume CPU, but it holds a container thread:
+   * if already {@link #STATE_WAITERS_MAX} requests wait, the request will be answered immediately with
+   * Retry-After header, the client should request again after that time. If version not given, current
+   * state returned immediately.
+   *
+   * @param uriInfo {@link UriInfo}
+   * @param workspace {@link String} Drive Node workspace
+   * @param path {@link String} Drive Node path
+   * @param versionParam {@link String} state version known to the client
+   * @param timeoutParam {@link String} time to wait in milliseconds
+   * @return {@link Response} with {@link DriveStateInfo} entity
+   */
+  @GET
+  @Path("/state/changes/")
+  @RolesAllowed("users")
+  public Response getStateChanges(@Context UriInfo uriInfo,
+                                  @QueryParam("workspace") String workspace,
+                                  @QueryParam("path") String path,
+                                  @QueryParam("version") String versionParam,
+                                  @QueryParam("timeout") String timeoutParam) {
+
+    if (workspace != null) {
+      if (path != null) {
+        try {
+          CloudDrive local = cloudDrives.findDrive(workspace, path);
+          if (local != null) {
+            long version;
+            boolean waited = false;
+            if (versionParam != null) {
+              long timeout;
+              try {
+                timeout = timeoutParam != null ? Long.parseLong(timeoutParam) : STATE_WAIT_TIMEOUT;
+                if (timeout > STATE_WAIT_MAX_TIMEOUT) {
+                  timeout = STATE_WAIT_MAX_TIMEOUT;
+                } else if (timeout < 0) {
+                  timeout = 0;
+                }
+                long knownVersion = Long.parseLong(versionParam);
+                if (stateWaiters.tryAcquire()) {
+                  try {
+                    version = local.awaitStateChange(knownVersion, timeout);
+                    waited = true;
+                  } finally {
+                    stateWaiters.release();
+                  }
+                } else {
+                  // too many waiting requests, don't hold this thread
+                  version = local.getStateVersion();
+                }
+              } catch (NumberFormatException e) {
+                return Response.status(Status.BAD_REQUEST)
+                               .entity(ErrorEntiry.message("Wrong version or timeout"))
+                               .build();
+              }
+              if (String.valueOf(version).equals(versionParam)) {
+                // not changed
+                ResponseBuilder resp = Response.status(Status.NO_CONTENT);
+                if (!waited) {
+                  resp.header("Retry-After", STATE_RETRY_AFTER);
+                }
+                return resp.build();
+              }
+            } else {
+              version = local.getStateVersion();
+            }
+            try {
+              return Response.status(Status.OK).entity(new DriveStateInfo(version, local.getState())).build();
+            } catch (RefreshAccessException e) {
+              Throwable cause = e.getCause();
+              LOG.warn("Access to cloud drive expired, forbidden or revoked. " + e.getMessage()
+                  + (cause != null ? ". " + cause.getMessage() : ""));
+              // client should treat this status in special way and obtain new credentials using given
+              // provider
+              return Response.status(Status.FORBIDDEN).entity(local.getUser().getProvider()).build();
+            } catch (CloudDriveException e) {
+              LOG.error("Error getting changes link for drive " + workspace + ":" + path, e);
+              return Response.status(Status.INTERNAL_SERVER_ERROR)
+                             .entity("Error getting changes link. " + e.getMessage())
+                             .build();
+            }
+          } else {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Item " + workspace + ":" + path + " not a cloud file or drive not connected.");
+            }
+            return Response.status(Status.NOT_FOUND)
+                           .entity(ErrorEntiry.notCloudDrive("Not connected", workspace, path))
+                           .build();
+          }
+        } catch (InterruptedException e) {
+          LOG.warn("Interrupted waiting for state of drive " + workspace + ":" + path);
+          Thread.currentThread().interrupt();
+          return Response.status(Status.SERVICE_UNAVAILABLE).entity("Request interrupted.").build();
+        } catch (LoginException e) {
+          LOG.warn("Error login to read drive " + workspace + ":" + path + ". " + e.getMessage());
+          return Response.status(Status.UNAUTHORIZED).entity("Authentication error.").build();
+        } catch (RepositoryException e) {
+          LOG.error("Error reading drive " + workspace + ":" + path, e);
+          return Response.status(Status.INTERNAL_SERVER_ERROR)
+                         .entity("Error reading drive: storage error.")
+                         .build();
+        } catch (Throwable e) {
+          LOG.error("Error reading drive " + workspace + ":" + path, e);
+          return Response.status(Status.INTERNAL_SERVER_ERROR)
+                         .entity("Error reading drive: runtime error.")
+                         .build();
+        }
+      } else {
+        return Response.status(Status.BAD_REQUEST).entity(ErrorEntiry.message("Null path")).build();
+      }
+    } else {
+      return Response.status(Status.BAD_REQUEST).entity(ErrorEntiry.message("Null workspace")).build();
+    }
+  }
 }
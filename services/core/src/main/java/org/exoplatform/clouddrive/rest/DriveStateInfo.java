@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive.rest;
+
+import org.exoplatform.clouddrive.CloudDrive.FilesState;
+
+/**
+ * Bean used for creation of drive state changes entity in JSON.<br>
+ * 
+ * Created by The eXo Platform SAS.
+ * 
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: DriveStateInfo.java 00000 Oct 17, 2016 pnedonosko $
+ * 
+ */
+public class DriveStateInfo {
+
+  /** The version. */
+  final long       version;
+
+  /** The state. */
+  final FilesState state;
+
+  /**
+   * Instantiates a new drive state info.
+   *
+   * @param version the version
+   * @param state the state
+   */
+  DriveStateInfo(long version, FilesState state) {
+    this.version = version;
+    this.state = state;
+  }
+
+  /**
+   * Gets the version of the state.
+   *
+   * @return the version
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Gets the state.
+   *
+   * @return the state
+   */
+  public FilesState getState() {
+    return state;
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive.utils;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter for retries of a single request to a cloud provider. Each next attempt
+ * waits twice longer (with a random part, thus concurrent clients will not retry all at once), but not
+ * less of the time asked by the provider in Retry-After header.<br>
+ * An instance is not thread safe and should be used for a single request.<br>
+ *
+ * Created by The eXo Platform SAS
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: Backoff.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class Backoff {
+
+  /** The Constant RETRY_AFTER header name. */
+  public static final String RETRY_AFTER      = "Retry-After";
+
+  /** Default number of retries. */
+  public static final int    DEFAULT_ATTEMPTS = 5;
+
+  /** Default delay of first retry in milliseconds. */
+  public static final long   DEFAULT_DELAY    = 1000;
+
+  /** Maximal delay between retries in milliseconds. */
+  public static final long   MAX_DELAY        = 60000;
+
+  /**
+   * Tells if request answered with given HTTP status can be retried: rate exceeded (429) or a temporal
+   * server error (500, 502, 503 and 504).
+   *
+   * @param status the HTTP status
+   * @return true, if retry makes sense
+   */
+  public static boolean isRetryable(int status) {
+    return status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+  }
+
+  /**
+   * Tells if request answered with given HTTP status was throttled (429 or 503) and not processed by the
+   * provider. Only such requests can be retried safely if they aren't idempotent, other server errors may
+   * come after the request was already applied.
+   *
+   * @param status the HTTP status
+   * @return true, if request was throttled
+   */
+  public static boolean isThrottled(int status) {
+    return status == 429 || status == 503;
+  }
+
+  /**
+   * Parse Retry-After header value, it can be delay in seconds or HTTP date.
+   *
+   * @param value the header value, can be <code>null</code>
+   * @return the delay in milliseconds, zero if value not given or cannot be parsed
+   */
+  public static long retryAfter(String value) {
+    if (value != null) {
+      value = value.trim();
+      try {
+        return Math.max(0, Long.parseLong(value) * 1000);
+      } catch (NumberFormatException e) {
+        SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        try {
+          Date date = httpDate.parse(value);
+          return Math.max(0, date.getTime() - System.currentTimeMillis());
+        } catch (ParseException pe) {
+          // not a date
+        }
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Delay of given attempt: a random value between half and full of exponentially grown base delay.
+   *
+   * @param attempt the attempt number, starting from zero
+   * @param delay the base delay in milliseconds
+   * @param maxDelay the maximal delay in milliseconds
+   * @return the delay in milliseconds
+   */
+  public static long delay(int attempt, long delay, long maxDelay) {
+    long cap = Math.min(maxDelay, delay << Math.min(attempt, 30));
+    if (cap <= 0) {
+      cap = maxDelay;
+    }
+    long half = cap / 2;
+    return half + ThreadLocalRandom.current().nextLong(cap - half + 1);
+  }
+
+  /** The attempts. */
+  protected final int  attempts;
+
+  /** The base delay. */
+  protected final long delay;
+
+  /** The max delay. */
+  protected final long maxDelay;
+
+  /** Attempts done. */
+  protected int        attempt;
+
+  /**
+   * Instantiates a new backoff with default settings.
+   */
+  public Backoff() {
+    this(DEFAULT_ATTEMPTS, DEFAULT_DELAY, MAX_DELAY);
+  }
+
+  /**
+   * Instantiates a new backoff.
+   *
+   * @param attempts the attempts
+   * @param delay the delay of first retry
+   * @param maxDelay the max delay
+   */
+  public Backoff(int attempts, long delay, long maxDelay) {
+    this.attempts = attempts;
+    this.delay = delay;
+    this.maxDelay = maxDelay;
+  }
+
+  /**
+   * Delay of next retry, if it is possible.
+   *
+   * @param retryAfter time asked by the provider in milliseconds, zero if not known
+   * @return the delay in milliseconds or <code>-1</code> if no more attempts
+   */
+  public long next(long retryAfter) {
+    if (attempt < attempts) {
+      long next = delay(attempt++, delay, maxDelay);
+      if (retryAfter > 0) {
+        // provider knows better, add a bit to do not come back at the same moment with others
+        next = retryAfter + next / 4;
+      }
+      return next;
+    }
+    return -1;
+  }
+
+  /**
+   * Wait for next retry if it is possible.
+   *
+   * @param retryAfter time asked by the provider in milliseconds, zero if not known
+   * @return true, if waited and request can be retried, <code>false</code> if no more attempts
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean await(long retryAfter) throws InterruptedException {
+    long next = next(retryAfter);
+    if (next >= 0) {
+      Thread.sleep(next);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Attempts done.
+   *
+   * @return the number of retries
+   */
+  public int getAttempt() {
+    return attempt;
+  }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive.utils;
+
+import org.exoplatform.clouddrive.CloudDriveException;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Resumable upload of a content split on chunks. A provider implementation starts an upload session,
+ * sends chunks to it and finishes it, this class reads the content, tracks acknowledged offset and saves
+ * it in {@link UploadSessions}. If a saved session found for the upload key, the upload resumes from the
+ * offset acknowledged by the provider: already sent part of the content will be skipped. <br>
+ * Each sent chunk is an item of this iterator with value of acknowledged offset, thus the upload can be
+ * added to command iterators for progress indicator.<br>
+ *
+ * Created by The eXo Platform SAS
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: ChunkedUpload.java 00000 Oct 17, 2016 pnedonosko $
+ * @param <R> the type of uploaded file
+ */
+public abstract class ChunkedUpload<R> extends ChunkIterator<Long> {
+
+  /** The Constant LOG. */
+  protected static final Log     LOG                = ExoLogger.getLogger(ChunkedUpload.class);
+
+  /** Default chunk size (8M). */
+  public static final int        DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+  /**
+   * Minimal chunk size (256K). It is also a granularity of Google resumable upload chunks.
+   */
+  public static final int        MIN_CHUNK_SIZE     = 256 * 1024;
+
+  /** The sessions storage. */
+  protected final UploadSessions sessions;
+
+  /** The upload key. */
+  protected final String         key;
+
+  /** The content. */
+  protected final InputStream    content;
+
+  /** The content length. */
+  protected final long           length;
+
+  /** The chunk size, a provider may change it when starts or resumes the session. */
+  protected int                  chunkSize;
+
+  /** Current session id (or URI). */
+  protected String               session;
+
+  /** Offset acknowledged by the provider. */
+  protected long                 offset;
+
+  /** Chunk buffer. */
+  protected byte[]               buffer;
+
+  /** Bytes in the buffer not acknowledged yet. */
+  protected int                  pending;
+
+  /**
+   * Instantiates a new chunked upload.
+   *
+   * @param sessions the sessions storage
+   * @param key the upload key, it should identify the file and its content version
+   * @param content the content
+   * @param length the content length
+   * @param chunkSize the chunk size
+   */
+  protected ChunkedUpload(UploadSessions sessions, String key, InputStream content, long length, int chunkSize) {
+    this.sessions = sessions;
+    this.key = key;
+    this.content = content;
+    this.length = length;
+    this.chunkSize = chunkSize;
+    this.iter = Collections.<Long> emptyList().iterator();
+  }
+
+  /**
+   * Start new upload session. Implementation may return <code>null</code> if the session will be created by
+   * first chunk, then {@link #sendChunk(long, byte[], int, boolean)} should set {@link #session}.
+   *
+   * @return the session id or <code>null</code>
+   * @throws CloudDriveException the cloud drive exception
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected abstract String startSession() throws CloudDriveException, IOException;
+
+  /**
+   * Query offset acknowledged by the provider for a saved session.
+   *
+   * @param session the saved session
+   * @return the acknowledged offset or <code>-1</code> if session not found or expired at the provider
+   * @throws CloudDriveException the cloud drive exception
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected abstract long resumeSession(UploadSessions.Session session) throws CloudDriveException, IOException;
+
+  /**
+   * Send a chunk of the content.
+   *
+   * @param offset the offset of the chunk in the content
+   * @param data the data buffer
+   * @param size the chunk size in the buffer
+   * @param last <code>true</code> if it is a last chunk of the content
+   * @return offset acknowledged by the provider after the chunk
+   * @throws CloudDriveException the cloud drive exception
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected abstract long sendChunk(long offset, byte[] data, int size, boolean last) throws CloudDriveException,
+                                                                                      IOException;
+
+  /**
+   * Finish the session when all the content acknowledged by the provider.
+   *
+   * @return the uploaded file
+   * @throws CloudDriveException the cloud drive exception
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected abstract R finishSession() throws CloudDriveException, IOException;
+
+  /**
+   * Called for each portion of the content read, including a content skipped on resume. Does nothing by
+   * default, an implementation may calculate a digest of the content here.
+   *
+   * @param data the data
+   * @param off the offset in the data
+   * @param len the length
+   */
+  protected void contentRead(byte[] data, int off, int len) {
+    // nothing by default
+  }
+
+  /**
+   * Upload the content: resume saved session or start a new one, send all chunks and finish the session.
+   * Saved session will be removed after successful upload.
+   *
+   * @return the uploaded file
+   * @throws CloudDriveException the cloud drive exception
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public R upload() throws CloudDriveException, IOException {
+    UploadSessions.Session saved = sessions.get(key);
+    if (saved != null) {
+      this.chunkSize = saved.getChunkSize();
+      long acknowledged;
+      try {
+        acknowledged = resumeSession(saved);
+      } catch (CloudDriveException e) {
+        LOG.warn("Cannot resume upload session " + saved.getId() + ", will upload from the begin. " + e.getMessage());
+        acknowledged = -1;
+      }
+      if (acknowledged >= 0 && acknowledged <= length) {
+        this.session = saved.getId();
+        skip(acknowledged);
+        this.offset = acknowledged;
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Resumed upload session " + session + " from " + offset + " of " + length);
+        }
+      } else {
+        sessions.remove(key);
+      }
+    }
+    if (session == null) {
+      this.session = startSession();
+      this.offset = 0;
+      save();
+    }
+
+    available.set((length + chunkSize - 1) / chunkSize);
+    fetched.set(offset / chunkSize);
+
+    while (hasNext()) {
+      next();
+    }
+
+    R file = finishSession();
+    sessions.remove(key);
+    return file;
+  }
+
+  /**
+   * Gets the acknowledged offset.
+   *
+   * @return the offset
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * Gets the content length.
+   *
+   * @return the length
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected Iterator<Long> nextChunk() throws CloudDriveException {
+    try {
+      if (buffer == null || buffer.length != chunkSize) {
+        byte[] newBuffer = new byte[chunkSize];
+        if (buffer != null && pending > 0) {
+          System.arraycopy(buffer, 0, newBuffer, 0, pending);
+        }
+        buffer = newBuffer;
+      }
+      int size = pending + read(buffer, pending, (int) Math.min(buffer.length - pending, length - offset - pending));
+      if (size == 0) {
+        throw new CloudDriveException("Content ended at " + offset + " before its length " + length);
+      }
+      boolean last = offset + size >= length;
+      long acknowledged = sendChunk(offset, buffer, size, last);
+      if (acknowledged < offset || acknowledged > offset + size) {
+        throw new CloudDriveException("Unexpected offset acknowledged by upload session " + session + ": "
+            + acknowledged + " (" + offset + " expected at least)");
+      }
+      // keep not acknowledged bytes for next chunk
+      int accepted = (int) (acknowledged - offset);
+      pending = size - accepted;
+      if (pending > 0) {
+        System.arraycopy(buffer, accepted, buffer, 0, pending);
+      }
+      offset = acknowledged;
+      save();
+      return Collections.singletonList(acknowledged).iterator();
+    } catch (IOException e) {
+      throw new CloudDriveException("Error uploading content chunk at " + offset + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected boolean hasNextChunk() {
+    return offset < length;
+  }
+
+  // ******* internals *******
+
+  /**
+   * Save current session state if it is already known.
+   */
+  private void save() {
+    if (session != null) {
+      sessions.save(key, session, offset, chunkSize);
+    }
+  }
+
+  /**
+   * Read the content into the buffer until given length or end of the content.
+   *
+   * @param b the buffer
+   * @param off the offset in the buffer
+   * @param len the length to read
+   * @return number of actually read bytes
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private int read(byte[] b, int off, int len) throws IOException {
+    int total = 0;
+    while (total < len) {
+      int r = content.read(b, off + total, len - total);
+      if (r < 0) {
+        break;
+      }
+      contentRead(b, off + total, r);
+      total += r;
+    }
+    return total;
+  }
+
+  /**
+   * Skip the content already acknowledged by the provider. The content will be read to let
+   * {@link #contentRead(byte[], int, int)} see it.
+   *
+   * @param bytes the bytes to skip
+   * @throws IOException Signals that an I/O exception has occurred.
+   * @throws CloudDriveException if content ended before given bytes
+   */
+  private void skip(long bytes) throws IOException, CloudDriveException {
+    byte[] b = new byte[(int) Math.min(chunkSize, Math.max(bytes, 1))];
+    long left = bytes;
+    while (left > 0) {
+      int r = read(b, 0, (int) Math.min(b.length, left));
+      if (r == 0) {
+        throw new CloudDriveException("Content ended at " + (bytes - left) + " before resumed offset " + bytes);
+      }
+      left -= r;
+    }
+  }
+}
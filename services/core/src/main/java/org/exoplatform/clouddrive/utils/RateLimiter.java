@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive.utils;
+
+import org.exoplatform.clouddrive.CloudProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting rate of requests to a cloud provider on behalf of an account. Limiters are shared
+ * by all API instances working with the same account (e.g. several drives connected to the same cloud
+ * user), thus together they stay under the provider quota. A bucket holds up to a second of requests, then
+ * each request takes a token and waits when the bucket is empty.<br>
+ * When the provider answers that the rate exceeded (HTTP 429 or 503 with Retry-After) the limiter can be
+ * paused for the requested time, then all requests of the account wait instead of hitting the provider
+ * again.<br>
+ * Rate of a provider can be set by system property <code>clouddrive.PROVIDER_ID.requests.rate</code> in
+ * requests per second, {@link #DEFAULT_RATE} by default.<br>
+ *
+ * Created by The eXo Platform SAS
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: RateLimiter.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class RateLimiter {
+
+  /** The Constant LOG. */
+  protected static final Log                                    LOG           = ExoLogger.getLogger(RateLimiter.class);
+
+  /** Requests per second used when not configured for a provider. */
+  public static final double                                    DEFAULT_RATE  = 10;
+
+  /** Format of system property with requests rate of a provider. */
+  public static final String                                    RATE_PROPERTY = "clouddrive.%s.requests.rate";
+
+  /** Limiters by provider and account. */
+  protected static final ConcurrentHashMap<String, RateLimiter> LIMITERS      =
+                                                                         new ConcurrentHashMap<String, RateLimiter>();
+
+  /**
+   * Get limiter of given provider account.
+   *
+   * @param provider the provider
+   * @param accountId the account id at the provider
+   * @return the rate limiter
+   */
+  public static RateLimiter of(CloudProvider provider, String accountId) {
+    String key = new StringBuilder(provider.getId()).append('/').append(accountId).toString();
+    RateLimiter limiter = LIMITERS.get(key);
+    if (limiter == null) {
+      RateLimiter newLimiter = new RateLimiter(key, rate(provider.getId()));
+      limiter = LIMITERS.putIfAbsent(key, newLimiter);
+      if (limiter == null) {
+        limiter = newLimiter;
+      }
+    }
+    return limiter;
+  }
+
+  /**
+   * Configured rate of a provider.
+   *
+   * @param providerId the provider id
+   * @return requests per second
+   */
+  protected static double rate(String providerId) {
+    String value = System.getProperty(String.format(RATE_PROPERTY, providerId));
+    if (value != null) {
+      try {
+        double rate = Double.parseDouble(value);
+        if (rate > 0) {
+          return rate;
+        }
+      } catch (NumberFormatException e) {
+        // will use default
+      }
+      LOG.warn("Wrong requests rate for " + providerId + ": " + value + ". Default will be used: " + DEFAULT_RATE);
+    }
+    return DEFAULT_RATE;
+  }
+
+  /** The key (provider/account). */
+  protected final String key;
+
+  /** Tokens added per nanosecond. */
+  protected final double rate;
+
+  /** The bucket capacity. */
+  protected final double capacity;
+
+  /** Available tokens. */
+  protected double       tokens;
+
+  /** Time of last refill in nanoseconds. */
+  protected long         refillTime;
+
+  /** Time till requests paused in nanoseconds, zero if not paused. */
+  protected long         pausedTill;
+
+  /**
+   * Instantiates a new rate limiter.
+   *
+   * @param key the key
+   * @param perSecond requests per second
+   */
+  protected RateLimiter(String key, double perSecond) {
+    this.key = key;
+    this.rate = perSecond / TimeUnit.SECONDS.toNanos(1);
+    this.capacity = Math.max(1, perSecond);
+    this.tokens = capacity;
+    this.refillTime = System.nanoTime();
+  }
+
+  /**
+   * Take a token for a request, wait if no tokens available or the limiter paused.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void acquire() throws InterruptedException {
+    long wait;
+    while ((wait = reserve()) > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+
+  /**
+   * Pause requests of the account for given time, as asked by the provider.
+   *
+   * @param millis the time in milliseconds
+   */
+  public void pause(long millis) {
+    if (millis > 0) {
+      synchronized (this) {
+        long till = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        if (pausedTill == 0 || till - pausedTill > 0) {
+          pausedTill = till;
+        }
+        tokens = 0;
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Requests of " + key + " paused for " + millis + "ms");
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String toString() {
+    return key;
+  }
+
+  // ******* internals *******
+
+  /**
+   * Take a token if available.
+   *
+   * @return zero if token taken, otherwise time to wait in nanoseconds
+   */
+  private synchronized long reserve() {
+    long now = System.nanoTime();
+    if (pausedTill != 0) {
+      if (pausedTill - now > 0) {
+        return pausedTill - now;
+      }
+      pausedTill = 0;
+      refillTime = now;
+    }
+    tokens = Math.min(capacity, tokens + (now - refillTime) * rate);
+    refillTime = now;
+    if (tokens >= 1) {
+      tokens--;
+      return 0;
+    }
+    return (long) Math.ceil((1 - tokens) / rate);
+  }
+}
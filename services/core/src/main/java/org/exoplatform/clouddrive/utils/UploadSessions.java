@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive.utils;
+
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Persistent state of chunked upload sessions. Each session is saved in a small file named by its key in
+ * the storage folder, thus a session survives a server restart and an upload can be resumed from last
+ * acknowledged offset. The folder is set in <code>storage-path</code> value parameter (in eXo data directory
+ * by default), it and the session files are readable and writable by the owner only, as session ids and
+ * URIs let to upload to the provider without other credentials. Sessions older of {@link #SESSION_LIFETIME}
+ * are considered as expired and removed, the storage is cleaned from them each {@link #CLEAN_INTERVAL}.<br>
+ *
+ * Created by The eXo Platform SAS
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: UploadSessions.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class UploadSessions {
+
+  /** The Constant LOG. */
+  protected static final Log     LOG                 = ExoLogger.getLogger(UploadSessions.class);
+
+  /** The Constant STORAGE_NAME. */
+  public static final String     STORAGE_NAME        = "CloudDrive.UploadSessions";
+
+  /**
+   * Lifetime of a saved session (24 hours). Providers keep upload sessions about a day (Google and Dropbox
+   * longer, Box exactly 24 hours).
+   */
+  public static final long       SESSION_LIFETIME    = 24 * 60 * 60 * 1000;
+
+  /** Interval of cleaning the storage from expired sessions (1 hour). */
+  public static final long       CLEAN_INTERVAL      = 60 * 60 * 1000;
+
+  /** The Constant CONFIG_STORAGE_PATH. */
+  public static final String     CONFIG_STORAGE_PATH = "storage-path";
+
+  /** The Constant SESSION_EXT. */
+  protected static final String  SESSION_EXT         = ".session";
+
+  /** The Constant TEMP_EXT, session file being written. */
+  protected static final String  TEMP_EXT            = ".tmp";
+
+  /** The Constant UTF8. */
+  protected static final Charset UTF8                = Charset.forName("UTF-8");
+
+  /**
+   * Lazy holder of sessions storage used when it is not configured in the container.
+   */
+  static class DefaultHolder {
+
+    /** The instance. */
+    static final UploadSessions INSTANCE = new UploadSessions(defaultStorage());
+  }
+
+  /**
+   * Saved state of an upload session.
+   */
+  public static class Session {
+
+    /** The session id (or URI) at the provider. */
+    protected final String id;
+
+    /** The acknowledged offset. */
+    protected final long   offset;
+
+    /** The chunk size used by the session. */
+    protected final int    chunkSize;
+
+    /** The session creation time. */
+    protected final long   created;
+
+    /**
+     * Instantiates a new session.
+     *
+     * @param id the id
+     * @param offset the offset
+     * @param chunkSize the chunk size
+     * @param created the created
+     */
+    protected Session(String id, long offset, int chunkSize, long created) {
+      this.id = id;
+      this.offset = offset;
+      this.chunkSize = chunkSize;
+      this.created = created;
+    }
+
+    /**
+     * Gets the session id.
+     *
+     * @return the id
+     */
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * Gets the acknowledged offset.
+     *
+     * @return the offset
+     */
+    public long getOffset() {
+      return offset;
+    }
+
+    /**
+     * Gets the chunk size.
+     *
+     * @return the chunk size
+     */
+    public int getChunkSize() {
+      return chunkSize;
+    }
+
+    /**
+     * Gets the creation time.
+     *
+     * @return the created
+     */
+    public long getCreated() {
+      return created;
+    }
+
+    /**
+     * Checks if is expired.
+     *
+     * @return true, if is expired
+     */
+    public boolean isExpired() {
+      return System.currentTimeMillis() - created > SESSION_LIFETIME;
+    }
+  }
+
+  /**
+   * Sessions storage configured in current container or, if not configured, a storage in eXo data directory.
+   * If the data directory not set, the sessions will not be saved.
+   *
+   * @return the upload sessions
+   */
+  public static UploadSessions getDefault() {
+    UploadSessions sessions = (UploadSessions) ExoContainerContext.getCurrentContainer()
+                                                                  .getComponentInstanceOfType(UploadSessions.class);
+    if (sessions != null) {
+      return sessions;
+    }
+    return DefaultHolder.INSTANCE;
+  }
+
+  /** The storage folder, <code>null</code> if sessions cannot be saved. */
+  protected final File rootDir;
+
+  /** Time of last cleaning of expired sessions. Guarded by this storage. */
+  protected long       lastCleaned;
+
+  /**
+   * Instantiates a new upload sessions storage in configured folder.
+   *
+   * @param params the params, optional
+   */
+  public UploadSessions(InitParams params) {
+    this(configuredStorage(params));
+  }
+
+  /**
+   * Instantiates a new upload sessions storage in given folder.
+   *
+   * @param rootDir the storage folder, if <code>null</code> the sessions will not be saved
+   */
+  public UploadSessions(File rootDir) {
+    this.rootDir = createStorage(rootDir);
+    cleanExpired();
+  }
+
+  /**
+   * Saved session for given key.
+   *
+   * @param key the upload key
+   * @return the session or <code>null</code> if nothing saved or saved session expired
+   */
+  public synchronized Session get(String key) {
+    if (rootDir == null) {
+      return null;
+    }
+    File file = sessionFile(key);
+    if (file.exists()) {
+      try {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+          props.load(in);
+        } finally {
+          in.close();
+        }
+        if (key.equals(props.getProperty("key"))) {
+          Session session = new Session(props.getProperty("id"),
+                                        Long.parseLong(props.getProperty("offset")),
+                                        Integer.parseInt(props.getProperty("chunkSize")),
+                                        Long.parseLong(props.getProperty("created")));
+          if (!session.isExpired()) {
+            return session;
+          }
+        }
+      } catch (IOException e) {
+        LOG.warn("Error reading upload session " + file.getName() + ": " + e.getMessage());
+      } catch (NumberFormatException e) {
+        LOG.warn("Broken upload session " + file.getName() + ": " + e.getMessage());
+      }
+      file.delete();
+    }
+    return null;
+  }
+
+  /**
+   * Save a session for given key. Creation time will be preserved if the session already saved.
+   *
+   * @param key the upload key
+   * @param id the session id
+   * @param offset the acknowledged offset
+   * @param chunkSize the chunk size
+   */
+  public synchronized void save(String key, String id, long offset, int chunkSize) {
+    if (rootDir == null) {
+      return;
+    }
+    if (System.currentTimeMillis() - lastCleaned > CLEAN_INTERVAL) {
+      cleanExpired();
+    }
+
+    Session prev = get(key);
+    long created = prev != null && prev.id.equals(id) ? prev.created : System.currentTimeMillis();
+
+    Properties props = new Properties();
+    props.setProperty("key", key);
+    props.setProperty("id", id);
+    props.setProperty("offset", String.valueOf(offset));
+    props.setProperty("chunkSize", String.valueOf(chunkSize));
+    props.setProperty("created", String.valueOf(created));
+
+    File file = sessionFile(key);
+    try {
+      // temp file created readable and writable by the owner only, then atomically replaces the session
+      Path temp = Files.createTempFile(rootDir.toPath(), "upload", TEMP_EXT);
+      try {
+        OutputStream out = Files.newOutputStream(temp);
+        try {
+          props.store(out, null);
+        } finally {
+          out.close();
+        }
+        Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException e) {
+      // upload will work, but cannot be resumed after restart
+      LOG.warn("Error saving upload session " + file.getName() + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Remove saved session.
+   *
+   * @param key the upload key
+   */
+  public synchronized void remove(String key) {
+    if (rootDir == null) {
+      return;
+    }
+    File file = sessionFile(key);
+    if (file.exists() && !file.delete()) {
+      LOG.warn("Cannot remove upload session " + file.getName());
+    }
+  }
+
+  /**
+   * Remove expired sessions (and files left by not completed saves) from the storage.
+   */
+  public synchronized void cleanExpired() {
+    lastCleaned = System.currentTimeMillis();
+    File[] files = rootDir != null ? rootDir.listFiles() : null;
+    if (files != null) {
+      long expired = lastCleaned - SESSION_LIFETIME;
+      for (File file : files) {
+        String name = file.getName();
+        if ((name.endsWith(SESSION_EXT) || name.endsWith(TEMP_EXT)) && file.lastModified() < expired) {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  // ******* internals *******
+
+  /**
+   * Storage folder from <code>storage-path</code> parameter, if not set then default one.
+   *
+   * @param params the params, can be <code>null</code>
+   * @return the folder or <code>null</code> if cannot be found
+   */
+  private static File configuredStorage(InitParams params) {
+    ValueParam param = params != null ? params.getValueParam(CONFIG_STORAGE_PATH) : null;
+    if (param != null && param.getValue() != null && param.getValue().trim().length() > 0) {
+      return new File(param.getValue().trim());
+    }
+    return defaultStorage();
+  }
+
+  /**
+   * Storage folder in eXo data directory.
+   *
+   * @return the folder or <code>null</code> if data directory not set
+   */
+  private static File defaultStorage() {
+    String dataDir = System.getProperty("exo.data.dir", System.getProperty("gatein.data.dir"));
+    if (dataDir != null) {
+      return new File(dataDir, STORAGE_NAME);
+    }
+    LOG.warn("Upload sessions storage not configured and eXo data directory not set. "
+        + "Chunked uploads will not be resumed after restart.");
+    return null;
+  }
+
+  /**
+   * Create the storage folder accessible by the owner only, or restrict access to existing one.
+   *
+   * @param dir the folder, can be <code>null</code>
+   * @return the folder or <code>null</code> if it cannot be created
+   */
+  private static File createStorage(File dir) {
+    if (dir != null) {
+      Path path = dir.getAbsoluteFile().toPath();
+      try {
+        if (Files.getFileStore(Files.createDirectories(path.getParent())).supportsFileAttributeView("posix")) {
+          Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rwx------");
+          if (Files.exists(path)) {
+            Files.setPosixFilePermissions(path, ownerOnly);
+          } else {
+            Files.createDirectory(path, PosixFilePermissions.asFileAttribute(ownerOnly));
+          }
+        } else {
+          Files.createDirectories(path);
+          dir.setReadable(false, false);
+          dir.setWritable(false, false);
+          dir.setExecutable(false, false);
+          dir.setReadable(true, true);
+          dir.setWritable(true, true);
+          dir.setExecutable(true, true);
+        }
+        return dir;
+      } catch (IOException e) {
+        LOG.warn("Cannot create upload sessions storage " + dir.getAbsolutePath()
+            + ". Chunked uploads will not be resumed after restart: " + e.getMessage());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Session file of given key.
+   *
+   * @param key the key
+   * @return the file
+   */
+  private File sessionFile(String key) {
+    return new File(rootDir, UUID.nameUUIDFromBytes(key.getBytes(UTF8)).toString() + SESSION_EXT);
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive.viewer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A range of Cloud File content cut locally from its full content. It is used when a provider cannot return
+ * only requested bytes: the stream skips bytes before the range on first read and ends at the range end.<br>
+ *
+ * Created by The eXo Platform SAS
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: PartialContent.java 00000 Oct 17, 2016 pnedonosko $
+ *
+ */
+public class PartialContent implements ContentReader {
+
+  /**
+   * Stream of a range of other stream.
+   */
+  public static class RangeInputStream extends FilterInputStream {
+
+    /** Bytes to skip before the range. */
+    protected long skip;
+
+    /** Bytes left to read in the range. */
+    protected long left;
+
+    /**
+     * Instantiates a new range input stream.
+     *
+     * @param in the full stream
+     * @param offset the offset of the range
+     * @param length the length of the range
+     */
+    public RangeInputStream(InputStream in, long offset, long length) {
+      super(in);
+      this.skip = offset;
+      this.left = length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+      if (skipToRange() && left > 0) {
+        int b = super.read();
+        if (b >= 0) {
+          left--;
+        }
+        return b;
+      }
+      return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (skipToRange() && left > 0) {
+        int read = super.read(b, off, (int) Math.min(len, left));
+        if (read > 0) {
+          left -= read;
+        }
+        return read;
+      }
+      return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long skip(long n) throws IOException {
+      if (skipToRange()) {
+        long skipped = super.skip(Math.min(n, left));
+        left -= skipped;
+        return skipped;
+      }
+      return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int available() throws IOException {
+      return skip > 0 ? 0 : (int) Math.min(super.available(), left);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    // ******* internals *******
+
+    /**
+     * Skip bytes before the range if not yet done.
+     *
+     * @return <code>true</code> if stream at the range, <code>false</code> if source stream ended before it
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private boolean skipToRange() throws IOException {
+      while (skip > 0) {
+        long skipped = in.skip(skip);
+        if (skipped <= 0) {
+          // skip() may return zero without reaching the end, check it by reading a byte
+          if (in.read() < 0) {
+            return false;
+          }
+          skipped = 1;
+        }
+        skip -= skipped;
+      }
+      return true;
+    }
+  }
+
+  /** The full content. */
+  protected final ContentReader content;
+
+  /** The offset. */
+  protected final long          offset;
+
+  /** The length. */
+  protected final long          length;
+
+  /**
+   * Instantiates a new partial content.
+   *
+   * @param content the full content
+   * @param offset the offset of the range
+   * @param length the length of the range
+   */
+  public PartialContent(ContentReader content, long offset, long length) {
+    this.content = content;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public InputStream getStream() {
+    return new RangeInputStream(content.getStream(), offset, length);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getMimeType() {
+    return content.getMimeType();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getTypeMode() {
+    return content.getTypeMode();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getLength() {
+    return length;
+  }
+}
@@ -27,12 +27,19 @@ import org.exoplatform.clouddrive.CloudDriveStorage;
 import org.exoplatform.clouddrive.CloudFile;
 import org.exoplatform.clouddrive.DriveRemovedException;
 import org.exoplatform.clouddrive.jcr.JCRLocalCloudDrive;
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.PropertiesParam;
 import org.exoplatform.services.cache.CacheService;
 import org.exoplatform.services.cache.ExoCache;
 import org.exoplatform.services.cms.jodconverter.JodConverterService;
+import org.exoplatform.services.jcr.ext.app.SessionProviderService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.services.pdfviewer.PDFViewerService;
+import org.exoplatform.services.security.ConversationState;
 import org.icepdf.core.exceptions.PDFException;
 import org.icepdf.core.exceptions.PDFSecurityException;
 import org.icepdf.core.pobjects.Document;
@@ -40,6 +47,7 @@ import org.icepdf.core.pobjects.PInfo;
 import org.icepdf.core.pobjects.Page;
 import org.icepdf.core.pobjects.Stream;
 import org.icepdf.core.util.GraphicsRenderingHints;
+import org.picocontainer.Startable;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -48,21 +56,48 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import javax.imageio.ImageIO;
 import javax.jcr.Node;
@@ -77,6 +112,16 @@ import javax.jcr.RepositoryException;
  * cleaned if file/drive will be removed or the cache will be evicted.<br>
  * Local files will be stored in JVM temporary folder in a tree hiearachy:
  * repository/workspace/username/driveTitle/fileId.<br>
+ * The storage is bounded by total size of its files (including rendered page images) and by number of
+ * spooled files, least recently (or least frequently) used files will be evicted when a limit exceeded. The
+ * limits and the policy can be set in <code>storage-configuration</code> properties parameter. Spooled PDF
+ * files have an info file next to them, thus the storage will be recovered after a restart.<br>
+ * Pages following a requested one will be rendered in background (see {@link PDFFile#prefetchPages}).<br>
+ * Office documents converted to PDF by a bounded number of workers (it should match number of office
+ * processes of {@link JodConverterService}) in order of {@link Priority}, a conversion longer than
+ * <code>conversion-timeout</code> (counted from the conversion start) will fail. Files can be created in
+ * background by {@link #startFile(String, String, CloudDrive, CloudFile, Priority)}, then callers can poll
+ * for them without holding a thread, number of waiting background creations is bounded.<br>
  * If remote file is not in PDF, image or text format it will be attempted to convert it to the PDF by
  * {@link JodConverterService}. <br>
  * 
@@ -94,7 +139,12 @@ public class ViewerStorage {
   /** The Constant MAX_FILENAME_LENGTH. */
   public static final int    MAX_FILENAME_LENGTH = 180;
 
-  /** The Constant FILE_LIVE_TIME. */
+  /**
+   * The Constant FILE_LIVE_TIME.
+   * 
+   * @deprecated not used since the storage bounded by {@link #CONFIG_MAX_SIZE} and {@link #CONFIG_MAX_FILES}
+   */
+  @Deprecated
   public static final long   FILE_LIVE_TIME      = 12 * 60 * 60000;                         // 12hrs
 
   /** The Constant PAGE_IMAGE_TYPE. */
@@ -109,6 +159,153 @@ public class ViewerStorage {
   /** The Constant PDF_EXT. */
   public static final String PDF_EXT             = ".pdf";
 
+  /** Time after which an idle open PDF document will be closed. */
+  public static final long   DOCUMENT_IDLE_TIME  = 5 * 60000;                           // 5min
+
+  /** Maximum number of open PDF documents. */
+  public static final int    MAX_OPEN_DOCUMENTS  = 20;
+
+  /** Period of the storage eviction. */
+  public static final long   EVICTION_PERIOD     = 60000;                               // 1min
+
+  /** Maximum time to wait for a file being created in the storage by another thread. */
+  public static final long   CREATE_TIMEOUT      = 5 * 60000;                           // 5min
+
+  /** Time during which a failed file creation will be reported to new callers instead of a retry. */
+  public static final long   FAILURE_HOLD_TIME   = 10000;                               // 10sec
+
+  /** Configuration of maximum size of the storage in megabytes. */
+  public static final String CONFIG_MAX_SIZE     = "max-size";
+
+  /** Configuration of maximum number of files in the storage. */
+  public static final String CONFIG_MAX_FILES    = "max-files";
+
+  /** Configuration of eviction policy: LRU or LFU. */
+  public static final String CONFIG_EVICTION     = "eviction-policy";
+
+  /** Configuration of number of pages to render in background after a requested one, zero to disable. */
+  public static final String CONFIG_PREFETCH     = "prefetch-pages";
+
+  /** Default number of pages to render in background after a requested one. */
+  public static final int    DEFAULT_PREFETCH    = 3;
+
+  /** Maximum number of waiting pages prefetch tasks, new tasks will be discarded when reached. */
+  public static final int    PREFETCH_QUEUE      = 50;
+
+  /** Configuration of number of workers converting office documents to PDF. */
+  public static final String CONFIG_CONVERTERS   = "conversion-workers";
+
+  /** Configuration of maximum time of a document conversion in seconds. */
+  public static final String CONFIG_CONVERT_TIME = "conversion-timeout";
+
+  /** Default number of workers converting office documents to PDF. */
+  public static final int    DEFAULT_CONVERTERS  = 2;
+
+  /** Default maximum time of a document conversion in seconds. */
+  public static final long   CONVERT_TIMEOUT     = 120;
+
+  /** Maximum number of waiting conversions, when reached conversions of {@link Priority#PREFETCH} rejected. */
+  public static final int    CONVERSION_QUEUE    = 100;
+
+  /** Number of threads creating files in background. */
+  public static final int    CREATE_WORKERS      = 4;
+
+  /** Maximum number of files waiting for creation in background, new creations rejected when reached. */
+  public static final int    CREATE_QUEUE        = 100;
+
+  /** Interval of checking if conversions stopped while a conversion waits in the queue, in milliseconds. */
+  public static final long   CONVERSION_CHECK    = 1000;
+
+  /** Initial size of buffer spooling remote content to the storage. */
+  public static final int    SPOOL_BUFFER_MIN    = 64 * 1024;
+
+  /** Maximum size of buffer spooling remote content to the storage. */
+  public static final int    SPOOL_BUFFER_MAX    = 1024 * 1024;
+
+  /**
+   * Priority of a file creation. Waiting conversions of higher priority run first.
+   */
+  public enum Priority {
+
+    /** A file requested by an user viewing it. */
+    INTERACTIVE,
+
+    /** A file requested in advance of its viewing. */
+    PREFETCH
+  }
+
+  /** Default maximum size of the storage in megabytes. */
+  public static final long   DEFAULT_MAX_SIZE    = 1024;
+
+  /** Default maximum number of files in the storage. */
+  public static final int    DEFAULT_MAX_FILES   = 1000;
+
+  /** Extension of info file of a spooled PDF file. */
+  public static final String INFO_EXT            = ".properties";
+
+  /** Extension of a storage file being written. */
+  public static final String PART_EXT            = ".part";
+
+  /**
+   * Names of files created by the storage: spooled file <code>name-lastModified[-counter]</code>, its info
+   * file, the file being written (<code>.part</code>), original content of a converted file
+   * (<code>-tmp</code>) and page images <code>-page,rotation,scale[-counter].png</code>.
+   */
+  protected static final Pattern STORAGE_FILE_NAME =
+      Pattern.compile(".+-[0-9]+(-[0-9]+)?(\\.properties|\\.part|-tmp|-[0-9]+,[^,]+,[^,]+(-[0-9]+)?\\.png)?");
+
+  /** Depth of storage files under the root: repository/workspace/user/file. */
+  protected static final int     STORAGE_FILE_DEPTH = 4;
+
+  /**
+   * Daemon threads factory of the storage executors.
+   */
+  protected static class StorageThreadFactory implements ThreadFactory {
+
+    /** The thread number. */
+    final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    /** The name prefix. */
+    final String        namePrefix;
+
+    /** The threads priority. */
+    final int           priority;
+
+    /**
+     * Instantiates a new storage thread factory.
+     *
+     * @param namePrefix the name prefix
+     * @param priority the threads priority
+     */
+    protected StorageThreadFactory(String namePrefix, int priority) {
+      this.namePrefix = namePrefix;
+      this.priority = priority;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+      t.setDaemon(true);
+      t.setPriority(priority);
+      return t;
+    }
+  }
+
+  /**
+   * Eviction policy of the storage.
+   */
+  public enum EvictionPolicy {
+
+    /** Least recently used files evicted first. */
+    LRU,
+
+    /** Least frequently used files evicted first. */
+    LFU
+  }
+
   /**
    * The Class FileKey.
    */
@@ -194,22 +391,34 @@ public class ViewerStorage {
   public class ContentFile implements ContentReader {
 
     /** The key. */
-    protected final FileKey key;
+    protected final FileKey       key;
 
     /** The file. */
-    protected final File    file;
+    protected final File          file;
 
     /** The name. */
-    protected final String  name;
+    protected final String        name;
 
     /** The mime type. */
-    protected final String  mimeType;
+    protected final String        mimeType;
 
     /** The last modified. */
-    protected final long    lastModified;
+    protected final long          lastModified;
 
     /** The last acccessed. */
-    protected long          lastAcccessed;
+    protected long                lastAcccessed;
+
+    /** Number of accesses to the file. */
+    protected final AtomicInteger hits    = new AtomicInteger();
+
+    /** Size of the file and its page images in the storage. */
+    protected final AtomicLong    size    = new AtomicLong();
+
+    /** If the file removed from the storage accounting. */
+    protected final AtomicBoolean removed = new AtomicBoolean();
+
+    /** If the file cleaned on its drive events (see {@link FilesCleaner}). */
+    protected volatile boolean    listened;
 
     /**
      * Instantiates a new content file.
@@ -236,16 +445,40 @@ public class ViewerStorage {
      */
     protected long touch() {
       lastAcccessed = System.currentTimeMillis();
+      hits.incrementAndGet();
       return lastAcccessed;
     }
 
+    /**
+     * Add given size of the file data to the storage size.
+     *
+     * @param bytes the bytes
+     */
+    protected void stored(long bytes) {
+      size.addAndGet(bytes);
+      storedSize.addAndGet(bytes);
+    }
+
+    /**
+     * Subtract the file size from the storage size, only once for the file.
+     */
+    protected void released() {
+      if (removed.compareAndSet(false, true)) {
+        storedSize.addAndGet(-size.get());
+      }
+    }
+
     /**
      * Removes the.
      *
      * @return true, if successful
      */
     public boolean remove() {
-      return file.delete();
+      if (file.delete() || !file.exists()) {
+        released();
+        return true;
+      }
+      return false;
     }
 
     /**
@@ -320,6 +553,19 @@ public class ViewerStorage {
       }
     }
 
+    /**
+     * Write the file content to given stream. It is an alternative to {@link #getStream()} that copies the
+     * content in large chunks.
+     *
+     * @param out the output stream
+     * @return the number of bytes written
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public long writeTo(OutputStream out) throws IOException {
+      touch();
+      return writeFile(file, out);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -507,6 +753,18 @@ public class ViewerStorage {
         }
       }
 
+      /**
+       * Write the image to given stream. It is an alternative to {@link #getStream()} that copies the image
+       * in large chunks.
+       *
+       * @param out the output stream
+       * @return the number of bytes written
+       * @throws IOException Signals that an I/O exception has occurred.
+       */
+      public long writeTo(OutputStream out) throws IOException {
+        return writeFile(file, out);
+      }
+
       /**
        * Delete.
        *
@@ -524,7 +782,21 @@ public class ViewerStorage {
     protected final Map<String, String>                   metadata = new HashMap<String, String>();
 
     /** The pages. */
-    protected final ConcurrentHashMap<PageKey, ImageFile> pages    = new ConcurrentHashMap<PageKey, ImageFile>();
+    protected final ConcurrentHashMap<PageKey, ImageFile> pages        = new ConcurrentHashMap<PageKey, ImageFile>();
+
+    /**
+     * Lock of the open document. IcePDF document will be used for rendering by single thread at a time.
+     */
+    protected final Lock                                  documentLock = new ReentrantLock();
+
+    /** Open IcePDF document of the file, guarded by {@link #documentLock}. */
+    protected Document                                    document;
+
+    /** Time of last access to the open document. */
+    protected volatile long                               documentAccessed;
+
+    /** Current prefetch of pages of the file. */
+    protected volatile PagesPrefetch                      prefetch;
 
     /**
      * Instantiates a new PDF file.
@@ -542,6 +814,36 @@ public class ViewerStorage {
       touch();
     }
 
+    /**
+     * Instantiates a new PDF file recovered from the storage.
+     *
+     * @param key the key
+     * @param file the file
+     * @param name the name
+     * @param lastModified the last modified
+     * @param numberOfPages the number of pages
+     * @param metadata the metadata
+     */
+    protected PDFFile(FileKey key,
+                      File file,
+                      String name,
+                      long lastModified,
+                      int numberOfPages,
+                      Map<String, String> metadata) {
+      super(key, file, name, PDF_TYPE, lastModified);
+      this.numberOfPages = numberOfPages;
+      this.metadata.putAll(metadata);
+    }
+
+    /**
+     * Info file of this PDF file. It keeps data required to recover the file after a restart.
+     *
+     * @return the file
+     */
+    protected File infoFile() {
+      return new File(file.getParentFile(), file.getName() + INFO_EXT);
+    }
+
     /**
      * Put document info.
      *
@@ -580,10 +882,18 @@ public class ViewerStorage {
      * {@inheritDoc}
      */
     public boolean remove() {
+      cancelPrefetch();
+      documentLock.lock();
+      try {
+        closeDocument();
+      } finally {
+        documentLock.unlock();
+      }
       boolean res = true;
       for (ImageFile pageFile : pages.values()) {
-        res &= pageFile.delete();
+        res &= pageFile.delete() || !pageFile.file.exists();
       }
+      infoFile().delete();
       return res ? super.remove() : false;
     }
 
@@ -619,18 +929,135 @@ public class ViewerStorage {
       PageKey key = new PageKey(page, rotation, scale);
       ImageFile pageFile = pages.get(key);
       if (pageFile == null) {
-        File image = buildFileImage(file, page, rotation, scale);
-        ImageFile imageFile = new ImageFile(image, name + "-" + key + PAGE_IMAGE_EXT, PAGE_IMAGE_TYPE);
-        ImageFile alreadyCreated = pages.putIfAbsent(key, imageFile);
-        if (alreadyCreated != null) {
-          // already created by another thread
-          pageFile = alreadyCreated;
-          imageFile.delete(); // and delete this work
+        missCount.incrementAndGet();
+        pageFile = createPageImage(key);
+      } else {
+        hitCount.incrementAndGet();
+      }
+      return pageFile;
+    }
+
+    /**
+     * Render pages following given one in background, thus next page turns will find them ready. Pages will
+     * be rendered at given rotation and scale, a previous prefetch of this file will be cancelled: the viewer
+     * moved to another page or changed the view.
+     *
+     * @param page the current page, pages after it will be rendered, use zero to render first pages
+     * @param rotation the rotation
+     * @param scale the scale
+     */
+    public void prefetchPages(int page, float rotation, float scale) {
+      int last = Math.min(page + pagesToPrefetch, numberOfPages);
+      if (last > page) {
+        PagesPrefetch next = new PagesPrefetch(this, page + 1, last, rotation, scale);
+        PagesPrefetch prev = prefetch;
+        if (prev == null || !prev.covers(next)) {
+          prefetch = next;
+          if (prev != null) {
+            prev.cancel();
+          }
+          pagesPrefetcher.execute(next);
+        }
+      }
+    }
+
+    /**
+     * Cancel the pages prefetch if running.
+     */
+    public void cancelPrefetch() {
+      PagesPrefetch prev = prefetch;
+      if (prev != null) {
+        prev.cancel();
+      }
+    }
+
+    /**
+     * Create image of the page if it is not yet created by another thread. Creation of pages serialized on the
+     * document lock.
+     *
+     * @param key the page key
+     * @return the image file
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    protected ImageFile createPageImage(PageKey key) throws IOException {
+      documentLock.lock();
+      try {
+        ImageFile pageFile = pages.get(key);
+        if (pageFile == null) {
+          File image = buildFileImage(this, key.page, key.rotation, key.scale);
+          pageFile = new ImageFile(image, name + "-" + key + PAGE_IMAGE_EXT, PAGE_IMAGE_TYPE);
+          ImageFile alreadyCreated = pages.putIfAbsent(key, pageFile);
+          if (alreadyCreated != null) {
+            // already created by another thread
+            pageFile.delete(); // and delete this work
+            pageFile = alreadyCreated;
+          } else {
+            stored(image.length());
+            checkLimits();
+          }
+        }
+        return pageFile;
+      } finally {
+        documentLock.unlock();
+      }
+    }
+
+    /**
+     * Render a page of the document to an image. The document will be open if not yet, rendering of pages of
+     * the same document will be serialized.
+     *
+     * @param page the page number starting from 1
+     * @param rotation the rotation
+     * @param scale the scale
+     * @return the image
+     * @throws IOException if cannot open the document
+     */
+    protected BufferedImage renderPage(int page, float rotation, float scale) throws IOException {
+      documentLock.lock();
+      try {
+        documentAccessed = System.currentTimeMillis();
+        if (document == null) {
+          document = buildDocumentImage(file, name);
+          documentOpened(this);
         } else {
-          pageFile = imageFile;
+          documentUsed(this);
         }
+        return (BufferedImage) document.getPageImage(page - 1,
+                                                     GraphicsRenderingHints.SCREEN,
+                                                     Page.BOUNDARY_CROPBOX,
+                                                     rotation,
+                                                     scale);
+      } finally {
+        documentLock.unlock();
+      }
+    }
+
+    /**
+     * Close the document if it is not used by another thread now.
+     *
+     * @return <code>true</code> if document closed or was not open, <code>false</code> if it is in use
+     */
+    protected boolean tryCloseDocument() {
+      if (documentLock.tryLock()) {
+        try {
+          closeDocument();
+          return true;
+        } finally {
+          documentLock.unlock();
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Close open document. Should be called under {@link #documentLock}.
+     */
+    private void closeDocument() {
+      if (document != null) {
+        document.dispose();
+        document = null;
+        documentClosed(this);
       }
-      return pageFile;
     }
 
     /**
@@ -661,97 +1088,343 @@ public class ViewerStorage {
   }
 
   /**
-   * The Class Evicter.
+   * Background rendering of a range of pages of PDF file. It stops after a page being rendered if cancelled.
    */
-  protected class Evicter implements Runnable {
+  protected class PagesPrefetch implements Runnable {
+
+    /** The file. */
+    protected final PDFFile    file;
+
+    /** The first page. */
+    protected final int        first;
+
+    /** The last page. */
+    protected final int        last;
+
+    /** The rotation. */
+    protected final float      rotation;
+
+    /** The scale. */
+    protected final float      scale;
+
+    /** The cancelled flag. */
+    protected volatile boolean cancelled;
+
+    /** The done flag. */
+    protected volatile boolean done;
+
+    /**
+     * Instantiates a new pages prefetch.
+     *
+     * @param file the file
+     * @param first the first page
+     * @param last the last page
+     * @param rotation the rotation
+     * @param scale the scale
+     */
+    protected PagesPrefetch(PDFFile file, int first, int last, float rotation, float scale) {
+      this.file = file;
+      this.first = first;
+      this.last = last;
+      this.rotation = rotation;
+      this.scale = scale;
+    }
+
+    /**
+     * Cancel the prefetch.
+     */
+    protected void cancel() {
+      cancelled = true;
+    }
+
+    /**
+     * Check if this prefetch, if still running, renders the same pages as other one.
+     *
+     * @param other the other prefetch
+     * @return true, if this prefetch makes other one not required
+     */
+    protected boolean covers(PagesPrefetch other) {
+      return !cancelled && !done && rotation == other.rotation && scale == other.scale && first <= other.first
+          && last >= other.last;
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
     public void run() {
-      for (Iterator<ContentFile> fiter = spool.values().iterator(); fiter.hasNext();) {
-        ContentFile file = fiter.next();
-        if (System.currentTimeMillis() - file.lastAcccessed > FILE_LIVE_TIME) {
-          if (file.remove()) {
-            fiter.remove();
+      try {
+        for (int page = first; page <= last && !cancelled && !file.removed.get(); page++) {
+          PDFFile.PageKey key = file.new PageKey(page, rotation, scale);
+          if (!file.pages.containsKey(key)) {
+            file.createPageImage(key);
           }
         }
+      } catch (Throwable e) {
+        LOG.warn("Error prefetching pages of " + file.getName() + ": " + e.getMessage());
+      } finally {
+        done = true;
       }
     }
   }
 
   /**
-   * The Class FilesCleaner.
+   * Conversion of an office document to PDF, it is ordered by priority then by the time of request.
    */
-  protected class FilesCleaner extends BaseCloudDriveListener {
+  protected class Conversion extends FutureTask<Boolean> implements Comparable<Conversion> {
 
-    /** The files. */
-    final Map<String, ContentFile> files = new ConcurrentHashMap<String, ContentFile>();
+    /** The priority. */
+    protected final Priority       priority;
+
+    /** The sequence number of the conversion request. */
+    protected final long           sequence;
+
+    /** Released when the conversion started by a worker. */
+    protected final CountDownLatch started = new CountDownLatch(1);
+
+    /** Time of the conversion start. */
+    protected volatile long        startTime;
 
     /**
-     * Adds the file.
+     * Instantiates a new conversion.
      *
-     * @param file the file
+     * @param source the source file
+     * @param dest the dest PDF file
+     * @param priority the priority
      */
-    void addFile(ContentFile file) {
-      ContentFile prev = files.put(file.getName(), file);
-      if (prev != null) {
-        prev.remove();
-      }
+    protected Conversion(final File source, final File dest, Priority priority) {
+      super(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          return jodConverter.convert(source, dest, "pdf");
+        }
+      });
+      this.priority = priority;
+      this.sequence = conversionSequence.incrementAndGet();
     }
 
     /**
-     * Removes the file.
-     *
-     * @param file the file
+     * {@inheritDoc}
      */
-    void removeFile(PDFFile file) {
-      files.remove(file.getName());
+    @Override
+    public void run() {
+      startTime = System.currentTimeMillis();
+      started.countDown();
+      super.run();
     }
 
     /**
-     * Clean all.
+     * {@inheritDoc}
      */
-    void cleanAll() {
-      for (Iterator<ContentFile> fiter = files.values().iterator(); fiter.hasNext();) {
-        ContentFile file = fiter.next();
-        if (file.remove()) {
-          spool.remove(file.key);
-          fiter.remove();
-        } else {
-          LOG.warn("Cannot remove preview file: " + file.getName());
-        }
+    @Override
+    public int compareTo(Conversion other) {
+      int res = priority.compareTo(other.priority);
+      if (res == 0) {
+        res = sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
       }
+      return res;
     }
+  }
+
+  /**
+   * Creation of a file in the storage shared by concurrent callers: first caller runs it, others wait for its
+   * result. Failed creation is kept for {@link #FAILURE_HOLD_TIME} to report the failure to next callers
+   * without retrying it.
+   */
+  protected class Creation extends FutureTask<ContentFile> {
+
+    /** Time of the failure or zero. */
+    protected volatile long failedTime;
 
     /**
-     * Clean file.
+     * Instantiates a new creation.
      *
-     * @param name the name
+     * @param callable the callable
      */
-    void cleanFile(String name) {
-      ContentFile file = files.get(name);
-      if (file != null) {
-        if (file.remove()) {
-          spool.remove(file.key);
-          files.remove(name);
-        } else {
-          LOG.warn("Cannot remove preview file: " + file.getName());
-        }
-      }
+    protected Creation(Callable<ContentFile> callable) {
+      super(callable);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void onDisconnect(CloudDriveEvent event) {
-      cleanAll();
+    protected void setException(Throwable t) {
+      failedTime = System.currentTimeMillis();
+      super.setException(t);
     }
 
     /**
-     * {@inheritDoc}
+     * Checks if is failed.
+     *
+     * @return true, if is failed
+     */
+    protected boolean isFailed() {
+      return failedTime > 0;
+    }
+
+    /**
+     * Checks if the failure is outdated and creation can be retried.
+     *
+     * @return true, if is expired
+     */
+    protected boolean isExpired() {
+      return failedTime > 0 && System.currentTimeMillis() - failedTime > FAILURE_HOLD_TIME;
+    }
+  }
+
+  /**
+   * A file considered for eviction with its access data captured at once, thus candidates can be sorted
+   * while the files are in use.
+   */
+  protected class Candidate implements Comparable<Candidate> {
+
+    /** The file. */
+    protected final ContentFile file;
+
+    /** The last accessed. */
+    protected final long        accessed;
+
+    /** The hits. */
+    protected final int         hits;
+
+    /**
+     * Instantiates a new candidate.
+     *
+     * @param file the file
+     */
+    protected Candidate(ContentFile file) {
+      this.file = file;
+      this.accessed = file.lastAcccessed;
+      this.hits = file.hits.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int compareTo(Candidate other) {
+      if (evictionPolicy == EvictionPolicy.LFU && hits != other.hits) {
+        return hits < other.hits ? -1 : 1;
+      }
+      return accessed < other.accessed ? -1 : (accessed == other.accessed ? 0 : 1);
+    }
+  }
+
+  /**
+   * The Class Evicter.
+   */
+  protected class Evicter implements Runnable {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+      try {
+        long now = System.currentTimeMillis();
+        // forget files removed outside the storage
+        for (Iterator<ContentFile> fiter = spool.values().iterator(); fiter.hasNext();) {
+          ContentFile file = fiter.next();
+          if (!file.exists()) {
+            fiter.remove();
+            file.released();
+          }
+        }
+        evict();
+        // forget outdated failures of files creation
+        for (Iterator<Creation> citer = creating.values().iterator(); citer.hasNext();) {
+          if (citer.next().isExpired()) {
+            citer.remove();
+          }
+        }
+        // close idle documents
+        PDFFile[] open;
+        synchronized (documents) {
+          open = documents.values().toArray(new PDFFile[documents.size()]);
+        }
+        for (PDFFile file : open) {
+          if (now - file.documentAccessed > DOCUMENT_IDLE_TIME) {
+            file.tryCloseDocument();
+          }
+        }
+      } catch (Throwable e) {
+        LOG.error("Error evicting viewer storage: " + e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * The Class FilesCleaner.
+   */
+  protected class FilesCleaner extends BaseCloudDriveListener {
+
+    /** The files. */
+    final Map<String, ContentFile> files = new ConcurrentHashMap<String, ContentFile>();
+
+    /**
+     * Adds the file.
+     *
+     * @param file the file
+     */
+    void addFile(ContentFile file) {
+      ContentFile prev = files.put(file.getName(), file);
+      if (prev != null) {
+        prev.remove();
+      }
+    }
+
+    /**
+     * Removes the file.
+     *
+     * @param file the file
+     */
+    void removeFile(PDFFile file) {
+      files.remove(file.getName());
+    }
+
+    /**
+     * Clean all.
+     */
+    void cleanAll() {
+      for (Iterator<ContentFile> fiter = files.values().iterator(); fiter.hasNext();) {
+        ContentFile file = fiter.next();
+        if (file.remove()) {
+          spool.remove(file.key);
+          fiter.remove();
+        } else {
+          LOG.warn("Cannot remove preview file: " + file.getName());
+        }
+      }
+    }
+
+    /**
+     * Clean file.
+     *
+     * @param name the name
+     */
+    void cleanFile(String name) {
+      ContentFile file = files.get(name);
+      if (file != null) {
+        if (file.remove()) {
+          spool.remove(file.key);
+          files.remove(name);
+        } else {
+          LOG.warn("Cannot remove preview file: " + file.getName());
+        }
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onDisconnect(CloudDriveEvent event) {
+      cleanAll();
+    }
+
+    /**
+     * {@inheritDoc}
      */
     @Override
     public void onRemove(CloudDriveEvent event) {
@@ -786,17 +1459,187 @@ public class ViewerStorage {
   /** The cleaners. */
   protected final ConcurrentHashMap<String, FilesCleaner> cleaners = new ConcurrentHashMap<String, FilesCleaner>();
 
+  /** Files being created (spooled and converted) in the storage. */
+  protected final ConcurrentHashMap<FileKey, Creation>    creating = new ConcurrentHashMap<FileKey, Creation>();
+
+  /**
+   * Files with open IcePDF documents in access order (least recently used first), guarded by itself.
+   */
+  protected final LinkedHashMap<FileKey, PDFFile>         documents = new LinkedHashMap<FileKey, PDFFile>(16, 0.75f, true);
+
+  /**
+   * Maximum total size of files of open documents. Parsed document takes memory in proportion to its file
+   * size, thus we limit open documents by a part of JVM memory.
+   */
+  protected final long                                    maxDocumentsSize = Runtime.getRuntime().maxMemory() / 8;
+
+  /** Total size of files of open documents, guarded by {@link #documents}. */
+  protected long                                          documentsSize;
+
+  /** Maximum size of the storage in bytes. */
+  protected final long                                    maxSize;
+
+  /** Maximum number of files in the storage. */
+  protected final int                                     maxFiles;
+
+  /** The eviction policy. */
+  protected final EvictionPolicy                          evictionPolicy;
+
+  /** Current size of files in the storage. */
+  protected final AtomicLong                              storedSize       = new AtomicLong();
+
+  /** Number of requests of files and page images found in the storage. */
+  protected final AtomicLong                              hitCount         = new AtomicLong();
+
+  /** Number of requests of files and page images not found in the storage. */
+  protected final AtomicLong                              missCount        = new AtomicLong();
+
+  /** Number of files evicted from the storage. */
+  protected final AtomicLong                              evictionCount    = new AtomicLong();
+
+  /** Lock of the eviction, a single thread evicts at a time. */
+  protected final Lock                                    evictionLock     = new ReentrantLock();
+
+  /** Executor of the storage eviction. */
+  protected final ScheduledExecutorService                evicter;
+
+  /** Number of pages to render in background after a requested page. */
+  protected final int                                     pagesToPrefetch;
+
+  /** Executor of pages prefetch, low priority threads with bounded queue. */
+  protected final ThreadPoolExecutor                      pagesPrefetcher;
+
+  /** Executor of documents conversion with priority queue. */
+  protected final ThreadPoolExecutor                      conversions;
+
+  /** Maximum time of a document conversion in milliseconds. */
+  protected final long                                    conversionTimeout;
+
+  /** Sequence of conversion requests. */
+  protected final AtomicLong                              conversionSequence = new AtomicLong();
+
+  /** Set while the converter restarts after a conversion timeout. */
+  protected final AtomicBoolean                           converterRestart   = new AtomicBoolean();
+
+  /** Executor of files creation in background. */
+  protected final ThreadPoolExecutor                      creators;
+
+  /** Session providers of files creation in background. */
+  protected final SessionProviderService                  sessionProviders;
+
   /**
    * Instantiates a new viewer storage.
    *
    * @param cacheService the cache service
    * @param jodConverter the jod converter
+   * @param sessionProviders the session providers
+   * @param params the params, optional
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  public ViewerStorage(CacheService cacheService, JodConverterService jodConverter) throws IOException {
+  public ViewerStorage(CacheService cacheService,
+                       JodConverterService jodConverter,
+                       SessionProviderService sessionProviders,
+                       InitParams params) throws IOException {
     String storageName = "CloudDrive." + ViewerStorage.class.getSimpleName();
 
     this.jodConverter = jodConverter;
+    this.sessionProviders = sessionProviders;
+
+    Map<String, String> config;
+    PropertiesParam param = params != null ? params.getPropertiesParam("storage-configuration") : null;
+    if (param != null) {
+      config = param.getProperties();
+    } else {
+      config = Collections.emptyMap();
+    }
+
+    long maxSize;
+    try {
+      String maxSizeStr = config.get(CONFIG_MAX_SIZE);
+      maxSize = maxSizeStr != null ? Long.parseLong(maxSizeStr.trim()) : DEFAULT_MAX_SIZE;
+    } catch (NumberFormatException e) {
+      LOG.warn("Wrong " + CONFIG_MAX_SIZE + " configuration, will use default " + DEFAULT_MAX_SIZE + "MB: "
+          + e.getMessage());
+      maxSize = DEFAULT_MAX_SIZE;
+    }
+    this.maxSize = maxSize * 1024 * 1024;
+
+    int maxFiles;
+    try {
+      String maxFilesStr = config.get(CONFIG_MAX_FILES);
+      maxFiles = maxFilesStr != null ? Integer.parseInt(maxFilesStr.trim()) : DEFAULT_MAX_FILES;
+    } catch (NumberFormatException e) {
+      LOG.warn("Wrong " + CONFIG_MAX_FILES + " configuration, will use default " + DEFAULT_MAX_FILES + ": "
+          + e.getMessage());
+      maxFiles = DEFAULT_MAX_FILES;
+    }
+    this.maxFiles = maxFiles;
+
+    EvictionPolicy evictionPolicy;
+    try {
+      String policyStr = config.get(CONFIG_EVICTION);
+      evictionPolicy = policyStr != null ? EvictionPolicy.valueOf(policyStr.trim().toUpperCase()) : EvictionPolicy.LRU;
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Wrong " + CONFIG_EVICTION + " configuration, will use " + EvictionPolicy.LRU + ": " + e.getMessage());
+      evictionPolicy = EvictionPolicy.LRU;
+    }
+    this.evictionPolicy = evictionPolicy;
+
+    int pagesToPrefetch;
+    try {
+      String prefetchStr = config.get(CONFIG_PREFETCH);
+      pagesToPrefetch = prefetchStr != null ? Integer.parseInt(prefetchStr.trim()) : DEFAULT_PREFETCH;
+    } catch (NumberFormatException e) {
+      LOG.warn("Wrong " + CONFIG_PREFETCH + " configuration, will use default " + DEFAULT_PREFETCH + ": "
+          + e.getMessage());
+      pagesToPrefetch = DEFAULT_PREFETCH;
+    }
+    this.pagesToPrefetch = Math.max(0, pagesToPrefetch);
+    this.pagesPrefetcher = new ThreadPoolExecutor(1,
+                                                  Math.max(1, Runtime.getRuntime().availableProcessors() / 4),
+                                                  60,
+                                                  TimeUnit.SECONDS,
+                                                  new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE),
+                                                  new StorageThreadFactory("clouddrive-pages-prefetch-",
+                                                                           Thread.MIN_PRIORITY),
+                                                  new ThreadPoolExecutor.DiscardPolicy());
+
+    int conversionWorkers;
+    try {
+      String workersStr = config.get(CONFIG_CONVERTERS);
+      conversionWorkers = workersStr != null ? Integer.parseInt(workersStr.trim()) : DEFAULT_CONVERTERS;
+    } catch (NumberFormatException e) {
+      LOG.warn("Wrong " + CONFIG_CONVERTERS + " configuration, will use default " + DEFAULT_CONVERTERS
+          + ": " + e.getMessage());
+      conversionWorkers = DEFAULT_CONVERTERS;
+    }
+    conversionWorkers = Math.max(1, conversionWorkers);
+    this.conversions = new ThreadPoolExecutor(conversionWorkers,
+                                              conversionWorkers,
+                                              60,
+                                              TimeUnit.SECONDS,
+                                              new PriorityBlockingQueue<Runnable>(),
+                                              new StorageThreadFactory("clouddrive-conversion-", Thread.NORM_PRIORITY));
+    this.conversions.allowCoreThreadTimeOut(true);
+
+    long conversionTimeout;
+    try {
+      String timeoutStr = config.get(CONFIG_CONVERT_TIME);
+      conversionTimeout = timeoutStr != null ? Long.parseLong(timeoutStr.trim()) : CONVERT_TIMEOUT;
+    } catch (NumberFormatException e) {
+      LOG.warn("Wrong " + CONFIG_CONVERT_TIME + " configuration, will use default " + CONVERT_TIMEOUT
+          + "sec: " + e.getMessage());
+      conversionTimeout = CONVERT_TIMEOUT;
+    }
+    this.conversionTimeout = conversionTimeout * 1000;
+
+    this.creators = new ThreadPoolExecutor(CREATE_WORKERS,
+                                           CREATE_WORKERS,
+                                           60,
+                                           TimeUnit.SECONDS,
+                                           new ArrayBlockingQueue<Runnable>(CREATE_QUEUE),
+                                           new StorageThreadFactory("clouddrive-viewer-create-", Thread.NORM_PRIORITY));
+    this.creators.allowCoreThreadTimeOut(true);
 
     File probe = null;
     try {
@@ -804,10 +1647,11 @@ public class ViewerStorage {
 
       rootDir = new File(probe.getParentFile(), storageName);
       if (rootDir.exists()) {
-        LOG.info("Cleaning ViewerStorage " + rootDir.getPath());
-        delete(rootDir);
+        LOG.info("Recovering ViewerStorage " + rootDir.getPath());
+        recover();
+      } else {
+        rootDir.mkdir();
       }
-      rootDir.mkdir();
     } catch (IOException e) {
       LOG.error("Cannot create local viewer storage: " + e.getMessage());
       throw e;
@@ -817,9 +1661,12 @@ public class ViewerStorage {
       }
     }
 
+    LOG.info("ViewerStorage " + rootDir.getPath() + " limited by " + maxSize + "MB and " + maxFiles + " files ("
+        + evictionPolicy + "), " + spool.size() + " file(s) of " + (storedSize.get() / 1024) + "KB recovered");
+
     // start evicter finally
-    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-    executor.schedule(new Evicter(), 30, TimeUnit.MINUTES);
+    evicter = Executors.newSingleThreadScheduledExecutor();
+    evicter.scheduleWithFixedDelay(new Evicter(), EVICTION_PERIOD, EVICTION_PERIOD, TimeUnit.MILLISECONDS);
   }
 
   /**
@@ -837,7 +1684,13 @@ public class ViewerStorage {
                                                                                                    throws DriveRemovedException,
                                                                                                    RepositoryException {
     FileKey key = new FileKey(repository, workspace, drive.getLocalUser(), drive.getTitle(), fileId);
-    return spool.get(key);
+    ContentFile file = spool.get(key);
+    if (file != null) {
+      hitCount.incrementAndGet();
+    } else {
+      missCount.incrementAndGet();
+    }
+    return file;
   }
 
   /**
@@ -853,21 +1706,192 @@ public class ViewerStorage {
    * @throws RepositoryException the repository exception
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  public ContentFile createFile(String repository,
-                                String workspace,
-                                CloudDrive drive,
-                                CloudFile file) throws CloudDriveException,
-                                                DriveRemovedException,
-                                                RepositoryException,
-                                                IOException {
-    long lastModified = file.getModifiedDate().getTimeInMillis();
+  public ContentFile createFile(final String repository,
+                                final String workspace,
+                                final CloudDrive drive,
+                                final CloudFile file) throws CloudDriveException,
+                                                      DriveRemovedException,
+                                                      RepositoryException,
+                                                      IOException {
+    final long lastModified = file.getModifiedDate().getTimeInMillis();
+    final String userId = drive.getLocalUser();
+    final FileKey key = new FileKey(repository, workspace, userId, drive.getTitle(), file.getId());
+    while (true) {
+      ContentFile spooledFile = spool.get(key);
+      if (spooledFile != null && spooledFile.isPDF() && lastModified <= spooledFile.getLastModified()
+          && spooledFile.exists()) {
+        // actual file already in the storage
+        spooledFile.touch();
+        hitCount.incrementAndGet();
+        if (!spooledFile.listened) {
+          // file recovered after a restart
+          addDriveListener(drive, spooledFile);
+        }
+        return spooledFile;
+      }
 
-    // TODO lock creation of the same file to avoid double spooling
+      // single creation per file: spool and convert in this thread or wait for a thread already doing this
+      Creation creation = new Creation(new Callable<ContentFile>() {
+        @Override
+        public ContentFile call() throws Exception {
+          return spoolFile(repository, workspace, drive, file, key, userId, lastModified, Priority.INTERACTIVE);
+        }
+      });
+      Creation existing = creating.putIfAbsent(key, creation);
+      if (existing == null) {
+        missCount.incrementAndGet();
+        try {
+          creation.run();
+        } finally {
+          if (!creation.isFailed()) {
+            creating.remove(key, creation);
+          } // otherwise keep the failure for a while
+        }
+        return creationResult(creation, file);
+      } else if (existing.isExpired()) {
+        // previous failure is outdated, try create again
+        creating.remove(key, existing);
+      } else {
+        ContentFile created = creationResult(existing, file);
+        if (lastModified <= created.getLastModified()) {
+          return created;
+        } // otherwise it was a creation of previous version, create again
+      }
+    }
+  }
 
-    String userId = drive.getLocalUser();
-    FileKey key = new FileKey(repository, workspace, userId, drive.getTitle(), file.getId());
+  /**
+   * Start creation of the file in background if it is not already in the storage or being created. This
+   * method doesn't wait for the creation: it returns the file if it is ready or <code>null</code> if it is
+   * being created, thus callers should call it again later. If recent creation of the file failed, its error
+   * will be thrown. If too many files wait for creation, {@link RejectedExecutionException} will be thrown
+   * and the caller may try again later.
+   *
+   * @param repository the repository
+   * @param workspace the workspace
+   * @param drive the drive
+   * @param file the file
+   * @param priority the priority of the creation
+   * @return the content file or <code>null</code> if it is being created
+   * @throws CloudDriveException the cloud drive exception
+   * @throws DriveRemovedException the drive removed exception
+   * @throws RepositoryException the repository exception
+   * @throws IOException Signals that an I/O exception has occurred.
+   * @throws RejectedExecutionException if too many files wait for creation
+   */
+  public ContentFile startFile(final String repository,
+                               final String workspace,
+                               final CloudDrive drive,
+                               final CloudFile file,
+                               final Priority priority) throws CloudDriveException,
+                                                        DriveRemovedException,
+                                                        RepositoryException,
+                                                        IOException {
+    final long lastModified = file.getModifiedDate().getTimeInMillis();
+    final String userId = drive.getLocalUser();
+    final FileKey key = new FileKey(repository, workspace, userId, drive.getTitle(), file.getId());
+    while (true) {
+      ContentFile spooledFile = spool.get(key);
+      if (spooledFile != null && spooledFile.isPDF() && lastModified <= spooledFile.getLastModified()
+          && spooledFile.exists()) {
+        // actual file already in the storage
+        spooledFile.touch();
+        hitCount.incrementAndGet();
+        if (!spooledFile.listened) {
+          // file recovered after a restart
+          addDriveListener(drive, spooledFile);
+        }
+        return spooledFile;
+      }
+
+      final Creation creation = new Creation(new Callable<ContentFile>() {
+        @Override
+        public ContentFile call() throws Exception {
+          return spoolFile(repository, workspace, drive, file, key, userId, lastModified, priority);
+        }
+      });
+      Creation existing = creating.putIfAbsent(key, creation);
+      if (existing == null) {
+        missCount.incrementAndGet();
+        final ExoContainer container = ExoContainerContext.getCurrentContainerIfPresent();
+        final ConversationState conversation = ConversationState.getCurrent();
+        try {
+          creators.execute(new Runnable() {
+            @Override
+            public void run() {
+              ExoContainer prevContainer = ExoContainerContext.getCurrentContainerIfPresent();
+              ConversationState prevConversation = ConversationState.getCurrent();
+              SessionProvider prevSessions = sessionProviders.getSessionProvider(null);
+              // drive nodes will be read in user sessions (e.g. to listen the drive)
+              SessionProvider sessions = new SessionProvider(conversation);
+              try {
+                ExoContainerContext.setCurrentContainer(container);
+                ConversationState.setCurrent(conversation);
+                sessionProviders.setSessionProvider(null, sessions);
+                creation.run();
+              } finally {
+                if (!creation.isFailed()) {
+                  creating.remove(key, creation);
+                } // otherwise keep the failure for a while
+                ConversationState.setCurrent(prevConversation);
+                sessionProviders.setSessionProvider(null, prevSessions);
+                sessions.close();
+                ExoContainerContext.setCurrentContainer(prevContainer);
+              }
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          creating.remove(key, creation);
+          throw e;
+        }
+        return null;
+      } else if (existing.isExpired()) {
+        // previous failure is outdated, try create again
+        creating.remove(key, existing);
+      } else if (existing.isDone()) {
+        // recent failure will be thrown here
+        ContentFile created = creationResult(existing, file);
+        if (lastModified <= created.getLastModified()) {
+          return created;
+        } // otherwise it was a creation of previous version, create again
+        creating.remove(key, existing);
+      } else {
+        // being created
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Spool the file content to the storage and convert it to PDF if required. This method should be called by
+   * a single thread per file key.
+   *
+   * @param repository the repository
+   * @param workspace the workspace
+   * @param drive the drive
+   * @param file the file
+   * @param key the key
+   * @param userId the user id
+   * @param lastModified the last modified
+   * @param priority the priority of conversion
+   * @return the content file
+   * @throws CloudDriveException the cloud drive exception
+   * @throws DriveRemovedException the drive removed exception
+   * @throws RepositoryException the repository exception
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected ContentFile spoolFile(String repository,
+                                  String workspace,
+                                  CloudDrive drive,
+                                  CloudFile file,
+                                  FileKey key,
+                                  String userId,
+                                  long lastModified,
+                                  Priority priority) throws CloudDriveException,
+                                                     DriveRemovedException,
+                                                     RepositoryException,
+                                                     IOException {
     PDFFile pdfFile;
-    boolean forceSpool = false;
     ContentFile spooledFile = spool.get(key);
     if (spooledFile != null) {
       if (spooledFile.exists()) {
@@ -890,12 +1914,13 @@ public class ViewerStorage {
             // TODO ensure this file will be removed by the evicter (see for PDF above also)
             LOG.warn("Cannot remove view of cloud file from the storage: " + file);
             spool.remove(key);
+            spooledFile.released();
             pdfFile = null;
-            forceSpool = true;
           }
         }
       } else {
         spool.remove(key);
+        spooledFile.released();
         pdfFile = null;
       }
     } else {
@@ -923,92 +1948,114 @@ public class ViewerStorage {
       fileName.append(lastModified);
 
       String baseFileName = fileName.toString();
-      String name = baseFileName;
-      long counter = 1;
+      File partFile = newPartFile(parent, baseFileName);
       File tempFile = null;
-      do {
-        File f = new File(parent, name);
-        if (f.exists()) {
-          name = baseFileName + "-" + (counter++);
-        } else {
-          tempFile = f;
-        }
-      } while (tempFile == null);
 
-      // spool remote content to temp file, convert to PDF if required (from office formats)
+      // spool remote content to part file, convert to PDF if required (from office formats)
       try {
         ContentReader content = ((CloudDriveStorage) drive).getFileContent(file.getId());
         if (file.getType().startsWith(PDF_TYPE) || file.getType().startsWith("text/pdf")
             || file.getType().startsWith("application/x-pdf")) {
           // copy content directly
-          spoolToFile(content.getStream(), tempFile);
+          spoolToFile(content.getStream(), partFile);
         } else {
           // we assuming office document here: convert to PDF using Jod converter
           // spool original content of cloud file to local file (file required by Jod)
-          File origFile = new File(parent, name + "-tmp");
+          File origFile = Files.createTempFile(parent.toPath(), baseFileName + "-", "-tmp").toFile();
           try {
             spoolToFile(content.getStream(), origFile);
-            boolean success = jodConverter.convert(origFile, tempFile, "pdf");
+            boolean success = convert(origFile, partFile, priority, file);
             // If the converting was failure then delete the content temporary file
             if (!success) {
-              tempFile.delete();
+              partFile.delete();
             }
           } catch (OfficeException e) {
-            tempFile.delete();
+            partFile.delete();
             throw new IOException("Error converting office document " + file.getTitle() + " (" + cleanName + ")", e);
           } finally {
             origFile.delete();
           }
         }
 
-        if (tempFile.exists()) {
+        if (partFile.exists() && partFile.length() > 0) {
+          tempFile = storeFile(partFile, parent, baseFileName);
           // build IcePDF document and consume it in PDFFile (ContentReader)
-          FileInputStream tempStream = new FileInputStream(tempFile);
+          Document pdf = buildDocumentImage(tempFile, tempFile.getName());
           try {
-            Document pdf = buildDocumentImage(tempStream, tempFile.getName());
-            try {
-              pdfFile = new PDFFile(key, tempFile, cleanName, lastModified, pdf);
+            pdfFile = new PDFFile(key, tempFile, cleanName, lastModified, pdf);
 
-              // listen the drive for file removal/updates to clean the storage
-              addDriveListener(drive, pdfFile);
+            // listen the drive for file removal/updates to clean the storage
+            addDriveListener(drive, pdfFile);
 
-            } finally {
-              pdf.dispose();
-            }
           } finally {
-            tempStream.close();
+            pdf.dispose();
           }
         } else {
+          partFile.delete();
           throw new DocumentNotFoundException("PDF file cannot be created due to previous errors.");
         }
       } catch (IOException e) {
-        tempFile.delete();
+        deleteFiles(partFile, tempFile);
         throw e;
       } catch (CloudDriveException e) {
-        tempFile.delete();
+        deleteFiles(partFile, tempFile);
         throw e;
       } catch (RepositoryException e) {
-        tempFile.delete();
+        deleteFiles(partFile, tempFile);
         throw e;
       }
 
-      if (forceSpool) {
-        spool.put(key, spooledFile = pdfFile);
-      } else {
-        ContentFile alreadySpooled = spool.putIfAbsent(key, spooledFile = pdfFile);
-        if (alreadySpooled != null) {
-          // FIXME this actually should not happened if use per-file locking
-          // another thread already spooled this file - use it
-          spooledFile = alreadySpooled;
-          // clean result of this spool
-          tempFile.delete();
-        }
-      }
+      // creation of the file is single per key, thus we can replace what is in the spool
+      spool.put(key, spooledFile = pdfFile);
+      pdfFile.stored(tempFile.length());
+      writeInfo(pdfFile);
+      checkLimits();
     }
 
     return spooledFile;
   }
 
+  /**
+   * Wait for the file creation result.
+   *
+   * @param creation the creation
+   * @param file the file
+   * @return the content file
+   * @throws CloudDriveException the cloud drive exception
+   * @throws RepositoryException the repository exception
+   * @throws IOException if creation failed with I/O error, timed out or waiting interrupted
+   */
+  private ContentFile creationResult(Creation creation, CloudFile file) throws CloudDriveException,
+                                                                         RepositoryException,
+                                                                         IOException {
+    try {
+      return creation.get(CREATE_TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException ie = new InterruptedIOException("Interrupted waiting for view of cloud file " + file.getTitle());
+      ie.initCause(e);
+      throw ie;
+    } catch (TimeoutException e) {
+      throw new IOException("Timeout waiting for view of cloud file " + file.getTitle(), e);
+    } catch (CancellationException e) {
+      throw new IOException("Creation of view canceled for cloud file " + file.getTitle(), e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof CloudDriveException) {
+        throw (CloudDriveException) cause;
+      } else if (cause instanceof RepositoryException) {
+        throw (RepositoryException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException("Error creating view of cloud file " + file.getTitle(), cause);
+    }
+  }
+
   /**
    * Save file.
    *
@@ -1073,51 +2120,39 @@ public class ViewerStorage {
       fileName.append(lastModified);
 
       String baseFileName = fileName.toString();
-      String name = baseFileName;
-      long counter = 1;
+      File partFile = newPartFile(parent, baseFileName);
       File tempFile = null;
-      do {
-        File f = new File(parent, name);
-        if (f.exists()) {
-          name = baseFileName + "-" + (counter++);
-        } else {
-          tempFile = f;
-        }
-      } while (tempFile == null);
 
       try {
-        // spool remote content to temp file, convert to images if required and possible
+        // spool remote content to part file, then give it a free storage name
         ContentReader content = ((CloudDriveStorage) drive).getFileContent(file.getId());
-        spoolToFile(content.getStream(), tempFile);
+        spoolToFile(content.getStream(), partFile);
 
-        if (tempFile.exists()) {
+        if (partFile.exists() && partFile.length() > 0) {
+          tempFile = storeFile(partFile, parent, baseFileName);
           // build IcePDF document and consume it in PDFFile (ContentReader)
-          FileInputStream tempStream = new FileInputStream(tempFile);
+          Document pdf = buildDocumentImage(tempFile, tempFile.getName());
           try {
-            Document pdf = buildDocumentImage(tempStream, tempFile.getName());
-            try {
-              viewFile = new PDFFile(key, tempFile, cleanName, lastModified, pdf);
+            viewFile = new PDFFile(key, tempFile, cleanName, lastModified, pdf);
 
-              // listen the drive for file removal/updates to clean the storage
-              addDriveListener(drive, viewFile);
+            // listen the drive for file removal/updates to clean the storage
+            addDriveListener(drive, viewFile);
 
-            } finally {
-              pdf.dispose();
-            }
           } finally {
-            tempStream.close();
+            pdf.dispose();
           }
         } else {
+          partFile.delete();
           throw new DocumentNotFoundException("PDF file cannot be created due to previous errors.");
         }
       } catch (IOException e) {
-        tempFile.delete();
+        deleteFiles(partFile, tempFile);
         throw e;
       } catch (CloudDriveException e) {
-        tempFile.delete();
+        deleteFiles(partFile, tempFile);
         throw e;
       } catch (RepositoryException e) {
-        tempFile.delete();
+        deleteFiles(partFile, tempFile);
         throw e;
       }
 
@@ -1127,50 +2162,538 @@ public class ViewerStorage {
         viewFile = alreadySpooled;
         // clean result of this spool
         tempFile.delete();
+      } else {
+        viewFile.stored(tempFile.length());
+        checkLimits();
       }
     }
 
     return viewFile;
   }
 
+  /**
+   * Current size of files in the storage in bytes.
+   *
+   * @return the size
+   */
+  public long getSize() {
+    return storedSize.get();
+  }
+
+  /**
+   * Current number of files in the storage.
+   *
+   * @return the files count
+   */
+  public int getFilesCount() {
+    return spool.size();
+  }
+
+  /**
+   * Number of requests of files and page images found in the storage.
+   *
+   * @return the hits count
+   */
+  public long getHits() {
+    return hitCount.get();
+  }
+
+  /**
+   * Number of requests of files and page images not found in the storage and created.
+   *
+   * @return the misses count
+   */
+  public long getMisses() {
+    return missCount.get();
+  }
+
+  /**
+   * Number of files evicted from the storage due to its limits.
+   *
+   * @return the evictions count
+   */
+  public long getEvictions() {
+    return evictionCount.get();
+  }
+
   // *********** internals
 
   /**
-   * Spool to file.
+   * Convert office document to PDF by the conversions executor. Caller will wait while the conversion is
+   * queued, then for its result not longer than {@link #conversionTimeout} from the conversion start, then
+   * the conversion will be cancelled and the converter restarted (see {@link #restartConverter(CloudFile)}).
+   *
+   * @param source the source document
+   * @param dest the dest PDF file
+   * @param priority the priority
+   * @param file the cloud file (for messages)
+   * @return <code>true</code> if converted successfully
+   * @throws IOException if conversion rejected, timed out or interrupted
+   * @throws OfficeException if conversion failed in office process
+   */
+  private boolean convert(File source, File dest, Priority priority, CloudFile file) throws IOException,
+                                                                                     OfficeException {
+    if (priority != Priority.INTERACTIVE && conversions.getQueue().size() >= CONVERSION_QUEUE) {
+      throw new IOException("Too many documents waiting for conversion, cannot convert " + file.getTitle());
+    }
+    Conversion conversion = new Conversion(source, dest, priority);
+    conversions.execute(conversion);
+    try {
+      // time in the queue doesn't count in the conversion timeout
+      while (!conversion.started.await(CONVERSION_CHECK, TimeUnit.MILLISECONDS)) {
+        if (conversions.isShutdown()) {
+          conversion.cancel(false);
+          throw new IOException("Conversions stopped, cannot convert " + file.getTitle());
+        }
+      }
+      long timeout = conversionTimeout - (System.currentTimeMillis() - conversion.startTime);
+      return conversion.get(Math.max(timeout, 0), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      conversion.cancel(true);
+      Thread.currentThread().interrupt();
+      InterruptedIOException ie = new InterruptedIOException("Interrupted converting " + file.getTitle());
+      ie.initCause(e);
+      throw ie;
+    } catch (TimeoutException e) {
+      conversion.cancel(true);
+      restartConverter(file);
+      throw new IOException("Timeout converting " + file.getTitle() + " after " + (conversionTimeout / 1000) + "sec",
+                            e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof OfficeException) {
+        throw (OfficeException) cause;
+      } else if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException("Error converting " + file.getTitle(), cause);
+    }
+  }
+
+  /**
+   * Restart office processes of the converter after a conversion timeout: cancelled conversion frees its
+   * worker, but the office process keeps working on the document and would hold next conversions. Only one
+   * caller restarts the converter at a time, others skip it. Conversions running in the office processes
+   * will fail.
+   *
+   * @param file the cloud file which conversion timed out (for messages)
+   */
+  private void restartConverter(CloudFile file) {
+    if (jodConverter instanceof Startable) {
+      if (converterRestart.compareAndSet(false, true)) {
+        try {
+          LOG.warn("Restarting office converter after timeout converting " + file.getTitle());
+          ((Startable) jodConverter).stop();
+          ((Startable) jodConverter).start();
+        } catch (RuntimeException e) {
+          LOG.error("Error restarting office converter after timeout converting " + file.getTitle(), e);
+        } finally {
+          converterRestart.set(false);
+        }
+      }
+    } else {
+      LOG.warn("Office converter cannot be restarted after timeout converting " + file.getTitle()
+          + ", it may be busy till its own timeout.");
+    }
+  }
+
+  /**
+   * Evict files in background if the storage exceeds its limits.
+   */
+  protected void checkLimits() {
+    if (storedSize.get() > maxSize || spool.size() > maxFiles) {
+      evicter.execute(new Runnable() {
+        @Override
+        public void run() {
+          evict();
+        }
+      });
+    }
+  }
+
+  /**
+   * Evict least recently (or frequently) used files if the storage exceeds its limits. Files will be evicted
+   * to a tenth below the limits, thus a next eviction will not run on each new file. Files accessed during
+   * last {@link #EVICTION_PERIOD} will not be evicted: a just created file is in use.
+   */
+  protected void evict() {
+    if (evictionLock.tryLock()) {
+      try {
+        long size = storedSize.get();
+        int count = spool.size();
+        if (size > maxSize || count > maxFiles) {
+          long targetSize = maxSize - maxSize / 10;
+          int targetCount = maxFiles - maxFiles / 10;
+          List<Candidate> candidates = new ArrayList<Candidate>(count);
+          for (ContentFile file : spool.values()) {
+            candidates.add(new Candidate(file));
+          }
+          Collections.sort(candidates);
+          long recent = System.currentTimeMillis() - EVICTION_PERIOD;
+          int evicted = 0;
+          for (Candidate c : candidates) {
+            if (size <= targetSize && count <= targetCount) {
+              break;
+            }
+            if (c.accessed < recent && spool.remove(c.file.key, c.file)) {
+              long fileSize = c.file.size.get();
+              if (c.file.remove()) {
+                size -= fileSize;
+                count--;
+                evicted++;
+              } else {
+                // cannot remove, it will be tried in next eviction
+                spool.putIfAbsent(c.file.key, c.file);
+              }
+            }
+          }
+          evictionCount.addAndGet(evicted);
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Evicted " + evicted + " file(s) from ViewerStorage, " + count + " file(s) of "
+                + (size / 1024) + "KB left. Hits: " + hitCount.get() + ", misses: " + missCount.get()
+                + ", evictions: " + evictionCount.get());
+          }
+        }
+      } finally {
+        evictionLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Write info file of given PDF file. Info required to recover the file after a restart.
+   *
+   * @param pdfFile the PDF file
+   */
+  private void writeInfo(PDFFile pdfFile) {
+    Properties info = new Properties();
+    info.setProperty("repository", pdfFile.key.repository);
+    info.setProperty("workspace", pdfFile.key.workspace);
+    info.setProperty("username", pdfFile.key.username);
+    info.setProperty("driveName", pdfFile.key.driveName);
+    info.setProperty("fileId", pdfFile.key.fileId);
+    info.setProperty("name", pdfFile.name);
+    info.setProperty("lastModified", String.valueOf(pdfFile.lastModified));
+    info.setProperty("numberOfPages", String.valueOf(pdfFile.numberOfPages));
+    for (Map.Entry<String, String> me : pdfFile.metadata.entrySet()) {
+      info.setProperty("metadata." + me.getKey(), me.getValue());
+    }
+    File infoFile = pdfFile.infoFile();
+    try {
+      OutputStream out = new FileOutputStream(infoFile);
+      try {
+        info.store(out, null);
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      LOG.warn("Cannot write info of view file " + pdfFile.file.getAbsolutePath() + ": " + e.getMessage());
+      infoFile.delete();
+    }
+  }
+
+  /**
+   * Recover files existing in the storage directory after a restart: PDF files with their info and page
+   * images will be added to the storage, other files created by the storage (see {@link #isStorageFile(File)})
+   * deleted. If the same cloud file found in several versions, only a latest one will be used.
+   */
+  private void recover() {
+    List<File> dirs = new ArrayList<File>();
+    dirs.add(rootDir);
+    Set<File> used = new HashSet<File>();
+    List<File> all = new ArrayList<File>();
+    while (dirs.size() > 0) {
+      File[] files = dirs.remove(dirs.size() - 1).listFiles();
+      if (files != null) {
+        for (File f : files) {
+          if (f.isDirectory()) {
+            dirs.add(f);
+          } else {
+            all.add(f);
+            if (f.getName().endsWith(INFO_EXT)) {
+              PDFFile pdfFile = recoverFile(f);
+              if (pdfFile != null) {
+                ContentFile prev = spool.get(pdfFile.key);
+                if (prev == null || prev.lastModified < pdfFile.lastModified) {
+                  spool.put(pdfFile.key, pdfFile);
+                  if (prev != null) {
+                    prev.released();
+                    used.removeAll(filesOf(prev.asPDF()));
+                  }
+                  used.addAll(filesOf(pdfFile));
+                } else {
+                  pdfFile.released();
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+    // delete what not used: outdated versions, temporary and orphan files, but not foreign files
+    for (File f : all) {
+      if (!used.contains(f) && isStorageFile(f)) {
+        f.delete();
+      }
+    }
+  }
+
+  /**
+   * Checks if given file was created by the storage: it is located at repository/workspace/user folder and
+   * its name matches {@link #STORAGE_FILE_NAME}.
+   *
+   * @param file the file
+   * @return true, if the file is of the storage
+   */
+  private boolean isStorageFile(File file) {
+    return rootDir.toPath().relativize(file.toPath()).getNameCount() == STORAGE_FILE_DEPTH
+        && STORAGE_FILE_NAME.matcher(file.getName()).matches();
+  }
+
+  /**
+   * Recover PDF file from its info file. Page images of the file found next to it will be added.
+   *
+   * @param infoFile the info file
+   * @return the PDF file or <code>null</code> if cannot be recovered
+   */
+  private PDFFile recoverFile(File infoFile) {
+    String infoName = infoFile.getName();
+    File file = new File(infoFile.getParentFile(), infoName.substring(0, infoName.length() - INFO_EXT.length()));
+    if (file.exists()) {
+      Properties info = new Properties();
+      try {
+        InputStream in = new FileInputStream(infoFile);
+        try {
+          info.load(in);
+        } finally {
+          in.close();
+        }
+        for (String required : new String[] { "repository", "workspace", "username", "driveName", "fileId",
+            "name", "lastModified", "numberOfPages" }) {
+          if (info.getProperty(required) == null) {
+            LOG.warn("Incomplete info of view file " + file.getAbsolutePath() + ", " + required + " not found");
+            return null;
+          }
+        }
+        Map<String, String> metadata = new HashMap<String, String>();
+        for (String pname : info.stringPropertyNames()) {
+          if (pname.startsWith("metadata.")) {
+            metadata.put(pname.substring(9), info.getProperty(pname));
+          }
+        }
+        FileKey key = new FileKey(info.getProperty("repository"),
+                                  info.getProperty("workspace"),
+                                  info.getProperty("username"),
+                                  info.getProperty("driveName"),
+                                  info.getProperty("fileId"));
+        String name = info.getProperty("name");
+        PDFFile pdfFile = new PDFFile(key,
+                                      file,
+                                      name,
+                                      Long.parseLong(info.getProperty("lastModified")),
+                                      Integer.parseInt(info.getProperty("numberOfPages")),
+                                      metadata);
+        pdfFile.stored(file.length());
+        // last use of the file was when it or its last page image written
+        long accessed = file.lastModified();
+        // page images: fileName-page,rotation,scale[-counter].png
+        String prefix = file.getName() + "-";
+        File[] siblings = file.getParentFile().listFiles();
+        if (siblings != null) {
+          for (File image : siblings) {
+            String imageName = image.getName();
+            if (imageName.startsWith(prefix) && imageName.endsWith(PAGE_IMAGE_EXT)) {
+              String[] params = imageName.substring(prefix.length(), imageName.length() - PAGE_IMAGE_EXT.length())
+                                         .split(",");
+              if (params.length == 3) {
+                try {
+                  int counter = params[2].indexOf('-');
+                  PDFFile.PageKey pageKey = pdfFile.new PageKey(Integer.valueOf(params[0]),
+                                                                 Float.valueOf(params[1]),
+                                                                 Float.valueOf(counter > 0
+                                                                     ? params[2].substring(0, counter)
+                                                                     : params[2]));
+                  if (pdfFile.pages.putIfAbsent(pageKey,
+                                                pdfFile.new ImageFile(image,
+                                                                      name + "-" + pageKey + PAGE_IMAGE_EXT,
+                                                                      PAGE_IMAGE_TYPE)) == null) {
+                    pdfFile.stored(image.length());
+                    accessed = Math.max(accessed, image.lastModified());
+                  }
+                } catch (NumberFormatException e) {
+                  // not a page of this file
+                }
+              }
+            }
+          }
+        }
+        pdfFile.lastAcccessed = accessed;
+        return pdfFile;
+      } catch (IOException e) {
+        LOG.warn("Cannot read info of view file " + file.getAbsolutePath() + ": " + e.getMessage());
+      } catch (NumberFormatException e) {
+        LOG.warn("Wrong info of view file " + file.getAbsolutePath() + ": " + e.getMessage());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Local files of given PDF file: the file, its info and page images.
+   *
+   * @param pdfFile the PDF file
+   * @return the list of files
+   */
+  private List<File> filesOf(PDFFile pdfFile) {
+    List<File> files = new ArrayList<File>();
+    files.add(pdfFile.file);
+    files.add(pdfFile.infoFile());
+    for (PDFFile.ImageFile image : pdfFile.pages.values()) {
+      files.add(image.file);
+    }
+    return files;
+  }
+
+  /**
+   * Create a new part file in given folder: content of a storage file written to it first, then it will be
+   * renamed to a storage name by {@link #storeFile(File, File, String)}.
+   *
+   * @param parent the folder
+   * @param baseFileName the base file name
+   * @return the part file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private File newPartFile(File parent, String baseFileName) throws IOException {
+    return Files.createTempFile(parent.toPath(), baseFileName + "-", PART_EXT).toFile();
+  }
+
+  /**
+   * Atomically rename fully written part file to a free storage name made from given base name. The name
+   * claimed by creating an empty file (what fails if it already exists), then the part file replaces it,
+   * thus concurrent writers never share a file and a file with storage name is never partially written.
+   *
+   * @param partFile the part file
+   * @param parent the folder
+   * @param baseFileName the base file name
+   * @return the stored file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private File storeFile(File partFile, File parent, String baseFileName) throws IOException {
+    long counter = 1;
+    File file = new File(parent, baseFileName);
+    while (!file.createNewFile()) {
+      file = new File(parent, baseFileName + "-" + (counter++));
+    }
+    try {
+      Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      file.delete();
+      throw e;
+    }
+    return file;
+  }
+
+  /**
+   * Delete given files, <code>null</code> files skipped.
+   *
+   * @param files the files
+   */
+  private void deleteFiles(File... files) {
+    for (File f : files) {
+      if (f != null) {
+        f.delete();
+      }
+    }
+  }
+
+  /**
+   * Spool to file. Local file sources will be transferred by the file system, other streams will be copied
+   * via a direct buffer growing from {@link #SPOOL_BUFFER_MIN} to {@link #SPOOL_BUFFER_MAX} while the source
+   * fills it completely (a fast download).
    *
    * @param sourceStream the source stream
    * @param destFile the dest file
    * @throws IOException Signals that an I/O exception has occurred.
    */
   private void spoolToFile(final InputStream sourceStream, final File destFile) throws IOException {
-    final ReadableByteChannel source = Channels.newChannel(sourceStream);
-    final OutputStream destStream = new FileOutputStream(destFile);
-    final WritableByteChannel dest = Channels.newChannel(destStream);
+    final FileOutputStream destStream = new FileOutputStream(destFile);
+    final FileChannel dest = destStream.getChannel();
     try {
-      final ByteBuffer buffer = ByteBuffer.allocateDirect(8 * 1024);
-      while (source.read(buffer) >= 0 || buffer.position() != 0) {
-        // prepare the buffer to be drained
+      if (sourceStream instanceof FileInputStream) {
+        FileChannel source = ((FileInputStream) sourceStream).getChannel();
+        long position = 0;
+        long count;
+        while ((count = dest.transferFrom(source, position, SPOOL_BUFFER_MAX)) > 0) {
+          position += count;
+        }
+      } else {
+        final ReadableByteChannel source = Channels.newChannel(sourceStream);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SPOOL_BUFFER_MIN);
+        int read;
+        while ((read = source.read(buffer)) >= 0) {
+          if (read > 0 && !buffer.hasRemaining() && buffer.capacity() < SPOOL_BUFFER_MAX) {
+            // the source is faster than the buffer: use a bigger one
+            buffer.flip();
+            ByteBuffer bigger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+            bigger.put(buffer);
+            buffer = bigger;
+          } else if (!buffer.hasRemaining() || read == 0) {
+            // prepare the buffer to be drained
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+              dest.write(buffer);
+            }
+            buffer.clear();
+          }
+        }
+        // EOF will leave buffer in fill state
         buffer.flip();
-        // write to the channel, may block
-        dest.write(buffer);
-        // If partial transfer, shift remainder down
-        // If buffer is empty, same as doing clear()
-        buffer.compact();
-      }
-      // EOF will leave buffer in fill state
-      buffer.flip();
-      // make sure the buffer is fully drained.
-      while (buffer.hasRemaining()) {
-        dest.write(buffer);
+        // make sure the buffer is fully drained.
+        while (buffer.hasRemaining()) {
+          dest.write(buffer);
+        }
       }
     } finally {
-      source.close();
       sourceStream.close();
       dest.close();
       destStream.close();
     }
   }
 
+  /**
+   * Write the file content to given stream through a single buffer of up to {@link #SPOOL_BUFFER_MIN}
+   * bytes. A servlet output is a stream, thus the content is copied once from the file to the buffer.
+   *
+   * @param file the file
+   * @param out the output stream
+   * @return the number of bytes written
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static long writeFile(File file, OutputStream out) throws IOException {
+    FileInputStream in;
+    try {
+      in = new FileInputStream(file);
+    } catch (FileNotFoundException e) {
+      throw new DocumentNotFoundException("File not found: " + file.getAbsolutePath(), e);
+    }
+    try {
+      byte[] buffer = new byte[(int) Math.max(1, Math.min(file.length(), SPOOL_BUFFER_MIN))];
+      long written = 0;
+      int count;
+      while ((count = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, count);
+        written += count;
+      }
+      return written;
+    } finally {
+      in.close();
+    }
+  }
+
   /**
    * Read IcePDF document from given file.
    * Method adopted from {@link PDFViewerService}.
@@ -1180,7 +2703,7 @@ public class ViewerStorage {
    * @return {@link Document}
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  private Document buildDocumentImage(InputStream input, String name) throws IOException {
+  private Document buildDocumentImage(File input, String name) throws IOException {
     Document document = new Document();
 
     // Turn off Log of org.icepdf.core.pobjects.Document to avoid printing error stack trace in case viewing
@@ -1188,9 +2711,14 @@ public class ViewerStorage {
     // TODO: Remove this statement after IcePDF fix this
     Logger.getLogger(Document.class.toString()).setLevel(Level.OFF);
 
-    // Capture the page image to file
+    // Turn off Log of org.icepdf.core.pobjects.Stream to not print error stack trace in case
+    // viewing a PDF file including CCITT (Fax format) images
+    // TODO: Remove these statement and comments after IcePDF fix ECMS-3765
+    Logger.getLogger(Stream.class.toString()).setLevel(Level.OFF);
+
+    // Open the document from the file, IcePDF will read it in random access mode
     try {
-      document.setInputStream(input, name);
+      document.setFile(input.getAbsolutePath());
     } catch (PDFException ex) {
       if (LOG.isDebugEnabled()) {
         LOG.debug("Error parsing PDF document " + ex);
@@ -1221,85 +2749,108 @@ public class ViewerStorage {
    * @return the file
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  private File buildFileImage(File input, int page, float rotation, float scale) throws IOException {
-    InputStream inputStream = new FileInputStream(input);
-    try {
-      // find free file for this page image
-      File parent = input.getParentFile();
+  private File buildFileImage(PDFFile input, int page, float rotation, float scale) throws IOException {
+    // find free file for this page image
+    File parent = input.file.getParentFile();
+
+    StringBuilder fileName = new StringBuilder();
+    fileName.append(input.file.getName());
+    fileName.append('-');
+    fileName.append(page);
+    fileName.append(',');
+    fileName.append(rotation);
+    fileName.append(',');
+    fileName.append(scale);
+
+    String baseFileName = fileName.toString();
+    String name = baseFileName + PAGE_IMAGE_EXT;
+    long counter = 1;
+    File file = null;
+    do {
+      File f = new File(parent, name);
+      if (f.exists()) {
+        name = baseFileName + "-" + (counter++) + PAGE_IMAGE_EXT;
+      } else {
+        file = f;
+      }
+    } while (file == null);
 
-      StringBuilder fileName = new StringBuilder();
-      fileName.append(input.getName());
-      fileName.append('-');
-      fileName.append(page);
-      fileName.append(',');
-      fileName.append(rotation);
-      fileName.append(',');
-      fileName.append(scale);
+    // Paint requested page content to an image (in the open document) and write the image to file
+    BufferedImage image = input.renderPage(page, rotation, scale);
+    try {
+      ImageIO.write(image, "png", file);
+      return file;
+    } catch (IOException e) {
+      file.delete();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Error captiring page image " + input.file.getName(), e);
+      }
+      throw new IOException("Error captiring page image " + input.file.getName(), e);
+    } finally {
+      // clean up resources
+      image.flush();
+    }
+  }
 
-      String baseFileName = fileName.toString();
-      String name = baseFileName + PAGE_IMAGE_EXT;
-      long counter = 1;
-      File file = null;
-      do {
-        File f = new File(parent, name);
-        if (f.exists()) {
-          name = baseFileName + "-" + (counter++) + PAGE_IMAGE_EXT;
-        } else {
-          file = f;
+  /**
+   * Register just open document of the file and close least recently used documents if open documents
+   * exceed the limits. Documents in use by other threads will not be closed.
+   *
+   * @param file {@link PDFFile}
+   */
+  private void documentOpened(PDFFile file) {
+    List<PDFFile> exceeded = new ArrayList<PDFFile>();
+    synchronized (documents) {
+      PDFFile prev = documents.put(file.key, file);
+      if (prev != file) {
+        if (prev != null) {
+          // previous version of the file, it will be closed on its removal
+          documentsSize -= prev.getLength();
         }
-      } while (file == null);
-
-      // convert requested page to PNG image
-      Document document = buildDocumentImage(inputStream, name);
-
-      // Turn off Log of org.icepdf.core.pobjects.Stream to not print error stack trace in case
-      // viewing a PDF file including CCITT (Fax format) images
-      // TODO: Remove these statement and comments after IcePDF fix ECMS-3765
-      Logger.getLogger(Stream.class.toString()).setLevel(Level.OFF);
-
-      // Paint each pages content to an image and write the image to file
-      BufferedImage image = (BufferedImage) document.getPageImage(page - 1,
-                                                                  GraphicsRenderingHints.SCREEN,
-                                                                  Page.BOUNDARY_CROPBOX,
-                                                                  rotation,
-                                                                  scale);
-
-      try {
-        ImageIO.write(image, "png", file);
-        image.flush();
-        return file;
-      } catch (IOException e) {
-        file.delete();
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("Error captiring page image " + input.getName(), e);
+        documentsSize += file.getLength();
+      }
+      long size = documentsSize;
+      int count = documents.size();
+      for (PDFFile open : documents.values()) {
+        if (count <= MAX_OPEN_DOCUMENTS && size <= maxDocumentsSize) {
+          break;
+        }
+        if (open != file) {
+          exceeded.add(open);
+          size -= open.getLength();
+          count--;
         }
-        throw new IOException("Error captiring page image " + input.getName(), e);
-      } finally {
-        // clean up resources
-        document.dispose();
       }
-    } finally {
-      inputStream.close();
+    }
+    for (PDFFile open : exceeded) {
+      // it will call documentClosed()
+      open.tryCloseDocument();
     }
   }
 
   /**
-   * Delete.
+   * Mark the file document as recently used.
    *
-   * @param dir the dir
-   * @return true, if successful
+   * @param file {@link PDFFile}
    */
-  private boolean delete(File dir) {
-    boolean res = true;
-    if (dir.isDirectory()) {
-      for (File child : dir.listFiles()) {
-        res &= delete(child);
-      }
+  private void documentUsed(PDFFile file) {
+    synchronized (documents) {
+      documents.get(file.key);
     }
-    if (!res) {
-      LOG.warn("Child files not removed fully for " + dir.getAbsolutePath());
+  }
+
+  /**
+   * Unregister closed document of the file.
+   *
+   * @param file {@link PDFFile}
+   */
+  private void documentClosed(PDFFile file) {
+    synchronized (documents) {
+      if (documents.get(file.key) == file) {
+        documents.remove(file.key);
+        documentsSize -= file.getLength();
+      }
     }
-    return dir.delete();
   }
 
   /**
@@ -1337,6 +2888,7 @@ public class ViewerStorage {
       drive.addListener(cleaner);
     }
     cleaner.addFile(file);
+    file.listened = true;
   }
 
 }
@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive.jcr;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link ChangesJournal} on a drive node kept in memory. The node has transient and saved state as
+ * in JCR session: changes not saved can be discarded to simulate a rollback after a storage error.<br>
+ * Created by The eXo Platform SAS.
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: TestChangesJournal.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class TestChangesJournal extends TestCase {
+
+  /** Segment name of saved changes with sequence. */
+  static final String CHANGES_SEGMENT = ChangesJournal.CHANGES_PREFIX + ChangesJournal.SEQ_SEPARATOR;
+
+  /** Segment name of history with sequence. */
+  static final String HISTORY_SEGMENT = ChangesJournal.HISTORY_PREFIX + ChangesJournal.SEQ_SEPARATOR;
+
+  /**
+   * Drive node properties in memory.
+   */
+  static class DriveNode implements InvocationHandler {
+
+    /** Saved properties. */
+    final TreeMap<String, String> saved     = new TreeMap<String, String>();
+
+    /** Current (transient) properties. */
+    final TreeMap<String, String> current   = new TreeMap<String, String>();
+
+    /** Saves to fail, the storage works normally while zero. */
+    int                           failSaves;
+
+    /** The node proxy. */
+    final Node                    node      = (Node) Proxy.newProxyInstance(Node.class.getClassLoader(),
+                                                                            new Class<?>[] { Node.class },
+                                                                            this);
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("getProperties")) {
+        List<Property> props = new ArrayList<Property>();
+        for (String pname : current.keySet()) {
+          if (matches(pname, (String) args[0])) {
+            props.add(property(pname));
+          }
+        }
+        return iterator(props.iterator());
+      } else if (name.equals("getProperty")) {
+        String pname = (String) args[0];
+        if (current.containsKey(pname)) {
+          return property(pname);
+        }
+        throw new PathNotFoundException("Property not found " + pname);
+      } else if (name.equals("hasProperty")) {
+        return current.containsKey(args[0]);
+      } else if (name.equals("setProperty")) {
+        current.put((String) args[0], (String) args[1]);
+        return property((String) args[0]);
+      } else if (name.equals("save")) {
+        save();
+        return null;
+      } else if (name.equals("getName")) {
+        return "drive";
+      } else if (name.equals("hashCode")) {
+        return System.identityHashCode(proxy);
+      } else if (name.equals("equals")) {
+        return proxy == args[0];
+      } else if (name.equals("toString")) {
+        return "drive " + current;
+      }
+      throw new UnsupportedOperationException(name);
+    }
+
+    /**
+     * Save transient state.
+     *
+     * @throws RepositoryException if save should fail
+     */
+    void save() throws RepositoryException {
+      if (failSaves > 0) {
+        failSaves--;
+        throw new RepositoryException("Test save error");
+      }
+      saved.clear();
+      saved.putAll(current);
+    }
+
+    /**
+     * Discard transient state, as <code>refresh(false)</code> of JCR node.
+     */
+    void refresh() {
+      current.clear();
+      current.putAll(saved);
+    }
+
+    /**
+     * Property proxy of given name.
+     *
+     * @param pname the property name
+     * @return the property
+     */
+    Property property(String pname) {
+      return (Property) Proxy.newProxyInstance(Property.class.getClassLoader(),
+                                               new Class<?>[] { Property.class },
+                                               new DriveProperty(pname));
+    }
+
+    /**
+     * Property iterator proxy.
+     *
+     * @param props the properties iterator
+     * @return the property iterator
+     */
+    PropertyIterator iterator(final Iterator<Property> props) {
+      return (PropertyIterator) Proxy.newProxyInstance(PropertyIterator.class.getClassLoader(),
+                                                       new Class<?>[] { PropertyIterator.class },
+                                                       new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          String name = method.getName();
+          if (name.equals("hasNext")) {
+            return props.hasNext();
+          } else if (name.equals("nextProperty") || name.equals("next")) {
+            return props.next();
+          }
+          throw new UnsupportedOperationException(name);
+        }
+      });
+    }
+
+    /**
+     * Property of the drive node.
+     */
+    class DriveProperty implements InvocationHandler {
+
+      /** The property name. */
+      final String pname;
+
+      /**
+       * Instantiates a new drive property.
+       *
+       * @param pname the property name
+       */
+      DriveProperty(String pname) {
+        this.pname = pname;
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("getName")) {
+          return pname;
+        } else if (name.equals("getString")) {
+          return current.get(pname);
+        } else if (name.equals("setValue")) {
+          current.put(pname, (String) args[0]);
+          return null;
+        } else if (name.equals("remove")) {
+          current.remove(pname);
+          return null;
+        } else if (name.equals("save")) {
+          save();
+          return null;
+        }
+        throw new UnsupportedOperationException(name);
+      }
+    }
+
+    /**
+     * Match property name by JCR name pattern, only <code>|</code> and trailing <code>*</code> supported.
+     *
+     * @param pname the property name
+     * @param pattern the pattern
+     * @return true, if matches
+     */
+    boolean matches(String pname, String pattern) {
+      for (String p : pattern.split("\\|")) {
+        p = p.trim();
+        if (p.endsWith("*") ? pname.startsWith(p.substring(0, p.length() - 1)) : pname.equals(p)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /** The drive. */
+  private DriveNode      drive;
+
+  /** The journal. */
+  private ChangesJournal journal;
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    drive = new DriveNode();
+    journal = new ChangesJournal();
+  }
+
+  /**
+   * Test append and read of saved changes.
+   *
+   * @throws Exception the exception
+   */
+  public void testAppend() throws Exception {
+    journal.append(drive.node, records(1, 3));
+    journal.append(drive.node, records(4, 5));
+
+    assertEquals(Arrays.asList(record(1), record(2), record(3), record(4), record(5)), journal.changes(drive.node));
+    assertTrue(journal.contains(drive.node, changeId(3)));
+    assertFalse(journal.contains(drive.node, changeId(6)));
+
+    // all appended to the same segment and saved
+    assertEquals(Collections.singleton(CHANGES_SEGMENT + 1), drive.saved.keySet());
+    assertEquals(5, lines(drive.saved.get(CHANGES_SEGMENT + 1)).size());
+
+    // other instance loads the same from the storage
+    ChangesJournal loaded = new ChangesJournal();
+    assertEquals(journal.changes(drive.node), loaded.changes(drive.node));
+  }
+
+  /**
+   * Test commit of applied and skipped changes to the history.
+   *
+   * @throws Exception the exception
+   */
+  public void testCommit() throws Exception {
+    journal.append(drive.node, records(1, 4));
+
+    List<String> committed = journal.commit(drive.node,
+                                            Arrays.asList(changeId(1), changeId(3)),
+                                            Arrays.asList(changeId(2)),
+                                            1000);
+    assertEquals(Arrays.asList(record(1), record(3)), committed);
+    assertEquals(Arrays.asList(record(4)), journal.changes(drive.node));
+    assertFalse(journal.contains(drive.node, changeId(1)));
+    assertFalse(journal.contains(drive.node, changeId(2)));
+    assertEquals(Arrays.asList("1000:" + record(1), "1000:" + record(3)), journal.history(drive.node));
+
+    // unknown changes ignored
+    assertTrue(journal.commit(drive.node, Arrays.asList(changeId(7)), Collections.<String> emptyList(), 2000)
+                      .isEmpty());
+
+    // the last change empties the segment, it should be removed
+    journal.commit(drive.node, Arrays.asList(changeId(4)), Collections.<String> emptyList(), 3000);
+    assertTrue(journal.changes(drive.node).isEmpty());
+    for (String name : drive.saved.keySet()) {
+      assertFalse("Empty changes segment should be removed: " + name,
+                  name.startsWith(ChangesJournal.CHANGES_PREFIX));
+    }
+    assertEquals(Arrays.asList("1000:" + record(1), "1000:" + record(3), "3000:" + record(4)),
+                 new ChangesJournal().history(drive.node));
+  }
+
+  /**
+   * Test segments rotation when records exceed {@link ChangesJournal#SEGMENT_SIZE}.
+   *
+   * @throws Exception the exception
+   */
+  public void testSegmentRotation() throws Exception {
+    int size = ChangesJournal.SEGMENT_SIZE;
+    journal.append(drive.node, records(1, size - 1));
+    journal.append(drive.node, records(size, size + 1));
+
+    assertEquals(size, lines(drive.saved.get(CHANGES_SEGMENT + 1)).size());
+    assertEquals(Arrays.asList(record(size + 1)), lines(drive.saved.get(CHANGES_SEGMENT + 2)));
+    assertEquals(size + 1, journal.changes(drive.node).size());
+
+    // commit of the first segment changes touches only it
+    String second = drive.saved.get(CHANGES_SEGMENT + 2);
+    journal.commit(drive.node, ids(1, size), Collections.<String> emptyList(), 1000);
+    assertFalse(drive.saved.containsKey(CHANGES_SEGMENT + 1));
+    assertSame("Not committed segment should not be rewritten", second, drive.saved.get(CHANGES_SEGMENT + 2));
+    assertEquals(size, lines(drive.saved.get(HISTORY_SEGMENT + 3)).size());
+
+    // full history segment not appended
+    journal.commit(drive.node, ids(size + 1, size + 1), Collections.<String> emptyList(), 2000);
+    assertEquals(size, lines(drive.saved.get(HISTORY_SEGMENT + 3)).size());
+    assertEquals(Arrays.asList("2000:" + record(size + 1)), lines(drive.saved.get(HISTORY_SEGMENT + 4)));
+    assertEquals(size + 1, journal.history(drive.node).size());
+  }
+
+  /**
+   * Test rotation of history segments by length and expiration.
+   *
+   * @throws Exception the exception
+   */
+  public void testHistoryRotation() throws Exception {
+    int size = ChangesJournal.SEGMENT_SIZE;
+    int max = JCRLocalCloudDrive.HISTORY_MAX_LENGTH;
+    long time = 1000;
+    for (int i = 1; i <= max + size; i += size) {
+      journal.append(drive.node, records(i, i + size - 1));
+      journal.commit(drive.node, ids(i, i + size - 1), Collections.<String> emptyList(), time);
+    }
+    List<String> history = journal.history(drive.node);
+    assertEquals("Oldest segment should be rotated by max length", max, history.size());
+    assertEquals(time + ":" + record(size + 1), history.get(0));
+
+    // all but the last segment expired
+    long expired = time + JCRLocalCloudDrive.HISTORY_EXPIRATION;
+    journal.append(drive.node, records(max + size + 1, max + size + 1));
+    journal.commit(drive.node, ids(max + size + 1, max + size + 1), Collections.<String> emptyList(), expired);
+    assertEquals(Arrays.asList(expired + ":" + record(max + size + 1)), journal.history(drive.node));
+    assertEquals(journal.history(drive.node), new ChangesJournal().history(drive.node));
+  }
+
+  /**
+   * Test the journal reloads its index from the storage after a storage error.
+   *
+   * @throws Exception the exception
+   */
+  public void testReloadAfterError() throws Exception {
+    journal.append(drive.node, records(1, 3));
+
+    drive.failSaves = 1;
+    try {
+      journal.append(drive.node, records(4, 5));
+      fail("Append should fail");
+    } catch (RepositoryException e) {
+      // expected
+    }
+    drive.refresh();
+    assertFalse("Not saved change should not be in the journal", journal.contains(drive.node, changeId(4)));
+    assertEquals(Arrays.asList(record(1), record(2), record(3)), journal.changes(drive.node));
+
+    drive.failSaves = 1;
+    try {
+      journal.commit(drive.node, Arrays.asList(changeId(1)), Collections.<String> emptyList(), 1000);
+      fail("Commit should fail");
+    } catch (RepositoryException e) {
+      // expected
+    }
+    drive.refresh();
+    assertTrue("Not committed change should stay in the journal", journal.contains(drive.node, changeId(1)));
+    assertTrue(journal.history(drive.node).isEmpty());
+
+    // works normally after the error
+    journal.append(drive.node, records(4, 4));
+    journal.commit(drive.node, Arrays.asList(changeId(1)), Collections.<String> emptyList(), 2000);
+    assertEquals(Arrays.asList(record(2), record(3), record(4)), journal.changes(drive.node));
+    assertEquals(Arrays.asList("2000:" + record(1)), journal.history(drive.node));
+    assertEquals(journal.changes(drive.node), new ChangesJournal().changes(drive.node));
+  }
+
+  /**
+   * Test read and update of segments in the format used before: properties without sequence suffix.
+   *
+   * @throws Exception the exception
+   */
+  public void testLegacyProperties() throws Exception {
+    drive.current.put(ChangesJournal.CHANGES_PREFIX, record(1) + "\n" + record(2) + "\n");
+    drive.current.put(ChangesJournal.HISTORY_PREFIX, "500:" + record(0) + "\n");
+    drive.save();
+
+    assertEquals(Arrays.asList(record(1), record(2)), journal.changes(drive.node));
+    assertTrue(journal.contains(drive.node, changeId(2)));
+    assertEquals(Arrays.asList("500:" + record(0)), journal.history(drive.node));
+
+    // new changes go to the not full legacy segment, then to new segments with sequence
+    journal.append(drive.node, records(3, 3));
+    assertEquals(Arrays.asList(record(1), record(2), record(3)), lines(drive.saved.get(ChangesJournal.CHANGES_PREFIX)));
+
+    journal.commit(drive.node, ids(1, 3), Collections.<String> emptyList(), 1000);
+    assertFalse(drive.saved.containsKey(ChangesJournal.CHANGES_PREFIX));
+    assertEquals(Arrays.asList("500:" + record(0), "1000:" + record(1), "1000:" + record(2), "1000:" + record(3)),
+                 journal.history(drive.node));
+
+    journal.append(drive.node, records(4, 4));
+    assertEquals(Arrays.asList(record(4)), lines(drive.saved.get(CHANGES_SEGMENT + 1)));
+
+    // reset removes all segments
+    journal.reset(drive.node);
+    drive.save();
+    assertTrue(drive.saved.isEmpty());
+    assertTrue(journal.changes(drive.node).isEmpty());
+    assertTrue(journal.history(drive.node).isEmpty());
+  }
+
+  // ******* internals *******
+
+  /**
+   * Change ID.
+   *
+   * @param index the index
+   * @return the string
+   */
+  private String changeId(int index) {
+    return "1476691200000-" + index;
+  }
+
+  /**
+   * Change record as it is formatted by the drive.
+   *
+   * @param index the index
+   * @return the string
+   */
+  private String record(int index) {
+    String path = "/Users/test/Cloud Drive/file" + index + ".txt";
+    return changeId(index) + "=AN" + String.format("%010d", path.length()) + path;
+  }
+
+  /**
+   * Records of changes in given range.
+   *
+   * @param from the from index, inclusive
+   * @param to the to index, inclusive
+   * @return the map
+   */
+  private Map<String, String> records(int from, int to) {
+    Map<String, String> records = new LinkedHashMap<String, String>();
+    for (int i = from; i <= to; i++) {
+      records.put(changeId(i), record(i));
+    }
+    return records;
+  }
+
+  /**
+   * IDs of changes in given range.
+   *
+   * @param from the from index, inclusive
+   * @param to the to index, inclusive
+   * @return the list
+   */
+  private List<String> ids(int from, int to) {
+    List<String> ids = new ArrayList<String>();
+    for (int i = from; i <= to; i++) {
+      ids.add(changeId(i));
+    }
+    return ids;
+  }
+
+  /**
+   * Lines of a segment value.
+   *
+   * @param value the value
+   * @return the list
+   */
+  private List<String> lines(String value) {
+    assertNotNull("Segment not found", value);
+    List<String> lines = new ArrayList<String>();
+    for (String line : value.split("\n")) {
+      if (line.length() > 0) {
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive.jcr;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link PathLocks}.<br>
+ * Created by The eXo Platform SAS.
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: TestPathLocks.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class TestPathLocks extends TestCase {
+
+  /** Time to wait for a lock expected to be acquired, in milliseconds. */
+  static final long ACQUIRE_TIMEOUT = 5000;
+
+  /** Time to ensure a lock still waits, in milliseconds. */
+  static final long WAIT_TIMEOUT    = 300;
+
+  /**
+   * Thread locking a path till it will be released by the test.
+   */
+  class Locker extends Thread {
+
+    /** The path. */
+    final String         path;
+
+    /** The acquired latch. */
+    final CountDownLatch acquired = new CountDownLatch(1);
+
+    /** The release latch. */
+    final CountDownLatch release  = new CountDownLatch(1);
+
+    /** Error of the lock, if any. */
+    volatile Throwable   error;
+
+    /**
+     * Instantiates a new locker.
+     *
+     * @param path the path
+     */
+    Locker(String path) {
+      super("PathLocks-test-" + path);
+      this.path = path;
+      setDaemon(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+      try {
+        locks.lock(path, this);
+        try {
+          acquired.countDown();
+          release.await();
+        } finally {
+          locks.unlock(path, this);
+        }
+      } catch (Throwable e) {
+        error = e;
+      }
+    }
+
+    /**
+     * Wait for the lock.
+     *
+     * @param timeout the timeout in milliseconds
+     * @return true, if lock acquired
+     * @throws InterruptedException if interrupted
+     */
+    boolean awaitAcquired(long timeout) throws InterruptedException {
+      return acquired.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Release the lock and wait for the thread end.
+     *
+     * @throws InterruptedException if interrupted
+     */
+    void release() throws InterruptedException {
+      release.countDown();
+      join(ACQUIRE_TIMEOUT);
+    }
+
+    /**
+     * Wait until the thread will block on the lock.
+     *
+     * @throws InterruptedException if interrupted
+     */
+    void awaitBlocked() throws InterruptedException {
+      long timeout = System.currentTimeMillis() + ACQUIRE_TIMEOUT;
+      while (getState() != State.WAITING && System.currentTimeMillis() < timeout) {
+        Thread.sleep(10);
+      }
+      assertEquals(State.WAITING, getState());
+    }
+  }
+
+  /** The locks. */
+  private PathLocks locks;
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    locks = new PathLocks();
+  }
+
+  /**
+   * Test a lock of the same path waits for the previous owner.
+   *
+   * @throws Exception the exception
+   */
+  public void testSamePath() throws Exception {
+    Object owner = new Object();
+    locks.lock("/a/b", owner);
+    assertTrue(locks.isLocked("/a/b"));
+    assertFalse(locks.isLocked("/a"));
+
+    Locker locker = new Locker("/a/b");
+    locker.start();
+    assertFalse("Lock of the same path should wait", locker.awaitAcquired(WAIT_TIMEOUT));
+
+    assertFalse("Not an owner cannot unlock", locks.unlock("/a/b", new Object()));
+    assertTrue(locks.unlock("/a/b", owner));
+    assertTrue("Lock should be acquired after unlock", locker.awaitAcquired(ACQUIRE_TIMEOUT));
+
+    locker.release();
+    assertNull(locker.error);
+    assertFalse(locks.isLocked("/a/b"));
+    assertTrue("Entries should be removed", locks.root.children.isEmpty());
+  }
+
+  /**
+   * Test locks of disjoint sub-trees don't wait each other.
+   *
+   * @throws Exception the exception
+   */
+  public void testDisjointSubtrees() throws Exception {
+    Object owner = new Object();
+    locks.lock("/a/b/c", owner);
+
+    Locker sibling = new Locker("/a/b/d");
+    Locker other = new Locker("/a/e");
+    sibling.start();
+    other.start();
+    assertTrue("Sibling should be locked in parallel", sibling.awaitAcquired(ACQUIRE_TIMEOUT));
+    assertTrue("Other sub-tree should be locked in parallel", other.awaitAcquired(ACQUIRE_TIMEOUT));
+    assertTrue(locks.isLocked("/a/b/c"));
+    assertTrue(locks.isLocked("/a/b/d"));
+    assertTrue(locks.isLocked("/a/e"));
+
+    sibling.release();
+    other.release();
+    locks.unlock("/a/b/c", owner);
+    assertNull(sibling.error);
+    assertNull(other.error);
+    assertTrue("Entries should be removed", locks.root.children.isEmpty());
+  }
+
+  /**
+   * Test a lock of an ancestor waits for locks of its descendants.
+   *
+   * @throws Exception the exception
+   */
+  public void testAncestorWaitsDescendant() throws Exception {
+    Object owner1 = new Object();
+    Object owner2 = new Object();
+    locks.lock("/a/b/c", owner1);
+    locks.lock("/a/b/d/e", owner2);
+
+    Locker ancestor = new Locker("/a/b");
+    ancestor.start();
+    assertFalse("Ancestor should wait for descendants", ancestor.awaitAcquired(WAIT_TIMEOUT));
+
+    locks.unlock("/a/b/c", owner1);
+    assertFalse("Ancestor should wait for all descendants", ancestor.awaitAcquired(WAIT_TIMEOUT));
+
+    locks.unlock("/a/b/d/e", owner2);
+    assertTrue("Ancestor should be locked after descendants", ancestor.awaitAcquired(ACQUIRE_TIMEOUT));
+
+    ancestor.release();
+    assertNull(ancestor.error);
+    assertTrue("Entries should be removed", locks.root.children.isEmpty());
+  }
+
+  /**
+   * Test paths with common name prefix are not treated as ancestor and descendant.
+   *
+   * @throws Exception the exception
+   */
+  public void testPrefixBoundary() throws Exception {
+    Object owner = new Object();
+    locks.lock("/a/bc/d", owner);
+
+    Locker prefix = new Locker("/a/b");
+    prefix.start();
+    assertTrue("/a/b is not an ancestor of /a/bc/d", prefix.awaitAcquired(ACQUIRE_TIMEOUT));
+    assertTrue(locks.isLocked("/a/b"));
+    assertFalse(locks.isLocked("/a/bc"));
+
+    Locker sibling = new Locker("/a/bc");
+    sibling.start();
+    assertFalse("/a/bc is an ancestor of /a/bc/d", sibling.awaitAcquired(WAIT_TIMEOUT));
+
+    prefix.release();
+    assertFalse("/a/b is not a descendant of /a/bc", sibling.awaitAcquired(WAIT_TIMEOUT));
+
+    locks.unlock("/a/bc/d", owner);
+    assertTrue(sibling.awaitAcquired(ACQUIRE_TIMEOUT));
+    sibling.release();
+    assertNull(prefix.error);
+    assertNull(sibling.error);
+    assertTrue("Entries should be removed", locks.root.children.isEmpty());
+  }
+
+  /**
+   * Test a lock is released only by its path: a file renamed while locked should be unlocked by the path
+   * locked before the rename, otherwise the lock stays and next locks of the path and its ancestors wait
+   * forever.
+   *
+   * @throws Exception the exception
+   */
+  public void testUnlockRenamedPath() throws Exception {
+    Object owner = new Object();
+    String lockedPath = "/drive/folder/file";
+    locks.lock(lockedPath, owner);
+
+    // the file renamed during the change
+    String renamedPath = "/drive/folder/renamed";
+    assertFalse("Other path should not be unlocked", locks.unlock(renamedPath, owner));
+    assertTrue("Lock should stay on the locked path", locks.isLocked(lockedPath));
+
+    Locker ancestor = new Locker("/drive");
+    ancestor.start();
+    assertFalse("Ancestor should wait for the locked path", ancestor.awaitAcquired(WAIT_TIMEOUT));
+
+    assertTrue(locks.unlock(lockedPath, owner));
+    assertTrue("Ancestor should be locked after unlock of the locked path",
+               ancestor.awaitAcquired(ACQUIRE_TIMEOUT));
+    ancestor.release();
+    assertNull(ancestor.error);
+    assertTrue("Entries should be removed", locks.root.children.isEmpty());
+  }
+
+  /**
+   * Test entries cleanup and lock release after interrupted wait for a previous owner and for descendants.
+   *
+   * @throws Exception the exception
+   */
+  public void testInterruptedWait() throws Exception {
+    Object owner = new Object();
+    locks.lock("/a/b/c", owner);
+
+    // waiting for previous owner of the same path
+    Locker same = new Locker("/a/b/c");
+    same.start();
+    same.awaitBlocked();
+    same.interrupt();
+    same.join(ACQUIRE_TIMEOUT);
+    assertTrue(same.error instanceof InterruptedException);
+    assertTrue("Lock should stay with the owner", locks.isLocked("/a/b/c"));
+
+    // waiting for descendants, this lock already owns its path
+    Locker ancestor = new Locker("/a");
+    ancestor.start();
+    ancestor.awaitBlocked();
+    ancestor.interrupt();
+    ancestor.join(ACQUIRE_TIMEOUT);
+    assertTrue(ancestor.error instanceof InterruptedException);
+    assertFalse("Interrupted lock should be released", locks.isLocked("/a"));
+
+    locks.unlock("/a/b/c", owner);
+    assertFalse(locks.isLocked("/a/b/c"));
+    assertTrue("Entries should be removed", locks.root.children.isEmpty());
+
+    // locks work after the interruption
+    Locker next = new Locker("/a");
+    next.start();
+    assertTrue(next.awaitAcquired(ACQUIRE_TIMEOUT));
+    next.release();
+    assertNull(next.error);
+    assertTrue("Entries should be removed", locks.root.children.isEmpty());
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive.utils;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link Backoff}.<br>
+ * Created by The eXo Platform SAS.
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: TestBackoff.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class TestBackoff extends TestCase {
+
+  /** Number of random delays to check. */
+  static final int SAMPLES = 200;
+
+  /**
+   * Test statuses allowed for retry.
+   */
+  public void testStatuses() {
+    for (int status : new int[] { 429, 500, 502, 503, 504 }) {
+      assertTrue("Should be retryable: " + status, Backoff.isRetryable(status));
+    }
+    for (int status : new int[] { 200, 304, 400, 401, 403, 404, 409, 501 }) {
+      assertFalse("Should not be retryable: " + status, Backoff.isRetryable(status));
+    }
+    assertTrue(Backoff.isThrottled(429));
+    assertTrue(Backoff.isThrottled(503));
+    assertFalse(Backoff.isThrottled(500));
+    assertFalse(Backoff.isThrottled(502));
+    assertFalse(Backoff.isThrottled(504));
+  }
+
+  /**
+   * Test Retry-After with delay in seconds.
+   */
+  public void testRetryAfterSeconds() {
+    assertEquals(120000, Backoff.retryAfter("120"));
+    assertEquals(5000, Backoff.retryAfter(" 5 "));
+    assertEquals(0, Backoff.retryAfter("0"));
+    assertEquals("Negative delay should be ignored", 0, Backoff.retryAfter("-5"));
+    assertEquals(0, Backoff.retryAfter(null));
+    assertEquals(0, Backoff.retryAfter(""));
+    assertEquals(0, Backoff.retryAfter("soon"));
+  }
+
+  /**
+   * Test Retry-After with HTTP date.
+   */
+  public void testRetryAfterDate() {
+    SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+    long future = System.currentTimeMillis() + 60000;
+    long retryAfter = Backoff.retryAfter(httpDate.format(new Date(future)));
+    // the date has seconds precision and some time passed since
+    assertTrue("Wrong delay of future date: " + retryAfter, retryAfter > 55000 && retryAfter <= 60000);
+
+    assertEquals("Past date should not delay", 0, Backoff.retryAfter(httpDate.format(new Date(future - 120000))));
+    assertEquals(0, Backoff.retryAfter("Fri, 31 Dec 1999 23:59:59 GMT"));
+    assertEquals(0, Backoff.retryAfter("31 Dec 2099"));
+  }
+
+  /**
+   * Test jitter of delays stays between half and full of the exponential delay capped by the max.
+   */
+  public void testDelayBounds() {
+    long base = 1000;
+    long max = 60000;
+    for (int attempt = 0; attempt < 40; attempt++) {
+      long cap = attempt < 6 ? base << attempt : max; // 64sec of 7th attempt exceeds the max
+      long min = Long.MAX_VALUE;
+      long maxSeen = 0;
+      for (int i = 0; i < SAMPLES; i++) {
+        long delay = Backoff.delay(attempt, base, max);
+        assertTrue("Delay of attempt " + attempt + " below half: " + delay, delay >= cap / 2);
+        assertTrue("Delay of attempt " + attempt + " above cap: " + delay, delay <= cap);
+        min = Math.min(min, delay);
+        maxSeen = Math.max(maxSeen, delay);
+      }
+      assertTrue("Delays of attempt " + attempt + " should be random", maxSeen > min);
+    }
+    // overflow of the base shift falls back to the max delay
+    long delay = Backoff.delay(62, Long.MAX_VALUE / 2, max);
+    assertTrue(delay >= max / 2 && delay <= max);
+  }
+
+  /**
+   * Test retries count and Retry-After precedence.
+   */
+  public void testNext() {
+    Backoff backoff = new Backoff(3, 100, 1000);
+    long first = backoff.next(0);
+    assertTrue(first >= 50 && first <= 100);
+    long second = backoff.next(5000);
+    assertTrue("Retry-After should be honored: " + second, second >= 5000 && second <= 5000 + 200 / 4);
+    long third = backoff.next(0);
+    assertTrue(third >= 200 && third <= 400);
+    assertEquals(3, backoff.getAttempt());
+    assertEquals("No more attempts", -1, backoff.next(0));
+    assertEquals(3, backoff.getAttempt());
+  }
+}
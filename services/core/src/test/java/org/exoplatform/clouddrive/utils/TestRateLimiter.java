@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link RateLimiter}. Time of the limiter is moved back in tests where possible, waits are checked
+ * with a wide margin to do not depend on the machine load.<br>
+ * Created by The eXo Platform SAS.
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: TestRateLimiter.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class TestRateLimiter extends TestCase {
+
+  /** Requests per second of tested limiters. */
+  static final double RATE = 10;
+
+  /**
+   * Test a full bucket gives requests without waiting, then tokens refill at the rate.
+   *
+   * @throws Exception the exception
+   */
+  public void testRefill() throws Exception {
+    RateLimiter limiter = new RateLimiter("test/refill", RATE);
+    assertEquals(RATE, limiter.capacity, 0);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < RATE; i++) {
+      limiter.acquire();
+    }
+    long spent = elapsed(start);
+    assertTrue("Full bucket should not wait: " + spent + "ms", spent < 500);
+    assertTrue("Bucket should be empty: " + limiter.tokens, limiter.tokens < 1);
+
+    // empty bucket waits a token refill: 1/RATE second
+    synchronized (limiter) {
+      limiter.tokens = 0;
+      limiter.refillTime = System.nanoTime();
+    }
+    start = System.nanoTime();
+    limiter.acquire();
+    spent = elapsed(start);
+    assertTrue("Empty bucket should wait for a token: " + spent + "ms", spent >= 1000 / RATE / 2);
+    assertTrue("Empty bucket waited too long: " + spent + "ms", spent < 1000);
+
+    // half a second of idle time refills half of the bucket
+    synchronized (limiter) {
+      limiter.tokens = 0;
+      limiter.refillTime -= TimeUnit.MILLISECONDS.toNanos(500);
+    }
+    limiter.acquire();
+    assertEquals(RATE / 2 - 1, limiter.tokens, 1);
+  }
+
+  /**
+   * Test tokens don't exceed the bucket capacity after long idle time.
+   *
+   * @throws Exception the exception
+   */
+  public void testCapacity() throws Exception {
+    RateLimiter limiter = new RateLimiter("test/capacity", RATE);
+    synchronized (limiter) {
+      limiter.refillTime -= TimeUnit.MINUTES.toNanos(10);
+    }
+    limiter.acquire();
+    assertEquals("Tokens should be capped by the capacity", RATE - 1, limiter.tokens, 0.1);
+
+    // rate below one per second still allows a request
+    RateLimiter slow = new RateLimiter("test/slow", 0.5);
+    assertEquals(1, slow.capacity, 0);
+    long start = System.nanoTime();
+    slow.acquire();
+    assertTrue("Slow limiter should give first request", elapsed(start) < 500);
+  }
+
+  /**
+   * Test a pause can be extended but not shortened, and requests continue after it.
+   *
+   * @throws Exception the exception
+   */
+  public void testPause() throws Exception {
+    RateLimiter limiter = new RateLimiter("test/pause", RATE);
+    limiter.pause(0);
+    assertEquals("Zero pause should be ignored", 0, limiter.pausedTill);
+
+    limiter.pause(200);
+    long pausedTill = limiter.pausedTill;
+    assertTrue(pausedTill != 0);
+    assertEquals("Pause should take all tokens", 0, limiter.tokens, 0);
+
+    limiter.pause(50);
+    assertEquals("Shorter pause should not shorten current one", pausedTill, limiter.pausedTill);
+
+    limiter.pause(400);
+    assertTrue("Longer pause should extend current one", limiter.pausedTill - pausedTill > 0);
+
+    long start = System.nanoTime();
+    limiter.acquire();
+    long spent = elapsed(start);
+    assertTrue("Request should wait the pause: " + spent + "ms", spent >= 350);
+    assertTrue("Request waited too long: " + spent + "ms", spent < 3000);
+    assertEquals("Pause should be released", 0, limiter.pausedTill);
+
+    // after the pause tokens refill from zero at the rate
+    synchronized (limiter) {
+      limiter.refillTime -= TimeUnit.SECONDS.toNanos(1);
+    }
+    start = System.nanoTime();
+    for (int i = 0; i < RATE; i++) {
+      limiter.acquire();
+    }
+    assertTrue("Refilled bucket should not wait", elapsed(start) < 500);
+  }
+
+  /**
+   * Test requests rate configured for a provider by system property.
+   *
+   * @throws Exception the exception
+   */
+  public void testRateProperty() throws Exception {
+    String property = String.format(RateLimiter.RATE_PROPERTY, "testprovider");
+    System.setProperty(property, "2.5");
+    try {
+      assertEquals(2.5, RateLimiter.rate("testprovider"), 0);
+      System.setProperty(property, "-1");
+      assertEquals(RateLimiter.DEFAULT_RATE, RateLimiter.rate("testprovider"), 0);
+      System.setProperty(property, "fast");
+      assertEquals(RateLimiter.DEFAULT_RATE, RateLimiter.rate("testprovider"), 0);
+    } finally {
+      System.clearProperty(property);
+    }
+    assertEquals(RateLimiter.DEFAULT_RATE, RateLimiter.rate("testprovider"), 0);
+  }
+
+  // ******* internals *******
+
+  /**
+   * Milliseconds elapsed from given time.
+   *
+   * @param start the start time in nanoseconds
+   * @return the milliseconds
+   */
+  private long elapsed(long start) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+}
@@ -26,6 +26,7 @@ import org.exoplatform.clouddrive.CloudDriveService;
 import org.exoplatform.clouddrive.CloudDriveStorage;
 import org.exoplatform.clouddrive.CloudDriveStorage.Change;
 import org.exoplatform.clouddrive.DriveRemovedException;
+import org.exoplatform.clouddrive.ExecutorSaturatedException;
 import org.exoplatform.clouddrive.NotCloudDriveException;
 import org.exoplatform.clouddrive.ThreadExecutor;
 import org.exoplatform.clouddrive.jcr.NodeFinder;
@@ -231,35 +232,40 @@ public class CloudFileActionService implements Startable {
                     removedLinks.values().remove(cloudFileUUID);
                     removedLinks.put(eventPath, cloudFileUUID);
                     // remove symlink with a delay in another thread
-                    workerExecutor.submit(new Runnable() {
-                      @Override
-                      public void run() {
-                        try {
-                          Thread.sleep(1000 * 2); // wait a bit for ECMS actions
-
-                          Item linkItem = systemSession().getItem(eventPath);
-                          if (linkItem.isNode()) {
-                            Node linkNode = (Node) linkItem;
-                            Node parent = linkNode.getParent();
-                            linkNode.remove();
-                            parent.save();
-                            if (LOG.isDebugEnabled()) {
-                              LOG.debug("Cloud File link '" + linkItem.getName() + "' successfully removed from the Trash.");
+                    try {
+                      workerExecutor.submit(ThreadExecutor.Lane.INTERACTIVE, localDrive, new Runnable() {
+                        @Override
+                        public void run() {
+                          try {
+                            Thread.sleep(1000 * 2); // wait a bit for ECMS actions
+
+                            Item linkItem = systemSession().getItem(eventPath);
+                            if (linkItem.isNode()) {
+                              Node linkNode = (Node) linkItem;
+                              Node parent = linkNode.getParent();
+                              linkNode.remove();
+                              parent.save();
+                              if (LOG.isDebugEnabled()) {
+                                LOG.debug("Cloud File link '" + linkItem.getName() + "' successfully removed from the Trash.");
+                              }
                             }
+                          } catch (PathNotFoundException e) {
+                            // node already deleted
+                            LOG.warn("Cloud File " + eventPath + " node already removed directly from JCR: " + e.getMessage());
+                          } catch (InterruptedException e) {
+                            LOG.warn("Cloud File symlink remover interrupted " + e.getMessage());
+                            Thread.currentThread().interrupt();
+                          } catch (Throwable e) {
+                            LOG.error("Error removing node of Cloud File " + eventPath + ". " + e.getMessage(), e);
+                          } finally {
+                            processingLinks.remove(cloudFileUUID);
                           }
-                        } catch (PathNotFoundException e) {
-                          // node already deleted
-                          LOG.warn("Cloud File " + eventPath + " node already removed directly from JCR: " + e.getMessage());
-                        } catch (InterruptedException e) {
-                          LOG.warn("Cloud File symlink remover interrupted " + e.getMessage());
-                          Thread.currentThread().interrupt();
-                        } catch (Throwable e) {
-                          LOG.error("Error removing node of Cloud File " + eventPath + ". " + e.getMessage(), e);
-                        } finally {
-                          processingLinks.remove(cloudFileUUID);
                         }
-                      }
-                    });
+                      });
+                    } catch (ExecutorSaturatedException e) {
+                      processingLinks.remove(cloudFileUUID);
+                      LOG.warn("Cannot remove Cloud File symlink " + eventPath + " now: " + e.getMessage());
+                    }
                   } // else, link already processing
                 } else {
                   LOG.warn("Cloud Drive not connected for " + fileNode.getPath() + ". Drive: " + localDrive);
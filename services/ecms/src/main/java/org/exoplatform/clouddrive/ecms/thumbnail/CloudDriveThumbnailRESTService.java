@@ -18,19 +18,30 @@
  */
 package org.exoplatform.clouddrive.ecms.thumbnail;
 
+import org.exoplatform.clouddrive.CloudDrive;
+import org.exoplatform.clouddrive.CloudDriveException;
 import org.exoplatform.clouddrive.CloudDriveService;
+import org.exoplatform.clouddrive.CloudFile;
+import org.exoplatform.clouddrive.ecms.thumbnail.CloudFileThumbnails.Thumbnail;
+import org.exoplatform.clouddrive.jcr.JCRLocalCloudFile;
 import org.exoplatform.ecm.utils.text.Text;
 import org.exoplatform.services.cms.link.LinkManager;
 import org.exoplatform.services.cms.link.NodeFinder;
 import org.exoplatform.services.cms.thumbnail.ThumbnailService;
 import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
 import org.exoplatform.wcm.connector.collaboration.ThumbnailRESTService;
 
 import java.text.DateFormat;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
@@ -47,14 +58,21 @@ import javax.ws.rs.core.Response;
 @Path("/thumbnailImage/")
 public class CloudDriveThumbnailRESTService extends ThumbnailRESTService {
 
+  /** The Constant LOG. */
+  protected static final Log          LOG                    =
+                                                             ExoLogger.getLogger(CloudDriveThumbnailRESTService.class);
+
   /** The Constant LAST_MODIFIED_PROPERTY. */
-  private static final String       LAST_MODIFIED_PROPERTY = "Last-Modified";
+  private static final String         LAST_MODIFIED_PROPERTY = "Last-Modified";
 
   /** The Constant IF_MODIFIED_SINCE_DATE_FORMAT. */
-  private static final DateFormat   DATE_FORMAT            = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
+  private static final DateFormat     DATE_FORMAT            = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
 
   /** The cloud drives. */
-  protected final CloudDriveService cloudDrives;
+  protected final CloudDriveService   cloudDrives;
+
+  /** The cloud files thumbnails. */
+  protected final CloudFileThumbnails thumbnails;
 
   /**
    * Instantiates a new cloud drive thumbnail REST service.
@@ -64,14 +82,17 @@ public class CloudDriveThumbnailRESTService extends ThumbnailRESTService {
    * @param nodeFinder the node finder
    * @param linkManager the link manager
    * @param cloudDrives the cloud drives
+   * @param thumbnails the cloud files thumbnails
    */
   public CloudDriveThumbnailRESTService(RepositoryService repositoryService,
                                         ThumbnailService thumbnailService,
                                         NodeFinder nodeFinder,
                                         LinkManager linkManager,
-                                        CloudDriveService cloudDrives) {
+                                        CloudDriveService cloudDrives,
+                                        CloudFileThumbnails thumbnails) {
     super(repositoryService, thumbnailService, nodeFinder, linkManager);
     this.cloudDrives = cloudDrives;
+    this.thumbnails = thumbnails;
   }
 
   /**
@@ -87,7 +108,7 @@ public class CloudDriveThumbnailRESTService extends ThumbnailRESTService {
     if (accept(workspaceName, nodePath)) {
       return super.getThumbnailImage(repoName, workspaceName, nodePath, ifModifiedSince);
     } else {
-      return ok();
+      return cloudImage(repoName, workspaceName, nodePath, CloudFileThumbnails.MEDIUM, ifModifiedSince);
     }
   }
 
@@ -104,7 +125,7 @@ public class CloudDriveThumbnailRESTService extends ThumbnailRESTService {
     if (accept(workspaceName, nodePath)) {
       return super.getCoverImage(repoName, workspaceName, nodePath, ifModifiedSince);
     } else {
-      return ok();
+      return cloudImage(repoName, workspaceName, nodePath, CloudFileThumbnails.BIG, ifModifiedSince);
     }
   }
 
@@ -121,7 +142,7 @@ public class CloudDriveThumbnailRESTService extends ThumbnailRESTService {
     if (accept(workspaceName, nodePath)) {
       return super.getLargeImage(repoName, workspaceName, nodePath, ifModifiedSince);
     } else {
-      return ok();
+      return cloudImage(repoName, workspaceName, nodePath, CloudFileThumbnails.LARGE, ifModifiedSince);
     }
   }
 
@@ -138,7 +159,7 @@ public class CloudDriveThumbnailRESTService extends ThumbnailRESTService {
     if (accept(workspaceName, nodePath)) {
       return super.getSmallImage(repoName, workspaceName, nodePath, ifModifiedSince);
     } else {
-      return ok();
+      return cloudImage(repoName, workspaceName, nodePath, CloudFileThumbnails.SMALL, ifModifiedSince);
     }
   }
 
@@ -156,7 +177,7 @@ public class CloudDriveThumbnailRESTService extends ThumbnailRESTService {
     if (accept(workspaceName, nodePath)) {
       return super.getCustomImage(size, repoName, workspaceName, nodePath, ifModifiedSince);
     } else {
-      return ok();
+      return cloudImage(repoName, workspaceName, nodePath, size, ifModifiedSince);
     }
   }
 
@@ -173,7 +194,7 @@ public class CloudDriveThumbnailRESTService extends ThumbnailRESTService {
     if (accept(workspaceName, nodePath)) {
       return super.getOriginImage(repoName, workspaceName, nodePath, ifModifiedSince);
     } else {
-      return ok();
+      return cloudImage(repoName, workspaceName, nodePath, CloudFileThumbnails.ORIGIN, ifModifiedSince);
     }
   }
 
@@ -191,6 +212,100 @@ public class CloudDriveThumbnailRESTService extends ThumbnailRESTService {
     return cloudDrives.findDrive(workspaceName, getNodePath(nodePath)) == null;
   }
 
+  /**
+   * Thumbnail of a cloud file of given size. If the file has no thumbnail, then empty {@link #ok()}
+   * response will be returned. Thumbnails of other files of the file folder will be prefetched in
+   * background.
+   *
+   * @param repoName the repo name
+   * @param workspaceName the workspace name
+   * @param nodePath the node path
+   * @param size the size
+   * @param ifModifiedSince the if modified since
+   * @return the response
+   * @throws RepositoryException the repository exception
+   */
+  protected Response cloudImage(String repoName,
+                                String workspaceName,
+                                String nodePath,
+                                String size,
+                                String ifModifiedSince) throws RepositoryException {
+    String path = getNodePath(nodePath);
+    CloudDrive drive = cloudDrives.findDrive(workspaceName, path);
+    if (drive != null) {
+      try {
+        CloudFile file = drive.getFile(path);
+        prefetch(repoName, workspaceName, drive, file, size);
+        Thumbnail thumbnail = thumbnails.getThumbnail(repoName, workspaceName, drive, file, size);
+        if (thumbnail != null) {
+          if (ifModifiedSince != null && ifModifiedSince.length() > 0) {
+            try {
+              Date since;
+              synchronized (DATE_FORMAT) {
+                since = DATE_FORMAT.parse(ifModifiedSince);
+              }
+              if (!thumbnail.getLastModified().after(since)) {
+                return Response.notModified().build();
+              }
+            } catch (ParseException e) {
+              // send the image
+            }
+          }
+          String lastModified;
+          synchronized (DATE_FORMAT) {
+            lastModified = DATE_FORMAT.format(thumbnail.getLastModified());
+          }
+          return Response.ok(thumbnail.getImage(), thumbnail.getType())
+                         .header(LAST_MODIFIED_PROPERTY, lastModified)
+                         .build();
+        }
+      } catch (CloudDriveException e) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Cannot read thumbnail of cloud file " + workspaceName + ":" + path + ": " + e.getMessage());
+        }
+      }
+    }
+    return ok();
+  }
+
+  /**
+   * Prefetch thumbnails of files in the folder of given file. The folder will be listed only if it was not
+   * prefetched recently.
+   *
+   * @param repoName the repo name
+   * @param workspaceName the workspace name
+   * @param drive the drive
+   * @param file the file
+   * @param size the size
+   * @throws RepositoryException the repository exception
+   * @throws CloudDriveException the cloud drive exception
+   */
+  protected void prefetch(String repoName, String workspaceName, CloudDrive drive, CloudFile file, String size)
+      throws RepositoryException, CloudDriveException {
+    if (file instanceof JCRLocalCloudFile) {
+      Node node = ((JCRLocalCloudFile) file).getNode();
+      if (node != null && node.getDepth() > 0) {
+        Node parent = node.getParent();
+        if (!thumbnails.startPrefetch(workspaceName, parent.getPath(), size)) {
+          return;
+        }
+        List<CloudFile> files = new ArrayList<CloudFile>();
+        for (NodeIterator niter = parent.getNodes(); niter.hasNext()
+            && files.size() < CloudFileThumbnails.PREFETCH_FILES;) {
+          Node child = niter.nextNode();
+          if (drive.hasFile(child.getPath())) {
+            try {
+              files.add(drive.getFile(child.getPath()));
+            } catch (CloudDriveException e) {
+              // not a cloud file (yet), skip it
+            }
+          }
+        }
+        thumbnails.prefetch(repoName, workspaceName, drive, parent.getPath(), files, size);
+      }
+    }
+  }
+
   /**
    * Ok.
    *
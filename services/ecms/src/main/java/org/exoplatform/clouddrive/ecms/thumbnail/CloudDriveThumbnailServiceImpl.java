@@ -18,17 +18,23 @@
  */
 package org.exoplatform.clouddrive.ecms.thumbnail;
 
+import org.exoplatform.clouddrive.CloudDrive;
 import org.exoplatform.clouddrive.CloudDriveService;
+import org.exoplatform.clouddrive.CloudFile;
+import org.exoplatform.clouddrive.ecms.thumbnail.CloudFileThumbnails.Thumbnail;
 import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.services.cms.thumbnail.ThumbnailService;
 import org.exoplatform.services.cms.thumbnail.impl.ThumbnailServiceImpl;
+import org.exoplatform.services.jcr.core.ManageableRepository;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 
 import javax.jcr.Node;
 
 /**
- * TODO not finished! not used.
+ * TODO not finished! not used. Thumbnails of cloud files are read from {@link CloudFileThumbnails}.
  * 
  * Created by The eXo Platform SAS
  * 
@@ -39,18 +45,26 @@ import javax.jcr.Node;
 public class CloudDriveThumbnailServiceImpl extends ThumbnailServiceImpl {
 
   /** The cloud drives. */
-  protected final CloudDriveService cloudDrives;
+  protected final CloudDriveService   cloudDrives;
+
+  /** The cloud files thumbnails. */
+  protected final CloudFileThumbnails thumbnails;
 
   /**
    * Instantiates a new cloud drive thumbnail service impl.
    *
    * @param initParams the init params
    * @param cloudDrives the cloud drives
+   * @param thumbnails the cloud files thumbnails
    * @throws Exception the exception
    */
-  public CloudDriveThumbnailServiceImpl(InitParams initParams, CloudDriveService cloudDrives) throws Exception {
+  public CloudDriveThumbnailServiceImpl(InitParams initParams,
+                                        CloudDriveService cloudDrives,
+                                        CloudFileThumbnails thumbnails)
+      throws Exception {
     super(initParams);
     this.cloudDrives = cloudDrives;
+    this.thumbnails = thumbnails;
   }
 
   /**
@@ -58,7 +72,22 @@ public class CloudDriveThumbnailServiceImpl extends ThumbnailServiceImpl {
    */
   @Override
   public InputStream getThumbnailImage(Node node, String thumbnailType) throws Exception {
-    // TODO Auto-generated method stub
+    CloudDrive drive = cloudDrives.findDrive(node);
+    if (drive != null) {
+      String size;
+      if (ThumbnailService.SMALL_SIZE.equals(thumbnailType)) {
+        size = CloudFileThumbnails.SMALL;
+      } else if (ThumbnailService.BIG_SIZE.equals(thumbnailType)) {
+        size = CloudFileThumbnails.BIG;
+      } else {
+        size = CloudFileThumbnails.MEDIUM;
+      }
+      String repository = ((ManageableRepository) node.getSession().getRepository()).getConfiguration().getName();
+      String workspace = node.getSession().getWorkspace().getName();
+      CloudFile file = drive.getFile(node.getPath());
+      Thumbnail thumbnail = thumbnails.getThumbnail(repository, workspace, drive, file, size);
+      return thumbnail != null ? new ByteArrayInputStream(thumbnail.getImage()) : null;
+    }
     return super.getThumbnailImage(node, thumbnailType);
   }
 
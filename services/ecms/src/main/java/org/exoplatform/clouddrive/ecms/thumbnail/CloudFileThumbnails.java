@@ -0,0 +1,551 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive.ecms.thumbnail;
+
+import org.exoplatform.clouddrive.CloudDrive;
+import org.exoplatform.clouddrive.CloudDriveException;
+import org.exoplatform.clouddrive.CloudDriveStorage;
+import org.exoplatform.clouddrive.CloudFile;
+import org.exoplatform.clouddrive.viewer.ContentReader;
+import org.exoplatform.clouddrive.viewer.ViewerStorage;
+import org.exoplatform.clouddrive.viewer.ViewerStorage.ContentFile;
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.security.ConversationState;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.jcr.RepositoryException;
+
+/**
+ * Thumbnails of cloud files for ECMS views. A thumbnail will be read from the cloud provider (via
+ * {@link CloudDriveStorage#getFileThumbnail(String)}) or rendered from the file already converted by
+ * {@link ViewerStorage} (first page of PDF or an image), then resized to asked size and kept in
+ * {@link ThumbnailCache} by file id and modified date. Files without a thumbnail will be remembered too,
+ * thus the provider will not be asked again for the same file version.<br>
+ * Thumbnails of files of a folder can be prefetched in background, when the folder listed by an user.<br>
+ *
+ * Created by The eXo Platform SAS
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: CloudFileThumbnails.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class CloudFileThumbnails {
+
+  /** The Constant LOG. */
+  protected static final Log LOG              = ExoLogger.getLogger(CloudFileThumbnails.class);
+
+  /** Thumbnail image type. */
+  public static final String IMAGE_TYPE       = "image/png";
+
+  /** The small size. */
+  public static final String SMALL            = "32x32";
+
+  /** The medium size. */
+  public static final String MEDIUM           = "116x116";
+
+  /** The big size. */
+  public static final String BIG              = "300x300";
+
+  /** The large size. */
+  public static final String LARGE            = "600x600";
+
+  /** The origin size, actually limited to not keep too large images. */
+  public static final String ORIGIN           = "1024x1024";
+
+  /** Cache size in memory. */
+  public static final long   MEMORY_SIZE      = 16 * 1024 * 1024;
+
+  /** Cache size on the disk. */
+  public static final long   DISK_SIZE        = 256 * 1024 * 1024;
+
+  /** Max number of files of a folder prefetched at once. */
+  public static final int    PREFETCH_FILES   = 100;
+
+  /** Time while a prefetched folder will not be prefetched again. */
+  public static final long   PREFETCH_TIMEOUT = 60000;
+
+  /**
+   * Thumbnail image.
+   */
+  public static class Thumbnail {
+
+    /** The image bytes. */
+    protected final byte[] image;
+
+    /** The last modified date. */
+    protected final Date   lastModified;
+
+    /**
+     * Instantiates a new thumbnail.
+     *
+     * @param image the image
+     * @param lastModified the last modified
+     */
+    protected Thumbnail(byte[] image, Date lastModified) {
+      this.image = image;
+      this.lastModified = lastModified;
+    }
+
+    /**
+     * Gets the image bytes.
+     *
+     * @return the image
+     */
+    public byte[] getImage() {
+      return image;
+    }
+
+    /**
+     * Gets the image type.
+     *
+     * @return the type
+     */
+    public String getType() {
+      return IMAGE_TYPE;
+    }
+
+    /**
+     * Gets the last modified date of the image, it is modified date of its file.
+     *
+     * @return the last modified
+     */
+    public Date getLastModified() {
+      return lastModified;
+    }
+  }
+
+  /**
+   * Source of a thumbnail, resolved in a caller thread.
+   */
+  protected class Source {
+
+    /** The drive. */
+    protected final CloudDrive  drive;
+
+    /** The file. */
+    protected final CloudFile   file;
+
+    /** The file in viewer storage, can be <code>null</code>. */
+    protected final ContentFile viewerFile;
+
+    /**
+     * Instantiates a new source.
+     *
+     * @param repository the repository
+     * @param workspace the workspace
+     * @param drive the drive
+     * @param file the file
+     * @throws RepositoryException the repository exception
+     * @throws CloudDriveException the cloud drive exception
+     */
+    protected Source(String repository, String workspace, CloudDrive drive, CloudFile file)
+        throws RepositoryException, CloudDriveException {
+      this.drive = drive;
+      this.file = file;
+      ContentFile viewerFile = viewerStorage.getFile(repository, workspace, drive, file.getId());
+      if (viewerFile != null && viewerFile.exists()
+          && viewerFile.getLastModified() >= file.getModifiedDate().getTimeInMillis()) {
+        this.viewerFile = viewerFile;
+      } else {
+        this.viewerFile = null;
+      }
+    }
+
+    /**
+     * Cache key of the thumbnail of given size.
+     *
+     * @param size the size
+     * @return the string
+     */
+    protected String key(String size) {
+      StringBuilder key = new StringBuilder();
+      key.append(drive.getUser().getProvider().getId());
+      key.append(':');
+      key.append(file.getId());
+      key.append(':');
+      key.append(file.getModifiedDate().getTimeInMillis());
+      key.append(':');
+      key.append(size);
+      return key.toString();
+    }
+  }
+
+  /**
+   * Prefetch of thumbnails of a folder files.
+   */
+  protected class Prefetch implements Runnable {
+
+    /** The sources. */
+    protected final List<Source>      sources;
+
+    /** The size. */
+    protected final String            size;
+
+    /** The container. */
+    protected final ExoContainer      container;
+
+    /** The conversation. */
+    protected final ConversationState conversation;
+
+    /**
+     * Instantiates a new prefetch.
+     *
+     * @param sources the sources
+     * @param size the size
+     */
+    protected Prefetch(List<Source> sources, String size) {
+      this.sources = sources;
+      this.size = size;
+      this.container = ExoContainerContext.getCurrentContainerIfPresent();
+      this.conversation = ConversationState.getCurrent();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+      ExoContainer prevContainer = ExoContainerContext.getCurrentContainerIfPresent();
+      ConversationState prevConversation = ConversationState.getCurrent();
+      try {
+        ExoContainerContext.setCurrentContainer(container);
+        ConversationState.setCurrent(conversation);
+        for (Source source : sources) {
+          if (Thread.currentThread().isInterrupted()) {
+            break;
+          }
+          String key = source.key(size);
+          if (cache.get(key) == null) {
+            try {
+              load(source, key, size);
+            } catch (Throwable e) {
+              LOG.warn("Error prefetching thumbnail of " + source.file.getPath() + ": " + e.getMessage());
+            }
+          }
+        }
+      } finally {
+        ConversationState.setCurrent(prevConversation);
+        ExoContainerContext.setCurrentContainer(prevContainer);
+      }
+    }
+  }
+
+  /** The viewer storage. */
+  protected final ViewerStorage                     viewerStorage;
+
+  /** The cache. */
+  protected final ThumbnailCache                    cache;
+
+  /** Prefetch executor. */
+  protected final ThreadPoolExecutor                prefetcher;
+
+  /** Prefetched folders with time of prefetch. */
+  protected final ConcurrentHashMap<String, Long>   prefetched = new ConcurrentHashMap<String, Long>();
+
+  /**
+   * Instantiates a new cloud file thumbnails.
+   *
+   * @param viewerStorage the viewer storage
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public CloudFileThumbnails(ViewerStorage viewerStorage) throws IOException {
+    this.viewerStorage = viewerStorage;
+
+    File probe = File.createTempFile("CloudDrive.Thumbnails-" + System.currentTimeMillis(), ".temp");
+    try {
+      File dir = new File(probe.getParentFile(), "CloudDrive." + CloudFileThumbnails.class.getSimpleName());
+      this.cache = new ThumbnailCache(dir, MEMORY_SIZE, DISK_SIZE);
+    } finally {
+      probe.delete();
+    }
+
+    final AtomicInteger threadNumber = new AtomicInteger();
+    this.prefetcher = new ThreadPoolExecutor(1,
+                                             2,
+                                             60,
+                                             TimeUnit.SECONDS,
+                                             new ArrayBlockingQueue<Runnable>(100),
+                                             new ThreadFactory() {
+                                               @Override
+                                               public Thread newThread(Runnable r) {
+                                                 Thread t = new Thread(r, "clouddrive-thumbnails-"
+                                                     + threadNumber.incrementAndGet());
+                                                 t.setDaemon(true);
+                                                 return t;
+                                               }
+                                             },
+                                             new ThreadPoolExecutor.DiscardPolicy());
+  }
+
+  /**
+   * Get thumbnail of the file, it will be loaded and cached if not yet available.
+   *
+   * @param repository the repository
+   * @param workspace the workspace
+   * @param drive the drive
+   * @param file the file
+   * @param size the size in form of <code>WIDTHxHEIGHT</code>, e.g. {@link #MEDIUM}
+   * @return the thumbnail or <code>null</code> if the file has no thumbnail
+   * @throws RepositoryException the repository exception
+   * @throws CloudDriveException the cloud drive exception
+   */
+  public Thumbnail getThumbnail(String repository, String workspace, CloudDrive drive, CloudFile file, String size)
+      throws RepositoryException, CloudDriveException {
+    if (file.isFolder()) {
+      return null;
+    }
+    Source source = new Source(repository, workspace, drive, file);
+    String key = source.key(size);
+    byte[] image = cache.get(key);
+    if (image == null) {
+      image = load(source, key, size);
+    }
+    return image.length > 0 ? new Thumbnail(image, lastModified(file)) : null;
+  }
+
+  /**
+   * Start prefetch of a folder files thumbnails: the folder will be marked as prefetched if it was not
+   * prefetched during {@link #PREFETCH_TIMEOUT}. A caller should list the folder files and
+   * {@link #prefetch(String, String, CloudDrive, String, Collection, String)} them only if this method
+   * returns <code>true</code>, thus a folder listed once per the timeout whatever number of its files
+   * requested.
+   *
+   * @param workspace the workspace
+   * @param folderPath the folder path
+   * @param size the size
+   * @return <code>true</code> if the folder should be prefetched, <code>false</code> if it was already
+   *         prefetched recently
+   */
+  public boolean startPrefetch(String workspace, String folderPath, String size) {
+    long now = System.currentTimeMillis();
+    String folderKey = workspace + ":" + folderPath + ":" + size;
+    Long time = prefetched.get(folderKey);
+    boolean start;
+    if (time == null) {
+      start = prefetched.putIfAbsent(folderKey, now) == null;
+    } else {
+      start = now - time > PREFETCH_TIMEOUT && prefetched.replace(folderKey, time, now);
+    }
+    if (start) {
+      // forget old folders
+      for (Iterator<Long> piter = prefetched.values().iterator(); piter.hasNext();) {
+        if (now - piter.next() > PREFETCH_TIMEOUT) {
+          piter.remove();
+        }
+      }
+    }
+    return start;
+  }
+
+  /**
+   * Prefetch thumbnails of given files of a folder in background. The prefetch should be started by
+   * {@link #startPrefetch(String, String, String)}.
+   *
+   * @param repository the repository
+   * @param workspace the workspace
+   * @param drive the drive
+   * @param folderPath the folder path
+   * @param files the folder files
+   * @param size the size
+   * @throws RepositoryException the repository exception
+   * @throws CloudDriveException the cloud drive exception
+   */
+  public void prefetch(String repository,
+                       String workspace,
+                       CloudDrive drive,
+                       String folderPath,
+                       Collection<CloudFile> files,
+                       String size) throws RepositoryException, CloudDriveException {
+    List<Source> sources = new ArrayList<Source>();
+    for (CloudFile file : files) {
+      if (!file.isFolder()) {
+        Source source = new Source(repository, workspace, drive, file);
+        if (cache.get(source.key(size)) == null) {
+          sources.add(source);
+          if (sources.size() >= PREFETCH_FILES) {
+            break;
+          }
+        }
+      }
+    }
+    if (sources.size() > 0) {
+      prefetcher.execute(new Prefetch(sources, size));
+    }
+  }
+
+  // ******* internals *******
+
+  /**
+   * Load thumbnail from its source, resize and put it to the cache. If the file has no thumbnail it will be
+   * cached as {@link ThumbnailCache#NO_IMAGE}. If the thumbnail cannot be read (e.g. network error), nothing
+   * will be cached and next request will try again.
+   *
+   * @param source the source
+   * @param key the key
+   * @param size the size
+   * @return the image bytes, {@link ThumbnailCache#NO_IMAGE} if thumbnail not available
+   * @throws RepositoryException the repository exception
+   * @throws CloudDriveException the cloud drive exception
+   */
+  protected byte[] load(Source source, String key, String size) throws RepositoryException, CloudDriveException {
+    byte[] image;
+    try {
+      BufferedImage original = read(source);
+      if (original != null) {
+        int[] dims = dimensions(size);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(resize(original, dims[0], dims[1]), "png", out);
+        image = out.toByteArray();
+      } else {
+        image = ThumbnailCache.NO_IMAGE;
+      }
+    } catch (IOException e) {
+      // can be a temporal error, don't remember it for the file version
+      LOG.warn("Cannot read thumbnail of " + source.file.getPath() + ": " + e.getMessage());
+      return ThumbnailCache.NO_IMAGE;
+    }
+    cache.put(key, image);
+    return image;
+  }
+
+  /**
+   * Read original image: from the viewer storage if the file already converted there, from the provider
+   * otherwise.
+   *
+   * @param source the source
+   * @return the image or <code>null</code> if the file has no thumbnail or its format not supported
+   * @throws IOException Signals that an I/O exception has occurred.
+   * @throws RepositoryException the repository exception
+   * @throws CloudDriveException the cloud drive exception
+   */
+  protected BufferedImage read(Source source) throws IOException, RepositoryException, CloudDriveException {
+    if (source.viewerFile != null) {
+      InputStream stream = null;
+      if (source.viewerFile.isPDF()) {
+        stream = source.viewerFile.asPDF().getPageImage(1, 0, 1).getStream();
+      } else if (source.viewerFile.getMimeType().startsWith("image/")) {
+        stream = source.viewerFile.getStream();
+      }
+      if (stream != null) {
+        try {
+          BufferedImage image = ImageIO.read(stream);
+          if (image != null) {
+            return image;
+          }
+        } finally {
+          stream.close();
+        }
+      }
+    }
+    if (source.drive instanceof CloudDriveStorage) {
+      ContentReader content = ((CloudDriveStorage) source.drive).getFileThumbnail(source.file.getId());
+      if (content != null) {
+        InputStream stream = content.getStream();
+        try {
+          return ImageIO.read(stream);
+        } finally {
+          stream.close();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Resize the image to fit given dimensions, keeping its aspect ratio. Smaller images not resized.
+   *
+   * @param image the image
+   * @param width the width
+   * @param height the height
+   * @return the resized image
+   */
+  protected BufferedImage resize(BufferedImage image, int width, int height) {
+    double scale = Math.min((double) width / image.getWidth(), (double) height / image.getHeight());
+    if (scale >= 1) {
+      return image;
+    }
+    int w = Math.max(1, (int) Math.round(image.getWidth() * scale));
+    int h = Math.max(1, (int) Math.round(image.getHeight() * scale));
+    BufferedImage resized = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = resized.createGraphics();
+    try {
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      g.drawImage(image, 0, 0, w, h, null);
+    } finally {
+      g.dispose();
+    }
+    return resized;
+  }
+
+  /**
+   * Parse size in form of <code>WIDTHxHEIGHT</code>. Wrong or too large sizes will be replaced by
+   * {@link #ORIGIN}.
+   *
+   * @param size the size
+   * @return the width and height
+   */
+  protected int[] dimensions(String size) {
+    int[] origin = new int[] { 1024, 1024 };
+    int x = size.indexOf('x');
+    if (x > 0) {
+      try {
+        int width = Integer.parseInt(size.substring(0, x));
+        int height = Integer.parseInt(size.substring(x + 1));
+        if (width > 0 && height > 0 && width <= origin[0] && height <= origin[1]) {
+          return new int[] { width, height };
+        }
+      } catch (NumberFormatException e) {
+        // use origin
+      }
+    }
+    return origin;
+  }
+
+  /**
+   * Last modified date of the file with precision of HTTP dates (seconds).
+   *
+   * @param file the file
+   * @return the date
+   */
+  protected Date lastModified(CloudFile file) {
+    return new Date(file.getModifiedDate().getTimeInMillis() / 1000 * 1000);
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2003-2016 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.clouddrive.ecms.thumbnail;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Two level LRU cache of thumbnail images: recently used images in memory, others in files of a local
+ * directory. Both levels are bounded by size in bytes, least recently used images will be evicted first:
+ * from memory they go to the disk only (they already saved there), from the disk they will be deleted.<br>
+ * Keys should identify a version of the image (e.g. include modified date of its file), thus cached images
+ * never need an update.<br>
+ * This class is thread safe.<br>
+ *
+ * Created by The eXo Platform SAS
+ *
+ * @author <a href="mailto:pnedonosko@exoplatform.com">Peter Nedonosko</a>
+ * @version $Id: ThumbnailCache.java 00000 Oct 17, 2016 pnedonosko $
+ */
+public class ThumbnailCache {
+
+  /** The Constant LOG. */
+  protected static final Log                    LOG        = ExoLogger.getLogger(ThumbnailCache.class);
+
+  /** Image stored for keys without a thumbnail (negative cache). */
+  public static final byte[]                    NO_IMAGE   = new byte[0];
+
+  /** Size of an entry for cache accounting, added to the image length. */
+  protected static final int                    ENTRY_SIZE = 128;
+
+  /** Images in memory. */
+  protected final LinkedHashMap<String, byte[]> memory     = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+  /** Images on the disk. */
+  protected final LinkedHashMap<String, File>   disk       = new LinkedHashMap<String, File>(16, 0.75f, true);
+
+  /** The directory of image files. */
+  protected final File                          dir;
+
+  /** The max memory size in bytes. */
+  protected final long                          maxMemorySize;
+
+  /** The max disk size in bytes. */
+  protected final long                          maxDiskSize;
+
+  /** Current memory size. */
+  protected long                                memorySize;
+
+  /** Current disk size. */
+  protected long                                diskSize;
+
+  /**
+   * Instantiates a new thumbnail cache. Given directory will be cleaned.
+   *
+   * @param dir the directory for image files
+   * @param maxMemorySize the max memory size in bytes
+   * @param maxDiskSize the max disk size in bytes
+   */
+  public ThumbnailCache(File dir, long maxMemorySize, long maxDiskSize) {
+    this.dir = dir;
+    this.maxMemorySize = maxMemorySize;
+    this.maxDiskSize = maxDiskSize;
+
+    if (dir.exists()) {
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (File f : files) {
+          f.delete();
+        }
+      }
+    } else {
+      dir.mkdirs();
+    }
+  }
+
+  /**
+   * Get cached image.
+   *
+   * @param key the key
+   * @return the image bytes, {@link #NO_IMAGE} if the key known without an image, or <code>null</code> if
+   *         not cached
+   */
+  public byte[] get(String key) {
+    File file;
+    synchronized (this) {
+      byte[] image = memory.get(key);
+      if (image != null) {
+        return image;
+      }
+      file = disk.get(key);
+    }
+    if (file != null) {
+      try {
+        byte[] image = read(file);
+        putMemory(key, image);
+        return image;
+      } catch (IOException e) {
+        // evicted while reading or cannot read
+        synchronized (this) {
+          if (disk.get(key) == file) {
+            removeDisk(key);
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Put image to the cache. Empty images ({@link #NO_IMAGE}) will be kept in memory only.
+   *
+   * @param key the key
+   * @param image the image bytes
+   */
+  public void put(String key, byte[] image) {
+    synchronized (this) {
+      if (disk.containsKey(key)) {
+        // the same image already saved (e.g. by concurrent loading)
+        return;
+      }
+    }
+    if (image.length > 0) {
+      File file = new File(dir, fileName(key));
+      try {
+        write(file, image);
+        synchronized (this) {
+          File prev = disk.put(key, file);
+          if (prev != null) {
+            diskSize -= prev.length();
+          }
+          diskSize += image.length;
+          evictDisk();
+        }
+      } catch (IOException e) {
+        LOG.warn("Cannot save thumbnail file " + file.getAbsolutePath() + ": " + e.getMessage());
+        file.delete();
+      }
+    }
+    putMemory(key, image);
+  }
+
+  /**
+   * Clean the cache.
+   */
+  public synchronized void clear() {
+    memory.clear();
+    memorySize = 0;
+    for (File f : disk.values()) {
+      f.delete();
+    }
+    disk.clear();
+    diskSize = 0;
+  }
+
+  // ******* internals *******
+
+  /**
+   * Put image to memory and evict eldest if memory is full.
+   *
+   * @param key the key
+   * @param image the image
+   */
+  private synchronized void putMemory(String key, byte[] image) {
+    byte[] prev = memory.put(key, image);
+    if (prev != null) {
+      memorySize -= prev.length + ENTRY_SIZE;
+    }
+    memorySize += image.length + ENTRY_SIZE;
+    for (Iterator<byte[]> miter = memory.values().iterator(); memorySize > maxMemorySize && miter.hasNext();) {
+      byte[] eldest = miter.next();
+      memorySize -= eldest.length + ENTRY_SIZE;
+      miter.remove();
+    }
+  }
+
+  /**
+   * Evict eldest files if the disk is full.
+   */
+  private void evictDisk() {
+    for (Iterator<Map.Entry<String, File>> diter = disk.entrySet().iterator(); diskSize > maxDiskSize
+        && diter.hasNext();) {
+      File eldest = diter.next().getValue();
+      diskSize -= eldest.length();
+      eldest.delete();
+      diter.remove();
+    }
+  }
+
+  /**
+   * Remove file from the disk.
+   *
+   * @param key the key
+   */
+  private void removeDisk(String key) {
+    File file = disk.remove(key);
+    if (file != null) {
+      diskSize -= file.length();
+      file.delete();
+    }
+  }
+
+  /**
+   * File name of the key.
+   *
+   * @param key the key
+   * @return the file name
+   */
+  private String fileName(String key) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest(key.getBytes("UTF-8"));
+      StringBuilder name = new StringBuilder();
+      for (byte b : hash) {
+        name.append(Character.forDigit((b >> 4) & 0xF, 16));
+        name.append(Character.forDigit(b & 0xF, 16));
+      }
+      return name.toString();
+    } catch (NoSuchAlgorithmException e) {
+      return String.valueOf(key.hashCode()) + "-" + System.nanoTime();
+    } catch (UnsupportedEncodingException e) {
+      return String.valueOf(key.hashCode()) + "-" + System.nanoTime();
+    }
+  }
+
+  /**
+   * Read file bytes.
+   *
+   * @param file the file
+   * @return the bytes
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private byte[] read(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] data = new byte[(int) file.length()];
+      int offset = 0;
+      int read;
+      while (offset < data.length && (read = in.read(data, offset, data.length - offset)) >= 0) {
+        offset += read;
+      }
+      if (offset < data.length) {
+        throw new IOException("Thumbnail file truncated " + file.getAbsolutePath());
+      }
+      return data;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Write bytes to the file.
+   *
+   * @param file the file
+   * @param data the data
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void write(File file, byte[] data) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+}
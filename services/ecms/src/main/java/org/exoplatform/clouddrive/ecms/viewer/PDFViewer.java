@@ -142,6 +142,8 @@ public class PDFViewer extends AbstractFileForm {
       ContentFile contentFile = storage.createFile(repository, workspace, drive, file);
       if (contentFile.isPDF()) {
         this.pdfFile = contentFile.asPDF();
+        // render first pages in background while the viewer loading
+        this.pdfFile.prefetchPages(0, currentRotation, currentScale);
         
         // FYI preview link can be provider specific, thus we use exactly our Content service
         //String previewLink = file.getPreviewLink();
@@ -250,6 +250,25 @@
 			return initRequest(request);
 		};
 
+		var getStateChanges = function(workspace, path, version) {
+			var data = {
+				workspace : workspace,
+				path : path
+			};
+			if (typeof version !== "undefined" && version !== null) {
+				data.version = version;
+			}
+			var request = $.ajax({
+				async : true,
+				type : "GET",
+				url : prefixUrl + "/portal/rest/clouddrive/drive/state/changes",
+				dataType : "json",
+				data : data
+			});
+
+			return initRequest(request);
+		};
+
 		var synchronizePost = function(workspace, path) {
 			var request = $.ajax({
 				async : true, // use false for avoid the popup blocker
@@ -432,14 +451,35 @@
 			return process.promise();
 		};
 
+		var updateState = function(drive, state) {
+			// find files not upgrading anymore and remove them from the drive files:
+			nextUpdating:
+			for (var dui = 0; dui < drive.state.updating.length; dui++) {
+				var fpath = drive.state.updating[dui];
+				for (var sui = 0; sui < state.updating.length; sui++) {
+					if (fpath === state.updating[sui]) {
+						continue nextUpdating;
+						// still updating
+					}
+				}
+				// remove from cached files
+				delete drive.files[fpath];
+			}
+			// and set fresh state at the end
+			drive.state = state;
+		};
+
 		var connectCheck = function(checkUrl) {
 			var process = $.Deferred();
 			var serviceUrl = checkUrl;
-			// if Accepted start Interval to wait for Created
-			var intervalId = setInterval(function() {
+			var progress = null;
+			// if Accepted request the state again: server answers when the progress changed (long-polling)
+			var check = function() {
 				// use serviceUrl to check until 201/200 will be returned or an error
-				var check = serviceGet(serviceUrl);
-				check.done(function(state, status) {
+				var request = serviceGet(serviceUrl, progress !== null ? {
+					progress : progress
+				} : null);
+				request.done(function(state, status, textStatus, jqXHR) {
 					if (status == "204") {
 						// No content - not a cloud drive or drive not connected, or not to this
 						// user. This also might mean an error as connect not active but the drive not
@@ -455,9 +495,18 @@
 							// else inform progress and continue
 							process.notify(state);
 							utils.log("PROGRESS: " + status + " " + state.drive.provider.serviceName + " connectCheck progress " + state.progress);
+							progress = state.progress;
+							// server asks to wait when too many requests wait for the progress
+							var retryAfter = jqXHR ? parseInt(jqXHR.getResponseHeader("Retry-After")) : NaN;
+							if (retryAfter > 0) {
+								setTimeout(check, retryAfter * 1000);
+							} else {
+								check();
+							}
 						} else {
 							// unexpected status, wait for created
 							utils.log("WARN: unexpected status in connectCheck:" + status);
+							setTimeout(check, 3333);
 						}
 					} else {
 						utils.log("ERROR: " + status + " connectCheck return wrong state.");
@@ -470,7 +519,7 @@
 						process.reject("Cannot connect " + driveName + ". Server return wrong state.");
 					}
 				});
-				check.fail(function(state, error, errorText) {
+				request.fail(function(state, error, errorText) {
 					utils.log("ERROR: Connect check error: " + error + ". " + JSON.stringify(state));
 					if ( typeof state === "string") {
 						process.reject(state);
@@ -478,12 +527,8 @@
 						process.reject("Internal error: " + (state && state.error ? state.error : error + " " + errorText));
 					}
 				});
-			}, 3333);
-
-			// finally clear interval
-			process.always(function() {
-				intervalId = clearInterval(intervalId);
-			});
+			};
+			check();
 
 			return process.promise();
 		};
@@ -672,8 +717,8 @@
 					};
 					// default algorithm
 					var defaultSync = function() {
-						// sync each 20sec
-						syncTimeout = 20000;
+						// the drive is synchronized on the server, here we only nudge it to refresh the view each 60sec
+						syncTimeout = 60000;
 						// use default sync function
 						syncFunc = doSync;
 						scheduleSync();
@@ -681,10 +726,6 @@
 
 						// run periodical sync for some period (30min)
 						var syncPeriod = 60000 * 30;
-						// ... increase timeout after a 1/3 of a period
-						setTimeout(function() {
-							syncTimeout = 40000;
-						}, Math.round(syncPeriod / 3));
 						// ... and stop sync after some period, user can enable it again by page refreshing/navigation
 						setTimeout(function() {
 							stopAutoSynchronize();
@@ -1164,21 +1205,31 @@
 			if (drive) {
 				stateProcess = getState(drive.workspace, drive.path);
 				stateProcess.done(function(state) {
-					// find files not upgrading anymore and remove them from the drive files:
-					nextUpdating:
-					for (var dui = 0; dui < drive.state.updating.length; dui++) {
-						var fpath = drive.state.updating[dui];
-						for (var sui = 0; sui < state.updating.length; sui++) {
-							if (fpath === state.updating[sui]) {
-								continue nextUpdating;
-								// still updating
-							}
-						}
-						// remove from cached files
-						delete drive.files[fpath];
+					updateState(drive, state);
+				});
+			}
+			return stateProcess;
+		};
+
+		/**
+		 * Wait for the state change of given drive and return jQuery promise to the request. Promise will be resolved
+		 * with an object containing the state version and the state itself, or with nothing (204 status) if the state
+		 * not changed during the server timeout. If version not given, current state will be returned immediately.
+		 * This method also does update the drive object state.
+		 * If given drive is null/undefined then context drive will be used and updated accordingly, if no context drive
+		 * found then null will be returned.
+		 */
+		this.getStateChanges = function(drive, version) {
+			if (!drive) {
+				drive = contextDrive;
+			}
+			var stateProcess = null;
+			if (drive) {
+				stateProcess = getStateChanges(drive.workspace, drive.path, version);
+				stateProcess.done(function(info) {
+					if (info && info.state) {
+						updateState(drive, info.state);
 					}
-					// and set fresh state at the end
-					drive.state = state;
 				});
 			}
 			return stateProcess;
@@ -1563,18 +1614,37 @@
 				// initiate/update syncingUpdater
 
 				if (!syncingUpdater) {
-					// create periodic updated, check each 5sec
-					// TODO replace with long-poling request w/o periodic task
+					// watch the drive state changes with long-polling requests
 					syncingUpdater = {};
-					syncingUpdater.interval = setInterval(function() {
-						var stateProcess = cloudDrive.getState();
+					var watchState = function(version) {
+						var stateProcess = cloudDrive.getStateChanges(null, version);
 						if (stateProcess) {
-							stateProcess.done(function(state) {
+							stateProcess.done(function(info, status, textStatus, jqXHR) {
+								if (!syncingUpdater) {
+									return;
+									// updater already stopped
+								}
+								if (status == "204" || !info) {
+									// server asks to wait when too many requests wait for the changes
+									var retryAfter = jqXHR ? parseInt(jqXHR.getResponseHeader("Retry-After")) : NaN;
+									if (retryAfter > 0) {
+										setTimeout(function() {
+											if (syncingUpdater) {
+												watchState(version);
+											}
+										}, retryAfter * 1000);
+									} else {
+										watchState(version);
+									}
+									return;
+									// no changes during the server timeout - wait again
+								}
+								var state = info.state;
 								var updated = 0;
 								var paths = syncingUpdater.paths;
 								if (paths && paths.length > 0) {
 									// compare remote state's updating with paths stored in the updater
-									// if have difference - cancel the interval and run UI refresh
+									// if have difference - stop watching and run UI refresh
 									var currentNode = cloudDrive.getCurrentNode();
 									if (currentNode) {
 										var currentPath = currentNode.path;
@@ -1593,12 +1663,12 @@
 											}
 										}
 										if (updated == 0 || updated != contextPathsNumber) {
+											watchState(info.version);
 											return;
-											// no changes or not everything changed in syncing list - wait for next interval
+											// no changes or not everything changed in syncing list - wait for next change
 										}
 									}
 								}
-								clearInterval(syncingUpdater.interval);
 								syncingUpdater = null;
 								if (updated > 0) {
 									refresh();
@@ -1607,14 +1677,18 @@
 							});
 							stateProcess.fail(function(e) {
 								// stop updated on error
-								clearInterval(syncingUpdater.interval);
 								syncingUpdater = null;
 								utils.log("ERROR: syncing updater failed with error " + e, e);
 							});
+						} else {
+							syncingUpdater = null;
 						}
-					}, 5000);
+					};
+					syncingUpdater.paths = syncingPaths;
+					watchState();
+				} else {
+					syncingUpdater.paths = syncingPaths;
 				}
-				syncingUpdater.paths = syncingPaths;
 			}
 
 			return syncingPaths.length;